@@ -0,0 +1,57 @@
+package com.therapy.directory;
+
+import org.bson.types.ObjectId;
+
+/**
+ * This class represents a therapist found in the
+ * <code>TherapistDirectory</code>. It only holds what is shown in search
+ * suggestions.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class DirectoryEntry {
+	
+	private final ObjectId id;
+	private final String name;
+	private final Integer rating;
+	
+	/**
+	 * 
+	 * @param id     the <code>_id</code> field of the therapist
+	 * @param name   the full name of the therapist
+	 * @param rating the rating of the therapist, or null if they have none
+	 */
+	DirectoryEntry(ObjectId id, String name, Integer rating) {
+		
+		this.id = id;
+		this.name = name;
+		this.rating = rating;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> field of the therapist
+	 */
+	public ObjectId getId() {
+		return id;
+	}
+	
+	/**
+	 * 
+	 * @return the full name of the therapist
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * 
+	 * @return the rating of the therapist, or null if they have none
+	 */
+	public Integer getRating() {
+		return rating;
+	}
+
+}
@@ -0,0 +1,465 @@
+package com.therapy.directory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.therapy.entities.Therapist;
+import com.therapy.entities.User;
+
+/**
+ * This class is an immutable index of the names of therapists, which finds
+ * the therapists whose first, full or last name starts with a prefix.
+ * 
+ * Every therapist has up to two keys: their normalized full name, and the
+ * part of it that is their last name. Instead of storing the last name as a
+ * separate string, a key is stored as a single <code>int</code> made of the
+ * therapist's position and which of the two keys it is, and the keys are
+ * kept in one sorted array. A search is a binary search for the first key
+ * that is not smaller than the prefix, followed by a walk over the keys that
+ * start with it.
+ * 
+ * Names are cut to <code>MAX_NAME_LENGTH</code> characters, so the memory
+ * used by a therapist is bounded. It is estimated when the index is built,
+ * and returned by <code>getEstimatedBytes</code>.
+ * 
+ * Changes create a new index instead of changing this one, so an index can
+ * be searched by any number of threads without locking.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class DirectoryIndex {
+	
+	static final int MAX_NAME_LENGTH = 64;
+	
+	static final DirectoryIndex EMPTY = new DirectoryIndex(new ObjectId[0], new String[0],
+			new String[0], new int[0], new byte[0], new int[0], 0, null);
+			
+	private static final int NO_RATING = Integer.MIN_VALUE;
+	
+	private final ObjectId[] ids;
+	private final String[] names;
+	private final String[] keys;
+	private final int[] ratings;
+	private final byte[] lastNameOffsets;
+	private final int[] sortedKeys;
+	private final long estimatedBytes;
+	private final ObjectId newestId;
+	
+	private DirectoryIndex(ObjectId[] ids, String[] names, String[] keys, int[] ratings,
+			byte[] lastNameOffsets, int[] sortedKeys, long estimatedBytes, ObjectId newestId) {
+			
+		this.ids = ids;
+		this.names = names;
+		this.keys = keys;
+		this.ratings = ratings;
+		this.lastNameOffsets = lastNameOffsets;
+		this.sortedKeys = sortedKeys;
+		this.estimatedBytes = estimatedBytes;
+		this.newestId = newestId;
+		
+	}
+	
+	/**
+	 * Creates an index of the given therapists.
+	 * 
+	 * @param therapists the <code>Document</code>s of the therapists, with at
+	 * 					 least their <code>first_name</code>,
+	 * 					 <code>last_name</code>, <code>rating_sum</code> and
+	 * 					 <code>rating_count</code>
+	 * @return           the index
+	 */
+	static DirectoryIndex of(List<Document> therapists) {
+		return EMPTY.with(therapists);
+	}
+	
+	/**
+	 * Creates a new index with the therapists of this one and the given
+	 * therapists. The keys of the new therapists are sorted, then merged with
+	 * the keys of this index, so the cost of adding a few therapists grows
+	 * only linearly with the size of the index.
+	 * 
+	 * @param added the <code>Document</code>s of the therapists to add
+	 * @return      the new index
+	 */
+	DirectoryIndex with(List<Document> added) {
+		
+		if(added.isEmpty()) {
+			return this;
+		}
+		
+		int oldSize = ids.length;
+		int newSize = oldSize + added.size();
+		
+		ObjectId[] newIds = Arrays.copyOf(ids, newSize);
+		String[] newNames = Arrays.copyOf(names, newSize);
+		String[] newKeys = Arrays.copyOf(keys, newSize);
+		int[] newRatings = Arrays.copyOf(ratings, newSize);
+		byte[] newOffsets = Arrays.copyOf(lastNameOffsets, newSize);
+		long bytes = estimatedBytes;
+		ObjectId newest = newestId;
+		
+		int[] addedKeys = new int[added.size() * 2];
+		int addedKeyCount = 0;
+		for(int i = 0; i < added.size(); i++) {
+			
+			Document therapist = added.get(i);
+			int position = oldSize + i;
+			
+			String firstName = User.normalizeName(therapist.getString("first_name"));
+			String lastName = User.normalizeName(therapist.getString("last_name"));
+			String key = truncate((firstName + " " + lastName).trim());
+			Integer rating = Therapist.getRating(therapist);
+			
+			newIds[position] = therapist.getObjectId("_id");
+			if(newest == null || newIds[position].compareTo(newest) > 0) {
+				newest = newIds[position];
+			}
+			newNames[position] = truncate((therapist.getString("first_name") + " "
+					+ therapist.getString("last_name")).trim());
+			newKeys[position] = key;
+			newRatings[position] = rating != null ? rating : NO_RATING;
+			
+			addedKeys[addedKeyCount++] = position * 2;
+			int lastNameOffset = firstName.length() + 1;
+			if(!firstName.isEmpty() && !lastName.isEmpty() && lastNameOffset < key.length()) {
+				newOffsets[position] = (byte)lastNameOffset;
+				addedKeys[addedKeyCount++] = position * 2 + 1;
+			}
+			
+			bytes += estimateBytes(newNames[position], key);
+			
+		}
+		
+		DirectoryIndex unsorted = new DirectoryIndex(newIds, newNames, newKeys, newRatings,
+				newOffsets, null, bytes, newest);
+		addedKeys = Arrays.copyOf(addedKeys, addedKeyCount);
+		unsorted.sortKeys(addedKeys);
+		int[] merged = unsorted.mergeKeys(sortedKeys, addedKeys);
+		
+		return new DirectoryIndex(newIds, newNames, newKeys, newRatings, newOffsets, merged,
+				bytes + (long)addedKeyCount * Integer.BYTES, newest);
+				
+	}
+	
+	/**
+	 * Finds the therapists whose first, full or last name starts with
+	 * <code>prefix</code>, in the order of the keys they were found by.
+	 * 
+	 * @param prefix a prefix normalized with <code>User.normalizeName</code>
+	 * @param limit  the maximum number of therapists to return
+	 * @return       the therapists found
+	 */
+	List<DirectoryEntry> search(String prefix, int limit) {
+		
+		List<DirectoryEntry> entries = new ArrayList<>();
+		if(prefix.isEmpty() || limit <= 0) {
+			return entries;
+		}
+		
+		//Find the first key that is not smaller than the prefix
+		int low = 0;
+		int high = sortedKeys.length;
+		while(low < high) {
+			
+			int middle = (low + high) >>> 1;
+			if(compareToPrefix(sortedKeys[middle], prefix) < 0) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+			
+		}
+		
+		/*
+		 * Walk over the keys that start with the prefix. A therapist can be
+		 * found by both of their keys, so the ones already returned are
+		 * skipped.
+		 */
+		Set<Integer> found = new HashSet<>();
+		for(int i = low; i < sortedKeys.length && entries.size() < limit; i++) {
+			
+			int key = sortedKeys[i];
+			int therapist = key >>> 1;
+			if(!keys[therapist].startsWith(prefix, getOffset(key))) {
+				break;
+			}
+			
+			if(found.add(therapist)) {
+				int rating = ratings[therapist];
+				entries.add(new DirectoryEntry(ids[therapist], names[therapist],
+						rating != NO_RATING ? rating : null));
+			}
+			
+		}
+		
+		return entries;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of therapists in the index
+	 */
+	int size() {
+		return ids.length;
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> of the newest therapist in the index, or
+	 * 		   null if it is empty
+	 */
+	ObjectId getNewestId() {
+		return newestId;
+	}
+	
+	/**
+	 * 
+	 * @return an estimate of the memory used by the index, in bytes
+	 */
+	long getEstimatedBytes() {
+		return estimatedBytes;
+	}
+	
+	/**
+	 * Sorts keys with a merge sort. The first four characters of every key 
+	 * are packed into a <code>long</code> that is moved along with it, so 
+	 * most comparisons do not need to read the names. The keys are 
+	 * <code>int</code>s, so they are sorted without boxing them.
+	 * 
+	 * @param keys the keys
+	 */
+	private void sortKeys(int[] keys) {
+		
+		long[] prefixes = new long[keys.length];
+		for(int i = 0; i < keys.length; i++) {
+			prefixes[i] = getPrefix(keys[i]);
+		}
+		
+		sortKeys(keys, prefixes, new int[keys.length], new long[keys.length], 0, keys.length);
+		
+	}
+	
+	/**
+	 * Sorts a range of keys and their prefixes.
+	 */
+	private void sortKeys(int[] keys, long[] prefixes, int[] keyBuffer, long[] prefixBuffer, 
+			int from, int to) {
+		
+		if(to - from < 2) {
+			return;
+		}
+		
+		int middle = (from + to) >>> 1;
+		sortKeys(keys, prefixes, keyBuffer, prefixBuffer, from, middle);
+		sortKeys(keys, prefixes, keyBuffer, prefixBuffer, middle, to);
+		
+		if(compareKeys(keys[middle - 1], prefixes[middle - 1], keys[middle], prefixes[middle]) <= 0) {
+			return;
+		}
+		
+		System.arraycopy(keys, from, keyBuffer, from, to - from);
+		System.arraycopy(prefixes, from, prefixBuffer, from, to - from);
+		
+		int i = from;
+		int j = middle;
+		for(int k = from; k < to; k++) {
+			
+			if(j == to || (i < middle 
+					&& compareKeys(keyBuffer[i], prefixBuffer[i], keyBuffer[j], prefixBuffer[j]) <= 0)) {
+				keys[k] = keyBuffer[i];
+				prefixes[k] = prefixBuffer[i++];
+			} else {
+				keys[k] = keyBuffer[j];
+				prefixes[k] = prefixBuffer[j++];
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Merges the sorted keys of an index with a few sorted new keys. The 
+	 * place of each new key is found with a binary search, and the keys 
+	 * between them are copied in blocks.
+	 * 
+	 * @param oldKeys the sorted keys of the index
+	 * @param newKeys the sorted new keys
+	 * @return        all of the keys, sorted
+	 */
+	private int[] mergeKeys(int[] oldKeys, int[] newKeys) {
+		
+		int[] merged = new int[oldKeys.length + newKeys.length];
+		int copied = 0;
+		int target = 0;
+		
+		for(int newKey : newKeys) {
+			
+			//Find the first old key after the new one
+			int low = copied;
+			int high = oldKeys.length;
+			while(low < high) {
+				
+				int middle = (low + high) >>> 1;
+				if(compareKeys(oldKeys[middle], newKey) <= 0) {
+					low = middle + 1;
+				} else {
+					high = middle;
+				}
+				
+			}
+			
+			System.arraycopy(oldKeys, copied, merged, target, low - copied);
+			target += low - copied;
+			copied = low;
+			merged[target++] = newKey;
+			
+		}
+		
+		System.arraycopy(oldKeys, copied, merged, target, oldKeys.length - copied);
+		return merged;
+		
+	}
+	
+	/**
+	 * 
+	 * @param key a key
+	 * @return    the first four characters of the key packed into a 
+	 * 			  <code>long</code>, which compares like the characters when 
+	 * 			  compared as an unsigned number
+	 */
+	private long getPrefix(int key) {
+		
+		String text = keys[key >>> 1];
+		int offset = getOffset(key);
+		
+		long prefix = 0;
+		for(int i = 0; i < 4; i++) {
+			int position = offset + i;
+			prefix = (prefix << 16) | (position < text.length() ? text.charAt(position) : 0);
+		}
+		
+		return prefix;
+		
+	}
+	
+	/**
+	 * Compares two keys by their prefixes, and by the text they start at if
+	 * the prefixes are equal.
+	 */
+	private int compareKeys(int a, long prefixA, int b, long prefixB) {
+		
+		int comparison = Long.compareUnsigned(prefixA, prefixB);
+		return comparison != 0 ? comparison : compareKeys(a, b);
+		
+	}
+	
+	/**
+	 * Compares two keys by the text they start at.
+	 */
+	private int compareKeys(int a, int b) {
+		
+		String keyA = keys[a >>> 1];
+		String keyB = keys[b >>> 1];
+		int offsetA = getOffset(a);
+		int offsetB = getOffset(b);
+		
+		int length = Math.min(keyA.length() - offsetA, keyB.length() - offsetB);
+		for(int i = 0; i < length; i++) {
+			
+			int difference = keyA.charAt(offsetA + i) - keyB.charAt(offsetB + i);
+			if(difference != 0) {
+				return difference;
+			}
+			
+		}
+		
+		return (keyA.length() - offsetA) - (keyB.length() - offsetB);
+		
+	}
+	
+	/**
+	 * Compares the start of a key to a prefix. A key that starts with the
+	 * prefix is equal to it.
+	 */
+	private int compareToPrefix(int key, String prefix) {
+		
+		String text = keys[key >>> 1];
+		int offset = getOffset(key);
+		
+		int length = Math.min(text.length() - offset, prefix.length());
+		for(int i = 0; i < length; i++) {
+			
+			int difference = text.charAt(offset + i) - prefix.charAt(i);
+			if(difference != 0) {
+				return difference;
+			}
+			
+		}
+		
+		return text.length() - offset >= prefix.length() ? 0 : -1;
+		
+	}
+	
+	/**
+	 * 
+	 * @param key a key
+	 * @return    the position in the therapist's normalized name that the
+	 * 			  key starts at
+	 */
+	private int getOffset(int key) {
+		return (key & 1) == 0 ? 0 : lastNameOffsets[key >>> 1];
+	}
+	
+	/**
+	 * 
+	 * @param name a name
+	 * @return     the name, cut to <code>MAX_NAME_LENGTH</code> characters
+	 */
+	private static String truncate(String name) {
+		return name.length() > MAX_NAME_LENGTH ? name.substring(0, MAX_NAME_LENGTH) : name;
+	}
+	
+	/**
+	 * Estimates the memory used by a therapist, assuming compressed
+	 * references: the <code>ObjectId</code>, the two strings, and the slots
+	 * of the therapist in the arrays.
+	 * 
+	 * @param name the full name of the therapist
+	 * @param key  the normalized full name of the therapist
+	 * @return     the estimated number of bytes
+	 */
+	private static long estimateBytes(String name, String key) {
+		
+		long objectId = 24;
+		long arraySlots = 4 + 4 + 4 + 4 + 1;
+		return objectId + arraySlots + estimateBytes(name) + estimateBytes(key);
+		
+	}
+	
+	/**
+	 * 
+	 * @param text a string
+	 * @return     the estimated number of bytes used by the string and its
+	 * 			   character array
+	 */
+	private static long estimateBytes(String text) {
+		
+		boolean latin1 = true;
+		for(int i = 0; i < text.length() && latin1; i++) {
+			latin1 = text.charAt(i) < 256;
+		}
+		
+		long array = 16 + (long)text.length() * (latin1 ? 1 : 2);
+		return 24 + ((array + 7) & ~7L);
+		
+	}
+
+}
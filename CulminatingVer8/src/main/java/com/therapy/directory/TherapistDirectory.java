@@ -0,0 +1,238 @@
+package com.therapy.directory;
+
+import static com.mongodb.client.model.Filters.gt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.therapy.entities.User;
+import com.therapy.servlets.Util;
+
+/**
+ * This class keeps the names of every therapist in memory, so that
+ * suggestions can be given while a patient types in the search box without
+ * querying the database.
+ * 
+ * The directory is loaded when the web application starts. Every
+ * <code>directory.refreshSeconds</code> seconds, the therapists that signed
+ * up since the last refresh are read and added to it. Every
+ * <code>directory.rebuildMinutes</code> minutes, it is read again from the
+ * start, so that changed names and ratings are picked up.
+ * 
+ * The therapists are held in a <code>DirectoryIndex</code>. A refresh
+ * builds a new index and replaces the old one, so searches never wait for a
+ * refresh.
+ * 
+ * It is a <code>ServletContextListener</code> that must be declared after
+ * <code>MongoClientListener</code> in web.xml. The instance is stored in the
+ * <code>ServletContext</code> and retrieved with <code>get</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class TherapistDirectory implements ServletContextListener {
+	
+	private static final String ATTRIBUTE_NAME = TherapistDirectory.class.getName();
+	private static final Logger LOGGER = Logger.getLogger(TherapistDirectory.class.getName());
+	private static final Bson FIELDS = Projections.include("first_name", "last_name", 
+			"rating_sum", "rating_count");
+			
+	private volatile DirectoryIndex index = DirectoryIndex.EMPTY;
+	private volatile long refreshedAt;
+	private ScheduledExecutorService refresher;
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>TherapistDirectory</code> of the web
+	 * 				  application
+	 */
+	public static TherapistDirectory get(ServletContext context) {
+		return (TherapistDirectory)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Stores this <code>TherapistDirectory</code> in the
+	 * <code>ServletContext</code>, and starts loading and refreshing it.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		ServletContext context = event.getServletContext();
+		long refreshSeconds = getLong(context, "directory.refreshSeconds", 5);
+		long rebuildSeconds = TimeUnit.MINUTES.toSeconds(getLong(context, "directory.rebuildMinutes", 10));
+		
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "therapist-directory");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::rebuild, 0, rebuildSeconds, TimeUnit.SECONDS);
+		refresher.scheduleWithFixedDelay(this::refresh, refreshSeconds, refreshSeconds, TimeUnit.SECONDS);
+		
+		context.setAttribute(ATTRIBUTE_NAME, this);
+		
+	}
+	
+	/**
+	 * Stops refreshing the directory.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+		refresher.shutdownNow();
+		
+	}
+	
+	/**
+	 * Finds the therapists whose first, full or last name starts with
+	 * <code>prefix</code>, ignoring case and accents.
+	 * 
+	 * @param prefix the start of the name typed by the patient
+	 * @param limit  the maximum number of therapists to return
+	 * @return       the therapists found
+	 */
+	public List<DirectoryEntry> search(String prefix, int limit) {
+		return index.search(User.normalizeName(prefix), limit);
+	}
+	
+	/**
+	 * 
+	 * @return the number of therapists in the directory
+	 */
+	public int size() {
+		return index.size();
+	}
+	
+	/**
+	 * 
+	 * @return an estimate of the memory used by the directory, in bytes
+	 */
+	public long getEstimatedBytes() {
+		return index.getEstimatedBytes();
+	}
+	
+	/**
+	 * 
+	 * @return the time of the last successful refresh, in milliseconds since
+	 * 		   the epoch, or 0 if the directory has not been loaded yet
+	 */
+	public long getRefreshedAt() {
+		return refreshedAt;
+	}
+	
+	/**
+	 * Reads every therapist and replaces the directory.
+	 */
+	private void rebuild() {
+		
+		try {
+			
+			long start = System.nanoTime();
+			DirectoryIndex newIndex = DirectoryIndex.of(read(null));
+			index = newIndex;
+			refreshedAt = System.currentTimeMillis();
+			
+			LOGGER.info("The therapist directory was loaded with " + newIndex.size() + " therapists in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, using about "
+					+ newIndex.getEstimatedBytes() / 1024 + " KB ("
+					+ (newIndex.size() > 0 ? newIndex.getEstimatedBytes() / newIndex.size() : 0)
+					+ " bytes per therapist)");
+					
+		} catch(RuntimeException e) {
+			LOGGER.log(Level.WARNING, "The therapist directory could not be loaded", e);
+		}
+		
+	}
+	
+	/**
+	 * Adds the therapists that signed up since the last refresh. Their
+	 * <code>_id</code> fields are newer than any in the directory, as an
+	 * <code>ObjectId</code> starts with the time it was made.
+	 */
+	private void refresh() {
+		
+		try {
+			
+			DirectoryIndex current = index;
+			if(current.getNewestId() == null) {
+				rebuild();
+				return;
+			}
+			
+			List<Document> added = read(current.getNewestId());
+			if(!added.isEmpty()) {
+				index = current.with(added);
+			}
+			refreshedAt = System.currentTimeMillis();
+			
+		} catch(RuntimeException e) {
+			LOGGER.log(Level.WARNING, "The therapist directory could not be refreshed", e);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param after the <code>_id</code> after which to read therapists, or
+	 * 				null to read all of them
+	 * @return      the names and ratings of the therapists
+	 */
+	private List<Document> read(ObjectId after) {
+		
+		MongoCollection<Document> collection = Util.getDatabase().getCollection("therapists");
+		
+		List<Document> therapists = new ArrayList<>();
+		(after == null ? collection.find() : collection.find(gt("_id", after)))
+				.projection(FIELDS)
+				.sort(Sorts.ascending("_id"))
+				.batchSize(10000)
+				.into(therapists);
+				
+		return therapists;
+		
+	}
+	
+	/**
+	 * 
+	 * @param context      the <code>ServletContext</code> of the web
+	 * 					   application
+	 * @param name         the name of the context parameter
+	 * @param defaultValue the value to use if the parameter is not set
+	 * @return             the value of the parameter
+	 */
+	private static long getLong(ServletContext context, String name, long defaultValue) {
+		
+		String value = context.getInitParameter(name);
+		
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			LOGGER.warning("The context parameter " + name + " must be a number, but was " + value);
+			return defaultValue;
+		}
+		
+	}
+
+}
@@ -0,0 +1,284 @@
+package com.therapy.directory;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.Projections;
+import com.therapy.entities.Therapist;
+import com.therapy.entities.TherapistListener;
+import com.therapy.servlets.GetTherapistsServlet;
+import com.therapy.servlets.Util;
+
+/**
+ * This class keeps the therapists that can receive requests in memory, so
+ * that the therapists shown to a new patient can be picked without querying
+ * the database.
+ * 
+ * The therapists are split into two tiers, like in
+ * <code>GetTherapistsServlet</code>: new therapists, with at most
+ * <code>NEW_THERAPIST_MAX_RATERS</code> raters, and experienced therapists.
+ * The experienced tier is sorted from the highest to the lowest rating, so
+ * the therapists of a random sample are in order of rating when they are in
+ * order of position, and picking them needs no sorting of documents.
+ * 
+ * The pool is read again every <code>pool.refreshSeconds</code> seconds, and
+ * replaced at once, so <code>match</code> never waits for a lock. In
+ * between, it is told about every change to a therapist through a
+ * <code>TherapistListener</code>, and a therapist that can no longer receive
+ * requests is hidden at once. Therapists that become able to receive
+ * requests again, or change tiers, are picked up by the next refresh.
+ * 
+ * It is a <code>ServletContextListener</code> that must be declared after
+ * <code>MongoClientListener</code> in web.xml. The instance is stored in the
+ * <code>ServletContext</code> and retrieved with <code>get</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class TherapistPool implements ServletContextListener, TherapistListener {
+	
+	private static final String ATTRIBUTE_NAME = TherapistPool.class.getName();
+	private static final Logger LOGGER = Logger.getLogger(TherapistPool.class.getName());
+	
+	/**
+	 * The therapists of one refresh.
+	 */
+	private static final class Tiers {
+		
+		private final Document[] experienced;
+		private final Document[] newTherapists;
+		
+		private Tiers(Document[] experienced, Document[] newTherapists) {
+			
+			this.experienced = experienced;
+			this.newTherapists = newTherapists;
+			
+		}
+		
+	}
+	
+	private volatile Tiers tiers;
+	private final Map<ObjectId, Long> hidden = new ConcurrentHashMap<>();
+	private ScheduledExecutorService refresher;
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>TherapistPool</code> of the web application
+	 */
+	public static TherapistPool get(ServletContext context) {
+		return (TherapistPool)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Stores this <code>TherapistPool</code> in the
+	 * <code>ServletContext</code>, starts listening to changes to therapists,
+	 * and starts loading and refreshing the pool.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		ServletContext context = event.getServletContext();
+		
+		long refreshSeconds = 30;
+		String value = context.getInitParameter("pool.refreshSeconds");
+		if(value != null && !value.trim().isEmpty()) {
+			try {
+				refreshSeconds = Long.parseLong(value.trim());
+			} catch(NumberFormatException e) {
+				LOGGER.warning("The context parameter pool.refreshSeconds must be a number, but was " + value);
+			}
+		}
+		
+		Therapist.addListener(this);
+		
+		refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "therapist-pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		refresher.scheduleWithFixedDelay(this::refresh, 0, refreshSeconds, TimeUnit.SECONDS);
+		
+		context.setAttribute(ATTRIBUTE_NAME, this);
+		
+	}
+	
+	/**
+	 * Stops listening to changes and refreshing the pool.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+		Therapist.removeListener(this);
+		refresher.shutdownNow();
+		
+	}
+	
+	/**
+	 * Hides a therapist that can no longer receive requests, and shows one
+	 * that can again if they are still in the pool.
+	 */
+	@Override
+	public void onTherapistChanged(Document therapist) {
+		
+		ObjectId id = therapist.getObjectId("_id");
+		if(therapist.getBoolean("can_receive_requests", false)) {
+			hidden.remove(id);
+		} else {
+			hidden.put(id, System.currentTimeMillis());
+		}
+		
+	}
+	
+	/**
+	 * Picks the therapists shown to a new patient in the same way as
+	 * <code>GetTherapistsServlet.matchTherapists</code>: up to
+	 * <code>EXPERIENCED_COUNT</code> of <code>EXPERIENCED_SAMPLE_SIZE</code>
+	 * random experienced therapists, from the highest-rated to the
+	 * lowest-rated, followed by one random new therapist.
+	 * 
+	 * @return the <code>Document</code>s of the therapists, or null if the
+	 * 		   pool has not been loaded yet
+	 */
+	public List<Document> match() {
+		
+		Tiers current = tiers;
+		if(current == null) {
+			return null;
+		}
+		
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		
+		//Pick the positions of the random experienced therapists
+		Document[] experienced = current.experienced;
+		TreeSet<Integer> positions = new TreeSet<>();
+		int attempts = GetTherapistsServlet.EXPERIENCED_SAMPLE_SIZE * 4;
+		while(positions.size() < Math.min(GetTherapistsServlet.EXPERIENCED_SAMPLE_SIZE, experienced.length)
+				&& attempts-- > 0) {
+				
+			int position = random.nextInt(experienced.length);
+			if(!hidden.containsKey(experienced[position].getObjectId("_id"))) {
+				positions.add(position);
+			}
+			
+		}
+		
+		//The lowest positions have the highest ratings
+		List<Document> therapists = new ArrayList<>();
+		for(int position : positions) {
+			
+			if(therapists.size() == GetTherapistsServlet.EXPERIENCED_COUNT) {
+				break;
+			}
+			therapists.add(experienced[position]);
+			
+		}
+		
+		//Pick one random new therapist
+		Document[] newTherapists = current.newTherapists;
+		for(int i = 0; i < 20 && newTherapists.length > 0; i++) {
+			
+			Document newTherapist = newTherapists[random.nextInt(newTherapists.length)];
+			if(!hidden.containsKey(newTherapist.getObjectId("_id"))) {
+				therapists.add(newTherapist);
+				break;
+			}
+			
+		}
+		
+		return therapists;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of experienced therapists in the pool
+	 */
+	public int getExperiencedCount() {
+		
+		Tiers current = tiers;
+		return current == null ? 0 : current.experienced.length;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of new therapists in the pool
+	 */
+	public int getNewCount() {
+		
+		Tiers current = tiers;
+		return current == null ? 0 : current.newTherapists.length;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of therapists hidden since the last refresh
+	 */
+	public int getHiddenCount() {
+		return hidden.size();
+	}
+	
+	/**
+	 * Reads the therapists that can receive requests and replaces the pool.
+	 * Therapists hidden before the read started are left out by the read
+	 * itself, so they no longer need to be hidden.
+	 */
+	private void refresh() {
+		
+		try {
+			
+			long readAt = System.currentTimeMillis();
+			
+			List<Document> experienced = new ArrayList<>();
+			List<Document> newTherapists = new ArrayList<>();
+			for(Document therapist : Util.getDatabase().getCollection("therapists")
+					.find(eq("can_receive_requests", true))
+					.projection(Projections.include("first_name", "last_name", "rating_sum", "rating_count"))
+					.batchSize(10000)) {
+					
+				if(therapist.getInteger("rating_count", 0) > GetTherapistsServlet.NEW_THERAPIST_MAX_RATERS) {
+					experienced.add(therapist);
+				} else {
+					newTherapists.add(therapist);
+				}
+				
+			}
+			
+			experienced.sort(Comparator.comparing(Therapist::getAverageRating,
+					Comparator.nullsLast(Comparator.reverseOrder())));
+			
+			tiers = new Tiers(experienced.toArray(new Document[0]), newTherapists.toArray(new Document[0]));
+			hidden.values().removeIf(hiddenAt -> hiddenAt < readAt);
+			
+			LOGGER.fine("The therapist pool was refreshed with " + experienced.size()
+					+ " experienced and " + newTherapists.size() + " new therapists");
+					
+		} catch(RuntimeException e) {
+			LOGGER.log(Level.WARNING, "The therapist pool could not be refreshed", e);
+		}
+		
+	}
+
+}
@@ -2,24 +2,46 @@ package com.therapy.entities;
 
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
 
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Updates;
-import static com.mongodb.client.model.Filters.and;
-import static com.mongodb.client.model.Filters.eq;
+import com.therapy.storage.Condition;
+import com.therapy.storage.DuplicateKeyException;
+import com.therapy.storage.MongoStorage;
+import com.therapy.storage.Storage;
+import com.therapy.storage.Update;
 
 /**
  * This class represents a chat between a patient and therapist.
+ * 
+ * The <code>Message</code> objects of a <code>Chat</code> are not listed in 
+ * its <code>Document</code>. Instead, each <code>Message</code> has a 
+ * <code>chat_id</code> field, and they are read in pages through the 
+ * <code>{chat_id, _id}</code> index of the <code>messages</code> collection.
+ * 
+ * The <code>Document</code> of a <code>Chat</code> also holds what is shown
+ * of it on the therapist's homepage, which is read as a 
+ * <code>ChatSummary</code>: the name of the patient, the start of the last
+ * message, the time it was sent, and the number of messages the therapist
+ * has not read. They are updated with every new message.
  *
  * @author Yousef Bulbulia
  * 
  */
 public class Chat extends Entity{
+	
+	/**
+	 * The highest number of characters of the last message kept in the 
+	 * <code>Document</code> of a <code>Chat</code>.
+	 */
+	public static final int PREVIEW_LENGTH = 100;
     
     /**
      * Creates a new <code>Chat</code> with a unique _id field, and no 
@@ -35,29 +57,38 @@ public class Chat extends Entity{
      * @param database  the database this chat belongs to
      */
     public Chat(Patient patient, Therapist therapist, MongoDatabase database) throws IllegalStateException {
+    	this(patient, therapist, new MongoStorage(database));
+    }
+    
+    /**
+     * Creates a new <code>Chat</code> in the same way as the constructor 
+     * that takes a database, in a <code>Storage</code>.
+     * 
+     * @param patient   the patient using this chat
+     * @param therapist the therapist using this chat
+     * @param storage   the <code>Storage</code> this chat belongs to
+     */
+    public Chat(Patient patient, Therapist therapist, Storage storage) throws IllegalStateException {
     	
-    	super(database);
-    	collection = database.getCollection("chats");
+    	super(storage);
+    	collection = storage.getCollection("chats");
     	
     	/*
-    	 * If there is already a Chat for these Users, then throw an 
-    	 * IllegalStateException
+    	 * The chats collection has a unique index on patient_id and 
+    	 * therapist_id, so inserting a second Chat for these Users fails
     	 */
-    	ObjectId patientId = patient.getId();
-    	ObjectId therapistId = therapist.getId();
-    	Document doc = collection.find(
-    			and(
-    					eq("patient_id", patientId), eq("therapist_id", therapistId)
-    			)).first();
-    	
-    	if(doc != null) {
+    	try {
+    		
+	    	id = insert(new Document("patient_id", patient.getId())
+	    			.append("therapist_id", therapist.getId())
+	    			.append("patient_name", patient.getFullName())
+	    			.append("unread_by_therapist", 0));
+	    	
+    	} catch(DuplicateKeyException e) {
     		throw new IllegalStateException("This constructor is only for Chats that"
     				+ "have not been created in the database yet");
     	}
     	
-    	id = getUniqueId();
-		collection.findOneAndUpdate(eq(id), Updates.set("patient_id", patient.getId()));
-		collection.findOneAndUpdate(eq(id), Updates.set("therapist_id", therapist.getId()));
     }
     
     /**
@@ -70,7 +101,22 @@ public class Chat extends Entity{
     public Chat(ObjectId id, MongoDatabase database) {
     	
     	super(id, database);
-    	collection = database.getCollection("chats");
+    	collection = storage.getCollection("chats");
+    	
+    }
+    
+    /**
+	 * Creates a new <code>Chat</code> belonging to the given 
+	 * <code>Storage</code> with the passed <code>_id</code> field.
+	 * 
+	 * @param id      the <code>_id</code> field of this <code>Chat</code>
+	 * @param storage the <code>Storage</code> this <code>Chat</code> belongs
+	 * 				  to
+	 */
+    public Chat(ObjectId id, Storage storage) {
+    	
+    	super(id, storage);
+    	collection = storage.getCollection("chats");
     	
     }
     
@@ -81,7 +127,7 @@ public class Chat extends Entity{
     public Patient getPatient() {
     	
     	ObjectId patientId = getDocument().getObjectId("patient_id");
-    	return new Patient(patientId, database);
+    	return new Patient(patientId, storage);
     	
     }
     
@@ -92,28 +138,25 @@ public class Chat extends Entity{
     public Therapist getTherapist() {
     	
     	ObjectId therapistId = getDocument().getObjectId("therapist_id");
-    	return new Therapist(therapistId, database);
+    	return new Therapist(therapistId, storage);
         
     }
     
     /**
+     * Retrieves every <code>Message</code> in the <code>Chat</code>. The
+     * <code>Message</code> objects are loaded with a single query and are in
+     * chronological order.
      * 
-     * @return a <code>List</code> of <code>Message</code> objects that make up 
+     * @return an array of <code>Message</code> objects that make up 
      *         the <code>Chat</code>. If there are no messages in the
      * 		   <code>Chat</code>, then this method returns null.
      */
     public Message[] getMessages() {
     	
-    	Document doc = getDocument();
+    	Message[] messages = getMessageRange(null, null, true, 0);
     	
-    	ObjectId[] messageIds = doc.get("message_ids", ObjectId[].class);
-    	
-    	//Map the ObjectIds to the Message objects they belong to
-    	Message[] messages = null;
-    	if(messageIds != null) {
-    		messages = Arrays.stream(messageIds)
-    	    		.map(e -> new Message(e, database))
-    	    		.toArray( Message[]::new);
+    	if(messages.length == 0) {
+    		return null;
     	}
     	
     	return messages;
@@ -122,7 +165,7 @@ public class Chat extends Entity{
     
     /**
      * Retrieves an array of the most recent <code>Message</code> objects with 
-     * a length determined by <code>numberOfMessages</code>. The newest
+     * a length of at most <code>numberOfMessages</code>. The newest
      * <code>Message</code> objects are the end of the returned array, while 
      * the oldest are at the beginning. If there are no messages in the
      * <code>Chat</code>, then this method returns null.
@@ -130,60 +173,186 @@ public class Chat extends Entity{
      * @param numberOfMessages the number of <code>Message</code> objects to 
      * 						   return
      */
-    public Message[] getPreviousMessages(int numberOfMessages) throws NoSuchElementException {
-    	
-    	Document doc = getDocument();
-    	
-    	ObjectId[] messageIds = doc.get("message_ids", ObjectId[].class);
+    public Message[] getPreviousMessages(int numberOfMessages) {
     	
-    	//Map the ObjectIds to the Message objects they belong to
-    	Message[] messages = Arrays.stream(messageIds)
-    		.map(e -> new Message(e, database))
-    		.toArray( Message[]::new);
+    	Message[] messages = getMessagesBefore(null, numberOfMessages);
     	
-    	/*
-    	 * Reverse the order of messages so that the Messages are 
-    	 * in chronological order
-    	 */
-    	Message[] previousMessages = null;
-    	if(messages != null) {
-    		
-	    	previousMessages = new Message[numberOfMessages];
-	    	for(int i = numberOfMessages - 1, j = messages.length - 1; 
-	    			i < numberOfMessages && i < messages.length; i--, j--) {
-	    		previousMessages[i] = messages[j];
-	    	}
-	    	
+    	if(messages.length == 0) {
+    		return null;
     	}
     	
-        return previousMessages;
+        return messages;
         
     }
     
     /**
      * Retrieves an array of <code>Message</code> objects that were inserted
-     * into the database since <code>message</code> was inserted.
+     * into the database since <code>message</code> was inserted. At most 100
+     * <code>Message</code> objects are returned.
      * 
      * @param message the <code>Message</code> to use as reference
      * @return        an array of the <code>Message</code> objects that were 
      * 	              inserted into the database since <code>message</code>
      */
     public Message[] getMessagesSince(Message message) {
+    	return getMessagesAfter(message.getId(), 100);
+    }
+    
+    /**
+     * Retrieves the newest <code>Message</code> objects that were inserted 
+     * before the <code>Message</code> with the <code>_id</code> field 
+     * <code>cursor</code>. This is used to page backwards through the 
+     * <code>Chat</code>'s history, passing the <code>_id</code> field of the 
+     * oldest <code>Message</code> of one page as the cursor of the next.
+     * 
+     * The query is a range scan of the <code>{chat_id, _id}</code> index of
+     * the <code>messages</code> collection, so it takes the same time no 
+     * matter how many <code>Message</code> objects the <code>Chat</code> has.
+     * 
+     * @param cursor the <code>_id</code> field to read before, or null to
+     * 				 read the newest <code>Message</code> objects
+     * @param limit  the maximum number of <code>Message</code> objects to 
+     * 				 return
+     * @return       the <code>Message</code> objects, oldest first
+     */
+    public Message[] getMessagesBefore(ObjectId cursor, int limit) {
+    	
+    	//Read backwards from the cursor, then put the page in chronological order
+    	Message[] messages = getMessageRange(null, cursor, false, limit);
+    	Collections.reverse(Arrays.asList(messages));
+    	
+    	return messages;
+    	
+    }
+    
+    /**
+     * Retrieves the oldest <code>Message</code> objects that were inserted 
+     * after the <code>Message</code> with the <code>_id</code> field 
+     * <code>cursor</code>. This is used to read the <code>Message</code>
+     * objects that are newer than the last one a user has seen.
+     * 
+     * The query is a range scan of the <code>{chat_id, _id}</code> index of
+     * the <code>messages</code> collection, so it takes the same time no 
+     * matter how many <code>Message</code> objects the <code>Chat</code> has.
+     * 
+     * @param cursor the <code>_id</code> field to read after, or null to 
+     * 				 read from the first <code>Message</code>
+     * @param limit  the maximum number of <code>Message</code> objects to 
+     * 				 return
+     * @return       the <code>Message</code> objects, oldest first
+     */
+    public Message[] getMessagesAfter(ObjectId cursor, int limit) {
+    	
+    	return getMessageRange(cursor, null, true, limit);
+    	
+    }
+    
+    /**
+     * Adds a new <code>Message</code> to the <code>Chat</code>.
+     * 
+     * @param senderIsPatient <code>true</code> if the patient sent the 
+     * 						  <code>Message</code>
+     * @param content         the textual content of the <code>Message</code>
+     * @return                the new <code>Message</code>
+     */
+    public Message addMessage(boolean senderIsPatient, String content) {
+    	return new Message(this, senderIsPatient, content, storage);
+    }
+    
+    /**
+     * Opens this <code>Chat</code> as its therapist, which marks every 
+     * message in it as read by them. Nothing is changed if the 
+     * <code>Chat</code> belongs to another therapist.
+     * 
+     * @param therapistId the <code>_id</code> field of the therapist opening
+     * 					  the <code>Chat</code>
+     * @return            <code>true</code> if the <code>Chat</code> belongs 
+     * 					  to the therapist
+     */
+    public boolean openByTherapist(ObjectId therapistId) {
+    	return updateIf(Condition.eq("therapist_id", therapistId), Update.set("unread_by_therapist", 0));
+    }
+    
+    /**
+     * Creates the update that keeps the summary of a <code>Chat</code> 
+     * current when a message is sent in it. A message from the patient is 
+     * unread by the therapist until they open the <code>Chat</code>, and a
+     * message from the therapist means they have read the ones before it.
+     * 
+     * @param senderIsPatient <code>true</code> if the patient sent the 
+     * 						  message
+     * @param content         the textual content of the message
+     * @param sentAt          the time the message was sent
+     * @return                the update to apply to the <code>Chat</code>
+     */
+    public static Update messageAddedUpdate(boolean senderIsPatient, String content, Date sentAt) {
     	
-    	List<Message> messages = Arrays.asList(getPreviousMessages(100));
-    	messages.subList(messages.indexOf(message), messages.size());
-    	return messages.toArray(Message[]::new);
+    	return Update.combine(Update.set("last_message", getPreview(content)), 
+    			Update.set("last_sender_is_patient", senderIsPatient), 
+    			Update.set("last_message_at", sentAt), 
+    			senderIsPatient ? Update.inc("unread_by_therapist", 1) : Update.set("unread_by_therapist", 0));
     	
     }
     
     /**
-     * Adds a <code>Message</code> to the <code>Chat</code>
+     * Reads the summaries of every <code>Chat</code> of a therapist with a
+     * single query. No patient or message is read.
      * 
-     * @param message the <code>Message</code> to be added to the 
-     * 	              <code>Chat</code>.
+     * @param therapistId the <code>_id</code> field of the therapist
+     * @param storage     the <code>Storage</code> of the website
+     * @return            the summaries, from the most to the least recently
+     * 					  active <code>Chat</code>
      */
-    public void addMessage(Message message) {
-        collection.findOneAndUpdate(eq(id), Updates.push("message_ids", message.getId()));
+    public static List<ChatSummary> getSummaries(ObjectId therapistId, Storage storage) {
+    	
+    	return storage.getCollection("chats").find(Condition.eq("therapist_id", therapistId), 0).stream()
+    			.map(ChatSummary::new)
+    			.sorted(Comparator.comparing(ChatSummary::getLastActivity).reversed())
+    			.collect(Collectors.toList());
+    	
+    }
+    
+    /**
+     * 
+     * @param content the textual content of a message
+     * @return        the first <code>PREVIEW_LENGTH</code> characters of 
+     * 				  <code>content</code>, without splitting a character
+     */
+    public static String getPreview(String content) {
+    	
+    	if(content == null || content.length() <= PREVIEW_LENGTH) {
+    		return content;
+    	}
+    	
+    	int end = PREVIEW_LENGTH;
+    	if(Character.isHighSurrogate(content.charAt(end - 1))) {
+    		end--;
+    	}
+    	
+    	return content.substring(0, end) + "...";
+    	
+    }
+    
+    /**
+     * Reads the <code>Message</code> objects of this <code>Chat</code> 
+     * between two <code>_id</code> fields from the <code>messages</code> 
+     * collection in order of their <code>_id</code> field.
+     * 
+     * @param after     the <code>_id</code> field to read after, or null
+     * @param before    the <code>_id</code> field to read before, or null
+     * @param ascending <code>true</code> to read the oldest 
+     * 					<code>Message</code> objects first
+     * @param limit     the maximum number of <code>Message</code> objects to
+     * 					read, or 0 for no limit
+     * @return          the <code>Message</code> objects in the order they 
+     * 					were read
+     */
+    private Message[] getMessageRange(ObjectId after, ObjectId before, boolean ascending, int limit) {
+    	
+    	return storage.getCollection("messages").scan("chat_id", id, after, before, ascending, limit).stream()
+    			.map(doc -> new Message(doc, storage))
+    			.toArray(Message[]::new);
+    	
     }
 	
 }
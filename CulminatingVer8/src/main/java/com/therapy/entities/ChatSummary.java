@@ -0,0 +1,105 @@
+package com.therapy.entities;
+
+import java.util.Date;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * This class represents a chat as it is listed on a therapist's homepage.
+ * 
+ * The fields are kept in the <code>Document</code> of the <code>Chat</code>
+ * itself: the name of the patient is copied into it when the chat is
+ * created, and the last message, the time of the last activity and the
+ * number of unread messages are updated with every new message. So the
+ * summaries of all of a therapist's chats are read with a single query,
+ * without reading any patient or message.
+ * 
+ * The unread messages are the ones the patient sent since the therapist
+ * last opened the chat or sent a message in it.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class ChatSummary {
+	
+	private final ObjectId chatId;
+	private final String patientName;
+	private final String lastMessage;
+	private final Boolean lastSenderIsPatient;
+	private final Date lastActivity;
+	private final int unreadCount;
+	
+	/**
+	 * Creates a <code>ChatSummary</code> from the <code>Document</code> of a
+	 * <code>Chat</code>.
+	 * 
+	 * @param chat the <code>Document</code> of the <code>Chat</code>
+	 */
+	ChatSummary(Document chat) {
+		
+		chatId = chat.getObjectId("_id");
+		patientName = chat.getString("patient_name");
+		lastMessage = chat.getString("last_message");
+		lastSenderIsPatient = chat.getBoolean("last_sender_is_patient");
+		unreadCount = chat.getInteger("unread_by_therapist", 0);
+		
+		//A chat without messages was last active when it was created
+		Date lastMessageAt = chat.getDate("last_message_at");
+		lastActivity = lastMessageAt != null ? lastMessageAt : chatId.getDate();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> field of the <code>Chat</code>
+	 */
+	public ObjectId getChatId() {
+		return chatId;
+	}
+	
+	/**
+	 * 
+	 * @return the full name of the patient, or null if it was not copied
+	 * 		   into the <code>Chat</code>
+	 */
+	public String getPatientName() {
+		return patientName;
+	}
+	
+	/**
+	 * 
+	 * @return the start of the last message, or null if there are no
+	 * 		   messages
+	 */
+	public String getLastMessage() {
+		return lastMessage;
+	}
+	
+	/**
+	 * 
+	 * @return <code>true</code> if the patient sent the last message, or
+	 * 		   null if there are no messages
+	 */
+	public Boolean getLastSenderIsPatient() {
+		return lastSenderIsPatient;
+	}
+	
+	/**
+	 * 
+	 * @return the time of the last message, or of the creation of the
+	 * 		   <code>Chat</code> if there are no messages
+	 */
+	public Date getLastActivity() {
+		return lastActivity;
+	}
+	
+	/**
+	 * 
+	 * @return the number of messages the therapist has not read
+	 */
+	public int getUnreadCount() {
+		return unreadCount;
+	}
+
+}
@@ -3,10 +3,13 @@ package com.therapy.entities;
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
-import com.mongodb.MongoWriteException;
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import static com.mongodb.client.model.Filters.eq;
+import com.therapy.storage.Condition;
+import com.therapy.storage.DuplicateKeyException;
+import com.therapy.storage.MongoStorage;
+import com.therapy.storage.Storage;
+import com.therapy.storage.StoredCollection;
+import com.therapy.storage.Update;
 
 /**
  * This class represents an entity in the database. 
@@ -17,20 +20,34 @@ import static com.mongodb.client.model.Filters.eq;
  * <code>Entity</code>, as well as a method to set a unique <code>_id</code>
  * field for it.
  * 
+ * The <code>Document</code> of an <code>Entity</code> is loaded from the 
+ * database the first time it is needed and kept as a snapshot, so that 
+ * reading several fields of the same <code>Entity</code> only costs one 
+ * query. Writes made through the <code>Entity</code> replace the snapshot 
+ * with the updated <code>Document</code>. Changes made by anything else are
+ * only seen after calling <code>refresh()</code>.
+ * 
+ * Every read and write goes through the <code>StoredCollection</code> of 
+ * the <code>Entity</code>'s kind in a <code>Storage</code>. The 
+ * constructors that take a <code>MongoDatabase</code> use a 
+ * <code>MongoStorage</code>, and the ones that take a <code>Storage</code>
+ * can use any other, such as an <code>InMemoryStorage</code>.
+ * 
  * @author Yousef Bulbulia
  *
  */
 public abstract class Entity {
 
 	protected ObjectId id;
-	protected MongoCollection<Document> collection;
-	protected MongoDatabase database;
+	protected StoredCollection collection;
+	protected Storage storage;
+	private Document document;
 	
 	/**
 	 * Creates a new <code>Entity</code> that belongs to the given database.
 	 */
 	public Entity(MongoDatabase database) {
-		this.database = database;
+		this(new MongoStorage(database));
 	}
 	
 	/**
@@ -41,10 +58,76 @@ public abstract class Entity {
 	 * @param database the database this <code>Entity</code> belongs to.
 	 */
 	public Entity(ObjectId id, MongoDatabase database) {
-		this.database = database;
+		this(id, new MongoStorage(database));
+	}
+	
+	/**
+	 * Creates an <code>Entity</code> belonging to the given database from a 
+	 * <code>Document</code> that has already been read from the database.
+	 * The <code>Document</code> is used as the snapshot of the 
+	 * <code>Entity</code>.
+	 * 
+	 * @param document the <code>Document</code> of this <code>Entity</code>
+	 * @param database the database this <code>Entity</code> belongs to.
+	 */
+	public Entity(Document document, MongoDatabase database) {
+		this(document, new MongoStorage(database));
+	}
+	
+	/**
+	 * Creates a new <code>Entity</code> that belongs to the given 
+	 * <code>Storage</code>.
+	 */
+	public Entity(Storage storage) {
+		this.storage = storage;
+	}
+	
+	/**
+	 * Creates a new <code>Entity</code> belonging to the given 
+	 * <code>Storage</code> with the passed <code>_id</code> field.
+	 * 
+	 * @param id      the <code>_id</code> field of this <code>Entity</code>.
+	 * @param storage the <code>Storage</code> this <code>Entity</code> 
+	 * 				  belongs to.
+	 */
+	public Entity(ObjectId id, Storage storage) {
+		this.storage = storage;
 		this.id = id;
 	}
 	
+	/**
+	 * Creates an <code>Entity</code> belonging to the given 
+	 * <code>Storage</code> from a <code>Document</code> that has already 
+	 * been read from it.
+	 * 
+	 * @param document the <code>Document</code> of this <code>Entity</code>
+	 * @param storage  the <code>Storage</code> this <code>Entity</code> 
+	 * 				   belongs to.
+	 */
+	public Entity(Document document, Storage storage) {
+		this(document.getObjectId("_id"), storage);
+		this.document = document;
+	}
+	
+	/**
+	 * Creates the indexes of the collections of the entities in 
+	 * <code>storage</code>. A <code>MongoDatabase</code> is initialized by
+	 * <code>Util.intialiazeDatabase</code> instead, which also creates the 
+	 * indexes used by searches.
+	 * 
+	 * @param storage the <code>Storage</code> of the entities
+	 */
+	public static void createIndexes(Storage storage) {
+		
+		storage.getCollection("patients").createIndex(true, "email");
+		storage.getCollection("therapists").createIndex(true, "email");
+		storage.getCollection("requests").createIndex(true, "patient_id", "therapist_id");
+		storage.getCollection("chats").createIndex(true, "patient_id", "therapist_id");
+		storage.getCollection("chats").createIndex(false, "therapist_id", "_id");
+		storage.getCollection("messages").createIndex(false, "chat_id", "_id");
+		
+	}
+	
 	/**
 	 * 
 	 * @return the <code>_id</code> field of the <code>Entity</code>.
@@ -54,27 +137,102 @@ public abstract class Entity {
 	}
 	
 	/**
+	 * Returns the snapshot of this <code>Entity</code>'s 
+	 * <code>Document</code>, loading it from the database if it has not been
+	 * loaded yet.
 	 * 
 	 * @return a <code>Document</code> representing this <code>Entity</code>
 	 */
 	public Document getDocument() throws IllegalStateException {
 		
-		Document doc = collection.find(eq(id)).first();
+		if(document == null) {
+			refresh();
+		}
+		
+		return document;
+		
+	}
+	
+	/**
+	 * Reloads the snapshot of this <code>Entity</code>'s 
+	 * <code>Document</code> from the database.
+	 * 
+	 * @return the reloaded <code>Document</code>
+	 */
+	public Document refresh() throws IllegalStateException {
+		
+		Document doc = collection.get(id);
 		
 		if(doc == null) {
 			throw new IllegalStateException("Document could not be found");
 		}
 		
+		document = doc;
     	return doc;
     	
     }
 	
 	/**
-	 * Sets a unique <code>_id</code> field for this <code>Entity</code>.
+	 * Discards the snapshot of this <code>Entity</code>'s 
+	 * <code>Document</code>, so that the next read loads it again.
+	 */
+	public void invalidate() {
+		document = null;
+	}
+	
+	/**
+	 * Applies <code>update</code> to this <code>Entity</code>'s 
+	 * <code>Document</code>. The updated <code>Document</code> is returned by
+	 * the same write and becomes the new snapshot.
 	 * 
-	 * @return
+	 * @param update the update to apply
 	 */
-	public ObjectId getUniqueId() {
+	protected void update(Update update) {
+		document = collection.update(id, null, update);
+	}
+	
+	/**
+	 * Applies <code>update</code> to the <code>Document</code> of this 
+	 * <code>Entity</code> only if it matches <code>condition</code>. The 
+	 * check and the update are a single atomic operation. If the update was
+	 * applied, the updated <code>Document</code> becomes the new snapshot.
+	 * 
+	 * @param condition the filter the <code>Document</code> must match
+	 * @param update    the update to apply
+	 * @return          <code>true</code> if the update was applied
+	 */
+	protected boolean updateIf(Condition condition, Update update) {
+		
+		Document updated = collection.update(id, condition, update);
+		
+		if(updated == null) {
+			return false;
+		}
+		
+		document = updated;
+		return true;
+		
+	}
+	
+	/**
+	 * Inserts <code>fields</code> into this <code>Entity</code>'s collection
+	 * as a new document with a unique <code>_id</code> field. The whole 
+	 * document is written with a single <code>insert</code>, so the 
+	 * <code>Entity</code> never exists in its <code>Storage</code> with only
+	 * some of its fields set.
+	 * 
+	 * If the generated <code>_id</code> already belongs to another document,
+	 * a new one is generated and the insert is retried. Only an error on the
+	 * <code>_id_</code> index itself is retried. Any other duplicate key 
+	 * error, such as one from the unique <code>patient_id_1_therapist_id_1</code> 
+	 * index of requests and chats, is thrown to the caller, as retrying it 
+	 * with a new <code>_id</code> would fail forever.
+	 * 
+	 * @param fields the fields of the new document, excluding 
+	 * 				 <code>_id</code>
+	 * @return       the <code>_id</code> field of the inserted document
+	 */
+	protected ObjectId insert(Document fields) throws DuplicateKeyException {
 		
 		boolean isDuplicate = false;
 		ObjectId id = null;
@@ -82,6 +240,7 @@ public abstract class Entity {
 			
 			isDuplicate = false;
 			id = ObjectId.get();
+			fields.put("_id", id);
 			
 			/*
 			 * Try to insert the Entity into its collection. If the 
@@ -89,9 +248,10 @@ public abstract class Entity {
 			 * make a new id and try again.
 			 */
 			try {
-				collection.insertOne(new Document("_id", id));
-			} catch(MongoWriteException e) {
-				if(e.getCode() == 11000) {
+				collection.insert(fields);
+				document = fields;
+			} catch(DuplicateKeyException e) {
+				if(e.isOnId()) {
 					isDuplicate = true;
 				} else {
 					throw e;
@@ -104,4 +264,14 @@ public abstract class Entity {
 		
 	}
 	
+	/**
+	 * Sets a unique <code>_id</code> field for this <code>Entity</code> by
+	 * inserting an empty document with it.
+	 * 
+	 * @return the unique <code>_id</code> field
+	 */
+	public ObjectId getUniqueId() {
+		return insert(new Document());
+	}
+	
 }
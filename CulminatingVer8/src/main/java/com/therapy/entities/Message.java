@@ -1,13 +1,15 @@
 package com.therapy.entities;
 
 
+import java.util.Date;
+import java.util.List;
+
 import org.bson.Document;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Updates;
-import static com.mongodb.client.model.Filters.and;
-import static com.mongodb.client.model.Filters.eq;
+import com.therapy.storage.MongoStorage;
+import com.therapy.storage.Storage;
 
 /**
  * This class represents a message sent in a chat.
@@ -27,18 +29,63 @@ public class Message extends Entity{
     public Message(ObjectId id, MongoDatabase database) {
     	
     	super(id, database);
-    	collection = database.getCollection("patients");
+    	collection = storage.getCollection("messages");
+    	
+    }
+    
+    /**
+	 * Creates a new <code>Message</code> belonging to the given 
+	 * <code>Storage</code> with the passed <code>_id</code> field.
+	 * 
+	 * @param id      the <code>_id</code> field of this <code>Message</code>
+	 * @param storage the <code>Storage</code> this <code>Message</code> 
+	 * 				  belongs to
+	 */
+    public Message(ObjectId id, Storage storage) {
+    	
+    	super(id, storage);
+    	collection = storage.getCollection("messages");
+    	
+    }
+    
+    /**
+     * Creates a <code>Message</code> from a <code>Document</code> that has
+     * already been read from the <code>messages</code> collection. The 
+     * <code>Message</code> does not need to query the database to read its
+     * fields.
+     * 
+     * @param document the <code>Document</code> of this <code>Message</code>
+     * @param database the database this <code>Message</code> belongs to
+     */
+    public Message(Document document, MongoDatabase database) {
+    	
+    	super(document, database);
+    	collection = storage.getCollection("messages");
+    	
+    }
+    
+    /**
+     * Creates a <code>Message</code> from a <code>Document</code> that has
+     * already been read from the <code>messages</code> collection of a 
+     * <code>Storage</code>.
+     * 
+     * @param document the <code>Document</code> of this <code>Message</code>
+     * @param storage  the <code>Storage</code> this <code>Message</code> 
+     * 				   belongs to
+     */
+    public Message(Document document, Storage storage) {
+    	
+    	super(document, storage);
+    	collection = storage.getCollection("messages");
     	
     }
     
     /**
      * Creates a new <code>Message</code> with a unique <code>_id</code> field, 
-     * along with the specified parameters. If this constructor is used for 
-     * <code>Message</code> objects that have already been created in the 
-     * database, an <code>IllegalStateException<code> will be thrown.
+     * along with the specified parameters. The <code>Message</code> is 
+     * inserted into the <code>messages</code> collection with a single write.
      * 
-     * @param patient         the patient this message belongs to
-     * @param therapist       the therapist this message belongs to
+     * @param chat            the chat this message is sent in
      * 
      * @param senderIsPatient a <code>boolean</code> value which is 
      * 						  <code>true</code> if the patient sent the 
@@ -47,35 +94,49 @@ public class Message extends Entity{
      * @param content         the textual content of the message
      * @param database        the database this message belongs to
      */
-    public Message(Patient patient, Therapist therapist, Boolean senderIsPatient, String content,
-    		MongoDatabase database) throws IllegalStateException {
-    	
-    	super(database);
-    	collection = database.getCollection("messages");
-    	
-    	/*
-    	 * If there is already a Message for these Users, then throw an 
-    	 * IllegalStateException
-    	 */
-    	ObjectId patientId = patient.getId();
-    	ObjectId therapistId = therapist.getId();
-    	Document messageDoc = collection.find(
-    			and(
-    					eq("patient_id", patientId), eq("therapist_id", therapistId)
-    			)).first();
-    	
-    	if(messageDoc != null) {
-    		throw new IllegalStateException("This constructor is only for Messages that"
-    				+ "have not been created in the database yet");
-    	}
-    	
-		
-    	id = getUniqueId();
-    	collection.findOneAndUpdate(eq(id), Updates.set("patient_id", patient.getId()));
-    	collection.findOneAndUpdate(eq(id), Updates.set("therapist_id", therapist.getId()));
-    	collection.findOneAndUpdate(eq(id), Updates.set("sender_is_patient", senderIsPatient));
-    	collection.findOneAndUpdate(eq(id), Updates.set("content", content));
+    public Message(Chat chat, Boolean senderIsPatient, String content, MongoDatabase database) {
+    	this(chat, senderIsPatient, content, new MongoStorage(database));
+    }
+    
+    /**
+     * Creates a new <code>Message</code> in the same way as the constructor
+     * that takes a database, in a <code>Storage</code>. The summary of the
+     * chat is then updated, and its snapshot discarded.
+     * 
+     * @param chat            the chat this message is sent in
+     * @param senderIsPatient <code>true</code> if the patient sent the 
+     * 						  <code>Message</code>
+     * @param content         the textual content of the message
+     * @param storage         the <code>Storage</code> this message belongs 
+     * 						  to
+     */
+    public Message(Chat chat, Boolean senderIsPatient, String content, Storage storage) {
+    	
+    	super(storage);
+    	collection = storage.getCollection("messages");
+    	
+    	Document chatDoc = chat.getDocument();
+    	
+    	Date sentAt = new Date();
+    	
+    	id = insert(new Document("chat_id", chat.getId())
+    			.append("patient_id", chatDoc.getObjectId("patient_id"))
+    			.append("therapist_id", chatDoc.getObjectId("therapist_id"))
+    			.append("sender_is_patient", senderIsPatient)
+    			.append("content", content));
     	
+    	storage.getCollection("chats").update(chat.getId(), null, 
+    			Chat.messageAddedUpdate(Boolean.TRUE.equals(senderIsPatient), content, sentAt));
+    	chat.invalidate();
+    	
+    }
+    
+    /**
+     * 
+     * @return the <code>Chat</code> that this <code>Message</code> was sent in
+     */
+    public Chat getChat() {
+    	return new Chat(getDocument().getObjectId("chat_id"), storage);
     }
     
     /**
@@ -84,7 +145,7 @@ public class Message extends Entity{
      * 		   <code>Message</code>
      */
     public Patient getPatient() {
-    	return new Patient(getDocument().getObjectId("patient_id"), database);
+    	return new Patient(getDocument().getObjectId("patient_id"), storage);
     }
 
     /**
@@ -93,7 +154,7 @@ public class Message extends Entity{
      * 		   <code>Message</code>
      */
     public Therapist getTherapist() {
-    	return new Therapist(getDocument().getObjectId("therapist_id"), database);
+    	return new Therapist(getDocument().getObjectId("therapist_id"), storage);
     }
     
     /**
@@ -113,4 +174,41 @@ public class Message extends Entity{
     	return getDocument().getBoolean("sender_is_patient");
     }
     
+    /**
+     * Loads the <code>Message</code> objects with the given 
+     * <code>_id</code> fields using a single query. The returned 
+     * <code>Message</code> objects already hold their <code>Document</code>,
+     * so reading their fields does not query the database again.
+     * 
+     * @param ids      the <code>_id</code> fields of the <code>Message</code>
+     * 				   objects to load
+     * @param database the database the <code>Message</code> objects belong to
+     * @return         the <code>Message</code> objects, in the same order as
+     * 				   <code>ids</code>. <code>_id</code> fields that do not
+     * 				   belong to a <code>Message</code> are skipped.
+     */
+    public static Message[] getMessages(List<ObjectId> ids, MongoDatabase database) {
+    	return getMessages(ids, new MongoStorage(database));
+    }
+    
+    /**
+     * Loads the <code>Message</code> objects with the given 
+     * <code>_id</code> fields from a <code>Storage</code> in one read.
+     * 
+     * @param ids     the <code>_id</code> fields of the <code>Message</code>
+     * 				  objects to load
+     * @param storage the <code>Storage</code> the <code>Message</code> 
+     * 				  objects belong to
+     * @return        the <code>Message</code> objects, in the same order as
+     * 				  <code>ids</code>. <code>_id</code> fields that do not
+     * 				  belong to a <code>Message</code> are skipped.
+     */
+    public static Message[] getMessages(List<ObjectId> ids, Storage storage) {
+    	
+    	return storage.getCollection("messages").getAll(ids).stream()
+    			.map(e -> new Message(e, storage))
+    			.toArray(Message[]::new);
+    	
+    }
+    
 }
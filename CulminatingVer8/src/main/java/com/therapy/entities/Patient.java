@@ -4,8 +4,8 @@ package com.therapy.entities;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Updates;
-import static com.mongodb.client.model.Filters.eq;
+import com.therapy.storage.Storage;
+import com.therapy.storage.Update;
 
 /**
  * This class represents a patient. Since it is one of the two types of users,
@@ -25,7 +25,22 @@ public class Patient extends User {
     public Patient(ObjectId id, MongoDatabase database) {
     	
     	super(id,database);
-    	collection = database.getCollection("patients");
+    	collection = storage.getCollection("patients");
+    	
+    }
+    
+    /**
+	 * Creates a new <code>Patient</code> belonging to the given 
+	 * <code>Storage</code> with the passed <code>_id</code> field.
+	 * 
+	 * @param id      the <code>_id</code> field of this <code>Patient</code>
+	 * @param storage the <code>Storage</code> this <code>Patient</code> 
+	 * 				  belongs to
+	 */
+    public Patient(ObjectId id, Storage storage) {
+    	
+    	super(id, storage);
+    	collection = storage.getCollection("patients");
     	
     }
     
@@ -42,7 +57,7 @@ public class Patient extends User {
     		return null;
     	}
     	
-    	return new Therapist(therapistId, database);
+    	return new Therapist(therapistId, storage);
     }
     
     /**
@@ -58,7 +73,7 @@ public class Patient extends User {
     		return null;
     	}
     	
-    	return new Chat(chatId, database);
+    	return new Chat(chatId, storage);
     }
     
     /**
@@ -66,7 +81,7 @@ public class Patient extends User {
      * @param therapist the new <code>Therapist</code>
      */
     public void setTherapist(Therapist therapist) {
-    	collection.findOneAndUpdate(eq(id), Updates.set("therapist_id", therapist.getId()));
+    	update(Update.set("therapist_id", therapist.getId()));
     }
     
     /**
@@ -74,7 +89,7 @@ public class Patient extends User {
      * @param chat the new <code>Chat</code>
      */
     public void setChat(Chat chat) {
-    	collection.findOneAndUpdate(eq(id), Updates.set("chat_id", chat.getId()));
+    	update(Update.set("chat_id", chat.getId()));
     }
     
 
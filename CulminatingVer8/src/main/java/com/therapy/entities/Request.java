@@ -1,8 +1,5 @@
 package com.therapy.entities;
 
-import static com.mongodb.client.model.Filters.and;
-import static com.mongodb.client.model.Filters.eq;
-
 import java.util.Random;
 
 import org.bson.Document;
@@ -10,10 +7,13 @@ import org.bson.types.ObjectId;
 
 import com.mongodb.MongoException;
 import com.mongodb.MongoWriteConcernException;
-import com.mongodb.MongoWriteException;
-import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Updates;
+import com.therapy.storage.Condition;
+import com.therapy.storage.DuplicateKeyException;
+import com.therapy.storage.MongoStorage;
+import com.therapy.storage.Storage;
+import com.therapy.storage.StoredCollection;
+import com.therapy.storage.Update;
 
 /**
  * This class represents a request that a patient would send to a therapist in 
@@ -42,10 +42,25 @@ public class Request extends Entity{
 	public Request(ObjectId id, MongoDatabase database) {
 	    	
 	    	super(id, database);
-	    	collection = database.getCollection("requests");
+	    	collection = storage.getCollection("requests");
 	    	
     }
 	
+	/**
+	 * Creates a new <code>Request</code> belonging to the given 
+	 * <code>Storage</code> with the passed <code>_id</code> field.
+	 * 
+	 * @param id      the <code>_id</code> field of this <code>Request</code>
+	 * @param storage the <code>Storage</code> this <code>Request</code> 
+	 * 				  belongs to
+	 */
+	public Request(ObjectId id, Storage storage) {
+		
+		super(id, storage);
+		collection = storage.getCollection("requests");
+		
+	}
+	
 	/**
 	 * Creates a new <code>Request</code> with a unique _id field and the 
 	 * specified <code>Patient</code> and <code>Therapist</code>. If this 
@@ -61,28 +76,10 @@ public class Request extends Entity{
 			throws IllegalStateException {
 		
 		super(database);
-		collection = database.getCollection("requests");
+		collection = storage.getCollection("requests");
 		
-		/*
-    	 * If there is already a Request for these Users, then throw an 
-    	 * IllegalStateException
-    	 */
-		ObjectId patientId = patient.getId();
-    	ObjectId therapistId = therapist.getId();
-    	Document requestDoc = collection.find(
-    			and(
-    					eq("patient_id", patientId), eq("therapist_id", therapistId)
-    			)).first();
-    	
-    	if(requestDoc != null) {
-    		throw new IllegalStateException("This constructor is only for Requests that"
-    				+ "have not been created in the database yet");
-    	}
-    	
-    	
-    	id = getUniqueId();
-    	collection.findOneAndUpdate(eq(id), Updates.set("patient_id", patient.getId()));
-    	collection.findOneAndUpdate(eq(id), Updates.set("therapist_id", therapist.getId()));
+		id = insertRequest(new Document("patient_id", patient.getId())
+				.append("therapist_id", therapist.getId()));
     	
 	}
 	
@@ -100,37 +97,52 @@ public class Request extends Entity{
 	 */
 	public Request(Patient patient, Therapist therapist, String summary, MongoDatabase database) 
 			throws IllegalStateException {
+		this(patient, therapist, summary, new MongoStorage(database));
+	}
+	
+	/**
+	 * Creates a new <code>Request</code> in the same way as the constructor
+	 * that takes a database, in a <code>Storage</code>.
+	 *  
+	 * @param patient   the patient sending this request
+	 * @param therapist the therapist receiving this request
+	 * @param summary   the summary of the patient's problem(s)
+	 * @param storage   the <code>Storage</code> this request belongs to
+	 */
+	public Request(Patient patient, Therapist therapist, String summary, Storage storage) 
+			throws IllegalStateException {
 		
-		super(database);
-		collection = database.getCollection("requests");
+		super(storage);
+		collection = storage.getCollection("requests");
 		
-		/*
-    	 * If there is already a Request for these Users, then throw an 
-    	 * IllegalStateException
-    	 */
-		ObjectId patientId = patient.getId();
-    	ObjectId therapistId = therapist.getId();
-    	Document requestDoc = collection.find(
-    			and(
-    					eq("patient_id", patientId), eq("therapist_id", therapistId)
-    			)).first();
-    	
-    	if(requestDoc != null) {
-    		throw new IllegalStateException("This constructor is only for Requests that"
+		id = insertRequest(new Document("patient_id", patient.getId())
+				.append("therapist_id", therapist.getId())
+				.append("summary", summary)
+				.append("patient_accepted", false)
+				.append("patient_denied", false)
+				.append("therapist_accepted", false)
+				.append("therapist_denied", false));
+		
+	}
+	
+	/**
+	 * Inserts the fields of a new <code>Request</code> with a single write.
+	 * The <code>requests</code> collection has a unique index on 
+	 * <code>patient_id</code> and <code>therapist_id</code>, so a 
+	 * <code>Request</code> that already exists for the same users is rejected
+	 * by the database.
+	 * 
+	 * @param fields the fields of the new <code>Request</code>
+	 * @return       the <code>_id</code> field of the new <code>Request</code>
+	 */
+	private ObjectId insertRequest(Document fields) throws IllegalStateException {
+		
+		try {
+			return insert(fields);
+		} catch(DuplicateKeyException e) {
+			throw new IllegalStateException("This constructor is only for Requests that"
     				+ "have not been created in the database yet");
-    	}
-    	
-    	
-    	id = getUniqueId();
-    	
-    	collection.findOneAndUpdate(eq(id), Updates.set("patient_id", patient.getId()));
-    	collection.findOneAndUpdate(eq(id), Updates.set("therapist_id", therapist.getId()));
-    	collection.findOneAndUpdate(eq(id), Updates.set("summary", summary));
-    	
-    	collection.findOneAndUpdate(eq(id), Updates.set("patient_accepted", false));
-    	collection.findOneAndUpdate(eq(id), Updates.set("patient_denied", false));
-    	collection.findOneAndUpdate(eq(id), Updates.set("therapist_accepted", false));
-    	collection.findOneAndUpdate(eq(id), Updates.set("therapist_denied", false));
+		}
 		
 	}
     
@@ -140,7 +152,7 @@ public class Request extends Entity{
      * 		   <code>Request</code>
      */
     public Patient getPatient() {
-    	return new Patient(getDocument().getObjectId("patient_id"), database);
+    	return new Patient(getDocument().getObjectId("patient_id"), storage);
     }
     
     /**
@@ -149,7 +161,7 @@ public class Request extends Entity{
      * 		   <code>Request</code>
      */
     public Therapist getTherapist() {
-    	return new Therapist(getDocument().getObjectId("therapist_id"), database);
+    	return new Therapist(getDocument().getObjectId("therapist_id"), storage);
     }
     
     /**
@@ -197,7 +209,15 @@ public class Request extends Entity{
     }
     
     /**
-     * Accepts the code>Request</code>.
+     * Accepts the <code>Request</code>. 
+     * 
+     * When the patient accepts, the <code>Request</code> is first marked as
+     * accepted by the patient, with a single conditional update that also 
+     * reads it. The marked <code>Request</code> then serves as a record of 
+     * the work that is left, which is done by <code>complete</code>. Every
+     * step of <code>complete</code> can be repeated without effect, so if 
+     * the server stops partway through, calling this method again, or 
+     * <code>completeAccepted</code>, finishes the work.
      * 
      * @param userClass the class of the <code>User</code> calling the method.
      */
@@ -205,33 +225,16 @@ public class Request extends Entity{
     	
     	if(userClass == Patient.class) {
     		
-    		if(therapistAccepted()) {
-    			
-    			Patient patient = getPatient();
-        		Therapist therapist = getTherapist();
-        		
-        		patient.setTherapist(therapist);
-        		therapist.addPatient(patient);
-        		
-        		Chat chat = new Chat(patient, therapist, database);
-            	patient.setChat(chat);
-            	therapist.addChat(chat);
-            	
-            	patient.removeRequest(this);
-            	therapist.removeRequest(this);
-            	
-    			collection.findOneAndUpdate(eq(id), Updates.set("patient_accepted", true));
-    			remove();
-    			
-    		} else {
+    		if(!updateIf(Condition.eq("therapist_accepted", true), Update.set("patient_accepted", true))) {
     			throw new IllegalStateException("Therapist must accept first before patient");
     		}
     		
+    		complete(getDocument(), storage);
+    		invalidate();
+    		
     	} else {
     		
-    		if(!patientAccepted()) {
-    			collection.findOneAndUpdate(eq(id), Updates.set("therapist_accepted", true));
-    		} else {
+    		if(!updateIf(Condition.ne("patient_accepted", true), Update.set("therapist_accepted", true))) {
     			throw new IllegalStateException("Therapist must accept first before patient");
     		}
     		
@@ -239,12 +242,179 @@ public class Request extends Entity{
     
     }
     
+    /**
+     * Finishes every <code>Request</code> that was accepted by both users,
+     * but not completed because the server stopped partway through. This is
+     * called when the web application starts.
+     * 
+     * @param database the database of the website
+     * @return         the number of <code>Request</code> objects that were
+     * 				   completed
+     */
+    public static int completeAccepted(MongoDatabase database) {
+    	return completeAccepted(new MongoStorage(database));
+    }
+    
+    /**
+     * Finishes every <code>Request</code> of a <code>Storage</code> that was
+     * accepted by both users, but not completed.
+     * 
+     * @param storage the <code>Storage</code> of the website
+     * @return        the number of <code>Request</code> objects that were
+     * 				  completed
+     */
+    public static int completeAccepted(Storage storage) {
+    	
+    	int completed = 0;
+    	for(Document request : storage.getCollection("requests").find(Condition.eq("patient_accepted", true), 0)) {
+    		
+    		complete(request, storage);
+    		completed++;
+    		
+    	}
+    	
+    	return completed;
+    	
+    }
+    
+    /**
+     * Makes the patient of an accepted <code>Request</code> a patient of the
+     * therapist, creates their <code>Chat</code>, and removes the 
+     * <code>Request</code>. Each step can be repeated without effect: 
+     * 
+     * The <code>Chat</code> is given the <code>_id</code> field of the 
+     * <code>Request</code>, so it cannot be created twice. The patient's 
+     * fields are set and the <code>Request</code> is pulled in one update. 
+     * The therapist's counters are only changed by an update that matches 
+     * while the <code>Request</code> is still in the therapist's 
+     * <code>request_ids</code> array, and that update also pulls it. The 
+     * <code>Request</code> is removed last.
+     * 
+     * @param request the <code>Document</code> of the accepted 
+     * 				  <code>Request</code>
+     * @param storage the <code>Storage</code> of the website
+     */
+    private static void complete(Document request, Storage storage) {
+    	
+    	ObjectId requestId = request.getObjectId("_id");
+    	ObjectId patientId = request.getObjectId("patient_id");
+    	ObjectId therapistId = request.getObjectId("therapist_id");
+    	
+    	ObjectId chatId = createChat(request, storage);
+    	
+    	storage.getCollection("patients").update(patientId, null, 
+    			patientAcceptedUpdate(therapistId, chatId, requestId));
+    	
+    	Document therapist = storage.getCollection("therapists").update(therapistId, 
+    			Condition.eq("request_ids", requestId), 
+    			therapistAcceptedUpdate(patientId, chatId, requestId));
+    	if(therapist != null) {
+    		Therapist.fireChanged(therapist);
+    	}
+    	
+    	storage.getCollection("requests").delete(requestId);
+    	
+    }
+    
+    /**
+     * Creates the <code>Chat</code> of an accepted <code>Request</code>, 
+     * with the <code>_id</code> field of the <code>Request</code>. If the 
+     * <code>Chat</code> of its users already exists, the <code>_id</code> 
+     * field of that <code>Chat</code> is returned instead.
+     * 
+     * @param request the <code>Document</code> of the accepted 
+     * 				  <code>Request</code>
+     * @param storage the <code>Storage</code> of the website
+     * @return        the <code>_id</code> field of the <code>Chat</code>
+     */
+    private static ObjectId createChat(Document request, Storage storage) {
+    	
+    	StoredCollection chats = storage.getCollection("chats");
+    	Document chat = newChat(request, storage.getCollection("patients").get(request.getObjectId("patient_id")));
+    	
+    	try {
+    		
+    		chats.insert(chat);
+    		return chat.getObjectId("_id");
+    		
+    	} catch(DuplicateKeyException e) {
+    		
+    		//The chat was created by an earlier attempt
+    		return chats.find(Condition.and(Condition.eq("patient_id", request.getObjectId("patient_id")), 
+    				Condition.eq("therapist_id", request.getObjectId("therapist_id"))), 1)
+    				.get(0)
+    				.getObjectId("_id");
+    		
+    	}
+    	
+    }
+    
+    /**
+     * 
+     * @param request the <code>Document</code> of an accepted 
+     * 				  <code>Request</code>
+     * @param patient the <code>Document</code> of the patient of the 
+     * 				  <code>Request</code>, whose name is copied into the 
+     * 				  <code>Chat</code>, or null if it could not be read
+     * @return        the <code>Document</code> of the new <code>Chat</code> 
+     * 				  of its users
+     */
+    public static Document newChat(Document request, Document patient) {
+    	
+    	Document chat = new Document("_id", request.getObjectId("_id"))
+    			.append("patient_id", request.getObjectId("patient_id"))
+    			.append("therapist_id", request.getObjectId("therapist_id"))
+    			.append("unread_by_therapist", 0);
+    	
+    	if(patient != null) {
+    		chat.append("patient_name", User.getFullName(patient));
+    	}
+    	
+    	return chat;
+    	
+    }
+    
+    /**
+     * 
+     * @param therapistId the <code>_id</code> field of the therapist
+     * @param chatId      the <code>_id</code> field of the new chat
+     * @param requestId   the <code>_id</code> field of the accepted request
+     * @return            the update that gives a patient their therapist
+     */
+    public static Update patientAcceptedUpdate(ObjectId therapistId, ObjectId chatId, ObjectId requestId) {
+    	
+    	return Update.combine(Update.set("therapist_id", therapistId), 
+    			Update.set("chat_id", chatId), 
+    			Update.pull("request_ids", requestId));
+    	
+    }
+    
+    /**
+     * 
+     * @param patientId the <code>_id</code> field of the patient
+     * @param chatId    the <code>_id</code> field of the new chat
+     * @param requestId the <code>_id</code> field of the accepted request
+     * @return          the update that gives a therapist their new patient
+     */
+    public static Update therapistAcceptedUpdate(ObjectId patientId, ObjectId chatId, ObjectId requestId) {
+    	
+    	return Update.combine(Therapist.addPatientUpdate(patientId), 
+    			Therapist.removeRequestUpdate(requestId), 
+    			Update.push("chat_ids", chatId));
+    	
+    }
+    
     /**
      * Denies the <code>Request</code>. The <code>Request</code> is removed 
-     * from the database.
+     * from the patient and the therapist, giving its place back to the 
+     * therapist, and then from the database.
      */
     public void deny() {
+    	
+    	getTherapist().removeRequest(this);
+    	getPatient().removeRequest(this);
     	remove();
+    	
     }
     
     /**
@@ -252,7 +422,8 @@ public class Request extends Entity{
      * be called after either accepting or denying the <code>Request</code>.
      */
     public void remove() {
-    	collection.findOneAndDelete(eq(id));
+    	collection.delete(id);
+    	invalidate();
     }
     
 }
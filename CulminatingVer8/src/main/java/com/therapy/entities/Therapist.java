@@ -4,13 +4,19 @@ package com.therapy.entities;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Updates;
-import static com.mongodb.client.model.Filters.eq;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.therapy.storage.Condition;
+import com.therapy.storage.Storage;
+import com.therapy.storage.Update;
 
 /**
  * This class represents a therapist. Since it is one of the two types of 
@@ -20,6 +26,27 @@ import static com.mongodb.client.model.Filters.eq;
  * 
  */
 public class Therapist extends User {
+	
+	private static final List<TherapistListener> LISTENERS = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * The fields read by searches, which are the ones shown in search 
+	 * results.
+	 */
+	private static final Bson SEARCH_RESULT_FIELDS = Projections.include("first_name", 
+			"last_name", "rating_sum", "rating_count", "can_receive_requests");
+	
+	/**
+	 * The highest rating a patient can give.
+	 */
+	public static final int MAX_RATING = 100;
+	
+	/**
+	 * The number of ranges of ratings counted in the 
+	 * <code>rating_histogram</code> field. Each range holds 
+	 * <code>MAX_RATING / RATING_BUCKETS</code> ratings.
+	 */
+	public static final int RATING_BUCKETS = 10;
    
 	/**
 	 * Creates a new <code>Therapist</code> belonging to the given database 
@@ -32,16 +59,219 @@ public class Therapist extends User {
     public Therapist(ObjectId id, MongoDatabase database) {
     	
     	super(id,database);
-    	collection = database.getCollection("therapists");
+    	collection = storage.getCollection("therapists");
+    	
+    }
+    
+    /**
+     * Creates a <code>Therapist</code> from a <code>Document</code> that was
+     * already read from the database.
+     * 
+     * @param document the <code>Document</code> of this 
+     * 				   <code>Therapist</code>
+     * @param database the database this <code>Therapist</code> belongs to
+     */
+    public Therapist(Document document, MongoDatabase database) {
+    	
+    	super(document, database);
+    	collection = storage.getCollection("therapists");
+    	
+    }
+    
+    /**
+	 * Creates a new <code>Therapist</code> belonging to the given 
+	 * <code>Storage</code> with the passed <code>_id</code> field.
+	 * 
+	 * @param id      the <code>_id</code> field of this 
+	 * 				  <code>Therapist</code>
+	 * @param storage the <code>Storage</code> this <code>Therapist</code> 
+	 * 				  belongs to
+	 */
+    public Therapist(ObjectId id, Storage storage) {
+    	
+    	super(id, storage);
+    	collection = storage.getCollection("therapists");
+    	
+    }
+    
+    /**
+     * Creates a <code>Therapist</code> from a <code>Document</code> that was
+     * already read from a <code>Storage</code>.
+     * 
+     * @param document the <code>Document</code> of this 
+     * 				   <code>Therapist</code>
+     * @param storage  the <code>Storage</code> this <code>Therapist</code> 
+     * 				   belongs to
+     */
+    public Therapist(Document document, Storage storage) {
+    	
+    	super(document, storage);
+    	collection = storage.getCollection("therapists");
+    	
+    }
+    
+    /**
+     * Adds a listener that is told about every change to a therapist that 
+     * affects whether they can receive requests.
+     * 
+     * @param listener the listener to add
+     */
+    public static void addListener(TherapistListener listener) {
+    	LISTENERS.add(listener);
+    }
+    
+    /**
+     * 
+     * @param listener the listener to remove
+     */
+    public static void removeListener(TherapistListener listener) {
+    	LISTENERS.remove(listener);
+    }
+    
+    /**
+     * Tells every listener that a therapist was changed. This is called by
+     * the methods that change the requests, patients or rating of a 
+     * therapist, and must also be called by code that changes them directly.
+     * 
+     * @param therapist the <code>Document</code> of the therapist after the
+     * 					change
+     */
+    public static void fireChanged(Document therapist) {
+    	
+    	for(TherapistListener listener : LISTENERS) {
+    		listener.onTherapistChanged(therapist);
+    	}
+    	
+    }
+    
+    /**
+     * Searches for therapists whose first name, full name or last name 
+     * starts with <code>query</code>. Names are compared after being 
+     * normalized with <code>normalizeName</code>, so the search ignores case
+     * and accents.
+     * 
+     * The search is a single query that uses the indexes on 
+     * <code>full_name_lower</code> and <code>last_name_lower</code>, so it 
+     * does not get slower as more therapists sign up. Only the fields shown
+     * in search results are read, so the returned <code>Therapist</code>s 
+     * must be refreshed before reading any other field.
+     * 
+     * @param query    the start of the name that was searched for
+     * @param skip     the number of matching therapists to skip
+     * @param limit    the maximum number of therapists to return
+     * @param database the database the therapists belong to
+     * @return         the matching therapists, sorted by name
+     */
+    public static List<Therapist> searchByName(String query, int skip, int limit, 
+    		MongoDatabase database) {
+    	
+    	String prefix = normalizeName(query);
+    	if(prefix.isEmpty() || limit <= 0) {
+    		return new ArrayList<>();
+    	}
+    	
+    	String pattern = "^" + escapeRegex(prefix);
+    	Bson filter = Filters.or(Filters.regex("full_name_lower", pattern), 
+    			Filters.regex("last_name_lower", pattern));
+    	
+    	return find(filter, SEARCH_RESULT_FIELDS, Sorts.ascending("full_name_lower", "_id"), 
+    			skip, limit, database);
+    	
+    }
+    
+    /**
+     * Searches for therapists with a name that contains any of the words of
+     * <code>query</code>, using the text index on the names of therapists. 
+     * Unlike <code>searchByName</code>, the words may be in any order, but
+     * they must be whole words. The text index is only created when the 
+     * <code>search.textIndex</code> context parameter is <code>true</code>.
+     * 
+     * @param query    the words that were searched for
+     * @param skip     the number of matching therapists to skip
+     * @param limit    the maximum number of therapists to return
+     * @param database the database the therapists belong to
+     * @return         the matching therapists, best matches first
+     */
+    public static List<Therapist> searchByWords(String query, int skip, int limit, 
+    		MongoDatabase database) {
+    	
+    	String words = normalizeName(query);
+    	if(words.isEmpty() || limit <= 0) {
+    		return new ArrayList<>();
+    	}
+    	
+    	Bson projection = Projections.fields(SEARCH_RESULT_FIELDS, Projections.metaTextScore("score"));
+    	return find(Filters.text(words), projection, Sorts.metaTextScore("score"), 
+    			skip, limit, database);
     	
     }
     
     /**
+     * Runs a projected search query.
      * 
-     * @return the number of requests this <code>Therapist</code> has
+     * @param filter     the filter of the query
+     * @param projection the fields to read
+     * @param sort       the order of the results
+     * @param skip       the number of results to skip
+     * @param limit      the maximum number of results
+     * @param database   the database the therapists belong to
+     * @return           the results as <code>Therapist</code>s
+     */
+    private static List<Therapist> find(Bson filter, Bson projection, Bson sort, int skip, 
+    		int limit, MongoDatabase database) {
+    	
+    	List<Therapist> therapists = new ArrayList<>();
+    	for(Document doc : database.getCollection("therapists").find(filter)
+    			.projection(projection)
+    			.sort(sort)
+    			.skip(Math.max(skip, 0))
+    			.limit(limit)) {
+    		therapists.add(new Therapist(doc, database));
+    	}
+    	
+    	return therapists;
+    	
+    }
+    
+    /**
+     * Escapes the characters of <code>text</code> that have a meaning in a 
+     * regular expression. A backslash is used instead of <code>\Q</code>
+     * and <code>\E</code>, as MongoDB can only turn a prefix expression 
+     * into index bounds if it is written out literally.
+     * 
+     * @param text the text
+     * @return     the escaped text
+     */
+    private static String escapeRegex(String text) {
+    	
+    	StringBuilder escaped = new StringBuilder();
+    	for(char c : text.toCharArray()) {
+    		
+    		if(!Character.isLetterOrDigit(c) && c != ' ') {
+    			escaped.append('\\');
+    		}
+    		escaped.append(c);
+    		
+    	}
+    	
+    	return escaped.toString();
+    	
+    }
+    
+    /**
+     * 
+     * @return the number of open requests this <code>Therapist</code> has
      */
     public Integer getNumberOfRequests() {
-    	return getDocument().getInteger("number_of_requests");
+    	return getDocument().getInteger("open_requests", 0);
+    }
+    
+    /**
+     * 
+     * @return the number of patients this <code>Therapist</code> is treating
+     */
+    public Integer getNumberOfPatients() {
+    	return getDocument().getInteger("patient_count", 0);
     }
     
     /**
@@ -55,11 +285,15 @@ public class Therapist extends User {
     
     /**
      * 
-     * @return the limit to how many requests this <code>Therapist</code> can
-     * 		   have
+     * @return the number of requests this <code>Therapist</code> can still
+     * 		   receive
      */
     public Integer getRequestLimit() {
-    	return getDocument().getInteger("request_limit");
+    	
+    	Document doc = getDocument();
+    	return doc.getInteger("patient_limit", 0) - doc.getInteger("open_requests", 0) 
+    			- doc.getInteger("patient_count", 0);
+    	
     }
     
     /**
@@ -73,10 +307,20 @@ public class Therapist extends User {
 
     /**
      * 
-     * @return the rating of this <code>Therapist</code>
+     * @return the rating of this <code>Therapist</code>, rounded to the 
+     * 		   nearest whole number, or null if they have not been rated
      */
     public Integer getRating() {
-    	return getDocument().getInteger("rating");
+    	return getRating(getDocument());
+    }
+    
+    /**
+     * 
+     * @return the average of the ratings of this <code>Therapist</code>, or
+     * 		   null if they have not been rated
+     */
+    public Double getAverageRating() {
+    	return getAverageRating(getDocument());
     }
     
     /**
@@ -85,7 +329,83 @@ public class Therapist extends User {
      * 		   <code>Therapist</code> a rating
      */
     public Integer getNumberOfRaters() {
-    	return getDocument().getInteger("number_of_raters");
+    	return getDocument().getInteger("rating_count", 0);
+    }
+    
+    /**
+     * Counts the ratings of this <code>Therapist</code> in each range of 
+     * ratings. The first range holds the ratings from 1 to 
+     * <code>MAX_RATING / RATING_BUCKETS</code>, and the last range holds the 
+     * ratings up to <code>MAX_RATING</code>.
+     * 
+     * @return the number of ratings in each range
+     */
+    public int[] getRatingHistogram() {
+    	
+    	int[] histogram = new int[RATING_BUCKETS];
+    	Document counts = getDocument().get("rating_histogram", Document.class);
+    	
+    	if(counts != null) {
+    		for(int i = 0; i < RATING_BUCKETS; i++) {
+    			histogram[i] = counts.getInteger(String.valueOf(i), 0);
+    		}
+    	}
+    	
+    	return histogram;
+    	
+    }
+    
+    /**
+     * 
+     * @param therapist the <code>Document</code> of a therapist, with at 
+     * 					least its <code>rating_sum</code> and 
+     * 					<code>rating_count</code> fields
+     * @return          the average of the therapist's ratings, or null if 
+     * 					they have not been rated
+     */
+    public static Double getAverageRating(Document therapist) {
+    	
+    	Number count = therapist.get("rating_count", Number.class);
+    	Number sum = therapist.get("rating_sum", Number.class);
+    	
+    	if(count == null || sum == null || count.longValue() == 0) {
+    		return null;
+    	}
+    	
+    	return sum.doubleValue() / count.longValue();
+    	
+    }
+    
+    /**
+     * 
+     * @param therapist the <code>Document</code> of a therapist, with at 
+     * 					least its <code>rating_sum</code> and 
+     * 					<code>rating_count</code> fields
+     * @return          the average of the therapist's ratings, rounded to 
+     * 					the nearest whole number, or null if they have not 
+     * 					been rated
+     */
+    public static Integer getRating(Document therapist) {
+    	
+    	Double average = getAverageRating(therapist);
+    	return average == null ? null : (int)Math.round(average);
+    	
+    }
+    
+    /**
+     * Creates an aggregation expression of the average rating of a 
+     * therapist, for sorting therapists by rating in the database. It is 
+     * null for therapists that have not been rated.
+     * 
+     * @return the expression
+     */
+    public static Document averageRatingExpression() {
+    	
+    	return new Document("$cond", Arrays.asList(
+    			new Document("$gt", Arrays.asList(new Document("$ifNull", Arrays.asList("$rating_count", 0)), 0)),
+    			new Document("$divide", Arrays.asList("$rating_sum", "$rating_count")),
+    			null));
+    	
     }
     
     /**
@@ -101,14 +421,14 @@ public class Therapist extends User {
     	//Get an ObjectId[] of patient's _id fields
     	final Class<? extends List> listClass = new ArrayList<ObjectId>().getClass();
     	List<ObjectId> idsAsList = doc.get("patient_ids", listClass);
-    	ObjectId[] patientIds = idsAsList.toArray(ObjectId[]::new);
+    	ObjectId[] patientIds = idsAsList == null ? null : idsAsList.toArray(ObjectId[]::new);
     	
     	//Map the ObjectIds to the Patient objects they belong to
     	Patient[] patients = null;
 	    if(patientIds != null) {
 	    		
 	    	patients = Arrays.stream(patientIds)
-	    	   		.map(e -> new Patient(e, database))
+	    	   		.map(e -> new Patient(e, storage))
 	    	   		.toArray(Patient[]::new);
 	    		
 	    }
@@ -129,14 +449,14 @@ public class Therapist extends User {
     	//Get an ObjectId[] of chats's _id fields
     	final Class<? extends List> listClass = new ArrayList<ObjectId>().getClass();
     	List<ObjectId> idsAsList = doc.get("chat_ids", listClass);
-    	ObjectId[] chatIds = idsAsList.toArray(ObjectId[]::new);
+    	ObjectId[] chatIds = idsAsList == null ? null : idsAsList.toArray(ObjectId[]::new);
 	    
     	//Map the ObjectIds to the Chat objects they belong to
     	Chat[] chats = null;
 	    if(chatIds != null) {
 	    		
 	    	chats = Arrays.stream(chatIds)
-	    	   		.map(e -> new Chat(e, database))
+	    	   		.map(e -> new Chat(e, storage))
 	    	   		.toArray( Chat[]::new);
 	    		
 	    }	
@@ -145,44 +465,168 @@ public class Therapist extends User {
     	
     }
     
+    /**
+     * Reads the summaries of the chats of this <code>Therapist</code> with a
+     * single query, without loading this <code>Therapist</code>'s 
+     * <code>Document</code>.
+     * 
+     * @return the summaries, from the most to the least recently active 
+     * 		   chat
+     */
+    public List<ChatSummary> getChatSummaries() {
+    	return Chat.getSummaries(id, storage);
+    }
+    
     /**
      * Adds a <code>Request</code>. If this <code>Therapist</code> is unable
      * to treat more patients without exceeding it's 
      * <code>patient_limit</code>, then this method throws an 
      * <code>IllegalStateException</code>
      * 
+     * The <code>open_requests</code> and <code>patient_count</code> counters
+     * are checked against <code>patient_limit</code> and the request is 
+     * added in one conditional update, so two patients requesting the same 
+     * <code>Therapist</code> at once can never exceed the limit. If the 
+     * request takes the last place, <code>can_receive_requests</code> is 
+     * then set to false.
+     * 
      * @param request the <code>Request</code> to be added
      */
     public void addRequest(Request request) throws IllegalStateException {
         
-    	Document doc = getDocument();
+    	if(!updateIf(hasCapacity(), addRequestUpdate(request.getId()))) {
+    		
+    		invalidate();
+    		if(getDocument().getInteger("patient_limit", 0) == 0) {
+    			throw new IllegalStateException("A request limit must be set before adding requests");
+    		}
+    		throw new IllegalStateException("Number of requests and patients will exceed the patient limit");
+    		
+    	}
     	
-    	int patientLimit = doc.getInteger("patient_limit", 0);
-    	Request[] requests = getRequests();
-    	Patient[] patients = getPatients();
+    	updateIf(isFullAndOpen(), Update.set("can_receive_requests", false));
+        fireChanged(getDocument());
+        
+    }
+    
+    /**
+     * Removes a <code>Request</code>, freeing its place. If this 
+     * <code>Therapist</code> was full, <code>can_receive_requests</code> is
+     * set back to true.
+     * 
+     * @param request the <code>Request</code> to remove
+     */
+    @Override
+    public void removeRequest(Request request) {
     	
-    	if(requests == null) {
-    		requests = new Request[0];
+    	if(updateIf(Condition.eq("request_ids", request.getId()), removeRequestUpdate(request.getId()))) {
+    		updateIf(hasCapacityAndClosed(), Update.set("can_receive_requests", true));
+    		fireChanged(getDocument());
     	}
     	
-    	if(patients == null) {
-    		patients = new Patient[0];
-    	}
+    }
+    
+    /**
+     * Creates a condition that matches therapists whose open requests and 
+     * patients are fewer than their <code>patient_limit</code>. 
+     * 
+     * @return the condition
+     */
+    public static Condition hasCapacity() {
     	
-    	if(patientLimit == 0) {
-            throw new IllegalStateException("A request limit must be set before adding requests");
-        } else if(requests.length + 1 + patients.length > patientLimit) {
-        	throw new IllegalStateException("Number of requests and patients will exceed the patient limit");
-        }
-        
-        int requestLimit = patientLimit - (requests.length + 1) - patients.length;
-        if(requestLimit == 0) {
-        	collection.findOneAndUpdate(eq(id), Updates.set("can_receive_requests", Boolean.valueOf(false)));
-        }
+    	return Condition.where(Filters.expr(new Document("$lt", Arrays.asList(usedPlaces(), "$patient_limit"))), 
+    			therapist -> getUsedPlaces(therapist) < getCount(therapist, "patient_limit"));
+    	
+    }
+    
+    /**
+     * Creates a condition that matches therapists whose open requests and 
+     * patients have reached their <code>patient_limit</code>, but who can 
+     * still receive requests.
+     * 
+     * @return the condition
+     */
+    public static Condition isFullAndOpen() {
+    	
+    	return Condition.and(Condition.eq("can_receive_requests", true), 
+    			Condition.where(Filters.expr(new Document("$gte", Arrays.asList(usedPlaces(), "$patient_limit"))), 
+    					therapist -> getUsedPlaces(therapist) >= getCount(therapist, "patient_limit")));
+    	
+    }
+    
+    /**
+     * Creates a condition that matches therapists whose open requests and 
+     * patients are fewer than their <code>patient_limit</code>, but who 
+     * cannot receive requests.
+     * 
+     * @return the condition
+     */
+    public static Condition hasCapacityAndClosed() {
+    	return Condition.and(Condition.eq("can_receive_requests", false), hasCapacity());
+    }
+    
+    /**
+     * 
+     * @param requestId the <code>_id</code> field of a new request
+     * @return          the update that adds the request to a therapist
+     */
+    public static Update addRequestUpdate(ObjectId requestId) {
+    	return Update.combine(Update.push("request_ids", requestId), Update.inc("open_requests", 1));
+    }
+    
+    /**
+     * 
+     * @param requestId the <code>_id</code> field of a request
+     * @return          the update that removes the request from a therapist
+     */
+    public static Update removeRequestUpdate(ObjectId requestId) {
+    	return Update.combine(Update.pull("request_ids", requestId), Update.inc("open_requests", -1));
+    }
+    
+    /**
+     * 
+     * @param patientId the <code>_id</code> field of a new patient
+     * @return          the update that adds the patient to a therapist
+     */
+    public static Update addPatientUpdate(ObjectId patientId) {
+    	return Update.combine(Update.push("patient_ids", patientId), Update.inc("patient_count", 1));
+    }
+    
+    /**
+     * 
+     * @return an aggregation expression of the number of places a therapist
+     * 		   has taken with open requests and patients
+     */
+    private static Document usedPlaces() {
+    	
+    	return new Document("$add", Arrays.asList(
+    			new Document("$ifNull", Arrays.asList("$open_requests", 0)),
+    			new Document("$ifNull", Arrays.asList("$patient_count", 0))));
+    	
+    }
+    
+    /**
+     * 
+     * @param therapist the <code>Document</code> of a therapist
+     * @return          the number of places the therapist has taken with 
+     * 					open requests and patients, in the same way as 
+     * 					<code>usedPlaces</code>
+     */
+    private static long getUsedPlaces(Document therapist) {
+    	return getCount(therapist, "open_requests") + getCount(therapist, "patient_count");
+    }
+    
+    /**
+     * 
+     * @param therapist the <code>Document</code> of a therapist
+     * @param field     the name of a number field
+     * @return          the value of the field, or 0 if it is missing
+     */
+    private static long getCount(Document therapist, String field) {
+    	
+    	Object value = therapist.get(field);
+    	return value instanceof Number ? ((Number)value).longValue() : 0;
     	
-        collection.findOneAndUpdate(eq(id), Updates.push("request_ids", request.getId()));
-        collection.findOneAndUpdate(eq(id), Updates.set("request_limit", requestLimit));
-        
     }
     
     /**
@@ -192,7 +636,11 @@ public class Therapist extends User {
      * @param patient the <code>Patient</code> to add
      */
     public void addPatient(Patient patient) {
-    	collection.findOneAndUpdate(eq(id), Updates.push("patient_ids", patient.getId()));
+    	
+    	update(addPatientUpdate(patient.getId()));
+    	updateIf(isFullAndOpen(), Update.set("can_receive_requests", false));
+    	fireChanged(getDocument());
+    	
     }
     
     /**
@@ -202,31 +650,42 @@ public class Therapist extends User {
      * @param chat the <code>Chat</code> to add
      */
     public void addChat(Chat chat) {
-    	collection.findOneAndUpdate(eq(id), Updates.push("chat_ids", chat.getId()));
+    	update(Update.push("chat_ids", chat.getId()));
     }
     
     /**
-     * Takes a new rating from a patient and averages it with the existing
-     * ratings for this <code>Therapist</code>. The updated rating is then
-     * written to the database.
+     * Adds a new rating from a patient to the ratings of this 
+     * <code>Therapist</code>. The rating is added to 
+     * <code>rating_sum</code>, <code>rating_count</code> and its range in 
+     * <code>rating_histogram</code> with a single <code>$inc</code>, so 
+     * ratings given at the same time are never lost. The average is worked 
+     * out when it is read.
      * 
      * @param newUserRating the new rating
      */
     public void addRating(int newUserRating) throws IllegalArgumentException {
     	
-    	Document doc = getDocument();
-    	
-    	Integer rating = doc.getInteger("rating");
-    	Integer numberOfRaters = doc.getInteger("number_of_raters");
-    	
-    	if(newUserRating < 1 || newUserRating > 100) {
+    	if(newUserRating < 1 || newUserRating > MAX_RATING) {
     		throw new IllegalArgumentException("Ratings must be between 1 and 100 (inclusive)");
     	}
     	
-    	rating =  Math.round((rating * numberOfRaters + newUserRating)/(++numberOfRaters));
+    	update(addRatingUpdate(newUserRating));
+    	fireChanged(getDocument());
+    	
+    }
+    
+    /**
+     * 
+     * @param rating a new rating, from 1 to <code>MAX_RATING</code>
+     * @return       the update that adds the rating to a therapist
+     */
+    public static Update addRatingUpdate(int rating) {
+    	
+    	int bucket = (rating - 1) * RATING_BUCKETS / MAX_RATING;
     	
-    	collection.findOneAndUpdate(eq(id), Updates.set("rating", rating));
-    	collection.findOneAndUpdate(eq(id), Updates.set("number_of_raters", numberOfRaters));
+    	return Update.combine(Update.inc("rating_sum", rating), 
+    			Update.inc("rating_count", 1), 
+    			Update.inc("rating_histogram." + bucket, 1));
     	
     }
 
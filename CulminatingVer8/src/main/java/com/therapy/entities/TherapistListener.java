@@ -0,0 +1,25 @@
+package com.therapy.entities;
+
+import org.bson.Document;
+
+/**
+ * This interface represents a receiver of the changes made to therapists
+ * that affect whether they can receive requests, such as a new request, a
+ * new patient or a new rating. Listeners are added with 
+ * <code>Therapist.addListener</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@FunctionalInterface
+public interface TherapistListener {
+
+	/**
+	 * Called after a therapist was changed.
+	 * 
+	 * @param therapist the <code>Document</code> of the therapist after the
+	 * 					change
+	 */
+	void onTherapistChanged(Document therapist);
+	
+}
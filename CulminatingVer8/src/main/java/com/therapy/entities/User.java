@@ -3,15 +3,17 @@ package com.therapy.entities;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.text.Normalizer;
 import java.util.List;
+import java.util.Locale;
 
 import org.bson.Document;
 import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Updates;
-import static com.mongodb.client.model.Filters.eq;
+import com.therapy.storage.Storage;
+import com.therapy.storage.Update;
 
 /**
  * This class represents a user. It is abstract because it is impractical to 
@@ -34,6 +36,41 @@ public abstract class User extends Entity {
 		super(id, database);
     }
     
+    /**
+     * Creates a <code>User</code> from a <code>Document</code> that was 
+     * already read from the database.
+     * 
+     * @param document the <code>Document</code> of this <code>User</code>
+     * @param database the database this <code>User</code> belongs to
+     */
+    public User(Document document, MongoDatabase database) {
+    	super(document, database);
+    }
+    
+    /**
+	 * Creates a new <code>User</code> belonging to the given 
+	 * <code>Storage</code> with the passed id.
+	 * 
+	 * @param id      the id of this <code>User</code>
+	 * @param storage the <code>Storage</code> this <code>User</code> belongs
+	 * 				  to
+	 */
+    public User(ObjectId id, Storage storage) {
+		super(id, storage);
+    }
+    
+    /**
+     * Creates a <code>User</code> from a <code>Document</code> that was 
+     * already read from a <code>Storage</code>.
+     * 
+     * @param document the <code>Document</code> of this <code>User</code>
+     * @param storage  the <code>Storage</code> this <code>User</code> 
+     * 				   belongs to
+     */
+    public User(Document document, Storage storage) {
+    	super(document, storage);
+    }
+    
     /**
      * 
      * @return the first name of the <code>User</code>
@@ -58,10 +95,17 @@ public abstract class User extends Entity {
      * @return the full name of the <code>User</code>
      */
     public String getFullName() {
-    	
-    	Document doc = getDocument();
-    	return doc.getString("first_name") + " " + doc.getString("last_name");
-    	
+    	return getFullName(getDocument());
+    }
+    
+    /**
+     * 
+     * @param user the <code>Document</code> of a <code>User</code>
+     * @return     the full name of the <code>User</code>, made in the same 
+     * 			   way as <code>getFullName()</code>
+     */
+    public static String getFullName(Document user) {
+    	return user.getString("first_name") + " " + user.getString("last_name");
     }
     
     /**
@@ -89,19 +133,32 @@ public abstract class User extends Entity {
     }
     
     /**
+     * Sets the first name of the <code>User</code>, along with the 
+     * normalized names that it is searched by.
      * 
      * @param firstName the first name of the <code>User</code>
      */
     public void setFirstName(String firstName) {
-        collection.findOneAndUpdate(eq(id), Updates.set("first_name", firstName));
+    	
+    	Document nameFields = getNameSearchFields(firstName, getLastName());
+        update(Update.combine(Update.set("first_name", firstName), 
+        		Update.set("full_name_lower", nameFields.get("full_name_lower"))));
+        
     }
     
     /**
+     * Sets the last name of the <code>User</code>, along with the 
+     * normalized names that it is searched by.
      * 
      * @param lastName the last name of the <code>User</code>
      */
     public void setLastName(String lastName) {
-    	 collection.findOneAndUpdate(eq(id), Updates.set("last_name", lastName));
+    	
+    	Document nameFields = getNameSearchFields(getFirstName(), lastName);
+    	update(Update.combine(Update.set("last_name", lastName), 
+    			Update.set("last_name_lower", nameFields.get("last_name_lower")),
+    			Update.set("full_name_lower", nameFields.get("full_name_lower"))));
+    	
     }
     
     /**
@@ -109,7 +166,7 @@ public abstract class User extends Entity {
      * @param email the <code>User</code>'s email
      */
     public void setEmail(String email) {
-    	 collection.findOneAndUpdate(eq(id), Updates.set("email", email));
+    	 update(Update.set("email", email));
     }
     
     /**
@@ -117,7 +174,7 @@ public abstract class User extends Entity {
      * @param hashedPassword the hash of the <code>User</code>'s password
      */
     public void setHashedPassword(byte[] hashedPassword) {
-    	 collection.findOneAndUpdate(eq(id), Updates.set("password_hash", new Binary(hashedPassword)));
+    	 update(Update.set("password_hash", new Binary(hashedPassword)));
     }
     
     /**
@@ -125,7 +182,50 @@ public abstract class User extends Entity {
      * @param salt the <code>User</code>'s salt
      */
     public void setSalt(byte[] salt) {
-    	 collection.findOneAndUpdate(eq(id), Updates.set("salt", new Binary(salt)));
+    	 update(Update.set("salt", new Binary(salt)));
+    }
+    
+    /**
+     * Normalizes a name for searching. Accents are removed, whitespace is
+     * collapsed into single spaces, and the name is made lowercase, so that
+     * a search for "jose" finds "Jos&eacute;".
+     * 
+     * @param name the name
+     * @return     the normalized name, or an empty string if 
+     * 			   <code>name</code> is null
+     */
+    public static String normalizeName(String name) {
+    	
+    	if(name == null) {
+    		return "";
+    	}
+    	
+    	String withoutAccents = Normalizer.normalize(name, Normalizer.Form.NFD)
+    			.replaceAll("\\p{M}", "");
+    	
+    	return withoutAccents.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    	
+    }
+    
+    /**
+     * Creates the fields a <code>User</code> is searched by. 
+     * <code>full_name_lower</code> is the normalized first name followed by
+     * the normalized last name, and <code>last_name_lower</code> is the 
+     * normalized last name, so that a prefix of either name can be found 
+     * with an index.
+     * 
+     * @param firstName the first name of the <code>User</code>
+     * @param lastName  the last name of the <code>User</code>
+     * @return          the fields
+     */
+    public static Document getNameSearchFields(String firstName, String lastName) {
+    	
+    	String first = normalizeName(firstName);
+    	String last = normalizeName(lastName);
+    	
+    	return new Document("full_name_lower", (first + " " + last).trim())
+    			.append("last_name_lower", last);
+    	
     }
     
     /**
@@ -133,7 +233,7 @@ public abstract class User extends Entity {
      * @param request the new <code>Request</code>
      */
     public void addRequest(Request request) {
-    	collection.findOneAndUpdate(eq(id), Updates.push("request_ids", request.getId()));
+    	update(Update.push("request_ids", request.getId()));
     }
     
     /**
@@ -141,7 +241,7 @@ public abstract class User extends Entity {
      * @param request the <code>Request</code> to remove
      */
     public void removeRequest(Request request) {
-    	collection.findOneAndUpdate(eq(id), Updates.pull("request_ids", request.getId()));
+    	update(Update.pull("request_ids", request.getId()));
     }
     
     /**
@@ -166,7 +266,7 @@ public abstract class User extends Entity {
 	    if(requestIds != null) {
 	    	
 	    	requests = Arrays.stream(requestIds)
-	    	   		.map(e -> new Request(e, database))
+	    	   		.map(e -> new Request(e, storage))
 	    	   		.toArray(Request[]::new);
 	    	
 	    }
@@ -0,0 +1,86 @@
+package com.therapy.entities.reactive;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * This is a utility class that adapts the <code>Publisher</code> objects 
+ * returned by the Reactive Streams driver to <code>CompletableFuture</code> 
+ * objects, which are easier to compose in the servlets.
+ * 
+ * The futures are completed on the driver's threads, so the functions 
+ * composed onto them must not block.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class Publishers {
+
+	/**
+	 * This constructor is a private, empty constructor, as all of this 
+	 * class's methods are static.
+	 */
+	private Publishers() {
+		
+	}
+	
+	/**
+	 * 
+	 * @param publisher the <code>Publisher</code> to read
+	 * @return          a future of every item published, in order
+	 */
+	public static <T> CompletableFuture<List<T>> toList(Publisher<T> publisher) {
+		
+		CompletableFuture<List<T>> future = new CompletableFuture<>();
+		
+		publisher.subscribe(new Subscriber<T>() {
+			
+			private final List<T> items = new ArrayList<>();
+			
+			public void onSubscribe(Subscription subscription) {
+				subscription.request(Long.MAX_VALUE);
+			}
+			
+			public void onNext(T item) {
+				items.add(item);
+			}
+			
+			public void onError(Throwable throwable) {
+				future.completeExceptionally(throwable);
+			}
+			
+			public void onComplete() {
+				future.complete(items);
+			}
+			
+		});
+		
+		return future;
+		
+	}
+	
+	/**
+	 * 
+	 * @param publisher the <code>Publisher</code> to read
+	 * @return          a future of the first item published, or of null if
+	 * 					nothing was published
+	 */
+	public static <T> CompletableFuture<T> first(Publisher<T> publisher) {
+		return toList(publisher).thenApply(items -> items.isEmpty() ? null : items.get(0));
+	}
+	
+	/**
+	 * 
+	 * @param publisher the <code>Publisher</code> to read
+	 * @return          a future that completes when the publisher does
+	 */
+	public static CompletableFuture<Void> done(Publisher<?> publisher) {
+		return toList(publisher).thenApply(items -> null);
+	}
+	
+}
@@ -0,0 +1,470 @@
+package com.therapy.entities.reactive;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lt;
+import static com.mongodb.client.model.Filters.ne;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import com.therapy.entities.Chat;
+import com.therapy.entities.Request;
+import com.therapy.entities.Therapist;
+import com.therapy.messaging.MessageCache;
+
+/**
+ * This class performs the operations of the <code>com.therapy.entities</code>
+ * classes that the asynchronous servlets need, without blocking. It works on 
+ * the same collections and fields as those classes, so both can be used on 
+ * the same database at once.
+ * 
+ * Every method returns a <code>CompletableFuture</code> that is completed on
+ * the driver's threads. Errors that the blocking classes throw, such as an 
+ * <code>IllegalStateException</code> for a full therapist, fail the future 
+ * instead.
+ * 
+ * If it is given a <code>MessageCache</code>, the newest messages of a chat
+ * are read from the cache when it has them, and new messages are written 
+ * through to it.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class ReactiveEntities {
+
+	private static final Logger LOGGER = Logger.getLogger(ReactiveEntities.class.getName());
+	
+	private final ReactiveRepository patients;
+	private final ReactiveRepository therapists;
+	private final ReactiveRepository requests;
+	private final ReactiveRepository chats;
+	private final ReactiveRepository messages;
+	private final MessageCache messageCache;
+	
+	/**
+	 * Creates a new <code>ReactiveEntities</code> for the given database.
+	 * 
+	 * @param database the database of the website
+	 */
+	public ReactiveEntities(MongoDatabase database) {
+		this(database, null);
+	}
+	
+	/**
+	 * Creates a new <code>ReactiveEntities</code> for the given database 
+	 * that reads and writes messages through <code>messageCache</code>.
+	 * 
+	 * @param database     the database of the website
+	 * @param messageCache the cache of the newest messages of each chat, or
+	 * 					   null to always read them from the database
+	 */
+	public ReactiveEntities(MongoDatabase database, MessageCache messageCache) {
+		
+		this.messageCache = messageCache;
+		patients = new ReactiveRepository(database, "patients");
+		therapists = new ReactiveRepository(database, "therapists");
+		requests = new ReactiveRepository(database, "requests");
+		chats = new ReactiveRepository(database, "chats");
+		messages = new ReactiveRepository(database, "messages");
+		
+	}
+	
+	/**
+	 * 
+	 * @param patientId the <code>_id</code> field of the patient
+	 * @return          a future of the <code>Document</code> of the patient's
+	 * 					chat, or of null if the patient does not have one
+	 */
+	public CompletableFuture<Document> getChatOfPatient(ObjectId patientId) {
+		
+		return patients.load(patientId).thenCompose(patient -> {
+			
+			ObjectId chatId = patient.getObjectId("chat_id");
+			
+			if(chatId == null) {
+				return CompletableFuture.completedFuture(null);
+			}
+			
+			return chats.load(chatId);
+			
+		});
+		
+	}
+	
+	/**
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @return       a future of the <code>Document</code> of the chat
+	 */
+	public CompletableFuture<Document> getChat(ObjectId chatId) {
+		return chats.load(chatId);
+	}
+	
+	/**
+	 * Inserts a new message into a chat, then updates the summary of the 
+	 * chat in the same way as <code>Message</code>.
+	 * 
+	 * The message is added to the <code>MessageCache</code> as soon as it has
+	 * been inserted, and the returned future completes without waiting for 
+	 * the summary, so that a failed summary update cannot leave a stored 
+	 * message out of the cache or the open streams of the chat. Such a 
+	 * failure is logged instead.
+	 * 
+	 * @param chat            the <code>Document</code> of the chat
+	 * @param senderIsPatient <code>true</code> if the patient sent the 
+	 * 						  message
+	 * @param content         the textual content of the message
+	 * @return                a future of the <code>Document</code> of the new
+	 * 						  message, which completes once it has been 
+	 * 						  inserted
+	 */
+	public CompletableFuture<Document> addMessage(Document chat, boolean senderIsPatient, String content) {
+		
+		Date sentAt = new Date();
+		Document message = new Document("chat_id", chat.getObjectId("_id"))
+				.append("patient_id", chat.getObjectId("patient_id"))
+				.append("therapist_id", chat.getObjectId("therapist_id"))
+				.append("sender_is_patient", senderIsPatient)
+				.append("content", content);
+		
+		return messages.insert(message).thenApply(id -> {
+			
+			if(messageCache != null) {
+				messageCache.add(message);
+			}
+			
+			chats.update(chat.getObjectId("_id"), Chat.messageAddedUpdate(senderIsPatient, content, sentAt))
+					.whenComplete((updatedChat, throwable) -> {
+						
+						if(throwable != null) {
+							LOGGER.log(Level.WARNING, "The summary of chat " + chat.getObjectId("_id").toHexString()
+									+ " was not updated for message " + id.toHexString(), throwable);
+						}
+						
+					});
+			
+			return message;
+			
+		});
+		
+	}
+	
+	/**
+	 * Reads the newest messages of a chat that were inserted before the 
+	 * message with the <code>_id</code> field <code>cursor</code>.
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param cursor the <code>_id</code> field to read before, or null to 
+	 * 				 read the newest messages
+	 * @param limit  the maximum number of messages
+	 * @return       a future of the messages, oldest first
+	 */
+	public CompletableFuture<List<Document>> getMessagesBefore(ObjectId chatId, ObjectId cursor, int limit) {
+		
+		if(messageCache != null && cursor == null) {
+			
+			List<Document> cached = messageCache.getNewest(chatId, limit);
+			if(cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+			
+			if(limit <= messageCache.getMessagesPerChat()) {
+				
+				long load = messageCache.startLoading(chatId);
+				if(load != 0) {
+					return loadMessages(chatId, load, limit);
+				}
+				
+			}
+			
+		}
+		
+		Bson filter = eq("chat_id", chatId);
+		if(cursor != null) {
+			filter = and(filter, lt("_id", cursor));
+		}
+		
+		return messages.find(filter, Sorts.descending("_id"), limit).thenApply(docs -> {
+			Collections.reverse(docs);
+			return docs;
+		});
+		
+	}
+	
+	/**
+	 * Reads the newest messages of a chat into the <code>MessageCache</code>.
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param load   the load number returned by 
+	 * 				 <code>MessageCache.startLoading</code>
+	 * @param limit  the maximum number of messages to return
+	 * @return       a future of the newest <code>limit</code> messages, 
+	 * 				 oldest first
+	 */
+	private CompletableFuture<List<Document>> loadMessages(ObjectId chatId, long load, int limit) {
+		
+		return messages.find(eq("chat_id", chatId), Sorts.descending("_id"), messageCache.getMessagesPerChat())
+				.handle((docs, throwable) -> {
+					
+					if(throwable != null) {
+						messageCache.cancelLoading(chatId, load);
+						throw throwable instanceof CompletionException 
+								? (CompletionException)throwable : new CompletionException(throwable);
+					}
+					
+					Collections.reverse(docs);
+					messageCache.finishLoading(chatId, load, docs);
+					return new ArrayList<>(docs.subList(Math.max(docs.size() - limit, 0), docs.size()));
+					
+				});
+		
+	}
+	
+	/**
+	 * Reads the oldest messages of a chat that were inserted after the 
+	 * message with the <code>_id</code> field <code>cursor</code>.
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param cursor the <code>_id</code> field to read after, or null to read
+	 * 				 from the first message
+	 * @param limit  the maximum number of messages
+	 * @return       a future of the messages, oldest first
+	 */
+	public CompletableFuture<List<Document>> getMessagesAfter(ObjectId chatId, ObjectId cursor, int limit) {
+		
+		if(messageCache != null && cursor != null) {
+			
+			List<Document> cached = messageCache.getAfter(chatId, cursor, limit);
+			if(cached != null) {
+				return CompletableFuture.completedFuture(cached);
+			}
+			
+		}
+		
+		Bson filter = eq("chat_id", chatId);
+		if(cursor != null) {
+			filter = and(filter, gt("_id", cursor));
+		}
+		
+		return messages.find(filter, Sorts.ascending("_id"), limit);
+		
+	}
+	
+	/**
+	 * Creates a request from a patient to a therapist, and adds it to both of
+	 * them. This does the same as creating a <code>Request</code> and passing 
+	 * it to <code>Therapist.addRequest</code> and 
+	 * <code>Patient.addRequest</code>.
+	 * 
+	 * The request is added to the therapist first, so that it only reaches 
+	 * the patient once a place has been reserved for it. If the therapist 
+	 * has no places left, the request is deleted again.
+	 * 
+	 * @param patientId   the <code>_id</code> field of the patient
+	 * @param therapistId the <code>_id</code> field of the therapist
+	 * @return            a future of the <code>_id</code> field of the new 
+	 * 					  request
+	 */
+	public CompletableFuture<ObjectId> addRequest(ObjectId patientId, ObjectId therapistId) {
+		
+		Document request = new Document("patient_id", patientId).append("therapist_id", therapistId);
+		
+		return requests.insert(request)
+				.exceptionally(throwable -> {
+					
+					Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+					if(cause instanceof MongoWriteException && ((MongoWriteException)cause).getCode() == 11000) {
+						throw new IllegalStateException("A request from this patient to this therapist "
+								+ "already exists");
+					}
+					
+					throw new CompletionException(cause);
+					
+				})
+				.thenCompose(requestId -> addRequestToTherapist(therapistId, requestId)
+						.handle((done, throwable) -> throwable)
+						.thenCompose(throwable -> {
+							
+							if(throwable != null) {
+								return deleteRequest(requestId, throwable);
+							}
+							
+							return patients.push(patientId, "request_ids", requestId)
+									.thenApply(done -> requestId);
+							
+						}));
+		
+	}
+	
+	/**
+	 * Deletes a request that could not be added to its therapist.
+	 * 
+	 * @param requestId the <code>_id</code> field of the request
+	 * @param throwable the reason the request could not be added
+	 * @return          a future that fails with <code>throwable</code> once
+	 * 					the request has been deleted
+	 */
+	private CompletableFuture<ObjectId> deleteRequest(ObjectId requestId, Throwable throwable) {
+		
+		return requests.delete(requestId).handle((done, e) -> {
+			throw throwable instanceof CompletionException 
+					? (CompletionException)throwable : new CompletionException(throwable);
+		});
+		
+	}
+	
+	/**
+	 * Accepts a request. This does the same as <code>Request.accept</code>,
+	 * and can also be called again to finish a request whose acceptance was
+	 * stopped partway through.
+	 * 
+	 * @param requestId the <code>_id</code> field of the request
+	 * @param byPatient <code>true</code> if the patient is accepting the 
+	 * 					request, or <code>false</code> if the therapist is
+	 * @return          a future that completes when the request has been 
+	 * 					accepted
+	 */
+	public CompletableFuture<Void> acceptRequest(ObjectId requestId, boolean byPatient) {
+		
+		if(!byPatient) {
+			
+			return requests.updateIf(requestId, ne("patient_accepted", true), 
+					Updates.set("therapist_accepted", true))
+					.thenAccept(request -> {
+						
+						if(request == null) {
+							throw new IllegalStateException("Therapist must accept first before patient");
+						}
+						
+					});
+			
+		}
+		
+		return requests.updateIf(requestId, eq("therapist_accepted", true), 
+				Updates.set("patient_accepted", true))
+				.thenCompose(request -> {
+					
+					if(request == null) {
+						throw new IllegalStateException("Therapist must accept first before patient");
+					}
+					
+					ObjectId patientId = request.getObjectId("patient_id");
+					ObjectId therapistId = request.getObjectId("therapist_id");
+					
+					return createChat(request)
+							.thenCompose(chatId -> patients.update(patientId, 
+									Request.patientAcceptedUpdate(therapistId, chatId, requestId))
+									.thenCompose(done -> therapists.updateIf(therapistId, 
+											eq("request_ids", requestId), 
+											Request.therapistAcceptedUpdate(patientId, chatId, requestId))))
+							.thenAccept(therapist -> {
+								
+								if(therapist != null) {
+									Therapist.fireChanged(therapist);
+								}
+								
+							})
+							.thenCompose(done -> requests.delete(requestId));
+					
+				});
+		
+	}
+	
+	/**
+	 * Creates the chat of an accepted request. This does the same as 
+	 * <code>Request.createChat</code>.
+	 * 
+	 * @param request the <code>Document</code> of the accepted request
+	 * @return        a future of the <code>_id</code> field of the chat
+	 */
+	private CompletableFuture<ObjectId> createChat(Document request) {
+		
+		return patients.load(request.getObjectId("patient_id")).thenCompose(patient -> {
+			
+			Document chat = Request.newChat(request, patient);
+			return chats.insertIfAbsent(chat).thenCompose(inserted -> {
+				
+				if(inserted) {
+					return CompletableFuture.completedFuture(chat.getObjectId("_id"));
+				}
+				
+				//The chat was created by an earlier attempt
+				return chats.find(and(eq("patient_id", request.getObjectId("patient_id")), 
+						eq("therapist_id", request.getObjectId("therapist_id"))), null, 1)
+						.thenApply(found -> found.get(0).getObjectId("_id"));
+				
+			});
+			
+		});
+		
+	}
+	
+	/**
+	 * Adds a request to a therapist if it would not exceed the therapist's 
+	 * <code>patient_limit</code>. This does the same as 
+	 * <code>Therapist.addRequest</code>, checking the counters and adding 
+	 * the request in one conditional update.
+	 * 
+	 * @param therapistId the <code>_id</code> field of the therapist
+	 * @param requestId   the <code>_id</code> field of the request
+	 * @return            a future that completes when the request has been 
+	 * 					  added
+	 */
+	private CompletableFuture<Void> addRequestToTherapist(ObjectId therapistId, ObjectId requestId) {
+		
+		return therapists.updateIf(therapistId, Therapist.hasCapacity(), Therapist.addRequestUpdate(requestId))
+				.thenCompose(therapist -> {
+					
+					if(therapist != null) {
+						return closeIfFull(therapistId, therapist);
+					}
+					
+					return therapists.load(therapistId).thenApply(unchanged -> {
+						
+						if(unchanged == null || unchanged.getInteger("patient_limit", 0) == 0) {
+							throw new IllegalStateException("A request limit must be set before adding requests");
+						}
+						throw new IllegalStateException("Number of requests and patients will exceed the patient limit");
+						
+					});
+					
+				})
+				.thenAccept(Therapist::fireChanged);
+		
+	}
+	
+	/**
+	 * Sets <code>can_receive_requests</code> to false if the therapist has 
+	 * no places left.
+	 * 
+	 * @param therapistId the <code>_id</code> field of the therapist
+	 * @param therapist   the <code>Document</code> of the therapist after 
+	 * 					  its last update
+	 * @return            a future of the latest <code>Document</code> of the
+	 * 					  therapist
+	 */
+	private CompletableFuture<Document> closeIfFull(ObjectId therapistId, Document therapist) {
+		
+		return therapists.updateIf(therapistId, Therapist.isFullAndOpen(), 
+				Updates.set("can_receive_requests", false))
+				.thenApply(closed -> closed == null ? therapist : closed);
+		
+	}
+	
+}
@@ -0,0 +1,280 @@
+package com.therapy.entities.reactive;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+import com.therapy.storage.DuplicateKeyException;
+
+/**
+ * This class performs the basic operations of the <code>Entity</code> class
+ * on one collection without blocking. Every operation returns a 
+ * <code>CompletableFuture</code> that is completed by the Reactive Streams 
+ * driver once the database has answered.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class ReactiveRepository {
+
+	private final MongoCollection<Document> collection;
+	
+	/**
+	 * Creates a new <code>ReactiveRepository</code> for a collection.
+	 * 
+	 * @param database       the database the collection belongs to
+	 * @param collectionName the name of the collection
+	 */
+	public ReactiveRepository(MongoDatabase database, String collectionName) {
+		this.collection = database.getCollection(collectionName);
+	}
+	
+	/**
+	 * 
+	 * @return the collection of this <code>ReactiveRepository</code>
+	 */
+	public MongoCollection<Document> getCollection() {
+		return collection;
+	}
+	
+	/**
+	 * Loads the <code>Document</code> with the given <code>_id</code> field.
+	 * The future fails with an <code>IllegalStateException</code> if there is
+	 * no such <code>Document</code>.
+	 * 
+	 * @param id the <code>_id</code> field of the <code>Document</code>
+	 * @return   a future of the <code>Document</code>
+	 */
+	public CompletableFuture<Document> load(ObjectId id) {
+		
+		return Publishers.first(collection.find(eq(id)).first()).thenApply(doc -> {
+			
+			if(doc == null) {
+				throw new IllegalStateException("Document could not be found");
+			}
+			
+			return doc;
+			
+		});
+		
+	}
+	
+	/**
+	 * Loads the <code>Document</code> objects with the given 
+	 * <code>_id</code> fields using a single query.
+	 * 
+	 * @param ids the <code>_id</code> fields of the <code>Document</code> 
+	 * 			  objects
+	 * @return    a future of the <code>Document</code> objects, in the same 
+	 * 			  order as <code>ids</code>, skipping the ones that do not 
+	 * 			  exist
+	 */
+	public CompletableFuture<List<Document>> loadAll(List<ObjectId> ids) {
+		
+		return Publishers.toList(collection.find(in("_id", ids))).thenApply(docs -> {
+			
+			//Index the Documents by their _id field, as $in does not keep the order
+			Map<ObjectId, Document> docsById = new HashMap<>();
+			for(Document doc : docs) {
+				docsById.put(doc.getObjectId("_id"), doc);
+			}
+			
+			return ids.stream()
+					.map(docsById::get)
+					.filter(Objects::nonNull)
+					.collect(Collectors.toList());
+			
+		});
+		
+	}
+	
+	/**
+	 * 
+	 * @param filter the filter of the query
+	 * @param sort   the order of the results
+	 * @param limit  the maximum number of results, or 0 for no limit
+	 * @return       a future of the matching <code>Document</code> objects
+	 */
+	public CompletableFuture<List<Document>> find(Bson filter, Bson sort, int limit) {
+		return Publishers.toList(collection.find(filter).sort(sort).limit(limit));
+	}
+	
+	/**
+	 * Inserts <code>fields</code> as a new <code>Document</code> with a 
+	 * unique <code>_id</code> field, using a single <code>insertOne</code>.
+	 * If the generated <code>_id</code> already exists, the insert is retried
+	 * with a new one. Any other error, including a duplicate key on another 
+	 * unique index, fails the future.
+	 * 
+	 * @param fields the fields of the new <code>Document</code>, excluding 
+	 * 				 <code>_id</code>
+	 * @return       a future of the <code>_id</code> field of the new 
+	 * 				 <code>Document</code>
+	 */
+	public CompletableFuture<ObjectId> insert(Document fields) {
+		
+		ObjectId id = ObjectId.get();
+		fields.put("_id", id);
+		
+		return Publishers.done(collection.insertOne(fields))
+				.handle((result, throwable) -> {
+					
+					if(throwable == null) {
+						return CompletableFuture.completedFuture(id);
+					}
+					
+					Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+					if(cause instanceof MongoWriteException && isDuplicateId((MongoWriteException)cause)) {
+						return insert(fields);
+					}
+					
+					CompletableFuture<ObjectId> failed = new CompletableFuture<>();
+					failed.completeExceptionally(cause);
+					return failed;
+					
+				})
+				.thenCompose(future -> future);
+		
+	}
+	
+	/**
+	 * Inserts <code>document</code>, which already has its <code>_id</code>
+	 * field, unless it would duplicate the value of a unique index.
+	 * 
+	 * @param document the <code>Document</code> to insert
+	 * @return         a future of <code>true</code> if the 
+	 * 				   <code>Document</code> was inserted, or of 
+	 * 				   <code>false</code> if it already existed
+	 */
+	public CompletableFuture<Boolean> insertIfAbsent(Document document) {
+		
+		return Publishers.done(collection.insertOne(document))
+				.handle((result, throwable) -> {
+					
+					if(throwable == null) {
+						return true;
+					}
+					
+					Throwable cause = throwable instanceof CompletionException ? throwable.getCause() : throwable;
+					if(cause instanceof MongoWriteException && ((MongoWriteException)cause).getCode() == 11000) {
+						return false;
+					}
+					
+					throw new CompletionException(cause);
+					
+				});
+		
+	}
+	
+	/**
+	 * Applies <code>update</code> to the <code>Document</code> with the given
+	 * <code>_id</code> field.
+	 * 
+	 * @param id     the <code>_id</code> field of the <code>Document</code>
+	 * @param update the update to apply
+	 * @return       a future of the updated <code>Document</code>, or of null
+	 * 				 if it does not exist
+	 */
+	public CompletableFuture<Document> update(ObjectId id, Bson update) {
+		
+		return Publishers.first(collection.findOneAndUpdate(eq(id), update, 
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)));
+		
+	}
+	
+	/**
+	 * Applies <code>update</code> to the <code>Document</code> with the given
+	 * <code>_id</code> field, only if it also matches <code>condition</code>.
+	 * The condition is checked and the update applied in one operation.
+	 * 
+	 * @param id        the <code>_id</code> field of the <code>Document</code>
+	 * @param condition the condition the <code>Document</code> must match
+	 * @param update    the update to apply
+	 * @return          a future of the updated <code>Document</code>, or of 
+	 * 					null if it does not exist or does not match 
+	 * 					<code>condition</code>
+	 */
+	public CompletableFuture<Document> updateIf(ObjectId id, Bson condition, Bson update) {
+		
+		return Publishers.first(collection.findOneAndUpdate(and(eq(id), condition), update, 
+				new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER)));
+		
+	}
+	
+	/**
+	 * Pushes <code>value</code> to the array <code>field</code>.
+	 * 
+	 * @param id    the <code>_id</code> field of the <code>Document</code>
+	 * @param field the name of the array
+	 * @param value the value to push
+	 * @return      a future that completes when the value has been pushed
+	 */
+	public CompletableFuture<Void> push(ObjectId id, String field, Object value) {
+		return Publishers.done(collection.updateOne(eq(id), Updates.push(field, value)));
+	}
+	
+	/**
+	 * Pulls <code>value</code> from the array <code>field</code>.
+	 * 
+	 * @param id    the <code>_id</code> field of the <code>Document</code>
+	 * @param field the name of the array
+	 * @param value the value to pull
+	 * @return      a future that completes when the value has been pulled
+	 */
+	public CompletableFuture<Void> pull(ObjectId id, String field, Object value) {
+		return Publishers.done(collection.updateOne(eq(id), Updates.pull(field, value)));
+	}
+	
+	/**
+	 * Sets <code>field</code> to <code>value</code>.
+	 * 
+	 * @param id    the <code>_id</code> field of the <code>Document</code>
+	 * @param field the name of the field
+	 * @param value the new value
+	 * @return      a future that completes when the value has been set
+	 */
+	public CompletableFuture<Void> set(ObjectId id, String field, Object value) {
+		return Publishers.done(collection.updateOne(eq(id), Updates.set(field, value)));
+	}
+	
+	/**
+	 * 
+	 * @param id the <code>_id</code> field of the <code>Document</code> to 
+	 * 			 delete
+	 * @return   a future that completes when the <code>Document</code> has 
+	 * 			 been deleted
+	 */
+	public CompletableFuture<Void> delete(ObjectId id) {
+		return Publishers.done(collection.deleteOne(eq(id)));
+	}
+	
+	/**
+	 * 
+	 * @param e the exception thrown by a write
+	 * @return  <code>true</code> if the write failed because its 
+	 * 			<code>_id</code> field already exists, rather than the fields
+	 * 			of another unique index
+	 */
+	private static boolean isDuplicateId(MongoWriteException e) {
+		return e.getCode() == 11000 && DuplicateKeyException.isIdIndex(e.getError().getMessage());
+	}
+	
+}
@@ -0,0 +1,199 @@
+package com.therapy.messaging;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.therapy.entities.Message;
+
+/**
+ * This class is a <code>MessageBus</code> that works across several servers. 
+ * Each server runs one thread that watches the <code>messages</code> 
+ * collection through a MongoDB change stream, and delivers every inserted
+ * <code>Message</code> to the listener of that server. Publishing does 
+ * nothing, as inserting the <code>Message</code> already published it.
+ * 
+ * The change stream returns inserts as soon as they are written, so 
+ * <code>Message</code> objects reach the other servers without any of them
+ * polling the database. If the change stream fails, it is reopened after the
+ * last change that was delivered, so no <code>Message</code> is lost.
+ * 
+ * Change streams require the database to be a replica set.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class ChangeStreamMessageBus implements MessageBus {
+
+	private static final Logger LOGGER = Logger.getLogger(ChangeStreamMessageBus.class.getName());
+	
+	private static final long RETRY_DELAY_MILLISECONDS = 1000;
+	private static final long MAX_AWAIT_MILLISECONDS = 1000;
+	
+	private final MongoDatabase database;
+	private volatile MessageListener listener;
+	private volatile MongoCursor<ChangeStreamDocument<Document>> cursor;
+	private volatile boolean running;
+	private Thread watcher;
+	
+	/**
+	 * Creates a new <code>ChangeStreamMessageBus</code> that watches the 
+	 * <code>messages</code> collection of <code>database</code>.
+	 * 
+	 * @param database the database of the web application
+	 */
+	public ChangeStreamMessageBus(MongoDatabase database) {
+		this.database = database;
+	}
+	
+	/**
+	 * Starts the thread that watches the <code>messages</code> collection.
+	 */
+	@Override
+	public synchronized void start(MessageListener listener) {
+		
+		if(running) {
+			throw new IllegalStateException("The message bus has already been started");
+		}
+		
+		this.listener = listener;
+		running = true;
+		
+		watcher = new Thread(this::watch, "message-change-stream");
+		watcher.setDaemon(true);
+		watcher.start();
+		
+	}
+	
+	/**
+	 * Does nothing, as every server already receives the insert of 
+	 * <code>message</code> from its change stream.
+	 */
+	@Override
+	public void publish(ObjectId chatId, Message message) {
+		
+	}
+	
+	/**
+	 * Stops the watching thread and closes the change stream.
+	 */
+	@Override
+	public synchronized void close() {
+		
+		running = false;
+		
+		MongoCursor<ChangeStreamDocument<Document>> cursor = this.cursor;
+		if(cursor != null) {
+			try {
+				cursor.close();
+			} catch(MongoException e) {
+				//The cursor is being closed because the bus is shutting down
+			}
+		}
+		
+		if(watcher != null) {
+			watcher.interrupt();
+		}
+		
+	}
+	
+	/**
+	 * Reads the change stream until the bus is closed, reopening it after 
+	 * any error.
+	 */
+	private void watch() {
+		
+		List<Bson> pipeline = Collections.singletonList(
+				Aggregates.match(Filters.eq("operationType", "insert")));
+		
+		BsonDocument resumeToken = null;
+		while(running) {
+			
+			try {
+				
+				cursor = (resumeToken == null 
+						? database.getCollection("messages").watch(pipeline)
+						: database.getCollection("messages").watch(pipeline).resumeAfter(resumeToken))
+						.maxAwaitTime(MAX_AWAIT_MILLISECONDS, TimeUnit.MILLISECONDS)
+						.iterator();
+				
+				while(running) {
+					
+					ChangeStreamDocument<Document> change = cursor.tryNext();
+					if(change == null) {
+						continue;
+					}
+					
+					resumeToken = change.getResumeToken();
+					deliver(change.getFullDocument());
+					
+				}
+				
+			} catch(MongoException | IllegalStateException e) {
+				
+				if(running) {
+					
+					LOGGER.log(Level.WARNING, "The change stream of the messages collection failed "
+							+ "and will be reopened", e);
+					
+					try {
+						Thread.sleep(RETRY_DELAY_MILLISECONDS);
+					} catch(InterruptedException interrupted) {
+						return;
+					}
+					
+				}
+				
+			} finally {
+				
+				MongoCursor<ChangeStreamDocument<Document>> cursor = this.cursor;
+				if(cursor != null) {
+					try {
+						cursor.close();
+					} catch(MongoException e) {
+						//The cursor is already unusable
+					}
+				}
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Delivers an inserted <code>Message</code> to the listener.
+	 * 
+	 * @param doc the <code>Document</code> of the <code>Message</code>
+	 */
+	private void deliver(Document doc) {
+		
+		ObjectId chatId = doc == null ? null : doc.getObjectId("chat_id");
+		MessageListener listener = this.listener;
+		
+		if(chatId != null && listener != null) {
+			
+			try {
+				listener.onMessage(chatId, new Message(doc, database));
+			} catch(RuntimeException e) {
+				LOGGER.log(Level.WARNING, "A message could not be delivered", e);
+			}
+			
+		}
+		
+	}
+	
+}
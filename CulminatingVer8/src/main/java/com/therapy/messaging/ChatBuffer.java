@@ -0,0 +1,235 @@
+package com.therapy.messaging;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * This class is a ring buffer of the newest <code>Message</code> documents
+ * of one chat, in order of their <code>_id</code> fields. When it is full, 
+ * adding a message overwrites the oldest one. It is used by 
+ * <code>MessageCache</code>, which synchronizes on it.
+ * 
+ * The buffer always holds the newest messages of the chat without gaps, 
+ * from its oldest message to the newest one. If it has never dropped a 
+ * message and was loaded with fewer messages than it can hold, it holds the
+ * whole chat and is <code>complete</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class ChatBuffer {
+
+	/**
+	 * A rough estimate of the memory used by one message document, not
+	 * counting its content.
+	 */
+	static final int MESSAGE_OVERHEAD_BYTES = 320;
+	
+	private final Document[] ring;
+	private final long load;
+	private int start;
+	private int size;
+	private long bytes;
+	private boolean loaded;
+	private boolean complete;
+	private boolean evicted;
+	
+	/**
+	 * Creates an empty buffer that is waiting to be loaded.
+	 * 
+	 * @param capacity the number of messages the buffer can hold
+	 * @param load     the number of the load that will fill it
+	 */
+	ChatBuffer(int capacity, long load) {
+		
+		ring = new Document[capacity];
+		this.load = load;
+		
+	}
+	
+	/**
+	 * Adds the newest messages of the chat, read from the database, to the 
+	 * messages added while they were being read.
+	 * 
+	 * @param newest   the newest messages, oldest first
+	 * @param complete <code>true</code> if they are all the messages of the
+	 * 				   chat
+	 */
+	void load(List<Document> newest, boolean complete) {
+		
+		this.complete = complete;
+		for(Document message : newest) {
+			add(message);
+		}
+		loaded = true;
+		
+	}
+	
+	/**
+	 * Adds a message in order of its <code>_id</code> field. A message that 
+	 * is already in the buffer, or that is older than every message in a 
+	 * full buffer, is not added.
+	 * 
+	 * @param message the message to add
+	 * @return        the change to the estimated memory used by the buffer,
+	 * 				  in bytes
+	 */
+	long add(Document message) {
+		
+		ObjectId id = message.getObjectId("_id");
+		
+		//Find where the message goes, which is nearly always at the end
+		int position = size;
+		while(position > 0) {
+			
+			int comparison = get(position - 1).getObjectId("_id").compareTo(id);
+			if(comparison == 0) {
+				return 0;
+			} else if(comparison < 0) {
+				break;
+			}
+			position--;
+			
+		}
+		
+		long change = 0;
+		if(size == ring.length) {
+			
+			if(position == 0) {
+				return 0;
+			}
+			
+			change -= estimateBytes(ring[start]);
+			ring[start] = null;
+			start = (start + 1) % ring.length;
+			size--;
+			position--;
+			complete = false;
+			
+		}
+		
+		for(int i = size; i > position; i--) {
+			ring[(start + i) % ring.length] = get(i - 1);
+		}
+		ring[(start + position) % ring.length] = message;
+		size++;
+		
+		change += estimateBytes(message);
+		bytes += change;
+		return change;
+		
+	}
+	
+	/**
+	 * 
+	 * @param limit the maximum number of messages
+	 * @return      the newest messages, oldest first, or null if the buffer
+	 * 				does not hold enough of them
+	 */
+	List<Document> getNewest(int limit) {
+		
+		if(!loaded || (size < limit && !complete)) {
+			return null;
+		}
+		
+		return copy(Math.max(size - limit, 0), size);
+		
+	}
+	
+	/**
+	 * 
+	 * @param cursor the <code>_id</code> field to read after
+	 * @param limit  the maximum number of messages
+	 * @return       the oldest messages newer than <code>cursor</code>, or 
+	 * 				 null if the buffer may not hold all of them
+	 */
+	List<Document> getAfter(ObjectId cursor, int limit) {
+		
+		if(!loaded || (!complete && (size == 0 || get(0).getObjectId("_id").compareTo(cursor) > 0))) {
+			return null;
+		}
+		
+		//Find the first message after the cursor, which is nearly always near the end
+		int first = size;
+		while(first > 0 && get(first - 1).getObjectId("_id").compareTo(cursor) > 0) {
+			first--;
+		}
+		
+		return copy(first, Math.min(first + limit, size));
+		
+	}
+	
+	/**
+	 * 
+	 * @return the estimated memory used by the buffer, in bytes
+	 */
+	long getBytes() {
+		return bytes;
+	}
+	
+	/**
+	 * 
+	 * @return the number of the load that fills the buffer
+	 */
+	long getLoad() {
+		return load;
+	}
+	
+	/**
+	 * 
+	 * @return <code>true</code> if the buffer was removed from the cache
+	 */
+	boolean isEvicted() {
+		return evicted;
+	}
+	
+	/**
+	 * Marks the buffer as removed from the cache, so that nothing more is 
+	 * added to it.
+	 */
+	void evict() {
+		evicted = true;
+	}
+	
+	/**
+	 * 
+	 * @param index the position of a message, where 0 is the oldest
+	 * @return      the message
+	 */
+	private Document get(int index) {
+		return ring[(start + index) % ring.length];
+	}
+	
+	/**
+	 * 
+	 * @param from the position of the first message to copy
+	 * @param to   the position after the last message to copy
+	 * @return     the messages, oldest first
+	 */
+	private List<Document> copy(int from, int to) {
+		
+		List<Document> messages = new ArrayList<>(to - from);
+		for(int i = from; i < to; i++) {
+			messages.add(get(i));
+		}
+		
+		return messages;
+		
+	}
+	
+	/**
+	 * 
+	 * @param message a message document
+	 * @return        an estimate of the memory it uses, in bytes
+	 */
+	static long estimateBytes(Document message) {
+		
+		String content = message.getString("content");
+		return MESSAGE_OVERHEAD_BYTES + (content == null ? 0 : 2L * content.length());
+		
+	}
+	
+}
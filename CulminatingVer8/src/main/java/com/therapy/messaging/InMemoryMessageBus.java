@@ -0,0 +1,42 @@
+package com.therapy.messaging;
+
+import org.bson.types.ObjectId;
+
+import com.therapy.entities.Message;
+
+/**
+ * This class is a <code>MessageBus</code> that delivers <code>Message</code>
+ * objects straight to the listener of this server, on the thread that 
+ * published them. It only works when the web application runs on a single
+ * server, as <code>Message</code> objects added on other servers are never 
+ * delivered.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class InMemoryMessageBus implements MessageBus {
+
+	private volatile MessageListener listener;
+	
+	@Override
+	public void start(MessageListener listener) {
+		this.listener = listener;
+	}
+	
+	@Override
+	public void publish(ObjectId chatId, Message message) {
+		
+		MessageListener listener = this.listener;
+		
+		if(listener != null) {
+			listener.onMessage(chatId, message);
+		}
+		
+	}
+	
+	@Override
+	public void close() {
+		listener = null;
+	}
+	
+}
@@ -0,0 +1,44 @@
+package com.therapy.messaging;
+
+import org.bson.types.ObjectId;
+
+import com.therapy.entities.Message;
+
+/**
+ * This interface represents the way new <code>Message</code> objects reach 
+ * the users of a <code>Chat</code> that are connected to this server.
+ * 
+ * A <code>Message</code> is published once by the server that added it. The
+ * <code>MessageBus</code> then delivers it to the <code>MessageListener</code>
+ * of every server it is running on, which sends it to that server's 
+ * connected users.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public interface MessageBus {
+	
+	/**
+	 * Starts delivering published <code>Message</code> objects to 
+	 * <code>listener</code>.
+	 * 
+	 * @param listener the listener of this server
+	 */
+	void start(MessageListener listener);
+	
+	/**
+	 * Publishes a <code>Message</code> that was just added to a 
+	 * <code>Chat</code>.
+	 * 
+	 * @param chatId  the <code>_id</code> field of the <code>Chat</code>
+	 * @param message the new <code>Message</code>
+	 */
+	void publish(ObjectId chatId, Message message);
+	
+	/**
+	 * Stops delivering <code>Message</code> objects and releases any 
+	 * resources held by this <code>MessageBus</code>.
+	 */
+	void close();
+	
+}
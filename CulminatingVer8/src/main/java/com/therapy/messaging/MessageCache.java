@@ -0,0 +1,452 @@
+package com.therapy.messaging;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * This class keeps the newest <code>Message</code> documents of the chats 
+ * that are in use in memory, so that the messages shown when a chat is 
+ * opened, and the new messages a browser polls for, are read without 
+ * querying the database.
+ * 
+ * Each chat has a <code>ChatBuffer</code> of its newest 
+ * <code>messageCache.messagesPerChat</code> messages. A chat is loaded the 
+ * first time its newest messages are read, and new messages are written 
+ * through to it with <code>add</code> once they are in the database. 
+ * Messages added while a chat is being loaded are kept, so none are lost 
+ * between the read and the load.
+ * 
+ * The estimated memory used by all the chats is kept under 
+ * <code>messageCache.maxBytes</code> bytes by removing the chats that were
+ * used least recently. Setting it to 0 turns the cache off.
+ * 
+ * It is a <code>ServletContextListener</code> that must be declared before
+ * <code>ChatStreamRegistry</code> in web.xml. The instance is stored in the 
+ * <code>ServletContext</code> and retrieved with <code>get</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class MessageCache implements ServletContextListener {
+
+	private static final String ATTRIBUTE_NAME = MessageCache.class.getName();
+	private static final Logger LOGGER = Logger.getLogger(MessageCache.class.getName());
+	
+	/**
+	 * The chats, from the least to the most recently used.
+	 */
+	private final Map<ObjectId, ChatBuffer> buffers = new LinkedHashMap<>(16, 0.75f, true);
+	
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	
+	private int messagesPerChat;
+	private long maxBytes;
+	
+	/**
+	 * Creates a <code>MessageCache</code> that is configured when the web 
+	 * application starts.
+	 */
+	public MessageCache() {
+		
+	}
+	
+	/**
+	 * Creates a <code>MessageCache</code> for use outside of a web 
+	 * application.
+	 * 
+	 * @param messagesPerChat the number of messages kept for each chat
+	 * @param maxBytes        the most memory the cache may use, in bytes
+	 */
+	public MessageCache(int messagesPerChat, long maxBytes) {
+		
+		this.messagesPerChat = messagesPerChat;
+		this.maxBytes = maxBytes;
+		
+	}
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>MessageCache</code> of the web application
+	 */
+	public static MessageCache get(ServletContext context) {
+		return (MessageCache)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Reads the configuration and stores this <code>MessageCache</code> in 
+	 * the <code>ServletContext</code>.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		ServletContext context = event.getServletContext();
+		messagesPerChat = (int)getLong(context, "messageCache.messagesPerChat", 100);
+		maxBytes = getLong(context, "messageCache.maxBytes", 64L * 1024 * 1024);
+		
+		LOGGER.info("The message cache keeps " + messagesPerChat + " messages per chat in up to " 
+				+ maxBytes / 1024 + " KB");
+		
+		context.setAttribute(ATTRIBUTE_NAME, this);
+		
+	}
+	
+	/**
+	 * Empties the cache.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+		synchronized(buffers) {
+			buffers.clear();
+		}
+		bytes.set(0);
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of messages kept for each chat, which is how many 
+	 * 		   should be read to load a chat
+	 */
+	public int getMessagesPerChat() {
+		return messagesPerChat;
+	}
+	
+	/**
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param limit  the maximum number of messages
+	 * @return       the newest messages of the chat, oldest first, or null 
+	 * 				 if they are not in the cache
+	 */
+	public List<Document> getNewest(ObjectId chatId, int limit) {
+		
+		ChatBuffer buffer = find(chatId);
+		List<Document> messages = null;
+		
+		if(buffer != null) {
+			synchronized(buffer) {
+				messages = buffer.getNewest(limit);
+			}
+		}
+		
+		count(messages);
+		return messages;
+		
+	}
+	
+	/**
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param cursor the <code>_id</code> field to read after
+	 * @param limit  the maximum number of messages
+	 * @return       the oldest messages of the chat that are newer than 
+	 * 				 <code>cursor</code>, or null if they are not in the cache
+	 */
+	public List<Document> getAfter(ObjectId chatId, ObjectId cursor, int limit) {
+		
+		ChatBuffer buffer = find(chatId);
+		List<Document> messages = null;
+		
+		if(buffer != null) {
+			synchronized(buffer) {
+				messages = buffer.getAfter(cursor, limit);
+			}
+		}
+		
+		count(messages);
+		return messages;
+		
+	}
+	
+	/**
+	 * Starts loading a chat. If this returns a load number, the caller must
+	 * read the newest <code>getMessagesPerChat()</code> messages of the chat
+	 * after this call, then pass them to <code>finishLoading</code> with the
+	 * load number, or call <code>cancelLoading</code> if they could not be 
+	 * read.
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @return       the load number, or 0 if the chat should not be loaded 
+	 * 				 because the cache is off or the chat is already loaded 
+	 * 				 or being loaded
+	 */
+	public long startLoading(ObjectId chatId) {
+		
+		if(maxBytes <= 0) {
+			return 0;
+		}
+		
+		synchronized(buffers) {
+			
+			if(buffers.containsKey(chatId)) {
+				return 0;
+			}
+			
+			long load = loads.incrementAndGet();
+			buffers.put(chatId, new ChatBuffer(messagesPerChat, load));
+			return load;
+			
+		}
+		
+	}
+	
+	/**
+	 * Loads a chat with its newest messages. If the chat was removed from 
+	 * the cache since the load started, nothing is loaded.
+	 * 
+	 * @param chatId   the <code>_id</code> field of the chat
+	 * @param load     the load number returned by <code>startLoading</code>
+	 * @param messages the newest <code>getMessagesPerChat()</code> messages 
+	 * 				   of the chat, oldest first
+	 */
+	public void finishLoading(ObjectId chatId, long load, List<Document> messages) {
+		
+		ChatBuffer buffer = find(chatId);
+		
+		if(buffer != null) {
+			synchronized(buffer) {
+				
+				if(buffer.getLoad() == load && !buffer.isEvicted()) {
+					long before = buffer.getBytes();
+					buffer.load(messages, messages.size() < messagesPerChat);
+					bytes.addAndGet(buffer.getBytes() - before);
+				}
+				
+			}
+		}
+		
+		evictIfNeeded();
+		
+	}
+	
+	/**
+	 * Stops loading a chat whose messages could not be read.
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param load   the load number returned by <code>startLoading</code>
+	 */
+	public void cancelLoading(ObjectId chatId, long load) {
+		
+		synchronized(buffers) {
+			
+			ChatBuffer buffer = buffers.get(chatId);
+			if(buffer != null && buffer.getLoad() == load) {
+				remove(chatId, buffer);
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Writes a new message through to the cache. This must be called after 
+	 * the message is in the database. Chats that are not in the cache are 
+	 * left out.
+	 * 
+	 * @param message the <code>Document</code> of the message, with its 
+	 * 				  <code>_id</code> and <code>chat_id</code> fields
+	 */
+	public void add(Document message) {
+		
+		ChatBuffer buffer;
+		synchronized(buffers) {
+			buffer = buffers.get(message.getObjectId("chat_id"));
+		}
+		
+		if(buffer == null) {
+			return;
+		}
+		
+		synchronized(buffer) {
+			
+			if(buffer.isEvicted()) {
+				return;
+			}
+			bytes.addAndGet(buffer.add(message));
+			
+		}
+		
+		evictIfNeeded();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of reads answered by the cache
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	/**
+	 * 
+	 * @return the number of reads that had to query the database
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	/**
+	 * 
+	 * @return the number of chats removed to stay under the memory limit
+	 */
+	public long getEvictions() {
+		return evictions.sum();
+	}
+	
+	/**
+	 * 
+	 * @return the number of chats in the cache
+	 */
+	public int getChatCount() {
+		
+		synchronized(buffers) {
+			return buffers.size();
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @return the estimated memory used by the cache, in bytes
+	 */
+	public long getEstimatedBytes() {
+		return bytes.get();
+	}
+	
+	/**
+	 * 
+	 * @return the most memory the cache may use, in bytes
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+	
+	/**
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @return       the buffer of the chat, marked as the most recently 
+	 * 				 used, or null if it is not in the cache
+	 */
+	private ChatBuffer find(ObjectId chatId) {
+		
+		synchronized(buffers) {
+			return buffers.get(chatId);
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param messages the result of a read, or null if it missed
+	 */
+	private void count(List<Document> messages) {
+		
+		if(messages != null) {
+			hits.increment();
+		} else {
+			misses.increment();
+		}
+		
+	}
+	
+	/**
+	 * Removes the least recently used chats until the cache is under its 
+	 * memory limit.
+	 */
+	private void evictIfNeeded() {
+		
+		if(bytes.get() <= maxBytes) {
+			return;
+		}
+		
+		synchronized(buffers) {
+			
+			Iterator<Map.Entry<ObjectId, ChatBuffer>> iterator = buffers.entrySet().iterator();
+			while(bytes.get() > maxBytes && iterator.hasNext()) {
+				
+				ChatBuffer buffer = iterator.next().getValue();
+				iterator.remove();
+				evict(buffer);
+				evictions.increment();
+				
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Removes a chat from the cache. The caller must hold the lock on 
+	 * <code>buffers</code>.
+	 * 
+	 * @param chatId the <code>_id</code> field of the chat
+	 * @param buffer the buffer of the chat
+	 */
+	private void remove(ObjectId chatId, ChatBuffer buffer) {
+		
+		buffers.remove(chatId);
+		evict(buffer);
+		
+	}
+	
+	/**
+	 * Marks a buffer that was removed from the cache, and stops counting its
+	 * memory.
+	 * 
+	 * @param buffer the removed buffer
+	 */
+	private void evict(ChatBuffer buffer) {
+		
+		synchronized(buffer) {
+			buffer.evict();
+			bytes.addAndGet(-buffer.getBytes());
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param context      the <code>ServletContext</code> of the web 
+	 * 					   application
+	 * @param name         the name of the context parameter
+	 * @param defaultValue the value to use if the parameter is not set
+	 * @return             the value of the parameter
+	 */
+	private static long getLong(ServletContext context, String name, long defaultValue) {
+		
+		String value = context.getInitParameter(name);
+		
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		
+		try {
+			return Long.parseLong(value.trim());
+		} catch(NumberFormatException e) {
+			LOGGER.warning("The context parameter " + name + " must be a number, but was " + value);
+			return defaultValue;
+		}
+		
+	}
+	
+}
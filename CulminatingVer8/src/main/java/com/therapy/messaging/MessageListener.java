@@ -0,0 +1,27 @@
+package com.therapy.messaging;
+
+import org.bson.types.ObjectId;
+
+import com.therapy.entities.Message;
+
+/**
+ * This interface represents a receiver of the <code>Message</code> objects 
+ * delivered by a <code>MessageBus</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@FunctionalInterface
+public interface MessageListener {
+
+	/**
+	 * Called for every <code>Message</code> delivered by the 
+	 * <code>MessageBus</code>.
+	 * 
+	 * @param chatId  the <code>_id</code> field of the <code>Chat</code> the
+	 * 				  <code>Message</code> belongs to
+	 * @param message the new <code>Message</code>
+	 */
+	void onMessage(ObjectId chatId, Message message);
+	
+}
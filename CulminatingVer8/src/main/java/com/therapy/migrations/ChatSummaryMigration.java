@@ -0,0 +1,174 @@
+package com.therapy.migrations;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Sorts.descending;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.therapy.entities.Chat;
+import com.therapy.entities.User;
+import com.therapy.servlets.MongoClientListener;
+import com.therapy.servlets.Util;
+
+/**
+ * This class is a command line tool that adds the fields a therapist's chats
+ * are listed by on their homepage to the chats created before they existed.
+ * 
+ * Every chat without an <code>unread_by_therapist</code> field is given the
+ * full name of its patient, and the start, sender and time of its newest
+ * message, if it has one. Its messages are all counted as read, as there is
+ * no record of which ones the therapist has seen. Chats that already have the
+ * fields are skipped, so the tool can be stopped and run again at any time.
+ * 
+ * Usage: <code>ChatSummaryMigration [connection string]</code>
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class ChatSummaryMigration {
+	
+	private static final Logger LOGGER = Logger.getLogger(ChatSummaryMigration.class.getName());
+	
+	/**
+	 * The number of chats updated with a single <code>bulkWrite</code>.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	
+	/**
+	 * This constructor is a private, empty constructor, as this class is only
+	 * used through its <code>main</code> method.
+	 */
+	private ChatSummaryMigration() {
+	
+	}
+	
+	/**
+	 * Runs the migration against the database at the connection string given
+	 * as the first argument, or at <code>MongoClientListener.DEFAULT_URI</code>
+	 * if there are no arguments.
+	 * 
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) {
+		
+		String uri = args.length > 0 ? args[0] : MongoClientListener.DEFAULT_URI;
+		
+		MongoClient client = new MongoClient(new MongoClientURI(uri));
+		try {
+			
+			long chats = migrate(client.getDatabase(Util.DATABASE_NAME));
+			LOGGER.info("Migration finished. " + chats + " chats were updated");
+			
+		} finally {
+			client.close();
+		}
+		
+	}
+	
+	/**
+	 * Adds the summary fields to every chat in <code>database</code> that
+	 * does not have them.
+	 * 
+	 * @param database the database of the website
+	 * @return         the number of chats that were updated
+	 */
+	public static long migrate(MongoDatabase database) {
+		
+		MongoCollection<Document> chats = database.getCollection("chats");
+		
+		long updatedChats = 0;
+		List<Document> batch = new ArrayList<>();
+		
+		for(Document chat : chats.find(exists("unread_by_therapist", false))
+				.projection(Projections.include("patient_id"))) {
+				
+			batch.add(chat);
+			
+			if(batch.size() == BATCH_SIZE) {
+				updatedChats += migrateBatch(database, batch);
+				batch.clear();
+			}
+			
+		}
+		
+		if(!batch.isEmpty()) {
+			updatedChats += migrateBatch(database, batch);
+		}
+		
+		return updatedChats;
+		
+	}
+	
+	/**
+	 * Adds the summary fields to a batch of chats. The names of their
+	 * patients are read with a single query.
+	 * 
+	 * @param database the database of the website
+	 * @param batch    the chats, with their <code>patient_id</code> field
+	 * @return         the number of chats that were updated
+	 */
+	private static long migrateBatch(MongoDatabase database, List<Document> batch) {
+		
+		MongoCollection<Document> messages = database.getCollection("messages");
+		
+		//Get the names of the patients of the batch
+		List<ObjectId> patientIds = new ArrayList<>();
+		for(Document chat : batch) {
+			patientIds.add(chat.getObjectId("patient_id"));
+		}
+		
+		Map<ObjectId, String> patientNames = new HashMap<>();
+		for(Document patient : database.getCollection("patients").find(in("_id", patientIds))
+				.projection(Projections.include("first_name", "last_name"))) {
+			patientNames.put(patient.getObjectId("_id"), User.getFullName(patient));
+		}
+		
+		List<WriteModel<Document>> updates = new ArrayList<>();
+		for(Document chat : batch) {
+			
+			ObjectId chatId = chat.getObjectId("_id");
+			Document fields = new Document("unread_by_therapist", 0);
+			
+			String patientName = patientNames.get(chat.getObjectId("patient_id"));
+			if(patientName != null) {
+				fields.append("patient_name", patientName);
+			}
+			
+			//Summarize the newest message, if there is one
+			Document newestMessage = messages.find(eq("chat_id", chatId))
+					.sort(descending("_id"))
+					.first();
+			if(newestMessage != null) {
+				fields.append("last_message", Chat.getPreview(newestMessage.getString("content")))
+						.append("last_sender_is_patient", newestMessage.getBoolean("sender_is_patient"))
+						.append("last_message_at", newestMessage.getObjectId("_id").getDate());
+			}
+			
+			updates.add(new UpdateOneModel<>(eq(chatId), new Document("$set", fields)));
+			
+		}
+		
+		long updatedChats = database.getCollection("chats").bulkWrite(updates).getModifiedCount();
+		LOGGER.info(updatedChats + " chats were given summary fields");
+		
+		return updatedChats;
+		
+	}
+
+}
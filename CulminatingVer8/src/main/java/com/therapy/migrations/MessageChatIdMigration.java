@@ -0,0 +1,119 @@
+package com.therapy.migrations;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Updates;
+import com.therapy.servlets.MongoClientListener;
+import com.therapy.servlets.Util;
+
+/**
+ * This class is a command line tool that converts chats from the old message
+ * format to the new one.
+ * 
+ * In the old format, every <code>Message</code>'s <code>_id</code> field was
+ * pushed into the <code>message_ids</code> array of its <code>Chat</code>. In
+ * the new format, each <code>Message</code> has a <code>chat_id</code> field
+ * instead. For every chat that still has a <code>message_ids</code> array, 
+ * this tool sets <code>chat_id</code> on the chat's messages and then removes
+ * the array from the chat.
+ * 
+ * The messages of a chat are updated before its array is removed, so the tool
+ * can be stopped and run again at any time without losing messages.
+ * 
+ * Usage: <code>MessageChatIdMigration [connection string]</code>
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class MessageChatIdMigration {
+
+	private static final Logger LOGGER = Logger.getLogger(MessageChatIdMigration.class.getName());
+	
+	/**
+	 * The number of messages updated with a single <code>updateMany</code>.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	
+	/**
+	 * This constructor is a private, empty constructor, as this class is only
+	 * used through its <code>main</code> method.
+	 */
+	private MessageChatIdMigration() {
+		
+	}
+	
+	/**
+	 * Runs the migration against the database at the connection string given
+	 * as the first argument, or at <code>MongoClientListener.DEFAULT_URI</code>
+	 * if there are no arguments.
+	 * 
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) {
+		
+		String uri = args.length > 0 ? args[0] : MongoClientListener.DEFAULT_URI;
+		
+		MongoClient client = new MongoClient(new MongoClientURI(uri));
+		try {
+			
+			long messages = migrate(client.getDatabase(Util.DATABASE_NAME));
+			LOGGER.info("Migration finished. " + messages + " messages were updated");
+			
+		} finally {
+			client.close();
+		}
+		
+	}
+	
+	/**
+	 * Converts every chat in <code>database</code> that still has a 
+	 * <code>message_ids</code> array.
+	 * 
+	 * @param database the database to migrate
+	 * @return         the number of messages that were updated
+	 */
+	@SuppressWarnings("unchecked")
+	public static long migrate(MongoDatabase database) {
+		
+		MongoCollection<Document> chats = database.getCollection("chats");
+		MongoCollection<Document> messages = database.getCollection("messages");
+		
+		messages.createIndex(new Document("chat_id", 1).append("_id", 1));
+		
+		long updatedMessages = 0;
+		for(Document chat : chats.find(exists("message_ids"))) {
+			
+			ObjectId chatId = chat.getObjectId("_id");
+			List<ObjectId> messageIds = chat.get("message_ids", List.class);
+			
+			for(int i = 0; i < messageIds.size(); i += BATCH_SIZE) {
+				
+				List<ObjectId> batch = messageIds.subList(i, Math.min(i + BATCH_SIZE, messageIds.size()));
+				updatedMessages += messages.updateMany(in("_id", batch), 
+						Updates.set("chat_id", chatId)).getModifiedCount();
+				
+			}
+			
+			chats.updateOne(eq(chatId), Updates.unset("message_ids"));
+			LOGGER.info("Chat with id " + chatId.toHexString() + " was migrated with " 
+					+ messageIds.size() + " messages");
+			
+		}
+		
+		return updatedMessages;
+		
+	}
+	
+}
@@ -0,0 +1,126 @@
+package com.therapy.migrations;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.therapy.servlets.MongoClientListener;
+import com.therapy.servlets.Util;
+
+/**
+ * This class is a command line tool that adds the counters that 
+ * <code>Therapist.addRequest</code> checks against the 
+ * <code>patient_limit</code> to the therapists created before they existed.
+ * 
+ * Every therapist without an <code>open_requests</code> field is given an
+ * <code>open_requests</code> field with the length of its 
+ * <code>request_ids</code> array, and a <code>patient_count</code> field 
+ * with the length of its <code>patient_ids</code> array. The old 
+ * <code>request_limit</code> field is removed. Therapists that already have
+ * the counters are skipped, so the tool can be stopped and run again at any
+ * time. It should be run while the web application is stopped, so that no
+ * requests are added between reading a therapist and updating it.
+ * 
+ * Usage: <code>TherapistCapacityMigration [connection string]</code>
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class TherapistCapacityMigration {
+	
+	private static final Logger LOGGER = Logger.getLogger(TherapistCapacityMigration.class.getName());
+	
+	/**
+	 * The number of therapists updated with a single <code>bulkWrite</code>.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	
+	/**
+	 * This constructor is a private, empty constructor, as this class is only
+	 * used through its <code>main</code> method.
+	 */
+	private TherapistCapacityMigration() {
+	
+	}
+	
+	/**
+	 * Runs the migration against the database at the connection string given
+	 * as the first argument, or at <code>MongoClientListener.DEFAULT_URI</code>
+	 * if there are no arguments.
+	 * 
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) {
+		
+		String uri = args.length > 0 ? args[0] : MongoClientListener.DEFAULT_URI;
+		
+		MongoClient client = new MongoClient(new MongoClientURI(uri));
+		try {
+			
+			long therapists = migrate(client.getDatabase(Util.DATABASE_NAME));
+			LOGGER.info("Migration finished. " + therapists + " therapists were updated");
+			
+		} finally {
+			client.close();
+		}
+		
+	}
+	
+	/**
+	 * Adds the counters to every therapist in <code>database</code> that
+	 * does not have them.
+	 * 
+	 * @param database the database to migrate
+	 * @return         the number of therapists that were updated
+	 */
+	@SuppressWarnings("unchecked")
+	public static long migrate(MongoDatabase database) {
+		
+		MongoCollection<Document> collection = database.getCollection("therapists");
+		
+		long updatedTherapists = 0;
+		List<WriteModel<Document>> batch = new ArrayList<>();
+		
+		for(Document therapist : collection.find(exists("open_requests", false))
+				.projection(Projections.include("request_ids", "patient_ids"))) {
+				
+			List<Object> requestIds = therapist.get("request_ids", List.class);
+			List<Object> patientIds = therapist.get("patient_ids", List.class);
+			
+			batch.add(new UpdateOneModel<>(
+					and(eq(therapist.getObjectId("_id")), exists("open_requests", false)),
+					Updates.combine(
+							Updates.set("open_requests", requestIds == null ? 0 : requestIds.size()),
+							Updates.set("patient_count", patientIds == null ? 0 : patientIds.size()),
+							Updates.unset("request_limit"))));
+							
+			if(batch.size() == BATCH_SIZE) {
+				updatedTherapists += collection.bulkWrite(batch).getModifiedCount();
+				batch.clear();
+			}
+			
+		}
+		
+		if(!batch.isEmpty()) {
+			updatedTherapists += collection.bulkWrite(batch).getModifiedCount();
+		}
+		
+		return updatedTherapists;
+		
+	}
+
+}
@@ -0,0 +1,136 @@
+package com.therapy.migrations;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.therapy.entities.Therapist;
+import com.therapy.servlets.MongoClientListener;
+import com.therapy.servlets.Util;
+
+/**
+ * This class is a command line tool that converts the ratings of therapists
+ * from the old format to the new one.
+ * 
+ * In the old format, a therapist had a <code>rating</code> field with their
+ * rounded average rating, and a <code>number_of_raters</code> field. In the
+ * new format, they have a <code>rating_sum</code> field, a
+ * <code>rating_count</code> field and a <code>rating_histogram</code> field.
+ * The single ratings were never kept, so the sum is worked out from the 
+ * rounded average, and every rating is counted in the range of the average.
+ * 
+ * Every therapist with a <code>number_of_raters</code> field is converted,
+ * and the old fields are removed in the same update, so the tool can be 
+ * stopped and run again at any time.
+ * 
+ * Usage: <code>TherapistRatingMigration [connection string]</code>
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class TherapistRatingMigration {
+	
+	private static final Logger LOGGER = Logger.getLogger(TherapistRatingMigration.class.getName());
+	
+	/**
+	 * The number of therapists updated with a single <code>bulkWrite</code>.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	
+	/**
+	 * This constructor is a private, empty constructor, as this class is only
+	 * used through its <code>main</code> method.
+	 */
+	private TherapistRatingMigration() {
+	
+	}
+	
+	/**
+	 * Runs the migration against the database at the connection string given
+	 * as the first argument, or at <code>MongoClientListener.DEFAULT_URI</code>
+	 * if there are no arguments.
+	 * 
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) {
+		
+		String uri = args.length > 0 ? args[0] : MongoClientListener.DEFAULT_URI;
+		
+		MongoClient client = new MongoClient(new MongoClientURI(uri));
+		try {
+			
+			long therapists = migrate(client.getDatabase(Util.DATABASE_NAME));
+			LOGGER.info("Migration finished. " + therapists + " therapists were updated");
+			
+		} finally {
+			client.close();
+		}
+		
+	}
+	
+	/**
+	 * Converts the ratings of every therapist in <code>database</code> that
+	 * still has a <code>number_of_raters</code> field.
+	 * 
+	 * @param database the database to migrate
+	 * @return         the number of therapists that were updated
+	 */
+	public static long migrate(MongoDatabase database) {
+		
+		MongoCollection<Document> collection = database.getCollection("therapists");
+		
+		long updatedTherapists = 0;
+		List<WriteModel<Document>> batch = new ArrayList<>();
+		
+		for(Document therapist : collection.find(exists("number_of_raters"))
+				.projection(Projections.include("rating", "number_of_raters"))) {
+				
+			int raters = therapist.getInteger("number_of_raters", 0);
+			Integer rating = therapist.getInteger("rating");
+			
+			Bson update = Updates.combine(Updates.unset("rating"), Updates.unset("number_of_raters"));
+			if(raters > 0 && rating != null && rating > 0) {
+				
+				int bucket = (Math.min(rating, Therapist.MAX_RATING) - 1) * Therapist.RATING_BUCKETS
+						/ Therapist.MAX_RATING;
+				update = Updates.combine(update,
+						Updates.inc("rating_sum", (long)rating * raters),
+						Updates.inc("rating_count", raters),
+						Updates.inc("rating_histogram." + bucket, raters));
+						
+			}
+			
+			batch.add(new UpdateOneModel<>(
+					and(eq(therapist.getObjectId("_id")), exists("number_of_raters")), update));
+					
+			if(batch.size() == BATCH_SIZE) {
+				updatedTherapists += collection.bulkWrite(batch).getModifiedCount();
+				batch.clear();
+			}
+			
+		}
+		
+		if(!batch.isEmpty()) {
+			updatedTherapists += collection.bulkWrite(batch).getModifiedCount();
+		}
+		
+		return updatedTherapists;
+		
+	}
+
+}
@@ -0,0 +1,117 @@
+package com.therapy.migrations;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.therapy.entities.User;
+import com.therapy.servlets.MongoClientListener;
+import com.therapy.servlets.Util;
+
+/**
+ * This class is a command line tool that adds the normalized name fields
+ * that users are searched by to the users created before they existed.
+ * 
+ * Every patient and therapist without a <code>full_name_lower</code> field
+ * is given the fields made by <code>User.getNameSearchFields</code>. Users
+ * that already have the fields are skipped, so the tool can be stopped and
+ * run again at any time.
+ * 
+ * Usage: <code>UserNameSearchMigration [connection string]</code>
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class UserNameSearchMigration {
+	
+	private static final Logger LOGGER = Logger.getLogger(UserNameSearchMigration.class.getName());
+	
+	/**
+	 * The number of users updated with a single <code>bulkWrite</code>.
+	 */
+	private static final int BATCH_SIZE = 1000;
+	
+	/**
+	 * This constructor is a private, empty constructor, as this class is only
+	 * used through its <code>main</code> method.
+	 */
+	private UserNameSearchMigration() {
+	
+	}
+	
+	/**
+	 * Runs the migration against the database at the connection string given
+	 * as the first argument, or at <code>MongoClientListener.DEFAULT_URI</code>
+	 * if there are no arguments.
+	 * 
+	 * @param args the command line arguments
+	 */
+	public static void main(String[] args) {
+		
+		String uri = args.length > 0 ? args[0] : MongoClientListener.DEFAULT_URI;
+		
+		MongoClient client = new MongoClient(new MongoClientURI(uri));
+		try {
+			
+			MongoDatabase database = client.getDatabase(Util.DATABASE_NAME);
+			long users = migrate(database.getCollection("patients"))
+					+ migrate(database.getCollection("therapists"));
+			LOGGER.info("Migration finished. " + users + " users were updated");
+			
+		} finally {
+			client.close();
+		}
+		
+	}
+	
+	/**
+	 * Adds the name search fields to every user in <code>collection</code>
+	 * that does not have them.
+	 * 
+	 * @param collection the collection of patients or therapists
+	 * @return           the number of users that were updated
+	 */
+	public static long migrate(MongoCollection<Document> collection) {
+		
+		long updatedUsers = 0;
+		List<WriteModel<Document>> batch = new ArrayList<>();
+		
+		for(Document user : collection.find(exists("full_name_lower", false))
+				.projection(Projections.include("first_name", "last_name"))) {
+				
+			Document nameFields = User.getNameSearchFields(user.getString("first_name"),
+					user.getString("last_name"));
+			batch.add(new UpdateOneModel<>(eq(user.getObjectId("_id")),
+					new Document("$set", nameFields)));
+					
+			if(batch.size() == BATCH_SIZE) {
+				updatedUsers += collection.bulkWrite(batch).getModifiedCount();
+				batch.clear();
+			}
+			
+		}
+		
+		if(!batch.isEmpty()) {
+			updatedUsers += collection.bulkWrite(batch).getModifiedCount();
+		}
+		
+		LOGGER.info(updatedUsers + " users in " + collection.getNamespace().getCollectionName()
+				+ " were given name search fields");
+				
+		return updatedUsers;
+		
+	}
+
+}
@@ -0,0 +1,145 @@
+package com.therapy.monitoring;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class counts recorded values, such as latencies in microseconds, in
+ * buckets whose width grows with the value, in the same way as an 
+ * HdrHistogram. Values below <code>SUB_BUCKETS</code> each have their own 
+ * bucket. Above that, every power of two is split into 
+ * <code>SUB_BUCKETS</code> buckets, so a percentile is never off by more 
+ * than about 6%, and the histogram uses a fixed 8 KB no matter how many 
+ * values are recorded.
+ * 
+ * Recording is lock-free, so it can be called by many threads at once.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class LatencyHistogram {
+
+	/**
+	 * The number of buckets each power of two is split into.
+	 */
+	private static final int SUB_BUCKETS = 16;
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * 
+	 * @param value the value to record
+	 */
+	public void record(long value) {
+		
+		value = Math.max(value, 0);
+		
+		counts.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		max.accumulateAndGet(value, Math::max);
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of values recorded
+	 */
+	public long getCount() {
+		return count.get();
+	}
+	
+	/**
+	 * 
+	 * @return the highest value recorded, or 0 if none were
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * 
+	 * @return the average of the values recorded, or 0 if none were
+	 */
+	public double getMean() {
+		
+		long recorded = count.get();
+		return recorded == 0 ? 0 : (double)sum.get() / recorded;
+		
+	}
+	
+	/**
+	 * Finds the value below which <code>percentile</code> percent of the 
+	 * recorded values are. The highest value of its bucket is returned, so 
+	 * the result is never lower than the real percentile.
+	 * 
+	 * @param percentile the percentile, from 0 to 100
+	 * @return           the value at the percentile, or 0 if no values were
+	 * 					 recorded
+	 */
+	public long getPercentile(double percentile) {
+		
+		long recorded = count.get();
+		if(recorded == 0) {
+			return 0;
+		}
+		
+		long target = Math.max((long)Math.ceil(recorded * Math.min(percentile, 100) / 100), 1);
+		long seen = 0;
+		for(int bucket = 0; bucket < BUCKETS; bucket++) {
+			
+			seen += counts.get(bucket);
+			if(seen >= target) {
+				return Math.min(getHighestValue(bucket), max.get());
+			}
+			
+		}
+		
+		return max.get();
+		
+	}
+	
+	/**
+	 * 
+	 * @param value a value of at least 0
+	 * @return      the bucket the value is counted in
+	 */
+	static int getBucket(long value) {
+		
+		if(value < SUB_BUCKETS) {
+			return (int)value;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int)(value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		
+		return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+		
+	}
+	
+	/**
+	 * 
+	 * @param bucket a bucket
+	 * @return       the highest value counted in the bucket
+	 */
+	static long getHighestValue(int bucket) {
+		
+		if(bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		
+		return (1L << exponent) + (subBucket + 1) * width - 1;
+		
+	}
+	
+}
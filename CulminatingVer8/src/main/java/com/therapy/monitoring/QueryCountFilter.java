@@ -0,0 +1,152 @@
+package com.therapy.monitoring;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * This class is a filter that counts the commands sent to the database while 
+ * each HTTP request is handled, and records them in the 
+ * <code>QueryMetrics</code>. Only the commands sent from the thread handling
+ * the request are counted, so the work done after an asynchronous servlet 
+ * returns is not.
+ * 
+ * In particular, the <code>Async*Servlet</code> endpoints send all of their 
+ * commands from the <code>AsyncExecutor</code> or the Reactive Streams 
+ * driver after the filter has returned. They always report an 
+ * <code>X-Query-Count</code> of 0 and are left out of the per-request 
+ * counts. Their commands are still recorded in the per-operation latencies 
+ * of <code>QueryMetrics</code>, as coming from the background.
+ * 
+ * If the <code>metrics.queryCountHeader</code> context parameter is 
+ * <code>true</code>, the count is also added to the response as the 
+ * <code>X-Query-Count</code> header, so that a page that sends too many 
+ * queries can be seen in the developer tools of a browser. A header cannot 
+ * be added once the response is committed, so it is added when the body is 
+ * first written, and again at the end if it still can be. A JSP buffers its 
+ * body until it is done, so the count of a JSP is complete.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@WebFilter(urlPatterns = "/*", asyncSupported = true)
+public class QueryCountFilter implements Filter {
+
+	public static final String HEADER = "X-Query-Count";
+	
+	/**
+	 * A response that adds the <code>X-Query-Count</code> header before its
+	 * body is written.
+	 */
+	private static final class CountingResponse extends HttpServletResponseWrapper {
+		
+		private final QueryMetrics.RequestQueries queries;
+		
+		private CountingResponse(HttpServletResponse response, QueryMetrics.RequestQueries queries) {
+			
+			super(response);
+			this.queries = queries;
+			
+		}
+		
+		/**
+		 * Adds the header if the response is not committed.
+		 */
+		private void setCount() {
+			
+			if(!isCommitted()) {
+				setHeader(HEADER, Integer.toString(queries.getCount()));
+			}
+			
+		}
+		
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			
+			setCount();
+			return super.getWriter();
+			
+		}
+		
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			
+			setCount();
+			return super.getOutputStream();
+			
+		}
+		
+		@Override
+		public void flushBuffer() throws IOException {
+			
+			setCount();
+			super.flushBuffer();
+			
+		}
+		
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			
+			setCount();
+			super.sendRedirect(location);
+			
+		}
+		
+		@Override
+		public void sendError(int status) throws IOException {
+			
+			setCount();
+			super.sendError(status);
+			
+		}
+		
+		@Override
+		public void sendError(int status, String message) throws IOException {
+			
+			setCount();
+			super.sendError(status, message);
+			
+		}
+		
+	}
+	
+	@Override
+	public void doFilter(ServletRequest request, ServletResponse response, 
+			FilterChain chain) throws IOException, ServletException {
+		
+		QueryMetrics metrics = QueryMetrics.get(request.getServletContext());
+		if(metrics == null || !(request instanceof HttpServletRequest)) {
+			chain.doFilter(request, response);
+			return;
+		}
+		
+		QueryMetrics.RequestQueries queries = metrics.beginRequest(((HttpServletRequest)request).getServletPath());
+		try {
+			
+			if(metrics.isQueryCountHeader()) {
+				
+				CountingResponse countingResponse = new CountingResponse((HttpServletResponse)response, queries);
+				chain.doFilter(request, countingResponse);
+				countingResponse.setCount();
+				
+			} else {
+				chain.doFilter(request, response);
+			}
+			
+		} finally {
+			metrics.endRequest(queries);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,313 @@
+package com.therapy.monitoring;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * This class is told about every command sent to the database by both 
+ * <code>MongoClient</code>s, and keeps their metrics:
+ * 
+ * <ul>
+ * 	<li>a <code>LatencyHistogram</code> of the time taken, in microseconds,
+ * 		by each operation on each collection, such as 
+ * 		<code>messages.find</code></li>
+ * 	<li>a <code>LatencyHistogram</code> of the number of commands sent while
+ * 		handling each HTTP request, for each servlet path. HTTP requests that
+ * 		sent no commands, such as those for scripts, are not recorded, so 
+ * 		that unknown paths do not fill the map.</li>
+ * </ul>
+ * 
+ * A command that takes at least <code>metrics.slowQueryMillis</code> 
+ * milliseconds is logged along with the servlet path of the HTTP request 
+ * that sent it. The HTTP requests are followed by 
+ * <code>QueryCountFilter</code>, on the thread handling them. Commands sent 
+ * from any other thread, such as those of the Reactive Streams driver, are 
+ * logged as coming from the background.
+ * 
+ * It is a <code>ServletContextListener</code> that must be declared before
+ * <code>MongoClientListener</code> in web.xml, so that it can be added to 
+ * the clients. The instance is stored in the <code>ServletContext</code> and 
+ * retrieved with <code>get</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class QueryMetrics implements ServletContextListener, CommandListener {
+
+	private static final String ATTRIBUTE_NAME = QueryMetrics.class.getName();
+	private static final Logger LOGGER = Logger.getLogger(QueryMetrics.class.getName());
+	public static final String BACKGROUND = "background";
+	
+	/**
+	 * The HTTP request handled by the current thread, if any.
+	 */
+	private static final ThreadLocal<RequestQueries> CURRENT_REQUEST = new ThreadLocal<>();
+	
+	/**
+	 * The commands sent while handling one HTTP request.
+	 */
+	static final class RequestQueries {
+		
+		private final String origin;
+		private int count;
+		
+		private RequestQueries(String origin) {
+			this.origin = origin;
+		}
+		
+		/**
+		 * 
+		 * @return the number of commands sent so far
+		 */
+		int getCount() {
+			return count;
+		}
+		
+	}
+	
+	/**
+	 * A command that was sent and has not been answered yet.
+	 */
+	private static final class StartedCommand {
+		
+		private final String operation;
+		private final String origin;
+		
+		private StartedCommand(String operation, String origin) {
+			
+			this.operation = operation;
+			this.origin = origin;
+			
+		}
+		
+	}
+	
+	/**
+	 * The metrics of one operation on one collection.
+	 */
+	public static final class OperationMetrics {
+		
+		private final LatencyHistogram micros = new LatencyHistogram();
+		private final LongAdder failures = new LongAdder();
+		
+		/**
+		 * 
+		 * @return the time taken by the operation, in microseconds
+		 */
+		public LatencyHistogram getMicros() {
+			return micros;
+		}
+		
+		/**
+		 * 
+		 * @return the number of times the operation failed
+		 */
+		public long getFailures() {
+			return failures.sum();
+		}
+		
+	}
+	
+	private final Map<Integer, StartedCommand> started = new ConcurrentHashMap<>();
+	private final Map<String, OperationMetrics> operations = new ConcurrentHashMap<>();
+	private final Map<String, LatencyHistogram> queriesPerRequest = new ConcurrentHashMap<>();
+	private final LongAdder slowQueries = new LongAdder();
+	
+	private long slowQueryMicros = TimeUnit.MILLISECONDS.toMicros(100);
+	private boolean queryCountHeader;
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>QueryMetrics</code> of the web application
+	 */
+	public static QueryMetrics get(ServletContext context) {
+		return (QueryMetrics)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Reads the context parameters and stores this <code>QueryMetrics</code> 
+	 * in the <code>ServletContext</code>.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		ServletContext context = event.getServletContext();
+		
+		String value = context.getInitParameter("metrics.slowQueryMillis");
+		if(value != null && !value.trim().isEmpty()) {
+			try {
+				slowQueryMicros = TimeUnit.MILLISECONDS.toMicros(Long.parseLong(value.trim()));
+			} catch(NumberFormatException e) {
+				LOGGER.warning("The context parameter metrics.slowQueryMillis must be a number, but was " + value);
+			}
+		}
+		
+		queryCountHeader = Boolean.parseBoolean(context.getInitParameter("metrics.queryCountHeader"));
+		
+		context.setAttribute(ATTRIBUTE_NAME, this);
+		
+	}
+	
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Starts counting the commands sent by the current thread for an HTTP
+	 * request.
+	 * 
+	 * @param origin the servlet path of the HTTP request
+	 * @return       the commands sent for the HTTP request
+	 */
+	RequestQueries beginRequest(String origin) {
+		
+		RequestQueries queries = new RequestQueries(origin);
+		CURRENT_REQUEST.set(queries);
+		
+		return queries;
+		
+	}
+	
+	/**
+	 * Stops counting the commands sent by the current thread, and records 
+	 * how many were sent for the HTTP request if there were any.
+	 * 
+	 * @param queries the value returned by <code>beginRequest</code>
+	 */
+	void endRequest(RequestQueries queries) {
+		
+		CURRENT_REQUEST.remove();
+		if(queries.count == 0) {
+			return;
+		}
+		
+		queriesPerRequest.computeIfAbsent(queries.origin, origin -> new LatencyHistogram())
+				.record(queries.count);
+		
+	}
+	
+	/**
+	 * 
+	 * @return whether the number of commands sent for an HTTP request should
+	 * 		   be added to its response
+	 */
+	public boolean isQueryCountHeader() {
+		return queryCountHeader;
+	}
+	
+	/**
+	 * 
+	 * @return the metrics of each operation, by collection and command name
+	 */
+	public Map<String, OperationMetrics> getOperations() {
+		return operations;
+	}
+	
+	/**
+	 * 
+	 * @return the number of commands sent for each HTTP request, by servlet 
+	 * 		   path
+	 */
+	public Map<String, LatencyHistogram> getQueriesPerRequest() {
+		return queriesPerRequest;
+	}
+	
+	/**
+	 * 
+	 * @return the number of commands that were logged as slow
+	 */
+	public long getSlowQueries() {
+		return slowQueries.sum();
+	}
+	
+	@Override
+	public void commandStarted(CommandStartedEvent event) {
+		
+		RequestQueries queries = CURRENT_REQUEST.get();
+		if(queries != null) {
+			queries.count++;
+		}
+		
+		String operation = getCollection(event.getCommand(), event.getCommandName()) 
+				+ "." + event.getCommandName();
+		started.put(event.getRequestId(), 
+				new StartedCommand(operation, queries == null ? BACKGROUND : queries.origin));
+		
+	}
+	
+	@Override
+	public void commandSucceeded(CommandSucceededEvent event) {
+		finish(event.getRequestId(), event.getElapsedTime(TimeUnit.MICROSECONDS), false);
+	}
+	
+	@Override
+	public void commandFailed(CommandFailedEvent event) {
+		finish(event.getRequestId(), event.getElapsedTime(TimeUnit.MICROSECONDS), true);
+	}
+	
+	/**
+	 * Records the time taken by a command, and logs it if it was slow.
+	 * 
+	 * @param requestId the id of the command
+	 * @param micros    the time taken, in microseconds
+	 * @param failed    whether the command failed
+	 */
+	private void finish(int requestId, long micros, boolean failed) {
+		
+		StartedCommand command = started.remove(requestId);
+		if(command == null) {
+			return;
+		}
+		
+		OperationMetrics metrics = operations.computeIfAbsent(command.operation, 
+				operation -> new OperationMetrics());
+		metrics.micros.record(micros);
+		if(failed) {
+			metrics.failures.increment();
+		}
+		
+		if(micros >= slowQueryMicros) {
+			slowQueries.increment();
+			LOGGER.warning("Slow query: " + command.operation + " took " 
+					+ TimeUnit.MICROSECONDS.toMillis(micros) + " ms, from " + command.origin
+					+ (failed ? " and failed" : ""));
+		}
+		
+	}
+	
+	/**
+	 * Finds the collection a command was sent to. Most commands hold it as 
+	 * the value of their first field, which is named after the command, and 
+	 * <code>getMore</code> holds it in its <code>collection</code> field.
+	 * 
+	 * @param command     the command
+	 * @param commandName the name of the command
+	 * @return            the name of the collection, or <code>"-"</code> if 
+	 * 					  the command was not sent to a collection
+	 */
+	private static String getCollection(BsonDocument command, String commandName) {
+		
+		BsonValue value = command.get("getMore".equals(commandName) ? "collection" : commandName);
+		
+		return value != null && value.isString() ? value.asString().getValue() : "-";
+		
+	}
+	
+}
@@ -0,0 +1,131 @@
+package com.therapy.security;
+
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.Binary;
+
+import com.mongodb.client.model.Updates;
+
+/**
+ * This class represents the stored hash of a password, along with the salt
+ * and the settings it was made with, so that a password can be checked
+ * against it after the settings have changed.
+ * 
+ * The hash is stored in the <code>password_hash</code>, <code>salt</code>,
+ * <code>password_algorithm</code> and <code>password_iterations</code> fields
+ * of a user. Users created before the last two fields existed were hashed
+ * with <code>PBKDF2WithHmacSHA1</code> and 65536 iterations, so those are
+ * used when the fields are missing.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class PasswordHash {
+	
+	public static final String LEGACY_ALGORITHM = "PBKDF2WithHmacSHA1";
+	public static final int LEGACY_ITERATIONS = 65536;
+	
+	private final String algorithm;
+	private final int iterations;
+	private final byte[] salt;
+	private final byte[] hash;
+	
+	/**
+	 * 
+	 * @param algorithm  the name of the <code>SecretKeyFactory</code>
+	 * 					 algorithm the hash was made with
+	 * @param iterations the number of iterations the hash was made with
+	 * @param salt       the salt of the hash
+	 * @param hash       the hash
+	 */
+	public PasswordHash(String algorithm, int iterations, byte[] salt, byte[] hash) {
+		
+		this.algorithm = algorithm;
+		this.iterations = iterations;
+		this.salt = salt;
+		this.hash = hash;
+		
+	}
+	
+	/**
+	 * Reads the hash of the password of a user.
+	 * 
+	 * @param userDoc the <code>Document</code> of the user
+	 * @return        the hash of the user's password
+	 */
+	public static PasswordHash fromDocument(Document userDoc) {
+		
+		String algorithm = userDoc.getString("password_algorithm");
+		Integer iterations = userDoc.getInteger("password_iterations");
+		
+		return new PasswordHash(
+				algorithm != null ? algorithm : LEGACY_ALGORITHM,
+				iterations != null ? iterations : LEGACY_ITERATIONS,
+				userDoc.get("salt", Binary.class).getData(),
+				userDoc.get("password_hash", Binary.class).getData());
+				
+	}
+	
+	/**
+	 * Puts the fields of this hash into the fields of a new user.
+	 * 
+	 * @param fields the fields of the user
+	 */
+	public void putFields(Map<String, Object> fields) {
+		
+		fields.put("password_hash", new Binary(hash));
+		fields.put("salt", new Binary(salt));
+		fields.put("password_algorithm", algorithm);
+		fields.put("password_iterations", iterations);
+		
+	}
+	
+	/**
+	 * 
+	 * @return an update that replaces the hash of a user with this one
+	 */
+	public Bson toUpdate() {
+		
+		return Updates.combine(
+				Updates.set("password_hash", new Binary(hash)),
+				Updates.set("salt", new Binary(salt)),
+				Updates.set("password_algorithm", algorithm),
+				Updates.set("password_iterations", iterations));
+				
+	}
+	
+	/**
+	 * 
+	 * @return the name of the algorithm the hash was made with
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	
+	/**
+	 * 
+	 * @return the number of iterations the hash was made with
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+	
+	/**
+	 * 
+	 * @return the salt of the hash
+	 */
+	public byte[] getSalt() {
+		return salt;
+	}
+	
+	/**
+	 * 
+	 * @return the hash
+	 */
+	public byte[] getHash() {
+		return hash;
+	}
+
+}
@@ -0,0 +1,458 @@
+package com.therapy.security;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class hashes and checks passwords on a thread pool of its own, so
+ * that a burst of logins cannot take the container's request threads away
+ * from the rest of the website.
+ * 
+ * Hashing is CPU bound, so the pool has one thread for each processor by
+ * default. Passwords that cannot be hashed right away wait in a bounded
+ * queue. If the queue is full, or a password waited longer than allowed, it
+ * is not hashed, and the future fails with a
+ * <code>RejectedExecutionException</code>. <code>sendError</code> answers
+ * such requests with <code>503 Service Unavailable</code>.
+ * 
+ * Every thread keeps its own <code>SecretKeyFactory</code> for each
+ * algorithm, instead of looking one up for every password.
+ * 
+ * New hashes are made with the algorithm and number of iterations set in
+ * web.xml, while stored hashes are checked with the settings they were made
+ * with. <code>needsRehash</code> tells if a stored hash was made with older
+ * settings, so that it can be replaced when the user logs in.
+ * 
+ * It is configured with the following context parameters in web.xml:
+ * 
+ * <ul>
+ * 	<li><code>password.algorithm</code> - the <code>SecretKeyFactory</code>
+ * 		algorithm of new hashes. The default is
+ * 		<code>PBKDF2WithHmacSHA1</code>.</li>
+ * 	<li><code>password.iterations</code> - the number of iterations of new
+ * 		hashes. The default is 65536.</li>
+ * 	<li><code>password.threads</code> - the number of threads in the pool.
+ * 		The default is the number of processors.</li>
+ * 	<li><code>password.queueCapacity</code> - the number of passwords that
+ * 		may wait for a thread. The default is 32 for each thread.</li>
+ * 	<li><code>password.maxWaitMillis</code> - how long a password may wait
+ * 		for a thread before it is rejected. The default is 5000.</li>
+ * 	<li><code>password.retryAfterSeconds</code> - the value of the
+ * 		<code>Retry-After</code> header. The default is 1.</li>
+ * </ul>
+ * 
+ * It is a <code>ServletContextListener</code> so that the pool is shut down
+ * with the web application. The instance is stored in the
+ * <code>ServletContext</code> and retrieved with <code>get</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class PasswordHasher implements ServletContextListener {
+	
+	public static final int KEY_LENGTH = 128;
+	
+	private static final String ATTRIBUTE_NAME = PasswordHasher.class.getName();
+	private static final Logger LOGGER = Logger.getLogger(PasswordHasher.class.getName());
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final ThreadLocal<Map<String, SecretKeyFactory>> FACTORIES =
+			ThreadLocal.withInitial(HashMap::new);
+			
+	private String algorithm;
+	private int iterations;
+	private long maxWaitNanos;
+	private int retryAfterSeconds;
+	private ThreadPoolExecutor executor;
+	
+	private final AtomicLong rejections = new AtomicLong();
+	
+	/**
+	 * Creates a <code>PasswordHasher</code> that is set up when the web
+	 * application starts.
+	 */
+	public PasswordHasher() {
+	}
+	
+	/**
+	 * Creates a <code>PasswordHasher</code> outside of a web application.
+	 * 
+	 * @param algorithm     the algorithm of new hashes
+	 * @param iterations    the number of iterations of new hashes
+	 * @param threads       the number of threads in the pool
+	 * @param queueCapacity the number of passwords that may wait for a thread
+	 * @param maxWaitMillis how long a password may wait for a thread
+	 */
+	public PasswordHasher(String algorithm, int iterations, int threads,
+			int queueCapacity, long maxWaitMillis) {
+		start(algorithm, iterations, threads, queueCapacity, maxWaitMillis);
+	}
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>PasswordHasher</code> of the web application
+	 */
+	public static PasswordHasher get(ServletContext context) {
+		return (PasswordHasher)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Creates the thread pool and stores this <code>PasswordHasher</code> in
+	 * the <code>ServletContext</code>.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		ServletContext context = event.getServletContext();
+		
+		String algorithm = context.getInitParameter("password.algorithm");
+		if(algorithm == null || algorithm.trim().isEmpty()) {
+			algorithm = PasswordHash.LEGACY_ALGORITHM;
+		}
+		
+		int threads = getInteger(context, "password.threads", Runtime.getRuntime().availableProcessors());
+		
+		start(algorithm.trim(),
+				getInteger(context, "password.iterations", PasswordHash.LEGACY_ITERATIONS),
+				threads,
+				getInteger(context, "password.queueCapacity", threads * 32),
+				getInteger(context, "password.maxWaitMillis", 5000));
+		retryAfterSeconds = getInteger(context, "password.retryAfterSeconds", 1);
+		
+		context.setAttribute(ATTRIBUTE_NAME, this);
+		LOGGER.info("Passwords are hashed with " + this.algorithm + " and " + iterations
+				+ " iterations on " + threads + " threads");
+				
+	}
+	
+	/**
+	 * Shuts down the thread pool.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+		close();
+		
+	}
+	
+	/**
+	 * Shuts down the thread pool, giving waiting passwords a few seconds to
+	 * be hashed.
+	 */
+	public void close() {
+		
+		executor.shutdown();
+		
+		try {
+			if(!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch(InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		
+	}
+	
+	/**
+	 * Hashes a new password with a new salt and the current settings.
+	 * 
+	 * @param password the password
+	 * @return         a future of the hash of the password
+	 */
+	public CompletableFuture<PasswordHash> hash(String password) {
+		
+		byte[] salt = new byte[16];
+		RANDOM.nextBytes(salt);
+		
+		return submit(() -> new PasswordHash(algorithm, iterations, salt,
+				computeHash(password, salt, algorithm, iterations, KEY_LENGTH)));
+				
+	}
+	
+	/**
+	 * Checks if a password matches a stored hash. The password is hashed
+	 * with the settings the stored hash was made with.
+	 * 
+	 * @param password the password
+	 * @param stored   the stored hash
+	 * @return         a future of <code>true</code> if the password matches
+	 */
+	public CompletableFuture<Boolean> verify(String password, PasswordHash stored) {
+		
+		return submit(() -> MessageDigest.isEqual(stored.getHash(), computeHash(password,
+				stored.getSalt(), stored.getAlgorithm(), stored.getIterations(),
+				stored.getHash().length * 8)));
+				
+	}
+	
+	/**
+	 * 
+	 * @param stored a stored hash
+	 * @return       <code>true</code> if <code>stored</code> was made with
+	 * 				 weaker settings than the current ones
+	 */
+	public boolean needsRehash(PasswordHash stored) {
+		
+		return !stored.getAlgorithm().equals(algorithm)
+				|| stored.getIterations() < iterations
+				|| stored.getHash().length * 8 != KEY_LENGTH;
+				
+	}
+	
+	/**
+	 * Answers a request whose password could not be hashed. If the pool was
+	 * saturated, the answer is <code>503 Service Unavailable</code> with a
+	 * <code>Retry-After</code> header, and otherwise it is
+	 * <code>500 Internal Server Error</code>. <code>acontext</code> is
+	 * completed.
+	 * 
+	 * @param acontext the <code>AsyncContext</code> of the request
+	 * @param e        the exception the future failed with
+	 */
+	public void sendError(AsyncContext acontext, Throwable e) {
+		
+		if(e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		
+		HttpServletResponse response = (HttpServletResponse)acontext.getResponse();
+		
+		try {
+			
+			if(e instanceof RejectedExecutionException) {
+				response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			} else {
+				LOGGER.log(Level.SEVERE, "A password could not be hashed", e);
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+			
+		} catch(IOException | IllegalStateException ignored) {
+			//The response was already sent
+		}
+		
+		acontext.complete();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the algorithm of new hashes
+	 */
+	public String getAlgorithm() {
+		return algorithm;
+	}
+	
+	/**
+	 * 
+	 * @return the number of iterations of new hashes
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+	
+	/**
+	 * 
+	 * @return the number of passwords waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+	
+	/**
+	 * 
+	 * @return the number of passwords being hashed
+	 */
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+	
+	/**
+	 * 
+	 * @return the number of passwords that have been hashed
+	 */
+	public long getCompletedCount() {
+		return executor.getCompletedTaskCount();
+	}
+	
+	/**
+	 * 
+	 * @return the number of passwords that were rejected
+	 */
+	public long getRejectedCount() {
+		return rejections.get();
+	}
+	
+	/**
+	 * Hashes a password on the calling thread, with the
+	 * <code>SecretKeyFactory</code> of the thread.
+	 * 
+	 * @param password   the password
+	 * @param salt       the salt
+	 * @param algorithm  the <code>SecretKeyFactory</code> algorithm
+	 * @param iterations the number of iterations
+	 * @param keyLength  the length of the hash in bits
+	 * @return           the hash
+	 */
+	public static byte[] computeHash(String password, byte[] salt, String algorithm,
+			int iterations, int keyLength) {
+			
+		PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+		
+		try {
+			return getFactory(algorithm).generateSecret(spec).getEncoded();
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException("The password could not be hashed with " + algorithm, e);
+		} finally {
+			spec.clearPassword();
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param algorithm the <code>SecretKeyFactory</code> algorithm
+	 * @return          the <code>SecretKeyFactory</code> of the calling
+	 * 					thread for <code>algorithm</code>
+	 * @throws NoSuchAlgorithmException if the algorithm is not supported
+	 */
+	private static SecretKeyFactory getFactory(String algorithm) throws NoSuchAlgorithmException {
+		
+		Map<String, SecretKeyFactory> factories = FACTORIES.get();
+		SecretKeyFactory factory = factories.get(algorithm);
+		
+		if(factory == null) {
+			factory = SecretKeyFactory.getInstance(algorithm);
+			factories.put(algorithm, factory);
+		}
+		
+		return factory;
+		
+	}
+	
+	/**
+	 * Creates the thread pool. An unsupported algorithm is replaced by the
+	 * legacy one, so that users can still log in.
+	 */
+	private void start(String algorithm, int iterations, int threads,
+			int queueCapacity, long maxWaitMillis) {
+			
+		try {
+			SecretKeyFactory.getInstance(algorithm);
+		} catch(NoSuchAlgorithmException e) {
+			LOGGER.warning("The password algorithm " + algorithm + " is not supported, so "
+					+ PasswordHash.LEGACY_ALGORITHM + " is used");
+			algorithm = PasswordHash.LEGACY_ALGORITHM;
+		}
+		
+		this.algorithm = algorithm;
+		this.iterations = iterations;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+		
+		AtomicInteger threadNumber = new AtomicInteger();
+		ThreadFactory threadFactory = runnable -> {
+			Thread thread = new Thread(runnable, "password-hasher-" + threadNumber.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		
+		executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), threadFactory,
+				new ThreadPoolExecutor.AbortPolicy());
+				
+	}
+	
+	/**
+	 * Runs <code>task</code> on the thread pool. If the queue is full, or the
+	 * task waits longer than allowed, the future fails with a
+	 * <code>RejectedExecutionException</code>.
+	 * 
+	 * @param task the hashing work
+	 * @return     a future of the result of <code>task</code>
+	 */
+	private <T> CompletableFuture<T> submit(Supplier<T> task) {
+		
+		CompletableFuture<T> future = new CompletableFuture<>();
+		long queuedAt = System.nanoTime();
+		
+		try {
+			
+			executor.execute(() -> {
+				
+				if(System.nanoTime() - queuedAt > maxWaitNanos) {
+					rejections.incrementAndGet();
+					future.completeExceptionally(new RejectedExecutionException(
+							"The password waited too long to be hashed"));
+					return;
+				}
+				
+				try {
+					future.complete(task.get());
+				} catch(RuntimeException e) {
+					future.completeExceptionally(e);
+				}
+				
+			});
+			
+		} catch(RejectedExecutionException e) {
+			rejections.incrementAndGet();
+			future.completeExceptionally(e);
+		}
+		
+		return future;
+		
+	}
+	
+	/**
+	 * 
+	 * @param context      the <code>ServletContext</code> of the web
+	 * 					   application
+	 * @param name         the name of the context parameter
+	 * @param defaultValue the value to use if the parameter is not set
+	 * @return             the value of the parameter
+	 */
+	private static int getInteger(ServletContext context, String name, int defaultValue) {
+		
+		String value = context.getInitParameter(name);
+		
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			LOGGER.warning("The context parameter " + name + " must be a number, but was " + value);
+			return defaultValue;
+		}
+		
+	}
+
+}
@@ -10,18 +10,19 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
-import org.bson.types.ObjectId;
-
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
-import com.therapy.entities.Chat;
 import com.therapy.entities.Message;
-import com.therapy.entities.Patient;
+import com.therapy.entities.reactive.ReactiveEntities;
+import com.therapy.messaging.MessageCache;
 
 /**
  * This class is an asynchronous servlet that adds the <code>Message</code>
  * specified in the HTTP request parameter <code>message</code> to the
- * <code>Chat</code> that is currently in use.
+ * <code>Chat</code> that is currently in use. The <code>Message</code> is then
+ * written through to the <code>MessageCache</code> and pushed to every open 
+ * <code>ChatStream</code> of the <code>Chat</code>.
+ * 
+ * The database is accessed through <code>ReactiveEntities</code>, so no thread
+ * is held while waiting for it.
  * 
  * @author Yousef Bulbulia
  *
@@ -39,44 +40,24 @@ public class AsyncAddMessageServlet extends HttpServlet {
 		
 	    response.setContentType("text/html;charset=UTF-8");
 	    final AsyncContext acontext = request.startAsync();
-	    acontext.start(new Runnable() {
-	    	  
-	    	public void run() {
-	    		
-	    		MongoClient client = Util.getMongoClient();
-	    		MongoDatabase database = client.getDatabase(Util.DATABASE_NAME);
-	    		  
-	    		//Get message from POST request
-	    		String messageContent = request.getParameter("message");
-	    		  
-	    		//Add message to chat
-	    		HttpSession session = request.getSession();
-	    		String userType = (String)session.getAttribute("userType");
-	    		if(userType.equals("Patient")) {
-	    			  
-	    			Patient patient = new Patient((ObjectId)session.getAttribute("id"), database);
-		    		Chat chat = patient.getChat();
-		    		  
-		    		Message message = new Message(chat.getPatient(), chat.getTherapist(),
-		    				true, messageContent, database);
-		    		
-		    		chat.addMessage(message);
-		    		  
-	    		} else {
-	    			  
-	    			Chat chat = (Chat)session.getAttribute("chat");
-	    			  
-	    			Message message = new Message(chat.getPatient(), chat.getTherapist(),
-	    					false, messageContent, database);
-	    			
-		    		chat.addMessage(message);
-	    			  
-	    		}
-	    		
-	    		acontext.complete();
-	    		  
-	    	}
-	    	  
+	    
+	    //Read the session and parameters before the request is released
+	    HttpSession session = request.getSession();
+	    boolean senderIsPatient = "Patient".equals(session.getAttribute("userType"));
+	    String messageContent = request.getParameter("message");
+	    ChatStreamRegistry registry = ChatStreamRegistry.get(getServletContext());
+	    MessageCache messageCache = MessageCache.get(getServletContext());
+	    
+	    AsyncExecutor.get(getServletContext()).executeAsync("addMessage", acontext, () -> {
+	    	
+	    	ReactiveEntities entities = new ReactiveEntities(Util.getReactiveDatabase(), messageCache);
+	    	
+	    	//Add message to chat, then push it to the open streams of the chat
+	    	return Util.getCurrentChat(session, entities)
+	    			.thenCompose(chat -> entities.addMessage(chat, senderIsPatient, messageContent))
+	    			.thenAccept(message -> registry.publish(message.getObjectId("chat_id"), 
+	    					new Message(message, Util.getDatabase())));
+	    	
 	    });
 	      
 	}
@@ -8,20 +8,18 @@ import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.bson.types.ObjectId;
 
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
-import com.therapy.entities.Patient;
-import com.therapy.entities.Request;
-import com.therapy.entities.Therapist;
+import com.therapy.entities.reactive.ReactiveEntities;
 
 /**
  * This class is an asynchronous servlet that adds a <code>Request</code> to
  * the requesting <code>Patient</code> and requested <code>Therapist</code>.
  * 
+ * The database is accessed through <code>ReactiveEntities</code>, so no thread
+ * is held while waiting for it.
+ * 
  * @author Yousef Bulbulia
  *
  */
@@ -30,7 +28,8 @@ public class AsyncAddRequestServlet extends HttpServlet {
 	
 	/**
 	 * Adds a <code>Request</code> to the requesting <code>Patient</code> and
-	 * requested <code>Therapist</code>.
+	 * requested <code>Therapist</code>. The <code>AsyncContext</code> is 
+	 * completed by the <code>AsyncExecutor</code> once it has been added.
 	 */
 	@Override
 	public void doPost(HttpServletRequest request, 
@@ -38,33 +37,19 @@ public class AsyncAddRequestServlet extends HttpServlet {
 		
 		response.setContentType("text/html;charset=UTF-8");
 	    final AsyncContext acontext = request.startAsync();
-	    acontext.start(new Runnable() {
-	    	  
-	    	public void run() {
-	    		
-	    		MongoClient mongoClient = Util.getMongoClient();
-	    		MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);
-	    		
-	    		ObjectId therapistId = new ObjectId(request.getParameter("id"));
-	    		Therapist therapist = new Therapist(therapistId, database);
-	    		  
-	    		HttpSession session = request.getSession();
-	    		Patient patient = new Patient((ObjectId)session.getAttribute("id"), database);
-	    		  
-	    		Request newRequest = new Request(patient, therapist, database);
-	    		  
-	    		patient.addRequest(newRequest);
-	    		therapist.addRequest(newRequest);
-	    		  
-	    		acontext.complete();
-	    		  
-	    	}
-    		  
-    	});
+	    
+	    //Read the session and parameters before the request is released
+	    ObjectId therapistId = new ObjectId(request.getParameter("id"));
+	    ObjectId patientId = (ObjectId)request.getSession().getAttribute("id");
+	    
+	    AsyncExecutor.get(getServletContext()).executeAsync("addRequest", acontext, () -> {
+	    	
+	    	//Add the request to the patient and therapist without blocking
+	    	ReactiveEntities entities = new ReactiveEntities(Util.getReactiveDatabase());
+	    	return entities.addRequest(patientId, therapistId);
+	    	
+	    });
     	  
     }
       
 }
-	    	  
-	
-
@@ -1,14 +1,18 @@
 package com.therapy.servlets;
 
 import java.io.IOException;
-import java.util.concurrent.TimeUnit;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.GZIPOutputStream;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 import javax.servlet.AsyncContext;
-import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -16,24 +20,55 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import org.bson.Document;
 import org.bson.types.ObjectId;
 
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoDatabase;
-import com.therapy.entities.Chat;
-import com.therapy.entities.Message;
-import com.therapy.entities.Patient;
+import com.therapy.entities.reactive.ReactiveEntities;
+import com.therapy.messaging.MessageCache;
 
 /**
  * This class is an asynchronous servlet that gets new <code>Message</code>
  * objects in the current <code>Chat</code>.
  * 
- * It retrieves <code>Message</code> objects that were inserted after the last 
- * time it was executed, or the most recent 15 <code>Message</code> objects in 
- * the current <code>Chat</code> if the servlet is executing for the first time. 
+ * Each browser keeps its own watermark, which is the <code>_id</code> field
+ * of the newest <code>Message</code> it has displayed, and sends it as the 
+ * <code>after</code> parameter. The servlet retrieves up to 
+ * <code>MAX_NEW_MESSAGES</code> <code>Message</code> objects that were 
+ * inserted after it, with a range scan of the <code>{chat_id, _id}</code> 
+ * index, so a poll takes the same time no matter how long the 
+ * <code>Chat</code> is. Without a watermark, the most recent 
+ * <code>INITIAL_MESSAGES</code> <code>Message</code> objects are retrieved.
+ * 
+ * The <code>_id</code> fields are made by the website before the messages
+ * are inserted, so two messages sent at once can be committed in the 
+ * opposite order of their <code>_id</code> fields. A poll that sees only the
+ * newer one would move the watermark past the older one, which would then 
+ * never be displayed. So each poll reads again the messages from 
+ * <code>OVERLAP_SECONDS</code> before the watermark, and the browser skips 
+ * the ones it has already displayed by their <code>id</code>. A message
+ * committed more than <code>OVERLAP_SECONDS</code> after its 
+ * <code>_id</code> was made can still be missed.
  * 
  * The new <code>Message</code> objects are then written as a JSON array 
- * through the HTTP response. 
+ * through the HTTP response, with the <code>_id</code> field of the newest 
+ * one as <code>lastId</code>, which is the watermark for the next poll. The
+ * servlet answers immediately, so the browser decides how often to poll. 
+ * 
+ * The JSON is written with a <code>JsonGenerator</code> straight from the 
+ * <code>Document</code>s of the messages onto the response, so no JSON tree 
+ * is built and no message is read again. If the browser accepts it and the 
+ * <code>messages.gzip</code> context parameter is not false, the response is
+ * compressed with gzip. Every response has an <code>ETag</code> made from 
+ * the chat and the messages in it. A poll that sends the same 
+ * <code>ETag</code> back in <code>If-None-Match</code> and has nothing new 
+ * is answered with 304 Not Modified and no body.
+ * 
+ * Browsers that support Server-Sent Events use <code>ChatStreamServlet</code>
+ * instead, and this servlet is only a fallback for the ones that do not.
+ * 
+ * The database is accessed through <code>ReactiveEntities</code>, so no thread
+ * is held while waiting for it. The messages of chats that are in use are 
+ * read from the <code>MessageCache</code>.
  * 
  * @author Yousef Bulbulia
  *
@@ -41,6 +76,27 @@ import com.therapy.entities.Patient;
 @WebServlet(urlPatterns={"/asyncDisplayMessages"}, asyncSupported=true)
 public class AsyncDisplayMessagesServlet extends HttpServlet {
 	
+	/**
+	 * The number of messages shown when a chat is opened.
+	 */
+	public static final int INITIAL_MESSAGES = 15;
+	
+	/**
+	 * The highest number of new messages returned by one poll. A browser 
+	 * that is further behind catches up over the next polls.
+	 */
+	public static final int MAX_NEW_MESSAGES = 100;
+	
+	/**
+	 * How far behind the watermark each poll reads again, in seconds, to 
+	 * find messages that were committed after newer ones. 
+	 * <code>loadMessages.js</code> keeps the ids of this window to skip 
+	 * them, so the two must be changed together.
+	 */
+	public static final int OVERLAP_SECONDS = 2;
+	
+	private static final JsonGeneratorFactory GENERATOR_FACTORY = Json.createGeneratorFactory(null);
+	
 	/**
 	 * Retrieves the new <code>Message</code> objects and writes them in JSON
 	 * format through the HTTP response.
@@ -51,93 +107,208 @@ public class AsyncDisplayMessagesServlet extends HttpServlet {
 		
 		response.setContentType("text/html;charset=UTF-8");
 	    final AsyncContext acontext = request.startAsync();
-	    acontext.start(new Runnable() {
-	    	  
-	        public void run() {
+	    
+	    //Get the watermark of the browser
+	    HttpSession session = request.getSession();
+	    String after = request.getParameter("after");
+	    ObjectId watermark = after != null && ObjectId.isValid(after) ? new ObjectId(after) : null;
+	    
+	    String ifNoneMatch = request.getHeader("If-None-Match");
+	    boolean gzip = acceptsGzip(request) 
+	    		&& !"false".equalsIgnoreCase(getServletContext().getInitParameter("messages.gzip"));
+	    MessageCache messageCache = MessageCache.get(getServletContext());
+	    
+	    AsyncExecutor.get(getServletContext()).executeAsync("displayMessages", acontext, () -> {
+	    	
+	    	ReactiveEntities entities = new ReactiveEntities(Util.getReactiveDatabase(), messageCache);
+	    	
+	    	//Get the new messages of the current Chat
+	    	return Util.getCurrentChat(session, entities).thenCompose(chat -> {
 	    		
-	        	//Wait for 1 second
-				try {
-					TimeUnit.MILLISECONDS.sleep(1 * 1000);
-	    		} catch(InterruptedException e) {
-	    			e.printStackTrace();	  
-	    	    }
-				
-				//Get the connection to the database
-				MongoClient client = new MongoClient(/*...*/);
-				MongoDatabase database = client.getDatabase(Util.DATABASE_NAME);
-				
-				//Get the current Chat
-				HttpSession session = request.getSession();
-				Chat chat = null;
-				if(session.getAttribute("userType") == "Patient") {
-					chat = new Patient((ObjectId)session.getAttribute("id"), database).getChat();
-				} else if(session.getAttribute("userType") == "Therapist") {
-					chat = (Chat)session.getAttribute("chat");
-				}
-				
-				//Get the data previously set to the ServletContext
-				ServletContext context = session.getServletContext();
-				boolean isNewMessagingSession = (boolean)context.getAttribute("isNewMessagingSession");
-				Message mostRecentMessage = (Message)context.getAttribute("mostRecentMessage");
-				
-				//Get the new messages
-				Message[] newMessages = null;
-				if(isNewMessagingSession) {
-					newMessages = chat.getPreviousMessages(15);
-		    		context.setAttribute("isNewMessagingSession", false);
-				} else if(mostRecentMessage != null) {
-					newMessages = chat.getMessagesSince(mostRecentMessage);
-		    	}
-				
-				mostRecentMessage = newMessages[newMessages.length - 1];
-				context.setAttribute("mostRecentMessage", mostRecentMessage);
-				
-				/*
-				 * Convert newMessages into a JSON array 
-				 * contained within a JSON object
-				 */
-				JsonObject messageContainer;
-				
-				JsonArrayBuilder arrayBuilder = Json.createArrayBuilder();
-				
-				for(int i = 0; i < newMessages.length; i++) {
-					
-					JsonObject messageObject = null;
-					if(newMessages[i].senderIsPatient()) {
-						messageObject = Json.createObjectBuilder()
-							.add("content", newMessages[i].getContent())
-							.add("userType", "Patient")
-							.build();
-					} else {
-						messageObject = Json.createObjectBuilder()
-							.add("content", newMessages[i].getContent())
-							.add("userType", "Therapist")
-							.build();
-					}
-					
-					arrayBuilder.add(messageObject);
-					
-				}
-				
-				messageContainer = Json.createObjectBuilder()
-					.add("messages", arrayBuilder)
-					.build();
-				
-				//Write the JSON object to the response
-				response.setContentType("application/json");
-				response.setCharacterEncoding("UTF-8");
-				try {
-					response.getWriter().write(messageContainer.toString());
-				} catch (IOException e) {
-					e.printStackTrace();
+	    		ObjectId chatId = chat.getObjectId("_id");
+	    		
+	    		if(watermark == null) {
+	    			return entities.getMessagesBefore(chatId, null, INITIAL_MESSAGES);
+	    		}
+	    		
+	    		return entities.getMessagesAfter(chatId, getOverlapStart(watermark), MAX_NEW_MESSAGES)
+	    				.thenCompose(newMessages -> {
+	    					
+	    					/*
+	    					 * If the overlap alone fills the answer, read after 
+	    					 * the watermark instead, so that the browser does not
+	    					 * get the same messages forever
+	    					 */
+	    					if(newMessages.size() == MAX_NEW_MESSAGES && !isAfter(newMessages, watermark)) {
+	    						return entities.getMessagesAfter(chatId, watermark, MAX_NEW_MESSAGES);
+	    					}
+	    					
+	    					return CompletableFuture.completedFuture(newMessages);
+	    					
+	    				});
+	    		
+	    	}).thenAccept(newMessages -> {
+	    		
+	    		try {
+	    			writeMessages(response, newMessages, ifNoneMatch, gzip);
+	    		} catch (IOException e) {
+					throw new UncheckedIOException(e);
 				}
-				
-				acontext.complete();
-				  
-	    	}
-	    	  
+	    		
+	    	});
+	    	
 	    });
 	     
-	}     
+	}
+	
+	/**
+	 * 
+	 * @param watermark the <code>_id</code> field of the newest message the
+	 * 					browser has displayed
+	 * @return          the smallest <code>_id</code> field that could have 
+	 * 					been made <code>OVERLAP_SECONDS</code> before 
+	 * 					<code>watermark</code>
+	 */
+	static ObjectId getOverlapStart(ObjectId watermark) {
+		return new ObjectId(Math.max(watermark.getTimestamp() - OVERLAP_SECONDS, 0), 0, (short)0, 0);
+	}
+	
+	/**
+	 * 
+	 * @param messages  the <code>Document</code>s of the messages, from the 
+	 * 					oldest to the newest
+	 * @param watermark the <code>_id</code> field of the newest message the
+	 * 					browser has displayed
+	 * @return          <code>true</code> if the newest message is newer than
+	 * 					<code>watermark</code>
+	 */
+	private static boolean isAfter(List<Document> messages, ObjectId watermark) {
+		return !messages.isEmpty() 
+				&& messages.get(messages.size() - 1).getObjectId("_id").compareTo(watermark) > 0;
+	}
+	
+	/**
+	 * Writes <code>messages</code> as a JSON object with a 
+	 * <code>messages</code> array, where each message has an 
+	 * <code>id</code>, a <code>content</code> and a <code>userType</code>, 
+	 * and, if there are any messages, the <code>_id</code> field of the 
+	 * newest one as <code>lastId</code>. If 
+	 * <code>ifNoneMatch</code> matches the <code>ETag</code> of the messages,
+	 * only the status 304 is sent.
+	 * 
+	 * @param response    the HTTP response
+	 * @param messages    the <code>Document</code>s of the messages
+	 * @param ifNoneMatch the <code>If-None-Match</code> header of the 
+	 * 					  request, or null
+	 * @param gzip        whether to compress the response with gzip
+	 */
+	static void writeMessages(HttpServletResponse response, List<Document> messages, 
+			String ifNoneMatch, boolean gzip) throws IOException {
+		
+		String etag = getETag(messages);
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", "private, no-cache");
+		response.setHeader("Vary", "Accept-Encoding");
+		
+		if(matches(ifNoneMatch, etag)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		
+		OutputStream out = response.getOutputStream();
+		if(gzip && !messages.isEmpty()) {
+			response.setHeader("Content-Encoding", "gzip");
+			out = new GZIPOutputStream(out);
+		}
+		
+		try(JsonGenerator generator = GENERATOR_FACTORY.createGenerator(out, StandardCharsets.UTF_8)) {
+			
+			generator.writeStartObject();
+			if(!messages.isEmpty()) {
+				generator.write("lastId", messages.get(messages.size() - 1).getObjectId("_id").toHexString());
+			}
+			
+			generator.writeStartArray("messages");
+			for(Document message : messages) {
+				
+				generator.writeStartObject()
+						.write("id", message.getObjectId("_id").toHexString())
+						.write("content", message.getString("content"))
+						.write("userType", message.getBoolean("sender_is_patient", false) ? "Patient" : "Therapist")
+						.writeEnd();
+				
+			}
+			generator.writeEnd().writeEnd();
+			
+		}
+		
+	}
+	
+	/**
+	 * Makes the <code>ETag</code> of a response from the newest message in 
+	 * it and the number of messages. Both change whenever the response 
+	 * would, so the JSON does not need to be hashed. It is a weak 
+	 * <code>ETag</code>, as the response may or may not be compressed.
+	 * 
+	 * @param messages the <code>Document</code>s of the messages, from the 
+	 * 				   oldest to the newest
+	 * @return         the <code>ETag</code>
+	 */
+	static String getETag(List<Document> messages) {
+		
+		if(messages.isEmpty()) {
+			return "W/\"empty\"";
+		}
+		
+		ObjectId newest = messages.get(messages.size() - 1).getObjectId("_id");
+		return "W/\"" + newest.toHexString() + "-" + messages.size() + "\"";
+		
+	}
+	
+	/**
+	 * 
+	 * @param ifNoneMatch the <code>If-None-Match</code> header of a request,
+	 * 					  or null
+	 * @param etag        the <code>ETag</code> of the response
+	 * @return            <code>true</code> if one of the tags in the header
+	 * 					  matches <code>etag</code>
+	 */
+	private static boolean matches(String ifNoneMatch, String etag) {
+		
+		if(ifNoneMatch == null) {
+			return false;
+		}
+		
+		//Weak comparison, which ignores the W/ prefix
+		String opaqueTag = etag.substring(2);
+		for(String tag : ifNoneMatch.split(",")) {
+			
+			tag = tag.trim();
+			if(tag.equals("*") || tag.equals(etag) || tag.equals(opaqueTag) 
+					|| (tag.startsWith("W/") && tag.substring(2).equals(opaqueTag))) {
+				return true;
+			}
+			
+		}
+		
+		return false;
+		
+	}
+	
+	/**
+	 * 
+	 * @param request the HTTP request
+	 * @return        <code>true</code> if the browser accepts responses 
+	 * 				  compressed with gzip
+	 */
+	private static boolean acceptsGzip(HttpServletRequest request) {
+		
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		return acceptEncoding != null && acceptEncoding.toLowerCase(Locale.ROOT).contains("gzip");
+		
+	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,453 @@
+package com.therapy.servlets;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * This class runs the work of the asynchronous servlets on a thread pool of 
+ * its own, instead of the container's request threads. 
+ * 
+ * The pool has a bounded queue, and every endpoint can be limited to a number
+ * of tasks that run or wait at once, so that one busy endpoint cannot take 
+ * all of the threads. When either limit is reached, the request is answered 
+ * with <code>503 Service Unavailable</code> and a <code>Retry-After</code> 
+ * header instead of waiting.
+ * 
+ * It is configured with the following context parameters in web.xml:
+ * 
+ * <ul>
+ * 	<li><code>async.threads</code> - the number of threads in the pool. The
+ * 		default is twice the number of processors.</li>
+ * 	<li><code>async.queueCapacity</code> - the number of tasks that may wait
+ * 		for a thread. The default is 1000.</li>
+ * 	<li><code>async.virtualThreads</code> - if <code>true</code>, and the 
+ * 		JVM supports virtual threads, each task runs on a new virtual thread.
+ * 		The pool size and queue capacity together still limit the number of 
+ * 		tasks at once.</li>
+ * 	<li><code>async.retryAfterSeconds</code> - the value of the 
+ * 		<code>Retry-After</code> header. The default is 1.</li>
+ * 	<li><code>async.limit.&lt;endpoint&gt;</code> - the number of tasks of 
+ * 		the endpoint that may run or wait at once. By default an endpoint
+ * 		has no limit of its own.</li>
+ * </ul>
+ * 
+ * It is a <code>ServletContextListener</code> so that the pool is shut down 
+ * with the web application. The instance is stored in the 
+ * <code>ServletContext</code> and retrieved with <code>get</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class AsyncExecutor implements ServletContextListener {
+
+	private static final String ATTRIBUTE_NAME = AsyncExecutor.class.getName();
+	
+	private ServletContext context;
+	private ExecutorService executor;
+	private Semaphore capacity;
+	private int retryAfterSeconds;
+	private boolean virtualThreads;
+	
+	private final Map<String, Semaphore> endpointLimits = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> rejections = new ConcurrentHashMap<>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger active = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>AsyncExecutor</code> of the web application
+	 */
+	public static AsyncExecutor get(ServletContext context) {
+		return (AsyncExecutor)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Creates the thread pool and stores this <code>AsyncExecutor</code> in 
+	 * the <code>ServletContext</code>.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		context = event.getServletContext();
+		
+		int threads = getInteger("async.threads", Runtime.getRuntime().availableProcessors() * 2);
+		int queueCapacity = getInteger("async.queueCapacity", 1000);
+		retryAfterSeconds = getInteger("async.retryAfterSeconds", 1);
+		capacity = new Semaphore(threads + queueCapacity);
+		
+		if(Boolean.parseBoolean(context.getInitParameter("async.virtualThreads"))) {
+			executor = newVirtualThreadExecutor();
+		}
+		
+		virtualThreads = executor != null;
+		if(!virtualThreads) {
+			
+			AtomicInteger threadNumber = new AtomicInteger();
+			ThreadFactory threadFactory = runnable -> {
+				Thread thread = new Thread(runnable, "async-servlet-" + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			};
+			
+			executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, 
+					new ArrayBlockingQueue<>(queueCapacity), threadFactory, 
+					new ThreadPoolExecutor.AbortPolicy());
+			
+		}
+		
+		context.setAttribute(ATTRIBUTE_NAME, this);
+		Util.LOGGER.info("Asynchronous servlets run on " + (virtualThreads ? "virtual threads" 
+				: threads + " threads") + " with room for " + queueCapacity + " waiting tasks");
+		
+	}
+	
+	/**
+	 * Shuts down the thread pool, giving running tasks a few seconds to 
+	 * finish.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+		executor.shutdown();
+		
+		try {
+			if(!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+				executor.shutdownNow();
+			}
+		} catch(InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+		
+	}
+	
+	/**
+	 * Runs <code>task</code> on the thread pool. The task must complete 
+	 * <code>acontext</code> itself. If the pool or the endpoint is saturated,
+	 * the task is not run, and the request is answered with 
+	 * <code>503 Service Unavailable</code>.
+	 * 
+	 * @param endpoint the name of the endpoint the task belongs to
+	 * @param acontext the <code>AsyncContext</code> of the request
+	 * @param task     the work of the request
+	 * @return         <code>true</code> if the task was accepted
+	 */
+	public boolean execute(String endpoint, AsyncContext acontext, Runnable task) {
+		
+		Semaphore endpointLimit = getEndpointLimit(endpoint);
+		
+		if(!acquire(endpointLimit)) {
+			reject(endpoint, acontext);
+			return false;
+		}
+		
+		queued.incrementAndGet();
+		try {
+			
+			executor.execute(() -> {
+				
+				queued.decrementAndGet();
+				active.incrementAndGet();
+				try {
+					task.run();
+				} catch(RuntimeException e) {
+					fail(endpoint, acontext, e);
+				} finally {
+					active.decrementAndGet();
+					completed.incrementAndGet();
+					release(endpointLimit);
+				}
+				
+			});
+			
+		} catch(RejectedExecutionException e) {
+			
+			queued.decrementAndGet();
+			release(endpointLimit);
+			reject(endpoint, acontext);
+			return false;
+			
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Starts a non-blocking task on the calling thread. No thread of the pool
+	 * is used, but the task counts towards the same limits as the tasks given
+	 * to <code>execute</code> until its future completes. 
+	 * 
+	 * When the future completes, <code>acontext</code> is completed, so the
+	 * task must not complete it itself. If the future fails, the request is
+	 * answered with <code>500 Internal Server Error</code>. If the pool or 
+	 * the endpoint is saturated, the task is not started, and the request is
+	 * answered with <code>503 Service Unavailable</code>.
+	 * 
+	 * @param endpoint the name of the endpoint the task belongs to
+	 * @param acontext the <code>AsyncContext</code> of the request
+	 * @param task     starts the work of the request and returns its future
+	 * @return         <code>true</code> if the task was accepted
+	 */
+	public boolean executeAsync(String endpoint, AsyncContext acontext, 
+			Supplier<? extends CompletionStage<?>> task) {
+		
+		Semaphore endpointLimit = getEndpointLimit(endpoint);
+		
+		if(!acquire(endpointLimit)) {
+			reject(endpoint, acontext);
+			return false;
+		}
+		
+		active.incrementAndGet();
+		
+		CompletionStage<?> stage;
+		try {
+			stage = task.get();
+		} catch(RuntimeException e) {
+			
+			CompletableFuture<Object> failed = new CompletableFuture<>();
+			failed.completeExceptionally(e);
+			stage = failed;
+			
+		}
+		
+		stage.whenComplete((result, throwable) -> {
+			
+			active.decrementAndGet();
+			completed.incrementAndGet();
+			release(endpointLimit);
+			
+			if(throwable != null) {
+				fail(endpoint, acontext, throwable);
+			} else {
+				acontext.complete();
+			}
+			
+		});
+		
+		return true;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the number of tasks waiting for a thread
+	 */
+	public int getQueueDepth() {
+		return queued.get();
+	}
+	
+	/**
+	 * 
+	 * @return the number of tasks that are running
+	 */
+	public int getActiveCount() {
+		return active.get();
+	}
+	
+	/**
+	 * 
+	 * @return the number of tasks that have finished running
+	 */
+	public long getCompletedCount() {
+		return completed.get();
+	}
+	
+	/**
+	 * 
+	 * @return <code>true</code> if tasks run on virtual threads
+	 */
+	public boolean usesVirtualThreads() {
+		return virtualThreads;
+	}
+	
+	/**
+	 * 
+	 * @return the number of rejected tasks of each endpoint
+	 */
+	public Map<String, Long> getRejections() {
+		
+		Map<String, Long> counts = new TreeMap<>();
+		rejections.forEach((endpoint, count) -> counts.put(endpoint, count.get()));
+		return counts;
+		
+	}
+	
+	/**
+	 * 
+	 * @param endpoint the name of the endpoint
+	 * @return         the limit of the endpoint, or null if it has none
+	 */
+	private Semaphore getEndpointLimit(String endpoint) {
+		
+		String value = context.getInitParameter("async.limit." + endpoint);
+		if(value == null) {
+			return null;
+		}
+		
+		return endpointLimits.computeIfAbsent(endpoint, 
+				e -> new Semaphore(getInteger("async.limit." + endpoint, Integer.MAX_VALUE)));
+		
+	}
+	
+	/**
+	 * Takes room for one task from the pool and from the endpoint.
+	 * 
+	 * @param endpointLimit the limit of the endpoint, or null if it has none
+	 * @return              <code>false</code> if there is no room
+	 */
+	private boolean acquire(Semaphore endpointLimit) {
+		
+		if(!capacity.tryAcquire()) {
+			return false;
+		}
+		
+		if(endpointLimit != null && !endpointLimit.tryAcquire()) {
+			capacity.release();
+			return false;
+		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Gives back the room taken by <code>acquire</code>.
+	 * 
+	 * @param endpointLimit the limit of the endpoint, or null if it has none
+	 */
+	private void release(Semaphore endpointLimit) {
+		
+		capacity.release();
+		if(endpointLimit != null) {
+			endpointLimit.release();
+		}
+		
+	}
+	
+	/**
+	 * Answers a request with <code>503 Service Unavailable</code> because 
+	 * there is no room for its task.
+	 * 
+	 * @param endpoint the name of the endpoint the task belongs to
+	 * @param acontext the <code>AsyncContext</code> of the request
+	 */
+	private void reject(String endpoint, AsyncContext acontext) {
+		
+		rejections.computeIfAbsent(endpoint, e -> new AtomicLong()).incrementAndGet();
+		
+		HttpServletResponse response = (HttpServletResponse)acontext.getResponse();
+		response.setHeader("Retry-After", String.valueOf(retryAfterSeconds));
+		try {
+			response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+		} catch(IOException e) {
+			Util.LOGGER.log(Level.FINE, "The 503 response could not be sent", e);
+		}
+		acontext.complete();
+		
+	}
+	
+	/**
+	 * Answers a request with <code>500 Internal Server Error</code> because 
+	 * its task failed.
+	 * 
+	 * @param endpoint the name of the endpoint the task belongs to
+	 * @param acontext the <code>AsyncContext</code> of the request
+	 * @param e        the exception the task failed with
+	 */
+	private void fail(String endpoint, AsyncContext acontext, Throwable e) {
+		
+		if(e instanceof CompletionException && e.getCause() != null) {
+			e = e.getCause();
+		}
+		
+		Util.LOGGER.log(Level.SEVERE, "The " + endpoint + " task failed", e);
+		
+		try {
+			
+			HttpServletResponse response = (HttpServletResponse)acontext.getResponse();
+			if(!response.isCommitted()) {
+				response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+			acontext.complete();
+			
+		} catch(IOException | IllegalStateException ignored) {
+			//The task already completed the request
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param name         the name of the context parameter
+	 * @param defaultValue the value to use if the parameter is not set
+	 * @return             the value of the parameter
+	 */
+	private int getInteger(String name, int defaultValue) {
+		
+		String value = context.getInitParameter(name);
+		
+		if(value == null || value.trim().isEmpty()) {
+			return defaultValue;
+		}
+		
+		try {
+			return Integer.parseInt(value.trim());
+		} catch(NumberFormatException e) {
+			Util.LOGGER.warning("The context parameter " + name + " must be a number, but was " + value);
+			return defaultValue;
+		}
+		
+	}
+	
+	/**
+	 * Creates an <code>ExecutorService</code> that starts a virtual thread
+	 * for each task. It is looked up by reflection, as virtual threads only 
+	 * exist on JDK 21 and later.
+	 * 
+	 * @return the <code>ExecutorService</code>, or null if virtual threads 
+	 * 		   are not supported
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		
+		try {
+			
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+			
+		} catch(ReflectiveOperationException e) {
+			Util.LOGGER.warning("Virtual threads are not supported by this JVM, so a thread pool is used");
+			return null;
+		}
+		
+	}
+	
+}
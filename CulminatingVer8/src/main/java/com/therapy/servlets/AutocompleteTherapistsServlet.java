@@ -0,0 +1,78 @@
+package com.therapy.servlets;
+
+import java.io.IOException;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.therapy.directory.DirectoryEntry;
+import com.therapy.directory.TherapistDirectory;
+
+/**
+ * This class is a servlet that suggests therapists while a patient types in
+ * the search box of patientHomepage.jsp. The therapists are found in the
+ * <code>TherapistDirectory</code>, so no queries are made.
+ * 
+ * The <code>q</code> parameter is the start of the name that was typed, and
+ * the <code>limit</code> parameter is the maximum number of suggestions, up
+ * to <code>MAX_LIMIT</code>. The suggestions are written as a JSON object
+ * with a <code>therapists</code> array, where each therapist has an
+ * <code>id</code>, a <code>name</code> and, if they have one, a
+ * <code>rating</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@WebServlet("/autocompleteTherapists")
+public class AutocompleteTherapistsServlet extends HttpServlet {
+	
+	public static final int DEFAULT_LIMIT = 10;
+	public static final int MAX_LIMIT = 25;
+	
+	/**
+	 * Writes the suggestions as a JSON object.
+	 */
+	@Override
+	public void doGet(HttpServletRequest request,
+			HttpServletResponse response) throws IOException, ServletException {
+			
+		String prefix = request.getParameter("q");
+		int limit = DEFAULT_LIMIT;
+		try {
+			limit = Math.min(Math.max(Integer.parseInt(request.getParameter("limit")), 0), MAX_LIMIT);
+		} catch(NumberFormatException e) {
+			//Use the default limit
+		}
+		
+		JsonArrayBuilder therapists = Json.createArrayBuilder();
+		for(DirectoryEntry entry : TherapistDirectory.get(getServletContext()).search(prefix, limit)) {
+			
+			JsonObjectBuilder therapist = Json.createObjectBuilder()
+					.add("id", entry.getId().toHexString())
+					.add("name", entry.getName());
+					
+			if(entry.getRating() != null) {
+				therapist.add("rating", entry.getRating());
+			}
+			
+			therapists.add(therapist);
+			
+		}
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "private, max-age=5");
+		response.getWriter().write(Json.createObjectBuilder()
+				.add("therapists", therapists)
+				.build()
+				.toString());
+				
+	}
+
+}
@@ -0,0 +1,131 @@
+package com.therapy.servlets;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import javax.json.Json;
+import javax.servlet.AsyncContext;
+
+import org.bson.types.ObjectId;
+
+import com.therapy.entities.Message;
+
+/**
+ * This class represents one open Server-Sent Events connection to a 
+ * <code>Chat</code>. While it is open, no thread is held for it. Events are 
+ * written to it by whichever thread publishes them.
+ * 
+ * Each <code>Message</code> is sent as an event with the 
+ * <code>Message</code>'s <code>_id</code> field as the event id, so that a 
+ * reconnecting browser can send it back in the <code>Last-Event-ID</code> 
+ * header. The data of the event is a JSON object with the fields 
+ * <code>content</code> and <code>userType</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class ChatStream {
+
+	private final ObjectId chatId;
+	private final AsyncContext acontext;
+	private final PrintWriter writer;
+	private boolean closed;
+	
+	/**
+	 * Creates a new <code>ChatStream</code> that writes to the response of 
+	 * <code>acontext</code>.
+	 * 
+	 * @param chatId   the <code>_id</code> field of the <code>Chat</code>
+	 * 				   this stream belongs to
+	 * @param acontext the <code>AsyncContext</code> of the connection
+	 */
+	public ChatStream(ObjectId chatId, AsyncContext acontext) throws IOException {
+		
+		this.chatId = chatId;
+		this.acontext = acontext;
+		this.writer = acontext.getResponse().getWriter();
+		
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> field of the <code>Chat</code> this stream
+	 * 		   belongs to
+	 */
+	public ObjectId getChatId() {
+		return chatId;
+	}
+	
+	/**
+	 * Sends <code>message</code> as an event.
+	 * 
+	 * @param message the <code>Message</code> to send
+	 * @return        <code>false</code> if the connection is closed
+	 */
+	public boolean send(Message message) {
+		
+		String data = Json.createObjectBuilder()
+				.add("content", message.getContent())
+				.add("userType", message.senderIsPatient() ? "Patient" : "Therapist")
+				.build()
+				.toString();
+		
+		return write("id: " + message.getId().toHexString() + "\ndata: " + data + "\n\n");
+		
+	}
+	
+	/**
+	 * Sends a comment line, which browsers ignore. This keeps proxies from 
+	 * closing the idle connection and lets a closed connection be detected.
+	 * 
+	 * @return <code>false</code> if the connection is closed
+	 */
+	public boolean sendHeartbeat() {
+		return write(":\n\n");
+	}
+	
+	/**
+	 * Completes the <code>AsyncContext</code> of the connection.
+	 */
+	public synchronized void close() {
+		
+		if(!closed) {
+			
+			closed = true;
+			try {
+				acontext.complete();
+			} catch(IllegalStateException e) {
+				//The container already completed the connection
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Writes <code>event</code> and flushes it to the browser. If the write
+	 * fails, the connection is closed.
+	 * 
+	 * @param event the text of the event
+	 * @return      <code>false</code> if the connection is closed
+	 */
+	private synchronized boolean write(String event) {
+		
+		if(closed) {
+			return false;
+		}
+		
+		writer.write(event);
+		writer.flush();
+		
+		//PrintWriter does not throw IOExceptions, so they are checked for here
+		if(writer.checkError()) {
+			close();
+			return false;
+		}
+		
+		return true;
+		
+	}
+	
+}
@@ -0,0 +1,201 @@
+package com.therapy.servlets;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import org.bson.types.ObjectId;
+
+import com.therapy.entities.Message;
+import com.therapy.messaging.ChangeStreamMessageBus;
+import com.therapy.messaging.InMemoryMessageBus;
+import com.therapy.messaging.MessageCache;
+import com.therapy.messaging.MessageBus;
+
+/**
+ * This class keeps track of the open <code>ChatStream</code> connections of 
+ * every <code>Chat</code> on this server, and sends new <code>Message</code> 
+ * objects to the streams of the <code>Chat</code> they belong to.
+ * 
+ * New <code>Message</code> objects are published through a 
+ * <code>MessageBus</code>, which delivers them back to the registry of every
+ * server. The bus is chosen with the context parameter 
+ * <code>messageBus</code>: <code>memory</code> (the default) delivers only
+ * to this server, while <code>changeStream</code> watches the 
+ * <code>messages</code> collection so that several servers can run behind a 
+ * load balancer.
+ * 
+ * It is a <code>ServletContextListener</code> so that it is created when the 
+ * web application starts, and can close every stream when the web 
+ * application is shut down. It must be declared after 
+ * <code>MongoClientListener</code> and <code>MessageCache</code> in 
+ * web.xml. The instance is stored in the <code>ServletContext</code> and 
+ * retrieved with <code>get</code>.
+ * 
+ * A single thread sends a heartbeat to every stream every 
+ * <code>HEARTBEAT_SECONDS</code> seconds. An idle chat otherwise costs no 
+ * threads and no queries.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class ChatStreamRegistry implements ServletContextListener {
+
+	private static final String ATTRIBUTE_NAME = ChatStreamRegistry.class.getName();
+	private static final int HEARTBEAT_SECONDS = 25;
+	
+	private final Map<ObjectId, Set<ChatStream>> streams = new ConcurrentHashMap<>();
+	private ScheduledExecutorService heartbeat;
+	private MessageBus messageBus;
+	private MessageCache messageCache;
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> of the web application
+	 * @return        the <code>ChatStreamRegistry</code> of the web 
+	 * 				  application
+	 */
+	public static ChatStreamRegistry get(ServletContext context) {
+		return (ChatStreamRegistry)context.getAttribute(ATTRIBUTE_NAME);
+	}
+	
+	/**
+	 * Stores this <code>ChatStreamRegistry</code> in the 
+	 * <code>ServletContext</code>, starts the <code>MessageBus</code> and 
+	 * starts sending heartbeats.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		messageCache = MessageCache.get(event.getServletContext());
+		
+		String busType = event.getServletContext().getInitParameter("messageBus");
+		if("changeStream".equals(busType)) {
+			messageBus = new ChangeStreamMessageBus(Util.getDatabase());
+		} else {
+			messageBus = new InMemoryMessageBus();
+		}
+		messageBus.start(this::dispatch);
+		
+		Util.LOGGER.info("Chat messages are delivered through " + messageBus.getClass().getSimpleName());
+		
+		heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "chat-stream-heartbeat");
+			thread.setDaemon(true);
+			return thread;
+		});
+		heartbeat.scheduleWithFixedDelay(this::sendHeartbeats, 
+				HEARTBEAT_SECONDS, HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+		
+		event.getServletContext().setAttribute(ATTRIBUTE_NAME, this);
+		
+	}
+	
+	/**
+	 * Stops the <code>MessageBus</code>, stops sending heartbeats and closes 
+	 * every stream.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		event.getServletContext().removeAttribute(ATTRIBUTE_NAME);
+		messageBus.close();
+		heartbeat.shutdownNow();
+		
+		for(Set<ChatStream> chatStreams : streams.values()) {
+			chatStreams.forEach(ChatStream::close);
+		}
+		streams.clear();
+		
+	}
+	
+	/**
+	 * Adds <code>stream</code> to the streams that receive new 
+	 * <code>Message</code> objects of its <code>Chat</code>.
+	 * 
+	 * @param stream the stream to add
+	 */
+	public void subscribe(ChatStream stream) {
+		streams.computeIfAbsent(stream.getChatId(), e -> new CopyOnWriteArraySet<>()).add(stream);
+	}
+	
+	/**
+	 * Removes <code>stream</code> from the streams of its <code>Chat</code>.
+	 * 
+	 * @param stream the stream to remove
+	 */
+	public void unsubscribe(ChatStream stream) {
+		
+		streams.computeIfPresent(stream.getChatId(), (chatId, chatStreams) -> {
+			chatStreams.remove(stream);
+			return chatStreams.isEmpty() ? null : chatStreams;
+		});
+		
+	}
+	
+	/**
+	 * Publishes a new <code>Message</code> through the 
+	 * <code>MessageBus</code>, so that it is sent to the streams of its 
+	 * <code>Chat</code> on every server.
+	 * 
+	 * @param chatId  the <code>_id</code> field of the <code>Chat</code> the
+	 * 				  <code>Message</code> belongs to
+	 * @param message the new <code>Message</code>
+	 */
+	public void publish(ObjectId chatId, Message message) {
+		messageBus.publish(chatId, message);
+	}
+	
+	/**
+	 * Sends <code>message</code> to every open stream of 
+	 * <code>chatId</code> on this server. Streams that turn out to be closed
+	 * are removed. This is called by the <code>MessageBus</code>. The 
+	 * <code>Message</code> is also written to the <code>MessageCache</code>,
+	 * as it may have been added on another server.
+	 * 
+	 * @param chatId  the <code>_id</code> field of the <code>Chat</code> the
+	 * 				  <code>Message</code> belongs to
+	 * @param message the new <code>Message</code>
+	 */
+	private void dispatch(ObjectId chatId, Message message) {
+		
+		if(messageCache != null) {
+			messageCache.add(message.getDocument());
+		}
+		
+		Set<ChatStream> chatStreams = streams.get(chatId);
+		
+		if(chatStreams != null) {
+			for(ChatStream stream : chatStreams) {
+				if(!stream.send(message)) {
+					unsubscribe(stream);
+				}
+			}
+		}
+		
+	}
+	
+	/**
+	 * Sends a heartbeat to every stream, removing the ones that are closed.
+	 */
+	private void sendHeartbeats() {
+		
+		for(Set<ChatStream> chatStreams : streams.values()) {
+			for(ChatStream stream : chatStreams) {
+				if(!stream.sendHeartbeat()) {
+					unsubscribe(stream);
+				}
+			}
+		}
+		
+	}
+	
+}
@@ -0,0 +1,198 @@
+package com.therapy.servlets;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoDatabase;
+import com.therapy.entities.Chat;
+import com.therapy.entities.Message;
+import com.therapy.messaging.MessageCache;
+
+/**
+ * This class is an asynchronous servlet that streams the <code>Message</code>
+ * objects of the current <code>Chat</code> to the browser as Server-Sent 
+ * Events.
+ * 
+ * When the connection is opened, the most recent 15 <code>Message</code> 
+ * objects are sent, or if the browser is reconnecting, the 
+ * <code>Message</code> objects after the one in the 
+ * <code>Last-Event-ID</code> header. The connection is then kept open
+ * without holding a thread, and new <code>Message</code> objects are pushed
+ * to it by the <code>ChatStreamRegistry</code> as they are added. The 
+ * <code>Message</code> objects sent when the connection is opened are read 
+ * from the <code>MessageCache</code> when it has them.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@WebServlet(urlPatterns={"/chatStream"}, asyncSupported=true)
+public class ChatStreamServlet extends HttpServlet {
+
+	private static final int INITIAL_MESSAGES = 15;
+	private static final int MAX_MISSED_MESSAGES = 100;
+	
+	/**
+	 * Opens the event stream of the current <code>Chat</code>.
+	 */
+	@Override
+	public void doGet(HttpServletRequest request, 
+			HttpServletResponse response) throws IOException, ServletException {
+		
+		MongoDatabase database = Util.getDatabase();
+		
+		Chat chat = Util.getCurrentChat(request.getSession(), database);
+		if(chat == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		
+		final AsyncContext acontext = request.startAsync();
+		acontext.setTimeout(0);
+		
+		final ChatStreamRegistry registry = ChatStreamRegistry.get(getServletContext());
+		final ChatStream stream = new ChatStream(chat.getId(), acontext);
+		
+		acontext.addListener(new AsyncListener() {
+			
+			public void onComplete(AsyncEvent event) {
+				registry.unsubscribe(stream);
+			}
+			
+			public void onTimeout(AsyncEvent event) {
+				stream.close();
+			}
+			
+			public void onError(AsyncEvent event) {
+				stream.close();
+			}
+			
+			public void onStartAsync(AsyncEvent event) {
+				
+			}
+			
+		});
+		
+		/*
+		 * Subscribe before reading the missed Messages, so that a Message 
+		 * added in between is not lost. It may be sent twice, and the browser
+		 * ignores events it has already seen.
+		 */
+		registry.subscribe(stream);
+		
+		List<Message> messages;
+		String lastEventId = request.getHeader("Last-Event-ID");
+		if(lastEventId != null && ObjectId.isValid(lastEventId)) {
+			messages = getMessagesAfter(chat, new ObjectId(lastEventId), database);
+		} else {
+			messages = getNewestMessages(chat, database);
+		}
+		
+		for(Message message : messages) {
+			stream.send(message);
+		}
+		
+		//Send the headers even if there were no Messages
+		stream.sendHeartbeat();
+		
+	}
+	
+	/**
+	 * Reads the newest <code>Message</code> objects of <code>chat</code> 
+	 * from the <code>MessageCache</code>. If the <code>Chat</code> is not in
+	 * the cache, it is loaded into it.
+	 * 
+	 * @param chat     the <code>Chat</code>
+	 * @param database the database of the website
+	 * @return         the newest <code>Message</code> objects, oldest first
+	 */
+	private List<Message> getNewestMessages(Chat chat, MongoDatabase database) {
+		
+		MessageCache cache = MessageCache.get(getServletContext());
+		
+		List<Document> cached = cache.getNewest(chat.getId(), INITIAL_MESSAGES);
+		if(cached != null) {
+			return toMessages(cached, database);
+		}
+		
+		long load = INITIAL_MESSAGES <= cache.getMessagesPerChat() ? cache.startLoading(chat.getId()) : 0;
+		if(load == 0) {
+			return Arrays.asList(chat.getMessagesBefore(null, INITIAL_MESSAGES));
+		}
+		
+		List<Document> newest = new ArrayList<>();
+		try {
+			
+			for(Message message : chat.getMessagesBefore(null, cache.getMessagesPerChat())) {
+				newest.add(message.getDocument());
+			}
+			
+		} catch(RuntimeException e) {
+			cache.cancelLoading(chat.getId(), load);
+			throw e;
+		}
+		cache.finishLoading(chat.getId(), load, newest);
+		
+		return toMessages(newest.subList(Math.max(newest.size() - INITIAL_MESSAGES, 0), newest.size()), 
+				database);
+		
+	}
+	
+	/**
+	 * Reads the <code>Message</code> objects of <code>chat</code> that were 
+	 * added after <code>cursor</code>, from the <code>MessageCache</code> if 
+	 * it has them.
+	 * 
+	 * @param chat     the <code>Chat</code>
+	 * @param cursor   the <code>_id</code> field to read after
+	 * @param database the database of the website
+	 * @return         the <code>Message</code> objects, oldest first
+	 */
+	private List<Message> getMessagesAfter(Chat chat, ObjectId cursor, MongoDatabase database) {
+		
+		List<Document> cached = MessageCache.get(getServletContext())
+				.getAfter(chat.getId(), cursor, MAX_MISSED_MESSAGES);
+		
+		if(cached != null) {
+			return toMessages(cached, database);
+		}
+		
+		return Arrays.asList(chat.getMessagesAfter(cursor, MAX_MISSED_MESSAGES));
+		
+	}
+	
+	/**
+	 * 
+	 * @param documents the <code>Document</code>s of messages
+	 * @param database  the database of the website
+	 * @return          the <code>Message</code> objects of the documents
+	 */
+	private static List<Message> toMessages(List<Document> documents, MongoDatabase database) {
+		
+		List<Message> messages = new ArrayList<>(documents.size());
+		for(Document document : documents) {
+			messages.add(new Message(document, database));
+		}
+		
+		return messages;
+		
+	}
+	
+}
@@ -21,6 +21,13 @@ import com.therapy.entities.Therapist;
  * patient chosen by the therapist and saves it in the HTTP session attribute
  * <code>chat</code>.
  * 
+ * The chat is chosen on therapistHomepage.jsp by its <code>_id</code> field,
+ * given as the <code>chatId</code> parameter. Opening it marks its messages
+ * as read by the therapist, and checks that it is theirs, with a single 
+ * write. Chats can still be chosen by the full name of the patient, with the
+ * <code>patientChats</code> parameter, which reads every chat and patient of
+ * the therapist.
+ * 
  * @author Yousfe Bulbulia
  *
  */
@@ -40,16 +47,28 @@ public class GetTherapistChatServlet extends HttpServlet {
 		MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);	
 		
 		HttpSession session = request.getSession();
+		ObjectId therapistId = (ObjectId)session.getAttribute("id");
+		
+		//Open the chosen chat if it belongs to the therapist
+		String chatId = request.getParameter("chatId");
+		if(chatId != null && ObjectId.isValid(chatId)) {
+			
+			Chat chat = new Chat(new ObjectId(chatId), database);
+			session.setAttribute("chat", chat.openByTherapist(therapistId) ? chat : null);
+			request.getRequestDispatcher("/therapistMessenger.html").forward(request, response);
+			return;
+			
+		}
 		
 		//Get Therapist and patient name
-		Therapist therapist = new Therapist((ObjectId)session.getAttribute("id"), database);
-		String targetPatientName = (String)request.getAttribute("patientChats");
+		Therapist therapist = new Therapist(therapistId, database);
+		String targetPatientName = request.getParameter("patientChats");
 		
 		
 		//Get the chat that belongs to the therapist and the specified patient
 		Chat[] chats = therapist.getChats();
 		Chat chat = null;
-		for(int i = 0; i < chats.length; i++) {
+		for(int i = 0; chats != null && i < chats.length; i++) {
 			
 			//If the patient names match, get the chat for the patient and therapist
 			String patientName = chats[i].getPatient().getFullName();
@@ -60,7 +79,6 @@ public class GetTherapistChatServlet extends HttpServlet {
 			
 		}
 		
-		session.setAttribute("isNewMessagingSession", true);
 		session.setAttribute("chat", chat);
 		request.getRequestDispatcher("/therapistMessenger.html").forward(request, response);;
 		
@@ -1,35 +1,34 @@
 package com.therapy.servlets;
 
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.exists;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.lte;
+import static com.mongodb.client.model.Filters.or;
+
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.Random;
 
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import javax.servlet.http.HttpSession;
 
 import org.bson.Document;
-import org.bson.types.ObjectId;
+import org.bson.conversions.Bson;
 
-import com.mongodb.MongoClient;
-import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
-import static com.mongodb.client.model.Filters.and;
-import static com.mongodb.client.model.Filters.eq;
-import static com.mongodb.client.model.Filters.exists;
-import static com.mongodb.client.model.Filters.lte;
-import static com.mongodb.client.model.Filters.nor;
-import static com.mongodb.client.model.Filters.or;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Field;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.therapy.directory.TherapistPool;
+import com.therapy.entities.Therapist;
 
 /**
  * This class is a servlet that retrieves ten <code>Therapist</code> objects for
@@ -48,6 +47,12 @@ import static com.mongodb.client.model.Filters.or;
  * without having to worry about having to compete with the ratings of
  * therapists that have been on the site longer than them.
  * 
+ * The therapists are picked from the <code>TherapistPool</code>, which keeps
+ * the therapists that can receive requests in memory. Until the pool is 
+ * loaded, they are picked by the database with aggregation pipelines that 
+ * use <code>$sample</code>, so only the ten therapists that are shown are 
+ * sent to this server, and only the fields that are shown are read.
+ * 
  * @author Yousef Bulbulia
  *
  */
@@ -55,133 +60,102 @@ import static com.mongodb.client.model.Filters.or;
 public class GetTherapistsServlet extends HttpServlet {
 	
 	/**
-	 * Retrieves the ten therapists. Their names are added to the HTTP request 
-	 * as the attribute <code>retrievedTherapists</code>. Their _id fields are 
-	 * added to the HTTP request as the attribute <code>therapistIds</code>.
+	 * The number of experienced therapists picked at random, from which the
+	 * highest-rated are shown.
+	 */
+	public static final int EXPERIENCED_SAMPLE_SIZE = 30;
+	
+	/**
+	 * The number of experienced therapists shown.
+	 */
+	public static final int EXPERIENCED_COUNT = 9;
+	
+	/**
+	 * The highest number of raters a therapist can have and still be new.
+	 */
+	public static final int NEW_THERAPIST_MAX_RATERS = 6;
+	
+	/**
+	 * The fields of the therapists that are shown.
+	 */
+	private static final Bson SHOWN_FIELDS = Aggregates.project(
+			Projections.include("first_name", "last_name", "rating_sum", "rating_count"));
+	
+	/**
+	 * Retrieves the ten therapists. Their <code>Document</code>s, holding 
+	 * only their <code>_id</code>, <code>first_name</code>, 
+	 * <code>last_name</code>, <code>rating_sum</code> and 
+	 * <code>rating_count</code> fields, are added to the HTTP request as the
+	 * attribute <code>retrievedTherapists</code>. 
 	 * 
-	 * Afterwards, the patient is forwarded to the RequestTherapistServlet 
-	 * servlet.
+	 * Afterwards, the patient is forwarded to patientSetup.jsp.
 	 */
 	@Override
 	public void doPost(HttpServletRequest request, 
 			HttpServletResponse response) throws IOException, ServletException {
 		
-		//Get the collection
-		MongoClient mongoClient = Util.getMongoClient();
-		MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);
-		MongoCollection<Document> collection = database.getCollection("therapists");
+		//Pick the therapists from the pool, or from the database until it is loaded
+		List<Document> therapists = TherapistPool.get(getServletContext()).match();
+		if(therapists == null) {
+			therapists = matchTherapists(Util.getDatabase());
+		}
 		
-		/*
-		 * Retrieve one unexperienced therapist.
-		 * 
-		 * This is a therapist that either has no number_of_raters field, or 
-		 * where number_of_raters is less than or equal to 6. The therapist
-		 * must not have exceeded their request limit.
-		 */
-		FindIterable<Document> findIter = collection.find( 
-				and(or(exists("number_of_raters", false), lte("number_of_raters", 6)), eq("can_receive_requests", true)) );
-	    MongoCursor<Document> newTherapistCursor = findIter.iterator();
+		//Set the HTTP request attributes
+		request.setAttribute("retrievedTherapists", therapists);
+		request.getRequestDispatcher("patientSetup.jsp").forward(request, response);
+		Util.LOGGER.info("Data for " + therapists.size() + " random therapists were successfully "
+				+ "forwarded to patientSetup.jsp");
 		
-		List<Document> newTherapists = new ArrayList<>();
-		while(newTherapistCursor.hasNext()) {
-			newTherapists.add(newTherapistCursor.next());
-		}
+	}
+	
+	/**
+	 * Picks the therapists shown to a new patient: up to 
+	 * <code>EXPERIENCED_COUNT</code> of <code>EXPERIENCED_SAMPLE_SIZE</code> 
+	 * random experienced therapists, from the highest-rated to the 
+	 * lowest-rated, followed by one random new therapist. Only therapists 
+	 * that can receive requests are picked. If there are not enough 
+	 * therapists, fewer are returned.
+	 * 
+	 * @param database the database the therapists belong to
+	 * @return         the <code>Document</code>s of the therapists
+	 */
+	public static List<Document> matchTherapists(MongoDatabase database) {
 		
-		Document newTherapist = newTherapists.get(new Random().nextInt(newTherapists.size()));
+		MongoCollection<Document> collection = database.getCollection("therapists");
 		
 		/*
-		 * Retrieve all experienced therapists from the database.
-		 * 
-		 * Then select 30 of these therapists at random, and retrieve the
-		 * ten therapists with the highest-rating.
+		 * Pick 30 random experienced therapists, and keep the 9 with the 
+		 * highest rating. 
 		 */
-		MongoCursor<Document> experiencedTherapistsCursor  = collection.find(
-												       and(
-												    		   nor(exists("number_of_raters", false), 
-												    		       lte("number_of_raters", 6)
-												    		   ),
-												    		   eq("can_receive_requests", true)
-												    	   )
-												       )
-												       .iterator();
+		Bson experienced = and(eq("can_receive_requests", true), 
+				gt("rating_count", NEW_THERAPIST_MAX_RATERS));
 		
-		List<Document> experiencedTherapists = new ArrayList<Document>();
-		
-		while(experiencedTherapistsCursor.hasNext()) {
-			experiencedTherapists.add(experiencedTherapistsCursor.next());
-		}
+		List<Document> therapists = collection.aggregate(Arrays.asList(
+				Aggregates.match(experienced),
+				Aggregates.sample(EXPERIENCED_SAMPLE_SIZE),
+				Aggregates.addFields(new Field<>("average_rating", Therapist.averageRatingExpression())),
+				Aggregates.sort(Sorts.descending("average_rating")),
+				Aggregates.limit(EXPERIENCED_COUNT),
+				SHOWN_FIELDS)).into(new ArrayList<>());
 		
 		/*
-		 * Get a List of 30 of the experienced therapists randomly.
-		 * 
-		 * An array of 30 indexes are created which correspond to an index
-		 * in experiencedTherapists. These indexes are unique, with no duplicates
-		 * among them. The therapists at these indexes are the ones selected for
-		 * sorting according to their ratings.
+		 * Pick one random new therapist. This is a therapist that either has
+		 * no rating_count field, or where rating_count is less than or equal
+		 * to 6. 
 		 */
-		int[] indexes = new int[30];
-		Document[] randomTherapists = new Document[30];
-		for(int i = 0; i < 30; i++) {
-			
-			boolean duplicateUsed;
-			int randomIndex = 0;
-			do {
-				
-				duplicateUsed = false;
-				
-				randomIndex = new Random().nextInt(experiencedTherapists.size());
-				
-				for(int e : indexes) {
-					if(randomIndex == e) {
-						duplicateUsed = true;
-						break;
-					}
-				}
-				
-				indexes[i] = randomIndex;
-				
-			} while(duplicateUsed);
-			
-			randomTherapists[i] = experiencedTherapists.get(randomIndex);
-			
-		}
+		Bson unexperienced = and(eq("can_receive_requests", true), 
+				or(exists("rating_count", false), lte("rating_count", NEW_THERAPIST_MAX_RATERS)));
 		
-		//Create a Comparator to sort the therapists from highest to lowest by their ratings
-		Comparator<Document> descendingRatingsComparator = new Comparator<Document>() {
+		Document newTherapist = collection.aggregate(Arrays.asList(
+				Aggregates.match(unexperienced),
+				Aggregates.sample(1),
+				SHOWN_FIELDS)).first();
 		
-			public int compare(Document o1, Document o2) {
-				return o1.getInteger("rating").compareTo(o2.getInteger("rating"));
-			}
-			
-		}.reversed();
-		
-		//Sort the 30 therapists using the Comparator
-		Arrays.sort(randomTherapists, descendingRatingsComparator);
-		
-		//Get the highest 9 rated experienced therapists
-		Map<String, Integer> therapistsToSend = new LinkedHashMap<>();
-		String[] therapistIds = new String[10];
-		for(int i = 0; i < 9; i++) {
-			
-			String firstName  = randomTherapists[i].getString("first_name");
-			String lastName = randomTherapists[i].getString("last_name");
-			Integer rating = randomTherapists[i].getInteger("rating");
-			
-			therapistIds[i] = ((ObjectId)randomTherapists[i].get("_id")).toHexString();
-			therapistsToSend.put(firstName + " " + lastName, rating);
-			
+		if(newTherapist != null) {
+			therapists.add(newTherapist);
 		}
 		
-		//Set the name and id for the unexperienced therapist
-		String newTherapistName = newTherapist.getString("first_name") + " " + newTherapist.getString("last_name");
-		therapistsToSend.put(newTherapistName, newTherapist.getInteger("rating"));
-		therapistIds[9] = ((ObjectId)newTherapist.get("_id")).toHexString();
-		
-		//Set the HTTP request attributes
-		request.setAttribute("retrievedTherapists", therapistsToSend);
-		request.setAttribute("therapistIds", therapistIds);
-		request.getRequestDispatcher("patientSetup.jsp").forward(request, response);
-		Util.LOGGER.info("Data for 10 random therapists were successfully forwarded to patientSetup.jsp");
+		return therapists;
 		
 	}
 	
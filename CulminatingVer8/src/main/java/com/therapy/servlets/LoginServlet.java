@@ -2,14 +2,9 @@ package com.therapy.servlets;
 
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
-import java.util.Arrays;
-import java.util.Base64;
+import java.util.logging.Level;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -18,11 +13,15 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.bson.Document;
-import org.bson.types.Binary;
+import org.bson.types.ObjectId;
 
 import com.mongodb.MongoClient;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.therapy.entities.reactive.Publishers;
+import com.therapy.security.PasswordHash;
+import com.therapy.security.PasswordHasher;
+
 import static com.mongodb.client.model.Filters.eq;
 
 /**
@@ -32,7 +31,7 @@ import static com.mongodb.client.model.Filters.eq;
  * @author Yousef Bulbulia
  * 
  */
-@WebServlet("/loginServlet")
+@WebServlet(urlPatterns = "/loginServlet", asyncSupported = true)
 public class LoginServlet extends HttpServlet {
 
 	private static final String serverIpAddress = "10.12.195.177"; 
@@ -47,6 +46,10 @@ public class LoginServlet extends HttpServlet {
 	 * 
 	 * If the user is a patient, they are forwarded to patientHomepage.jsp, and
 	 * if they are a therapist, they are forwarded to therapistHomepage.html.
+	 * 
+	 * The password is hashed by the <code>PasswordHasher</code>, so this 
+	 * thread is released while it waits. If the stored hash was made with 
+	 * older settings, it is replaced after the user is logged in.
 	 */
 	@Override
 	public void doPost(HttpServletRequest request, 
@@ -60,17 +63,14 @@ public class LoginServlet extends HttpServlet {
 		//Get the collection
 		MongoClient mongoClient = Util.getMongoClient();
 		MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);
-		Util.intialiazeDatabase();
 		MongoCollection<Document> collection = Util.getUserAppropriateCollection(database, userType);
 		
 		//Get the user's hashed password and salt from database
 		Document userDoc = null;
-		byte[] salt = null;
-		byte[] hashedPassword = null;
+		PasswordHash storedHash = null;
 		if( (userDoc = collection.find(eq("email", email)).first()) != null) {
 			
-			salt = userDoc.get("salt", Binary.class).getData();
-			hashedPassword = userDoc.get("password_hash", Binary.class).getData();
+			storedHash = PasswordHash.fromDocument(userDoc);
 			
 		} else {
 			
@@ -79,57 +79,105 @@ public class LoginServlet extends HttpServlet {
 			
 		}
 		
-		//Hash the hash of the password given from the form
-		KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 128);
-		SecretKeyFactory factory = null;
-				
-		try {
-			factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-		} catch(NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
-						
-		byte[] hash = null;
-				
-		try {
-			hash = factory.generateSecret(spec).getEncoded();
-		} catch(InvalidKeySpecException e) {
-			e.printStackTrace();
-		}
+		/*
+		 * Hash the password given from the form on the PasswordHasher's 
+		 * threads, and release this thread until it is done. The user is 
+		 * then logged in on the AsyncExecutor, like the work of the other 
+		 * asynchronous servlets, so that the PasswordHasher's threads are 
+		 * only used for hashing
+		 */
+		final AsyncContext acontext = request.startAsync();
+		final Document user = userDoc;
+		final PasswordHash hash = storedHash;
+		PasswordHasher hasher = PasswordHasher.get(getServletContext());
+		AsyncExecutor executor = AsyncExecutor.get(getServletContext());
 		
-		//Check if password hashes match
-		if(Arrays.equals(hash, hashedPassword)) {
-			
-			HttpSession session = request.getSession();
-			session.setAttribute("id", userDoc.getObjectId("_id"));
-			session.setAttribute("userType", userType);
-			session.setMaxInactiveInterval(-1);
+		hasher.verify(password, hash).whenComplete((matches, e) -> executor.execute("login", acontext, () -> {
 			
-			if(userType.equals("Patient")) {
-
-				request.getRequestDispatcher("/patientHomepage.jsp").forward(request, response);
-				Util.LOGGER.info("Patient with id " + userDoc.getObjectId("_id") + "was successfully"
-						+ "logged in and forwarded to /patientHomepage.jsp");
+			if(e != null) {
+				hasher.sendError(acontext, e);
 				return;
+			}
+			
+			try {
 				
-			} else {
-				
-				request.getRequestDispatcher("/therapistHomepage.jsp").forward(request, response);
-				Util.LOGGER.info("Therapist with id " + userDoc.getObjectId("_id") + "was successfully"
-						+ "logged in and forwarded to /therapistHomepage.jsp");
-				return;
+				//Check if password hashes match
+				if(matches) {
+					
+					//Replace hashes made with older settings
+					if(hasher.needsRehash(hash)) {
+						rehash(hasher, collection.getNamespace().getCollectionName(), user.getObjectId("_id"), password);
+					}
+					
+					HttpSession session = request.getSession();
+					session.setAttribute("id", user.getObjectId("_id"));
+					session.setAttribute("userType", userType);
+					session.setMaxInactiveInterval(-1);
+					
+					if(userType.equals("Patient")) {
+		
+						acontext.dispatch("/patientHomepage.jsp");
+						Util.LOGGER.info("Patient with id " + user.getObjectId("_id") + "was successfully"
+								+ "logged in and forwarded to /patientHomepage.jsp");
+						
+					} else {
+						
+						acontext.dispatch("/therapistHomepage.jsp");
+						Util.LOGGER.info("Therapist with id " + user.getObjectId("_id") + "was successfully"
+								+ "logged in and forwarded to /therapistHomepage.jsp");
+						
+					}
+					
+				} else {
+					
+					response.sendRedirect(projectPath + "/login.jsp?passwordMismatch=1");
+					Util.LOGGER.info(userType + " with id " + user.getObjectId("_id") + "did not provide"
+							+ "the correct password and was redirected back to /login.jsp");
+					acontext.complete();
+					
+				}
 				
+			} catch(IOException | RuntimeException ex) {
+				hasher.sendError(acontext, ex);
 			}
 			
-		} else {
+		}));
+		
+	}
+	
+	/**
+	 * Hashes the password of a user again with the current settings, and 
+	 * replaces the stored hash. The login does not wait for it, and if it 
+	 * fails, the old hash is kept until the next login. The hash is stored 
+	 * with the non-blocking client, so that the PasswordHasher's thread does
+	 * not wait for the database.
+	 * 
+	 * @param hasher         the <code>PasswordHasher</code> of the web 
+	 * 						 application
+	 * @param collectionName the name of the collection of the user
+	 * @param id             the id of the user
+	 * @param password       the password the user logged in with
+	 */
+	private static void rehash(PasswordHasher hasher, String collectionName, 
+			ObjectId id, String password) {
+		
+		hasher.hash(password).thenCompose(newHash -> 
+			Publishers.done(Util.getReactiveDatabase().getCollection(collectionName)
+					.updateOne(eq("_id", id), newHash.toUpdate()))
+					.thenApply(result -> newHash)
+		).whenComplete((newHash, e) -> {
 			
-			response.sendRedirect(projectPath + "/login.jsp?passwordMismatch=1");
-			Util.LOGGER.info(userType + " with id " + userDoc.getObjectId("_id") + "did not provide"
-					+ "the correct password and was redirected back to /login.jsp");
-			return;
+			if(e != null) {
+				Util.LOGGER.log(Level.FINE, "The password of user " + id.toHexString() 
+						+ " was not rehashed", e);
+				return;
+			}
 			
-		}
+			Util.LOGGER.info("The password of user " + id.toHexString() + " was rehashed with " 
+					+ newHash.getAlgorithm() + " and " + newHash.getIterations() + " iterations");
+			
+		});
 		
 	}
 	
-}
\ No newline at end of file
+}
@@ -0,0 +1,151 @@
+package com.therapy.servlets;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.therapy.directory.TherapistDirectory;
+import com.therapy.directory.TherapistPool;
+import com.therapy.messaging.MessageCache;
+import com.therapy.monitoring.LatencyHistogram;
+import com.therapy.monitoring.QueryMetrics;
+import com.therapy.security.PasswordHasher;
+
+/**
+ * This class is a servlet that writes the metrics of this server as a JSON 
+ * object, so that they can be collected by monitoring tools.
+ * 
+ * The <code>async</code> field holds the metrics of the 
+ * <code>AsyncExecutor</code>: the number of waiting and running tasks, the 
+ * number of finished tasks, and the number of rejected tasks of each 
+ * endpoint. The <code>passwordHashing</code> field holds the same metrics 
+ * of the <code>PasswordHasher</code>. The <code>therapistDirectory</code> 
+ * field holds the size and estimated memory of the 
+ * <code>TherapistDirectory</code>, and the <code>therapistPool</code> field 
+ * holds the size of each tier of the <code>TherapistPool</code>. The 
+ * <code>messageCache</code> field holds the size, hits, misses and 
+ * evictions of the <code>MessageCache</code>. The <code>queries</code> 
+ * field holds the latency percentiles, in microseconds, of each operation
+ * on each collection, and the percentiles of the number of queries sent 
+ * for each HTTP request, by servlet path, from the <code>QueryMetrics</code>.
+ * 
+ * Since the metrics expose the load and the stored data of this server, the 
+ * deployment descriptor only serves them to users with the 
+ * <code>monitor</code> role, which must be given to the monitoring tools in 
+ * the container's realm.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet {
+
+	/**
+	 * Writes the metrics as a JSON object.
+	 */
+	@Override
+	public void doGet(HttpServletRequest request, 
+			HttpServletResponse response) throws IOException, ServletException {
+		
+		AsyncExecutor executor = AsyncExecutor.get(getServletContext());
+		
+		JsonObjectBuilder rejections = Json.createObjectBuilder();
+		executor.getRejections().forEach(rejections::add);
+		
+		JsonObjectBuilder async = Json.createObjectBuilder()
+				.add("virtualThreads", executor.usesVirtualThreads())
+				.add("queueDepth", executor.getQueueDepth())
+				.add("active", executor.getActiveCount())
+				.add("completed", executor.getCompletedCount())
+				.add("rejections", rejections);
+		
+		PasswordHasher hasher = PasswordHasher.get(getServletContext());
+		
+		JsonObjectBuilder passwordHashing = Json.createObjectBuilder()
+				.add("algorithm", hasher.getAlgorithm())
+				.add("iterations", hasher.getIterations())
+				.add("queueDepth", hasher.getQueueDepth())
+				.add("active", hasher.getActiveCount())
+				.add("completed", hasher.getCompletedCount())
+				.add("rejections", hasher.getRejectedCount());
+		
+		TherapistDirectory directory = TherapistDirectory.get(getServletContext());
+		int therapists = directory.size();
+		long directoryBytes = directory.getEstimatedBytes();
+		
+		JsonObjectBuilder therapistDirectory = Json.createObjectBuilder()
+				.add("therapists", therapists)
+				.add("estimatedBytes", directoryBytes)
+				.add("bytesPerTherapist", therapists > 0 ? directoryBytes / therapists : 0)
+				.add("refreshedAt", directory.getRefreshedAt());
+		
+		TherapistPool pool = TherapistPool.get(getServletContext());
+		
+		JsonObjectBuilder therapistPool = Json.createObjectBuilder()
+				.add("experienced", pool.getExperiencedCount())
+				.add("new", pool.getNewCount())
+				.add("hidden", pool.getHiddenCount());
+		
+		MessageCache cache = MessageCache.get(getServletContext());
+		
+		JsonObjectBuilder messageCache = Json.createObjectBuilder()
+				.add("chats", cache.getChatCount())
+				.add("estimatedBytes", cache.getEstimatedBytes())
+				.add("maxBytes", cache.getMaxBytes())
+				.add("hits", cache.getHits())
+				.add("misses", cache.getMisses())
+				.add("evictions", cache.getEvictions());
+		
+		QueryMetrics metrics = QueryMetrics.get(getServletContext());
+		
+		JsonObjectBuilder operations = Json.createObjectBuilder();
+		new TreeMap<>(metrics.getOperations()).forEach((name, operation) -> {
+			
+			LatencyHistogram micros = operation.getMicros();
+			operations.add(name, Json.createObjectBuilder()
+					.add("count", micros.getCount())
+					.add("failures", operation.getFailures())
+					.add("meanMicros", Math.round(micros.getMean()))
+					.add("p50Micros", micros.getPercentile(50))
+					.add("p99Micros", micros.getPercentile(99))
+					.add("p999Micros", micros.getPercentile(99.9))
+					.add("maxMicros", micros.getMax()));
+			
+		});
+		
+		JsonObjectBuilder perRequest = Json.createObjectBuilder();
+		new TreeMap<>(metrics.getQueriesPerRequest()).forEach((path, queries) -> 
+				perRequest.add(path, Json.createObjectBuilder()
+						.add("requests", queries.getCount())
+						.add("p50", queries.getPercentile(50))
+						.add("p99", queries.getPercentile(99))
+						.add("max", queries.getMax())));
+		
+		JsonObjectBuilder queries = Json.createObjectBuilder()
+				.add("slow", metrics.getSlowQueries())
+				.add("operations", operations)
+				.add("perRequest", perRequest);
+		
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(Json.createObjectBuilder()
+				.add("async", async)
+				.add("passwordHashing", passwordHashing)
+				.add("therapistDirectory", therapistDirectory)
+				.add("therapistPool", therapistPool)
+				.add("messageCache", messageCache)
+				.add("queries", queries)
+				.build()
+				.toString());
+		
+	}
+	
+}
@@ -0,0 +1,273 @@
+package com.therapy.servlets;
+
+import javax.servlet.ServletContext;
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.async.client.MongoClientSettings;
+import com.mongodb.connection.ClusterSettings;
+import com.mongodb.connection.ConnectionPoolSettings;
+import com.mongodb.connection.ServerSettings;
+import com.mongodb.connection.SocketSettings;
+import com.mongodb.connection.SslSettings;
+import com.mongodb.event.CommandListener;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.therapy.entities.Request;
+import com.therapy.monitoring.QueryMetrics;
+
+/**
+ * This class is a <code>ServletContextListener</code> that owns the
+ * application's <code>MongoClient</code>. The client is created once when the
+ * web application starts, and closed when the web application is shut down, so
+ * that every servlet and JSP shares the same connection pool. A second,
+ * non-blocking client from the Reactive Streams driver is opened alongside
+ * it with the same settings, for the asynchronous servlets. It is declared 
+ * first in web.xml, so that the client is open before any other listener 
+ * starts.
+ * 
+ * The pool can be configured through the following context parameters in
+ * web.xml. Any parameter that is not set keeps the driver's default.
+ * 
+ * <ul>
+ * 	<li><code>mongo.uri</code> - the connection string of the database</li>
+ * 	<li><code>mongo.maxPoolSize</code> - the maximum number of connections
+ * 		in the pool</li>
+ * 	<li><code>mongo.minPoolSize</code> - the minimum number of connections
+ * 		kept open in the pool</li>
+ * 	<li><code>mongo.waitQueueMultiple</code> - the number of threads,
+ * 		as a multiple of <code>mongo.maxPoolSize</code>, that may wait for a
+ * 		connection</li>
+ * 	<li><code>mongo.waitQueueTimeoutMS</code> - how long a thread waits for a
+ * 		connection before failing</li>
+ * 	<li><code>mongo.connectTimeoutMS</code> - the timeout for opening a
+ * 		connection</li>
+ * 	<li><code>mongo.socketTimeoutMS</code> - the timeout for reading from a
+ * 		connection</li>
+ * 	<li><code>mongo.serverSelectionTimeoutMS</code> - how long to wait for an
+ * 		available server</li>
+ * 	<li><code>mongo.maxConnectionIdleTimeMS</code> - how long a pooled
+ * 		connection may stay idle before being closed</li>
+ * </ul>
+ * 
+ * If the <code>search.textIndex</code> context parameter is 
+ * <code>true</code>, a text index is also created on the names of 
+ * therapists.
+ * 
+ * If a <code>QueryMetrics</code> is declared before this listener, it is 
+ * added to both clients as a <code>CommandListener</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class MongoClientListener implements ServletContextListener {
+
+	public static final String DEFAULT_URI = "mongodb://localhost:27017/testDB";
+	
+	/**
+	 * Opens the shared <code>MongoClient</code> and initializes the database.
+	 */
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		
+		ServletContext context = event.getServletContext();
+		
+		String uri = context.getInitParameter("mongo.uri");
+		if(uri == null || uri.isEmpty()) {
+			uri = DEFAULT_URI;
+		}
+		
+		QueryMetrics metrics = QueryMetrics.get(context);
+		
+		MongoClientOptions.Builder options = getOptions(context);
+		if(metrics != null) {
+			options.addCommandListener(metrics);
+		}
+		
+		MongoClient client = new MongoClient(new MongoClientURI(uri, options));
+		Util.setMongoClient(client);
+		Util.intialiazeDatabase(Boolean.parseBoolean(context.getInitParameter("search.textIndex")));
+		
+		//Finish the requests that were being accepted when the server stopped
+		int completed = Request.completeAccepted(Util.getDatabase());
+		if(completed > 0) {
+			Util.LOGGER.info(completed + " accepted requests were completed");
+		}
+		
+		Util.setReactiveMongoClient(MongoClients.create(getReactiveSettings(
+				getReactiveConnectionString(uri, client.getMongoClientOptions()), metrics)));
+		
+		Util.LOGGER.info("The shared MongoClient was opened with a maximum pool size of "
+				+ client.getMongoClientOptions().getConnectionsPerHost());
+		
+	}
+	
+	/**
+	 * Closes the shared <code>MongoClient</code>, releasing all of its pooled
+	 * connections and monitor threads.
+	 */
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		
+		com.mongodb.reactivestreams.client.MongoClient reactiveClient = Util.setReactiveMongoClient(null);
+		if(reactiveClient != null) {
+			reactiveClient.close();
+		}
+		
+		MongoClient client = Util.setMongoClient(null);
+		if(client != null) {
+			client.close();
+			Util.LOGGER.info("The shared MongoClient was closed");
+		}
+		
+	}
+	
+	/**
+	 * Creates the <code>MongoClientOptions</code> for the connection pool
+	 * from the context parameters of <code>context</code>.
+	 * 
+	 * @param context the <code>ServletContext</code> holding the parameters
+	 * @return        a builder with the configured options
+	 */
+	private static MongoClientOptions.Builder getOptions(ServletContext context) {
+		
+		MongoClientOptions.Builder builder = MongoClientOptions.builder();
+		
+		Integer value;
+		if((value = getInteger(context, "mongo.maxPoolSize")) != null) {
+			builder.connectionsPerHost(value);
+		}
+		if((value = getInteger(context, "mongo.minPoolSize")) != null) {
+			builder.minConnectionsPerHost(value);
+		}
+		if((value = getInteger(context, "mongo.waitQueueMultiple")) != null) {
+			builder.threadsAllowedToBlockForConnectionMultiplier(value);
+		}
+		if((value = getInteger(context, "mongo.waitQueueTimeoutMS")) != null) {
+			builder.maxWaitTime(value);
+		}
+		if((value = getInteger(context, "mongo.connectTimeoutMS")) != null) {
+			builder.connectTimeout(value);
+		}
+		if((value = getInteger(context, "mongo.socketTimeoutMS")) != null) {
+			builder.socketTimeout(value);
+		}
+		if((value = getInteger(context, "mongo.serverSelectionTimeoutMS")) != null) {
+			builder.serverSelectionTimeout(value);
+		}
+		if((value = getInteger(context, "mongo.maxConnectionIdleTimeMS")) != null) {
+			builder.maxConnectionIdleTime(value);
+		}
+		
+		return builder;
+		
+	}
+	
+	/**
+	 * Creates the connection string of the Reactive Streams client, which 
+	 * carries the same pool settings as the <code>MongoClientOptions</code>
+	 * of the synchronous client as connection string options.
+	 * 
+	 * @param uri     the connection string of the database
+	 * @param options the options of the synchronous client
+	 * @return        the connection string with the pool settings added
+	 */
+	private static String getReactiveConnectionString(String uri, MongoClientOptions options) {
+		
+		StringBuilder connectionString = new StringBuilder(uri);
+		
+		if(uri.indexOf('?') >= 0) {
+			connectionString.append('&');
+		} else if(uri.indexOf('/', "mongodb://".length()) >= 0) {
+			connectionString.append('?');
+		} else {
+			connectionString.append("/?");
+		}
+		
+		connectionString.append("maxPoolSize=").append(options.getConnectionsPerHost())
+				.append("&minPoolSize=").append(options.getMinConnectionsPerHost())
+				.append("&waitQueueMultiple=").append(options.getThreadsAllowedToBlockForConnectionMultiplier())
+				.append("&waitQueueTimeoutMS=").append(options.getMaxWaitTime())
+				.append("&connectTimeoutMS=").append(options.getConnectTimeout())
+				.append("&socketTimeoutMS=").append(options.getSocketTimeout())
+				.append("&serverSelectionTimeoutMS=").append(options.getServerSelectionTimeout())
+				.append("&maxIdleTimeMS=").append(options.getMaxConnectionIdleTime());
+		
+		return connectionString.toString();
+		
+	}
+	
+	/**
+	 * Creates the settings of the Reactive Streams client from its connection
+	 * string. They are built by hand, rather than by 
+	 * <code>MongoClients.create(String)</code>, so that a 
+	 * <code>CommandListener</code> can be added.
+	 * 
+	 * @param uri      the connection string of the Reactive Streams client
+	 * @param listener the listener to add, or null
+	 * @return         the settings of the Reactive Streams client
+	 */
+	private static MongoClientSettings getReactiveSettings(String uri, CommandListener listener) {
+		
+		ConnectionString connectionString = new ConnectionString(uri);
+		
+		MongoClientSettings.Builder builder = MongoClientSettings.builder()
+				.clusterSettings(ClusterSettings.builder().applyConnectionString(connectionString).build())
+				.connectionPoolSettings(ConnectionPoolSettings.builder().applyConnectionString(connectionString).build())
+				.serverSettings(ServerSettings.builder().applyConnectionString(connectionString).build())
+				.socketSettings(SocketSettings.builder().applyConnectionString(connectionString).build())
+				.sslSettings(SslSettings.builder().applyConnectionString(connectionString).build())
+				.retryWrites(connectionString.getRetryWrites())
+				.compressorList(connectionString.getCompressorList());
+		
+		if(connectionString.getCredential() != null) {
+			builder.credential(connectionString.getCredential());
+		}
+		if(connectionString.getReadPreference() != null) {
+			builder.readPreference(connectionString.getReadPreference());
+		}
+		if(connectionString.getReadConcern() != null) {
+			builder.readConcern(connectionString.getReadConcern());
+		}
+		if(connectionString.getWriteConcern() != null) {
+			builder.writeConcern(connectionString.getWriteConcern());
+		}
+		if(connectionString.getApplicationName() != null) {
+			builder.applicationName(connectionString.getApplicationName());
+		}
+		if(listener != null) {
+			builder.addCommandListener(listener);
+		}
+		
+		return builder.build();
+		
+	}
+	
+	/**
+	 * 
+	 * @param context the <code>ServletContext</code> holding the parameter
+	 * @param name    the name of the context parameter
+	 * @return        the value of the parameter, or null if it is not set
+	 */
+	private static Integer getInteger(ServletContext context, String name) {
+		
+		String value = context.getInitParameter(name);
+		
+		if(value == null || value.trim().isEmpty()) {
+			return null;
+		}
+		
+		try {
+			return Integer.valueOf(value.trim());
+		} catch(NumberFormatException e) {
+			Util.LOGGER.warning("The context parameter " + name + " must be a number, "
+					+ "but was " + value);
+			return null;
+		}
+		
+	}
+	
+}
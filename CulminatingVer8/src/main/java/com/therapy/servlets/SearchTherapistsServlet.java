@@ -1,7 +1,6 @@
 package com.therapy.servlets;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 
 import javax.servlet.ServletException;
@@ -10,17 +9,22 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-import org.bson.Document;
-
-import com.mongodb.MongoClient;
-import com.mongodb.client.MongoCollection;
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.therapy.entities.Therapist;
 
 /**
- * This class is a servlet that searches for a given therapist, and if found,
- * passes it to searchTherapists.jsp.
+ * This class is a servlet that searches for therapists by name, and passes 
+ * the ones found to searchTherapists.jsp.
+ * 
+ * Therapists are found if their first name, full name or last name starts 
+ * with the name searched for, ignoring case and accents. If the 
+ * <code>search.textIndex</code> context parameter is <code>true</code> and 
+ * no names start with it, therapists are found by the words of their names 
+ * instead, in any order.
+ * 
+ * The results are shown in pages of <code>PAGE_SIZE</code> therapists. The
+ * <code>page</code> parameter is the number of the page, starting at 0, and
+ * the <code>byWords</code> parameter keeps later pages searching by words.
  * 
  * @author Yousef Bulbulia
  *
@@ -28,38 +32,51 @@ import com.therapy.entities.Therapist;
 @WebServlet("/searchTherapists")
 public class SearchTherapistsServlet extends HttpServlet {
 	
+	public static final int PAGE_SIZE = 20;
+	
 	@Override
 	public void doPost(HttpServletRequest request, 
 			HttpServletResponse response) throws IOException, ServletException {
 		
-		//Get the collection
-		MongoClient mongoClient = Util.getMongoClient();
-		MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);
-		MongoCollection<Document> collection = database.getCollection("therapists");
+		MongoDatabase database = Util.getDatabase();
 		
-		//Get the therapist that was searched for
+		//Get the therapist that was searched for, and the page to show
 		String therapistName = request.getParameter("targetTherapist");
-		MongoCursor<Document> cursor = collection.find().iterator();
+		int page = 0;
+		try {
+			page = Math.max(Integer.parseInt(request.getParameter("page")), 0);
+		} catch(NumberFormatException e) {
+			//Show the first page
+		}
 		
 		/*
-		 * Perform a linear search for therapists with names that match the
-		 * name of the therapist that was searched for. Make a list of
-		 * the matching therapists 
+		 * Find one more therapist than fits on the page, to know if there 
+		 * is a next page
 		 */
-		List<Therapist> matchingTherapists = new ArrayList<>();
-		while(cursor.hasNext()) {
-			
-			Document therapistDoc = cursor.next();
-			Therapist therapist = new Therapist(therapistDoc.getObjectId("_id"), database);
-			
-			if(therapistName.equalsIgnoreCase(therapist.getFullName())) {
-				matchingTherapists.add(therapist);
-			}
-			
+		int skip = page * PAGE_SIZE;
+		boolean textIndex = Boolean.parseBoolean(getServletContext().getInitParameter("search.textIndex"));
+		boolean byWords = textIndex && Boolean.parseBoolean(request.getParameter("byWords"));
+		
+		List<Therapist> matchingTherapists = null;
+		if(!byWords) {
+			matchingTherapists = Therapist.searchByName(therapistName, skip, PAGE_SIZE + 1, database);
+		}
+		
+		if(byWords || (textIndex && page == 0 && matchingTherapists.isEmpty())) {
+			byWords = true;
+			matchingTherapists = Therapist.searchByWords(therapistName, skip, PAGE_SIZE + 1, database);
+		}
+		
+		boolean hasNextPage = matchingTherapists.size() > PAGE_SIZE;
+		if(hasNextPage) {
+			matchingTherapists = matchingTherapists.subList(0, PAGE_SIZE);
 		}
 		
 		request.setAttribute("matchingTherapists", matchingTherapists);
-		request.getRequestDispatcher("/searchTherapists.jsp").forward(request, response);;
+		request.setAttribute("page", page);
+		request.setAttribute("byWords", byWords);
+		request.setAttribute("hasNextPage", hasNextPage);
+		request.getRequestDispatcher("/searchTherapists.jsp").forward(request, response);
 		
 	}
 	
@@ -3,16 +3,10 @@ package com.therapy.servlets;
 import static com.mongodb.client.model.Filters.eq;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -21,13 +15,15 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.bson.Document;
-import org.bson.types.Binary;
 import org.bson.types.ObjectId;
 
 import com.mongodb.MongoClient;
 import com.mongodb.MongoWriteException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.therapy.entities.User;
+import com.therapy.security.PasswordHash;
+import com.therapy.security.PasswordHasher;
 
 /**
  * This class is a servlet that takes the data from the HTTP request attributes
@@ -36,7 +32,7 @@ import com.mongodb.client.MongoDatabase;
  * @author Yousef Bulbulia
  * 
  */
-@WebServlet("/signUpServlet")
+@WebServlet(urlPatterns = "/signUpServlet", asyncSupported = true)
 public class SignUpServlet extends HttpServlet {
 
 	private static final String serverIpAddress = "10.12.195.177"; 
@@ -52,6 +48,9 @@ public class SignUpServlet extends HttpServlet {
 	 * If the user is a patient, they are forwarded to the GetTherapistsServlet 
 	 * servlet, and if they are a therapist, they are forwarded to 
 	 * therapistHomepage.html.
+	 * 
+	 * The password is hashed by the <code>PasswordHasher</code>, so this 
+	 * thread is released while it waits.
 	 */
 	@Override
 	public void doPost(HttpServletRequest request, 
@@ -78,32 +77,58 @@ public class SignUpServlet extends HttpServlet {
 		}
 		
 		
-		//Hash the password
-		SecureRandom random = new SecureRandom();
-		byte[] salt = new byte[16];
-		random.nextBytes(salt);
-		
-		KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, 65536, 128);
-		SecretKeyFactory factory = null;
+		/*
+		 * Hash the password on the PasswordHasher's threads, and release 
+		 * this thread until it is done. The user is then created on the 
+		 * AsyncExecutor, like the work of the other asynchronous servlets, 
+		 * so that the database calls do not take the PasswordHasher's 
+		 * threads away from hashing
+		 */
+		final AsyncContext acontext = request.startAsync();
+		final int limit = patientLimit;
+		PasswordHasher hasher = PasswordHasher.get(getServletContext());
+		AsyncExecutor executor = AsyncExecutor.get(getServletContext());
 		
-		try {
-			factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-		} catch(NoSuchAlgorithmException e) {
-			e.printStackTrace();
-		}
-				
-		byte[] hash = null;
+		hasher.hash(password).whenComplete((hash, e) -> executor.execute("signUp", acontext, () -> {
+			
+			if(e != null) {
+				hasher.sendError(acontext, e);
+				return;
+			}
+			
+			try {
+				createUser(request, response, acontext, userType, firstName, lastName, 
+						email, limit, hash);
+			} catch(IOException | RuntimeException ex) {
+				hasher.sendError(acontext, ex);
+			}
+			
+		}));
 		
-		try {
-			hash = factory.generateSecret(spec).getEncoded();
-		} catch(InvalidKeySpecException e) {
-			e.printStackTrace();
-		}
+	}
+	
+	/**
+	 * Enters the form data into the database if the email given does not 
+	 * already exist, and forwards the user to their page.
+	 * 
+	 * @param request      the HTTP request
+	 * @param response     the HTTP response
+	 * @param acontext     the <code>AsyncContext</code> of the request
+	 * @param userType     the type of the user
+	 * @param firstName    the first name of the user
+	 * @param lastName     the last name of the user
+	 * @param email        the email of the user
+	 * @param patientLimit the patient limit of a therapist
+	 * @param hash         the hash of the user's password
+	 * @throws IOException if the user could not be redirected
+	 */
+	private void createUser(HttpServletRequest request, HttpServletResponse response, 
+			AsyncContext acontext, String userType, String firstName, String lastName, 
+			String email, int patientLimit, PasswordHash hash) throws IOException {
 		
 		//get the appropriate collection for the user
 		MongoClient mongoClient = Util.getMongoClient();
 		MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);
-		Util.intialiazeDatabase();
 		MongoCollection<Document> collection = Util.getUserAppropriateCollection(database, userType);
 		
 		/*
@@ -118,12 +143,14 @@ public class SignUpServlet extends HttpServlet {
 			fields.put("first_name", firstName);
 			fields.put("last_name", lastName);
 			fields.put("email", email);
-			fields.put("password_hash", new Binary(hash));
-			fields.put("salt", new Binary(salt));
+			fields.putAll(User.getNameSearchFields(firstName, lastName));
+			hash.putFields(fields);
 			
 			if(userType.equals("Therapist")) {
 				fields.put("patient_limit", patientLimit);
 				fields.put("can_receive_requests", true);
+				fields.put("open_requests", 0);
+				fields.put("patient_count", 0);
 			}
 			
 			//Create a unique _id field for the user
@@ -157,6 +184,7 @@ public class SignUpServlet extends HttpServlet {
 					} else {
 						
 						response.sendRedirect(projectPath + "/signUp.jsp?databaseError=1");
+						acontext.complete();
 						return;
 						
 					}
@@ -173,13 +201,13 @@ public class SignUpServlet extends HttpServlet {
 			
 			if(userType.equals("Patient")) {
 				
-				request.getRequestDispatcher("/getTherapists").forward(request, response);
+				acontext.dispatch("/getTherapists");
 				Util.LOGGER.info("Patient with id" + id.toHexString() + "was forwarded to /getTherapists");
 				return;
 				
 			} else {
 				
-				request.getRequestDispatcher("/therapistHomepage.jsp").forward(request, response);
+				acontext.dispatch("/therapistHomepage.jsp");
 				Util.LOGGER.info("Patient with id" + id.toHexString() + 
 						"was forwarded to /thearpistHomepage.jsp");
 				return;
@@ -190,6 +218,7 @@ public class SignUpServlet extends HttpServlet {
 			
 			
 			response.sendRedirect(projectPath + "/signUp.jsp?emailError=1");
+			acontext.complete();
 			return;
 			
 		}
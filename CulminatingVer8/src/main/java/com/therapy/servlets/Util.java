@@ -1,16 +1,22 @@
 package com.therapy.servlets;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.logging.Logger;
 
+import javax.servlet.http.HttpSession;
+
 import org.bson.Document;
+import org.bson.types.ObjectId;
 
 import com.mongodb.MongoClient;
-import com.mongodb.MongoClientURI;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.MongoIterable;
 import com.mongodb.client.model.IndexOptions;
+import com.therapy.entities.Chat;
+import com.therapy.entities.Patient;
+import com.therapy.entities.reactive.ReactiveEntities;
 
 /**
  * 
@@ -25,6 +31,9 @@ public final class Util {
 	public static final String DATABASE_NAME = "Therapy";
 	public final static Logger LOGGER = Logger.getLogger(Util.class.getName());
 	
+	private static volatile MongoClient mongoClient;
+	private static volatile com.mongodb.reactivestreams.client.MongoClient reactiveMongoClient;
+	
 	/**
 	 * This constructor is a private, empty constructor. This is so that a 
 	 * <code>Util</code> object can never be instantiated, as all of it's 
@@ -36,11 +45,83 @@ public final class Util {
 	}
 	
 	/**
+	 * Returns the <code>MongoClient</code> shared by the whole application.
+	 * The client is opened by <code>MongoClientListener</code> when the web
+	 * application starts, and must not be closed by its callers.
 	 * 
 	 * @return a <code>MongoClient</code> that is connected to the MongoDB database.
 	 */
-	public static MongoClient getMongoClient() {
-		return new MongoClient(new MongoClientURI("mongodb://localhost:27017/testDB"));
+	public static MongoClient getMongoClient() throws IllegalStateException {
+		
+		MongoClient client = mongoClient;
+		
+		if(client == null) {
+			throw new IllegalStateException("The MongoClient has not been opened by MongoClientListener");
+		}
+		
+		return client;
+		
+	}
+	
+	/**
+	 * 
+	 * @return the database of this website, retrieved from the shared
+	 * 		   <code>MongoClient</code>
+	 */
+	public static MongoDatabase getDatabase() throws IllegalStateException {
+		return getMongoClient().getDatabase(DATABASE_NAME);
+	}
+	
+	/**
+	 * Replaces the shared <code>MongoClient</code>. This is only meant to be
+	 * called by <code>MongoClientListener</code>.
+	 * 
+	 * @param client the new shared <code>MongoClient</code>, or null
+	 * @return       the previous shared <code>MongoClient</code>, or null
+	 */
+	static synchronized MongoClient setMongoClient(MongoClient client) {
+		
+		MongoClient previous = mongoClient;
+		mongoClient = client;
+		return previous;
+		
+	}
+	
+	/**
+	 * Returns the database of this website from the shared, non-blocking 
+	 * client of the Reactive Streams driver. The client is opened by 
+	 * <code>MongoClientListener</code> together with the 
+	 * <code>MongoClient</code>.
+	 * 
+	 * @return the database of this website
+	 */
+	public static com.mongodb.reactivestreams.client.MongoDatabase getReactiveDatabase() 
+			throws IllegalStateException {
+		
+		com.mongodb.reactivestreams.client.MongoClient client = reactiveMongoClient;
+		
+		if(client == null) {
+			throw new IllegalStateException("The reactive MongoClient has not been opened by MongoClientListener");
+		}
+		
+		return client.getDatabase(DATABASE_NAME);
+		
+	}
+	
+	/**
+	 * Replaces the shared client of the Reactive Streams driver. This is only 
+	 * meant to be called by <code>MongoClientListener</code>.
+	 * 
+	 * @param client the new shared client, or null
+	 * @return       the previous shared client, or null
+	 */
+	static synchronized com.mongodb.reactivestreams.client.MongoClient setReactiveMongoClient(
+			com.mongodb.reactivestreams.client.MongoClient client) {
+		
+		com.mongodb.reactivestreams.client.MongoClient previous = reactiveMongoClient;
+		reactiveMongoClient = client;
+		return previous;
+		
 	}
 	
 	/**
@@ -73,17 +154,49 @@ public final class Util {
 	
 	/**
 	 * Initializes the database by creating all the collections needed for this 
-	 * website to run, if they have not been created yet.
+	 * website to run, if they have not been created yet. This is called once
+	 * by <code>MongoClientListener</code> when the web application starts.
 	 * 
 	 * The <code>patients</code> and <code>therapists</code> collections have
 	 * the field <code>email</code> set as unique indexes, so that an exception
 	 * would be thrown if two <code>email</code> fields in the collection had
 	 * the same value.
+	 * 
+	 * The <code>requests</code> and <code>chats</code> collections have a
+	 * unique index on <code>patient_id</code> and <code>therapist_id</code>,
+	 * so that a patient can only have one of each with the same therapist. 
+	 * These indexes are created even if the collections already exist, as 
+	 * creating an existing index has no effect.
+	 * 
+	 * The <code>messages</code> collection has an index on 
+	 * <code>chat_id</code> and <code>_id</code>, so that the messages of a 
+	 * chat can be read in pages with range scans.
+	 * 
+	 * The <code>therapists</code> collection has an index on 
+	 * <code>can_receive_requests</code> and <code>rating_count</code>, so
+	 * that the therapists shown to new patients are picked from only the ones
+	 * that match. It also has indexes on <code>full_name_lower</code> and <code>last_name_lower</code>, so that 
+	 * therapists can be searched for by the start of their name. If 
+	 * <code>textIndex</code> is <code>true</code>, it also has a text index 
+	 * on <code>first_name</code> and <code>last_name</code>.
+	 * 
+	 * @param textIndex whether to create the text index on the names of 
+	 * 					therapists
 	 */
-	public static void intialiazeDatabase() {
-		
-		MongoClient mongoClient = getMongoClient();
-		MongoDatabase database = mongoClient.getDatabase(DATABASE_NAME);
+	public static void intialiazeDatabase(boolean textIndex) {
+		intialiazeDatabase(getDatabase(), textIndex);
+	}
+	
+	/**
+	 * Initializes <code>database</code> in the same way as 
+	 * <code>intialiazeDatabase(boolean)</code>. This is used by the 
+	 * benchmarks, which do not use the shared <code>MongoClient</code>.
+	 * 
+	 * @param database  the database to initialize
+	 * @param textIndex whether to create the text index on the names of 
+	 * 					therapists
+	 */
+	public static void intialiazeDatabase(MongoDatabase database, boolean textIndex) {
 		
 		Document emailIndex = new Document("email", 1);
 		
@@ -101,6 +214,63 @@ public final class Util {
 			
 		}
 		
+		Document userPairIndex = new Document("patient_id", 1).append("therapist_id", 1);
+		database.getCollection("requests").createIndex(userPairIndex, new IndexOptions().unique(true));
+		database.getCollection("chats").createIndex(userPairIndex, new IndexOptions().unique(true));
+		
+		//Index for listing the chats of a therapist on their homepage
+		database.getCollection("chats").createIndex(new Document("therapist_id", 1).append("_id", 1));
+		
+		Document chatMessagesIndex = new Document("chat_id", 1).append("_id", 1);
+		database.getCollection("messages").createIndex(chatMessagesIndex);
+		
+		//Index for picking therapists for new patients
+		database.getCollection("therapists").createIndex(
+				new Document("can_receive_requests", 1).append("rating_count", 1));
+		
+		//Indexes for searching therapists by name
+		MongoCollection<Document> therapistCollection = database.getCollection("therapists");
+		therapistCollection.createIndex(new Document("full_name_lower", 1).append("_id", 1));
+		therapistCollection.createIndex(new Document("last_name_lower", 1));
+		
+		if(textIndex) {
+			therapistCollection.createIndex(new Document("first_name", "text").append("last_name", "text"),
+					new IndexOptions().defaultLanguage("none"));
+		}
+		
+	}
+	
+	/**
+	 * Escapes the characters of <code>text</code> that have a meaning in 
+	 * HTML, so that text written by users can be put in a page.
+	 * 
+	 * @param text the text to escape, or null
+	 * @return     the escaped text, or an empty string if <code>text</code> 
+	 * 			   is null
+	 */
+	public static String escapeHtml(String text) {
+		
+		if(text == null) {
+			return "";
+		}
+		
+		StringBuilder escaped = new StringBuilder(text.length());
+		for(int i = 0; i < text.length(); i++) {
+			
+			char c = text.charAt(i);
+			switch(c) {
+				case '&': escaped.append("&amp;"); break;
+				case '<': escaped.append("&lt;"); break;
+				case '>': escaped.append("&gt;"); break;
+				case '"': escaped.append("&quot;"); break;
+				case '\'': escaped.append("&#39;"); break;
+				default: escaped.append(c);
+			}
+			
+		}
+		
+		return escaped.toString();
+		
 	}
 	
 	/**
@@ -129,4 +299,68 @@ public final class Util {
 		
 	}
 	
+	/**
+	 * Retrieves the <code>Chat</code> that the user of <code>session</code> is
+	 * currently using. For a patient, this is their only <code>Chat</code>. 
+	 * For a therapist, it is the <code>Chat</code> they chose, which is saved
+	 * in the HTTP session attribute <code>chat</code>.
+	 * 
+	 * @param session  the HTTP session of the user
+	 * @param database the database the <code>Chat</code> belongs to
+	 * @return         the current <code>Chat</code>, or null if the user does
+	 * 				   not have one
+	 */
+	public static Chat getCurrentChat(HttpSession session, MongoDatabase database) {
+		
+		String userType = (String)session.getAttribute("userType");
+		
+		if("Patient".equals(userType)) {
+			return new Patient((ObjectId)session.getAttribute("id"), database).getChat();
+		} else if("Therapist".equals(userType)) {
+			return (Chat)session.getAttribute("chat");
+		}
+		
+		return null;
+		
+	}
+	
+	/**
+	 * Retrieves the <code>Document</code> of the <code>Chat</code> that the 
+	 * user of <code>session</code> is currently using, without blocking. The 
+	 * session is read before this method returns, so the future may complete
+	 * after the request has been released.
+	 * 
+	 * @param session  the HTTP session of the user
+	 * @param entities the <code>ReactiveEntities</code> to read the 
+	 * 				   <code>Chat</code> with
+	 * @return         a future of the <code>Document</code> of the current 
+	 * 				   <code>Chat</code>. The future fails with an 
+	 * 				   <code>IllegalStateException</code> if the user does not
+	 * 				   have one.
+	 */
+	public static CompletableFuture<Document> getCurrentChat(HttpSession session, ReactiveEntities entities) {
+		
+		String userType = (String)session.getAttribute("userType");
+		
+		CompletableFuture<Document> chat;
+		if("Patient".equals(userType)) {
+			chat = entities.getChatOfPatient((ObjectId)session.getAttribute("id"));
+		} else if("Therapist".equals(userType) && session.getAttribute("chat") != null) {
+			chat = entities.getChat(((Chat)session.getAttribute("chat")).getId());
+		} else {
+			chat = CompletableFuture.completedFuture(null);
+		}
+		
+		return chat.thenApply(doc -> {
+			
+			if(doc == null) {
+				throw new IllegalStateException("The user does not have a chat open");
+			}
+			
+			return doc;
+			
+		});
+		
+	}
+	
 }
@@ -0,0 +1,118 @@
+package com.therapy.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Filters;
+
+/**
+ * This class represents a condition a document must match for an update to
+ * be applied to it. A <code>Condition</code> is both a MongoDB filter, so 
+ * it can be passed to the driver wherever a <code>Bson</code> filter is 
+ * expected, and a test run on a <code>Document</code> by the in-memory 
+ * engine. 
+ * 
+ * Conditions that cannot be made from <code>eq</code>, <code>ne</code> and 
+ * <code>and</code>, such as <code>$expr</code> filters, are made with 
+ * <code>where</code>, giving both forms.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class Condition implements Bson {
+
+	private final Bson filter;
+	private final Predicate<Document> test;
+	
+	private Condition(Bson filter, Predicate<Document> test) {
+		
+		this.filter = filter;
+		this.test = test;
+		
+	}
+	
+	/**
+	 * Creates a condition that matches documents whose <code>field</code> is
+	 * <code>value</code>, or is an array holding <code>value</code>.
+	 * 
+	 * @param field the name or dotted path of the field
+	 * @param value the value
+	 * @return      the condition
+	 */
+	public static Condition eq(String field, Object value) {
+		return new Condition(Filters.eq(field, value), document -> Documents.matches(Documents.get(document, field), value));
+	}
+	
+	/**
+	 * Creates a condition that matches the documents <code>eq</code> does
+	 * not, including those where <code>field</code> is missing.
+	 * 
+	 * @param field the name or dotted path of the field
+	 * @param value the value
+	 * @return      the condition
+	 */
+	public static Condition ne(String field, Object value) {
+		return new Condition(Filters.ne(field, value), document -> !Documents.matches(Documents.get(document, field), value));
+	}
+	
+	/**
+	 * 
+	 * @param conditions the conditions
+	 * @return           a condition that matches documents matching all of 
+	 * 					 <code>conditions</code>
+	 */
+	public static Condition and(Condition... conditions) {
+		
+		List<Bson> filters = new ArrayList<>();
+		Predicate<Document> test = document -> true;
+		for(Condition condition : conditions) {
+			
+			filters.add(condition.filter);
+			test = test.and(condition.test);
+			
+		}
+		
+		return new Condition(Filters.and(filters), test);
+		
+	}
+	
+	/**
+	 * Creates a condition from a MongoDB filter and a test that matches the 
+	 * same documents.
+	 * 
+	 * @param filter the MongoDB filter
+	 * @param test   the test
+	 * @return       the condition
+	 */
+	public static Condition where(Bson filter, Predicate<Document> test) {
+		return new Condition(filter, test);
+	}
+	
+	/**
+	 * 
+	 * @param document a document
+	 * @return         <code>true</code> if the document matches this 
+	 * 				   condition
+	 */
+	public boolean test(Document document) {
+		return test.test(document);
+	}
+	
+	@Override
+	public <TDocument> BsonDocument toBsonDocument(Class<TDocument> documentClass, 
+			CodecRegistry codecRegistry) {
+		return filter.toBsonDocument(documentClass, codecRegistry);
+	}
+	
+	@Override
+	public String toString() {
+		return filter.toString();
+	}
+	
+}
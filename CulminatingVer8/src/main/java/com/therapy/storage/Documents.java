@@ -0,0 +1,160 @@
+package com.therapy.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.bson.Document;
+
+/**
+ * This class holds the methods the in-memory engine uses to read and change
+ * fields of <code>Document</code>s in the same way as MongoDB. Field names 
+ * may be dotted paths into embedded documents, such as 
+ * <code>rating_histogram.3</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class Documents {
+
+	private Documents() {
+		
+	}
+	
+	/**
+	 * Copies a value, along with every embedded document and array in it, so
+	 * that changing the copy leaves the original as it was.
+	 * 
+	 * @param value the value to copy
+	 * @return      the copy
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T copy(T value) {
+		
+		if(value instanceof Map) {
+			
+			Document copy = new Document();
+			((Map<String, Object>)value).forEach((key, field) -> copy.put(key, copy(field)));
+			return (T)copy;
+			
+		}
+		
+		if(value instanceof List) {
+			
+			List<Object> copy = new ArrayList<>();
+			for(Object element : (List<Object>)value) {
+				copy.add(copy(element));
+			}
+			return (T)copy;
+			
+		}
+		
+		return value;
+		
+	}
+	
+	/**
+	 * 
+	 * @param document the document
+	 * @param path     the name or dotted path of the field
+	 * @return         the value of the field, or null if it is missing
+	 */
+	static Object get(Document document, String path) {
+		
+		Object value = document;
+		for(String name : path.split("\\.")) {
+			
+			if(!(value instanceof Map)) {
+				return null;
+			}
+			value = ((Map<?, ?>)value).get(name);
+			
+		}
+		
+		return value;
+		
+	}
+	
+	/**
+	 * Finds the document that holds the last field of <code>path</code>, 
+	 * creating the embedded documents that are missing.
+	 * 
+	 * @param document the document
+	 * @param path     the name or dotted path of the field
+	 * @return         the document holding the field
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> getParent(Document document, String path) {
+		
+		Map<String, Object> parent = document;
+		String[] names = path.split("\\.");
+		for(int i = 0; i < names.length - 1; i++) {
+			
+			Object child = parent.get(names[i]);
+			if(!(child instanceof Map)) {
+				child = new Document();
+				parent.put(names[i], child);
+			}
+			parent = (Map<String, Object>)child;
+			
+		}
+		
+		return parent;
+		
+	}
+	
+	/**
+	 * 
+	 * @param path the name or dotted path of a field
+	 * @return     the name of the last field of the path
+	 */
+	static String getName(String path) {
+		return path.substring(path.lastIndexOf('.') + 1);
+	}
+	
+	/**
+	 * Checks whether a field matches a value as a MongoDB equality filter 
+	 * does: the field is equal to the value, or it is an array holding the
+	 * value. Numbers are compared by value, whatever their type.
+	 * 
+	 * @param field the value of the field, or null if it is missing
+	 * @param value the value to match
+	 * @return      <code>true</code> if the field matches
+	 */
+	static boolean matches(Object field, Object value) {
+		
+		if(valueEquals(field, value)) {
+			return true;
+		}
+		
+		if(field instanceof List) {
+			for(Object element : (List<?>)field) {
+				if(valueEquals(element, value)) {
+					return true;
+				}
+			}
+		}
+		
+		return false;
+		
+	}
+	
+	/**
+	 * 
+	 * @param a a value
+	 * @param b another value
+	 * @return  <code>true</code> if the values are equal, comparing numbers
+	 * 			by value
+	 */
+	static boolean valueEquals(Object a, Object b) {
+		
+		if(a instanceof Number && b instanceof Number) {
+			return ((Number)a).doubleValue() == ((Number)b).doubleValue();
+		}
+		
+		return Objects.equals(a, b);
+		
+	}
+	
+}
@@ -0,0 +1,87 @@
+package com.therapy.storage;
+
+/**
+ * This exception is thrown when a write to a <code>StoredCollection</code>
+ * would give two documents the same <code>_id</code> field, or the same 
+ * values for the fields of a unique index.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class DuplicateKeyException extends RuntimeException {
+
+	/**
+	 * The name MongoDB gives the unique index on the <code>_id</code> field.
+	 */
+	public static final String ID_INDEX = "_id_";
+	
+	private final boolean onId;
+	
+	/**
+	 * 
+	 * @param message the description of the duplicate key
+	 * @param onId    <code>true</code> if the <code>_id</code> field was 
+	 * 				  duplicated
+	 * @param cause   the exception thrown by the storage, or null
+	 */
+	public DuplicateKeyException(String message, boolean onId, Throwable cause) {
+		
+		super(message, cause);
+		this.onId = onId;
+		
+	}
+	
+	/**
+	 * 
+	 * @return <code>true</code> if the <code>_id</code> field was duplicated,
+	 * 		   rather than the fields of another unique index
+	 */
+	public boolean isOnId() {
+		return onId;
+	}
+	
+	/**
+	 * Reads the name of the index from the message of a MongoDB duplicate 
+	 * key error, such as <code>E11000 duplicate key error collection: 
+	 * therapy.requests index: patient_id_1_therapist_id_1 dup key: ...</code>.
+	 * The name must be matched exactly, as the names of other indexes, such 
+	 * as <code>patient_id_1_therapist_id_1</code>, can contain 
+	 * <code>_id_</code> too.
+	 * 
+	 * @param message the message of the error
+	 * @return        the name of the index, or null if the message does not 
+	 * 				  name one
+	 */
+	public static String getIndexName(String message) {
+		
+		final String prefix = "index: ";
+		int start = message == null ? -1 : message.indexOf(prefix);
+		if(start < 0) {
+			return null;
+		}
+		
+		start += prefix.length();
+		int end = start;
+		while(end < message.length() && !Character.isWhitespace(message.charAt(end))) {
+			end++;
+		}
+		
+		//Servers before 3.0 give the namespace too, as in therapy.requests.$_id_
+		String index = message.substring(start, end);
+		int namespaceEnd = index.lastIndexOf(".$");
+		
+		return namespaceEnd < 0 ? index : index.substring(namespaceEnd + 2);
+		
+	}
+	
+	/**
+	 * 
+	 * @param message the message of a MongoDB duplicate key error
+	 * @return        <code>true</code> if the error is on the unique index 
+	 * 				  of the <code>_id</code> field
+	 */
+	public static boolean isIdIndex(String message) {
+		return ID_INDEX.equals(getIndexName(message));
+	}
+	
+}
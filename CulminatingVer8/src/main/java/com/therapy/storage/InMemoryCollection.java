@@ -0,0 +1,404 @@
+package com.therapy.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * This class is a collection of an <code>InMemoryStorage</code>. The 
+ * documents are held in a <code>ConcurrentHashMap</code> by their 
+ * <code>_id</code> field. A document is never changed once it is stored: 
+ * an update copies it, changes the copy and replaces it while holding the 
+ * lock of its entry in the map, so updates to one document are atomic and 
+ * reads always see a whole document.
+ * 
+ * Two kinds of index are supported. A unique index maps the values of its 
+ * fields to the <code>_id</code> field of the document that has them. An 
+ * index on one field followed by <code>_id</code>, such as the one on the 
+ * <code>chat_id</code> field of messages, is a sorted set of 
+ * <code>_id</code> fields for each value of the field, so 
+ * <code>scan</code> reads only the documents it returns. Other indexes are
+ * not needed without a query planner, and are ignored.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class InMemoryCollection implements StoredCollection {
+
+	/**
+	 * A unique index on one or more fields.
+	 */
+	private static final class UniqueIndex {
+		
+		private final String[] fields;
+		private final Map<List<Object>, ObjectId> owners = new ConcurrentHashMap<>();
+		
+		private UniqueIndex(String[] fields) {
+			this.fields = fields;
+		}
+		
+		/**
+		 * 
+		 * @param document a document
+		 * @return         the values of the fields of this index in the 
+		 * 				   document. Missing fields are null, so that, as in 
+		 * 				   MongoDB, two documents missing them conflict.
+		 */
+		private List<Object> getKey(Document document) {
+			
+			List<Object> key = new ArrayList<>();
+			for(String field : fields) {
+				key.add(Documents.get(document, field));
+			}
+			
+			return key;
+			
+		}
+		
+		/**
+		 * Gives the values of the fields of <code>document</code> to it.
+		 * 
+		 * @param document the document
+		 * @throws DuplicateKeyException if another document has them
+		 */
+		private void claim(Document document) throws DuplicateKeyException {
+			
+			ObjectId id = document.getObjectId("_id");
+			ObjectId owner = owners.putIfAbsent(getKey(document), id);
+			
+			if(owner != null && !owner.equals(id)) {
+				throw new DuplicateKeyException("Duplicate key in the unique index on " 
+						+ Arrays.toString(fields) + ": " + getKey(document), false, null);
+			}
+			
+		}
+		
+		/**
+		 * Frees the values of the fields of <code>document</code>.
+		 * 
+		 * @param document the document
+		 */
+		private void release(Document document) {
+			owners.remove(getKey(document), document.getObjectId("_id"));
+		}
+		
+	}
+	
+	private final Map<ObjectId, Document> documents = new ConcurrentHashMap<>();
+	private final List<UniqueIndex> uniqueIndexes = new CopyOnWriteArrayList<>();
+	
+	/**
+	 * The sorted indexes, by field, and then by the value of the field.
+	 */
+	private final Map<String, Map<Object, NavigableSet<ObjectId>>> sortedIndexes = new ConcurrentHashMap<>();
+	
+	@Override
+	public Document get(ObjectId id) {
+		return documents.get(id);
+	}
+	
+	@Override
+	public List<Document> getAll(List<ObjectId> ids) {
+		
+		List<Document> found = new ArrayList<>();
+		for(ObjectId id : ids) {
+			
+			Document document = documents.get(id);
+			if(document != null) {
+				found.add(document);
+			}
+			
+		}
+		
+		return found;
+		
+	}
+	
+	@Override
+	public List<Document> find(Condition condition, int limit) {
+		
+		List<Document> found = new ArrayList<>();
+		for(Document document : documents.values()) {
+			
+			if(limit > 0 && found.size() == limit) {
+				break;
+			}
+			if(condition.test(document)) {
+				found.add(document);
+			}
+			
+		}
+		
+		return found;
+		
+	}
+	
+	@Override
+	public List<Document> scan(String field, Object value, ObjectId after, ObjectId before, 
+			boolean ascending, int limit) {
+		
+		Map<Object, NavigableSet<ObjectId>> index = sortedIndexes.get(field);
+		if(index == null) {
+			return scanAll(field, value, after, before, ascending, limit);
+		}
+		
+		NavigableSet<ObjectId> ids = index.get(value);
+		if(ids == null) {
+			return new ArrayList<>();
+		}
+		if(after != null) {
+			ids = ids.tailSet(after, false);
+		}
+		if(before != null) {
+			ids = ids.headSet(before, false);
+		}
+		if(!ascending) {
+			ids = ids.descendingSet();
+		}
+		
+		List<Document> found = new ArrayList<>();
+		for(ObjectId id : ids) {
+			
+			if(limit > 0 && found.size() == limit) {
+				break;
+			}
+			
+			//An id is indexed just before its document is stored
+			Document document = documents.get(id);
+			if(document != null) {
+				found.add(document);
+			}
+			
+		}
+		
+		return found;
+		
+	}
+	
+	/**
+	 * Runs <code>scan</code> on a field that is not indexed, by reading every
+	 * document.
+	 */
+	private List<Document> scanAll(String field, Object value, ObjectId after, ObjectId before, 
+			boolean ascending, int limit) {
+		
+		List<Document> found = new ArrayList<>();
+		for(Document document : documents.values()) {
+			
+			ObjectId id = document.getObjectId("_id");
+			if(Documents.matches(Documents.get(document, field), value)
+					&& (after == null || id.compareTo(after) > 0)
+					&& (before == null || id.compareTo(before) < 0)) {
+				found.add(document);
+			}
+			
+		}
+		
+		Comparator<Document> order = Comparator.comparing(document -> document.getObjectId("_id"));
+		found.sort(ascending ? order : order.reversed());
+		
+		return limit > 0 && found.size() > limit ? new ArrayList<>(found.subList(0, limit)) : found;
+		
+	}
+	
+	@Override
+	public void insert(Document document) throws DuplicateKeyException {
+		
+		if(document.getObjectId("_id") == null) {
+			document.put("_id", new ObjectId());
+		}
+		
+		Document stored = Documents.copy(document);
+		ObjectId id = stored.getObjectId("_id");
+		
+		//Claim the keys while holding the lock of the _id field's entry, so no other insert can take it
+		documents.compute(id, (key, current) -> {
+			
+			if(current != null) {
+				throw new DuplicateKeyException("Duplicate key in the unique index on _id: " + id, true, null);
+			}
+			
+			List<UniqueIndex> claimed = new ArrayList<>();
+			try {
+				
+				for(UniqueIndex index : uniqueIndexes) {
+					index.claim(stored);
+					claimed.add(index);
+				}
+				
+			} catch(DuplicateKeyException e) {
+				claimed.forEach(index -> index.release(stored));
+				throw e;
+			}
+			
+			addToSortedIndexes(stored);
+			return stored;
+			
+		});
+		
+	}
+	
+	@Override
+	public Document update(ObjectId id, Condition condition, Update update) throws DuplicateKeyException {
+		
+		Document[] updated = new Document[1];
+		
+		documents.computeIfPresent(id, (key, current) -> {
+			
+			if(condition != null && !condition.test(current)) {
+				return current;
+			}
+			
+			Document changed = Documents.copy(current);
+			update.apply(changed);
+			changed.put("_id", id);
+			
+			reindex(current, changed);
+			updated[0] = changed;
+			return changed;
+			
+		});
+		
+		return updated[0];
+		
+	}
+	
+	@Override
+	public boolean delete(ObjectId id) {
+		
+		Document removed = documents.remove(id);
+		if(removed == null) {
+			return false;
+		}
+		
+		for(UniqueIndex index : uniqueIndexes) {
+			index.release(removed);
+		}
+		removeFromSortedIndexes(removed);
+		
+		return true;
+		
+	}
+	
+	@Override
+	public synchronized void createIndex(boolean unique, String... fields) {
+		
+		if(unique) {
+			
+			for(UniqueIndex index : uniqueIndexes) {
+				if(Arrays.equals(index.fields, fields)) {
+					return;
+				}
+			}
+			
+			UniqueIndex index = new UniqueIndex(fields);
+			for(Document document : documents.values()) {
+				index.claim(document);
+			}
+			uniqueIndexes.add(index);
+			
+		} else if(fields.length == 2 && fields[1].equals("_id") && !sortedIndexes.containsKey(fields[0])) {
+			
+			Map<Object, NavigableSet<ObjectId>> index = new ConcurrentHashMap<>();
+			for(Document document : documents.values()) {
+				addTo(index, Documents.get(document, fields[0]), document.getObjectId("_id"));
+			}
+			sortedIndexes.put(fields[0], index);
+			
+		}
+		
+	}
+	
+	/**
+	 * Moves a document that was updated to the entries of the indexes for 
+	 * its new values. This is called while holding the lock of the 
+	 * document's entry.
+	 * 
+	 * @param current the document before the update
+	 * @param changed the document after the update
+	 * @throws DuplicateKeyException if another document has the new values 
+	 * 								 of a unique index
+	 */
+	private void reindex(Document current, Document changed) throws DuplicateKeyException {
+		
+		List<UniqueIndex> moved = new ArrayList<>();
+		for(UniqueIndex index : uniqueIndexes) {
+			
+			if(!index.getKey(current).equals(index.getKey(changed))) {
+				
+				try {
+					index.claim(changed);
+				} catch(DuplicateKeyException e) {
+					moved.forEach(claimed -> claimed.release(changed));
+					throw e;
+				}
+				moved.add(index);
+				
+			}
+			
+		}
+		moved.forEach(index -> index.release(current));
+		
+		for(Map.Entry<String, Map<Object, NavigableSet<ObjectId>>> index : sortedIndexes.entrySet()) {
+			
+			Object oldValue = Documents.get(current, index.getKey());
+			Object newValue = Documents.get(changed, index.getKey());
+			if(!Objects.equals(oldValue, newValue)) {
+				
+				addTo(index.getValue(), newValue, changed.getObjectId("_id"));
+				removeFrom(index.getValue(), oldValue, current.getObjectId("_id"));
+				
+			}
+			
+		}
+		
+	}
+	
+	private void addToSortedIndexes(Document document) {
+		
+		for(Map.Entry<String, Map<Object, NavigableSet<ObjectId>>> index : sortedIndexes.entrySet()) {
+			addTo(index.getValue(), Documents.get(document, index.getKey()), document.getObjectId("_id"));
+		}
+		
+	}
+	
+	private void removeFromSortedIndexes(Document document) {
+		
+		for(Map.Entry<String, Map<Object, NavigableSet<ObjectId>>> index : sortedIndexes.entrySet()) {
+			removeFrom(index.getValue(), Documents.get(document, index.getKey()), document.getObjectId("_id"));
+		}
+		
+	}
+	
+	private static void addTo(Map<Object, NavigableSet<ObjectId>> index, Object value, ObjectId id) {
+		
+		if(value != null) {
+			index.computeIfAbsent(value, key -> new ConcurrentSkipListSet<>()).add(id);
+		}
+		
+	}
+	
+	private static void removeFrom(Map<Object, NavigableSet<ObjectId>> index, Object value, ObjectId id) {
+		
+		if(value == null) {
+			return;
+		}
+		
+		NavigableSet<ObjectId> ids = index.get(value);
+		if(ids != null) {
+			ids.remove(id);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,28 @@
+package com.therapy.storage;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is a <code>Storage</code> that keeps every document in memory,
+ * so that the entities can be benchmarked and tested without a database. 
+ * Nothing is written to disk, and everything is lost when it is no longer 
+ * referenced.
+ * 
+ * Each collection is an <code>InMemoryCollection</code>. Updates to 
+ * different documents run in parallel, and the documents read are never 
+ * changed in place, so reads never wait for writes.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class InMemoryStorage implements Storage {
+
+	private final Map<String, InMemoryCollection> collections = new ConcurrentHashMap<>();
+	
+	@Override
+	public StoredCollection getCollection(String name) {
+		return collections.computeIfAbsent(name, collection -> new InMemoryCollection());
+	}
+	
+}
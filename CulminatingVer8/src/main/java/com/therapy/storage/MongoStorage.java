@@ -0,0 +1,186 @@
+package com.therapy.storage;
+
+import static com.mongodb.client.model.Filters.and;
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.gt;
+import static com.mongodb.client.model.Filters.in;
+import static com.mongodb.client.model.Filters.lt;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * This class is the <code>Storage</code> of a MongoDB database. Every call 
+ * is a single query or write with the synchronous driver.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public class MongoStorage implements Storage {
+
+	private final MongoDatabase database;
+	
+	/**
+	 * 
+	 * @param database the database the documents are stored in
+	 */
+	public MongoStorage(MongoDatabase database) {
+		this.database = database;
+	}
+	
+	/**
+	 * 
+	 * @return the database the documents are stored in
+	 */
+	public MongoDatabase getDatabase() {
+		return database;
+	}
+	
+	@Override
+	public StoredCollection getCollection(String name) {
+		return new Collection(database.getCollection(name));
+	}
+	
+	/**
+	 * The <code>StoredCollection</code> of a MongoDB collection.
+	 */
+	private static final class Collection implements StoredCollection {
+		
+		private final MongoCollection<Document> collection;
+		
+		private Collection(MongoCollection<Document> collection) {
+			this.collection = collection;
+		}
+		
+		@Override
+		public Document get(ObjectId id) {
+			return collection.find(eq(id)).first();
+		}
+		
+		@Override
+		public List<Document> getAll(List<ObjectId> ids) {
+			
+			if(ids.isEmpty()) {
+				return new ArrayList<>();
+			}
+			
+			//Index the Documents by their _id field, as $in does not keep the order
+			Map<ObjectId, Document> documents = new HashMap<>();
+			for(Document document : collection.find(in("_id", ids))) {
+				documents.put(document.getObjectId("_id"), document);
+			}
+			
+			return ids.stream()
+					.map(documents::get)
+					.filter(Objects::nonNull)
+					.collect(Collectors.toList());
+			
+		}
+		
+		@Override
+		public List<Document> find(Condition condition, int limit) {
+			return collection.find(condition).limit(limit).into(new ArrayList<>());
+		}
+		
+		@Override
+		public List<Document> scan(String field, Object value, ObjectId after, ObjectId before, 
+				boolean ascending, int limit) {
+			
+			List<Bson> filters = new ArrayList<>();
+			filters.add(eq(field, value));
+			if(after != null) {
+				filters.add(gt("_id", after));
+			}
+			if(before != null) {
+				filters.add(lt("_id", before));
+			}
+			
+			return collection.find(and(filters))
+					.sort(ascending ? Sorts.ascending("_id") : Sorts.descending("_id"))
+					.limit(limit)
+					.into(new ArrayList<>());
+			
+		}
+		
+		@Override
+		public void insert(Document document) throws DuplicateKeyException {
+			
+			try {
+				collection.insertOne(document);
+			} catch(MongoWriteException e) {
+				throw toDuplicateKey(e);
+			}
+			
+		}
+		
+		@Override
+		public Document update(ObjectId id, Condition condition, Update update) 
+				throws DuplicateKeyException {
+			
+			try {
+				
+				return collection.findOneAndUpdate(condition == null ? eq(id) : and(eq(id), condition), 
+						update, new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+				
+			} catch(MongoWriteException e) {
+				throw toDuplicateKey(e);
+			}
+			
+		}
+		
+		@Override
+		public boolean delete(ObjectId id) {
+			return collection.deleteOne(eq(id)).getDeletedCount() > 0;
+		}
+		
+		@Override
+		public void createIndex(boolean unique, String... fields) {
+			
+			Document keys = new Document();
+			for(String field : fields) {
+				keys.append(field, 1);
+			}
+			
+			collection.createIndex(keys, new IndexOptions().unique(unique));
+			
+		}
+		
+		/**
+		 * 
+		 * @param e the exception thrown by a write
+		 * @return  a <code>DuplicateKeyException</code> if the write failed
+		 * 			because it would have duplicated the value of a unique 
+		 * 			index. It is only on the <code>_id</code> field if the
+		 * 			index is exactly <code>_id_</code>.
+		 * @throws MongoWriteException if it failed for any other reason
+		 */
+		private static DuplicateKeyException toDuplicateKey(MongoWriteException e) throws MongoWriteException {
+			
+			if(e.getCode() != 11000) {
+				throw e;
+			}
+			
+			String message = e.getError().getMessage();
+			return new DuplicateKeyException(message, DuplicateKeyException.isIdIndex(message), e);
+			
+		}
+		
+	}
+	
+}
@@ -0,0 +1,26 @@
+package com.therapy.storage;
+
+/**
+ * This interface represents the place the documents of the entities are 
+ * stored, such as a MongoDB database. Every <code>Entity</code> reads and 
+ * writes its <code>Document</code> through the <code>StoredCollection</code>
+ * of its kind, so the entities can run against any <code>Storage</code>.
+ * 
+ * Two implementations are provided: <code>MongoStorage</code>, which is 
+ * used by the web application, and <code>InMemoryStorage</code>, which 
+ * keeps everything in memory so that the entities can be benchmarked and 
+ * tested without a database.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public interface Storage {
+	
+	/**
+	 * 
+	 * @param name the name of the collection, such as <code>chats</code>
+	 * @return     the collection
+	 */
+	StoredCollection getCollection(String name);
+	
+}
@@ -0,0 +1,115 @@
+package com.therapy.storage;
+
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+/**
+ * This interface represents a collection of documents in a 
+ * <code>Storage</code>. Every document has an <code>_id</code> field 
+ * holding an <code>ObjectId</code>.
+ * 
+ * The <code>Document</code>s returned are snapshots, and must not be 
+ * modified. Each call is atomic on its own, but there is no way to make 
+ * several calls atomic together.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public interface StoredCollection {
+	
+	/**
+	 * 
+	 * @param id the <code>_id</code> field of the document
+	 * @return   the document, or null if there is none with that 
+	 * 			 <code>_id</code> field
+	 */
+	Document get(ObjectId id);
+	
+	/**
+	 * Reads several documents at once.
+	 * 
+	 * @param ids the <code>_id</code> fields of the documents
+	 * @return    the documents, in the same order as <code>ids</code>. 
+	 * 			  <code>_id</code> fields that do not belong to a document 
+	 * 			  are skipped.
+	 */
+	List<Document> getAll(List<ObjectId> ids);
+	
+	/**
+	 * Finds the documents matching <code>condition</code>, in no particular
+	 * order. This may read the whole collection, so it is only meant for 
+	 * rare work, such as recovering when the server starts.
+	 * 
+	 * @param condition the condition the documents must match
+	 * @param limit     the maximum number of documents, or 0 for no limit
+	 * @return          the documents
+	 */
+	List<Document> find(Condition condition, int limit);
+	
+	/**
+	 * Reads the documents whose <code>field</code> is <code>value</code>, in
+	 * order of their <code>_id</code> field, between two 
+	 * <code>_id</code> fields. This is fast when there is an index on 
+	 * <code>field</code> and <code>_id</code>.
+	 * 
+	 * @param field     the field to match
+	 * @param value     the value of the field
+	 * @param after     the <code>_id</code> field to read after, or null to
+	 * 					read from the oldest document
+	 * @param before    the <code>_id</code> field to read before, or null to
+	 * 					read up to the newest document
+	 * @param ascending <code>true</code> to read the oldest documents first
+	 * @param limit     the maximum number of documents, or 0 for no limit
+	 * @return          the documents, in the order they were read
+	 */
+	List<Document> scan(String field, Object value, ObjectId after, ObjectId before, 
+			boolean ascending, int limit);
+	
+	/**
+	 * Inserts a document. If it has no <code>_id</code> field, a new one is 
+	 * set on it.
+	 * 
+	 * @param document the document
+	 * @throws DuplicateKeyException if the <code>_id</code> field, or the 
+	 * 								 fields of a unique index, belong to 
+	 * 								 another document
+	 */
+	void insert(Document document) throws DuplicateKeyException;
+	
+	/**
+	 * Applies <code>update</code> to a document if it matches 
+	 * <code>condition</code>. The check and the update are a single atomic
+	 * operation.
+	 * 
+	 * @param id        the <code>_id</code> field of the document
+	 * @param condition the condition the document must match, or null
+	 * @param update    the update to apply
+	 * @return          the updated document, or null if there is no 
+	 * 					document with that <code>_id</code> field matching
+	 * 					<code>condition</code>
+	 * @throws DuplicateKeyException if the update would give the fields of 
+	 * 								 a unique index the values of another 
+	 * 								 document
+	 */
+	Document update(ObjectId id, Condition condition, Update update) throws DuplicateKeyException;
+	
+	/**
+	 * 
+	 * @param id the <code>_id</code> field of the document to remove
+	 * @return   <code>true</code> if a document was removed
+	 */
+	boolean delete(ObjectId id);
+	
+	/**
+	 * Creates an index on <code>fields</code>, in ascending order, if it 
+	 * does not exist yet. 
+	 * 
+	 * @param unique <code>true</code> if no two documents may have the same 
+	 * 				 values for <code>fields</code>
+	 * @param fields the fields of the index
+	 */
+	void createIndex(boolean unique, String... fields);
+	
+}
@@ -0,0 +1,207 @@
+package com.therapy.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.model.Updates;
+
+/**
+ * This class represents an update applied to a single document. An 
+ * <code>Update</code> is both a MongoDB update, so it can be passed to the
+ * driver wherever a <code>Bson</code> update is expected, and a change made
+ * to a <code>Document</code> by the in-memory engine.
+ * 
+ * The operators are the ones the entities need: <code>$set</code>, 
+ * <code>$unset</code>, <code>$inc</code>, <code>$push</code> and 
+ * <code>$pull</code>. Field names may be dotted paths into embedded 
+ * documents.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class Update implements Bson {
+
+	private final Bson update;
+	private final Consumer<Document> change;
+	
+	private Update(Bson update, Consumer<Document> change) {
+		
+		this.update = update;
+		this.change = change;
+		
+	}
+	
+	/**
+	 * 
+	 * @param field the name or dotted path of the field
+	 * @param value the new value of the field
+	 * @return      an update that sets the field
+	 */
+	public static Update set(String field, Object value) {
+		
+		return new Update(Updates.set(field, value), 
+				document -> Documents.getParent(document, field).put(Documents.getName(field), Documents.copy(value)));
+		
+	}
+	
+	/**
+	 * 
+	 * @param field the name or dotted path of the field
+	 * @return      an update that removes the field
+	 */
+	public static Update unset(String field) {
+		
+		return new Update(Updates.unset(field), 
+				document -> Documents.getParent(document, field).remove(Documents.getName(field)));
+		
+	}
+	
+	/**
+	 * Creates an update that adds <code>amount</code> to a number field. A 
+	 * missing field is set to <code>amount</code>. As in MongoDB, the result
+	 * is an <code>Integer</code> if both numbers are and it fits, a 
+	 * <code>Long</code> if both are whole numbers, and a <code>Double</code>
+	 * otherwise.
+	 * 
+	 * @param field  the name or dotted path of the field
+	 * @param amount the amount to add
+	 * @return       the update
+	 */
+	public static Update inc(String field, Number amount) {
+		
+		return new Update(Updates.inc(field, amount), document -> {
+			
+			Map<String, Object> parent = Documents.getParent(document, field);
+			String name = Documents.getName(field);
+			Object current = parent.get(name);
+			
+			if(current == null) {
+				parent.put(name, amount);
+			} else if(!(current instanceof Number)) {
+				throw new IllegalArgumentException("Cannot increment the field " + field 
+						+ ", as it is not a number");
+			} else {
+				parent.put(name, add((Number)current, amount));
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * 
+	 * @param field the name or dotted path of an array field
+	 * @param value the value to add to the end of the array
+	 * @return      an update that adds the value, creating the array if it
+	 * 				is missing
+	 */
+	@SuppressWarnings("unchecked")
+	public static Update push(String field, Object value) {
+		
+		return new Update(Updates.push(field, value), document -> {
+			
+			Map<String, Object> parent = Documents.getParent(document, field);
+			String name = Documents.getName(field);
+			Object current = parent.get(name);
+			
+			if(current == null) {
+				current = new ArrayList<>();
+				parent.put(name, current);
+			} else if(!(current instanceof List)) {
+				throw new IllegalArgumentException("Cannot push to the field " + field 
+						+ ", as it is not an array");
+			}
+			((List<Object>)current).add(Documents.copy(value));
+			
+		});
+		
+	}
+	
+	/**
+	 * 
+	 * @param field the name or dotted path of an array field
+	 * @param value the value to remove from the array
+	 * @return      an update that removes every element equal to the value
+	 */
+	public static Update pull(String field, Object value) {
+		
+		return new Update(Updates.pull(field, value), document -> {
+			
+			Object current = Documents.get(document, field);
+			if(current instanceof List) {
+				((List<?>)current).removeIf(element -> Documents.valueEquals(element, value));
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * 
+	 * @param updates the updates
+	 * @return        an update that applies all of <code>updates</code>, in
+	 * 				  order
+	 */
+	public static Update combine(Update... updates) {
+		
+		List<Bson> bsonUpdates = new ArrayList<>();
+		for(Update update : updates) {
+			bsonUpdates.add(update.update);
+		}
+		
+		List<Update> all = Arrays.asList(updates);
+		return new Update(Updates.combine(bsonUpdates), document -> all.forEach(update -> update.apply(document)));
+		
+	}
+	
+	/**
+	 * Applies this update to <code>document</code>, changing it.
+	 * 
+	 * @param document the document
+	 */
+	public void apply(Document document) {
+		change.accept(document);
+	}
+	
+	/**
+	 * 
+	 * @param a a number
+	 * @param b another number
+	 * @return  the sum of the numbers
+	 */
+	private static Number add(Number a, Number b) {
+		
+		boolean whole = !(a instanceof Double || a instanceof Float || b instanceof Double || b instanceof Float);
+		if(!whole) {
+			return a.doubleValue() + b.doubleValue();
+		}
+		
+		long sum = a.longValue() + b.longValue();
+		if(a instanceof Integer && b instanceof Integer && sum == (int)sum) {
+			return (int)sum;
+		}
+		
+		return sum;
+		
+	}
+	
+	@Override
+	public <TDocument> BsonDocument toBsonDocument(Class<TDocument> documentClass, 
+			CodecRegistry codecRegistry) {
+		return update.toBsonDocument(documentClass, codecRegistry);
+	}
+	
+	@Override
+	public String toString() {
+		return update.toString();
+	}
+	
+}
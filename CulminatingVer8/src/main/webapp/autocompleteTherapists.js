@@ -0,0 +1,45 @@
+/**
+ * Suggest therapists while a name is typed into the search box
+ */
+function autocompleteTherapists() {
+	
+	var searchBox = document.getElementById("searchTherapistBox");
+	var suggestions = document.getElementById("therapistSuggestions");
+	var lastQuery = "";
+	
+	searchBox.addEventListener("input", function() {
+		
+		var query = searchBox.value.trim();
+		if (query === lastQuery) {
+			return;
+		}
+		lastQuery = query;
+		
+		if (query.length === 0) {
+			suggestions.innerHTML = "";
+			return;
+		}
+		
+		fetch("/CulminatingVer8/autocompleteTherapists?q=" + encodeURIComponent(query))
+			.then(function(response) {
+				return response.json();
+			})
+			.then(function(result) {
+				
+				// Ignore answers to queries that were already typed over
+				if (query !== lastQuery) {
+					return;
+				}
+				
+				suggestions.innerHTML = "";
+				result.therapists.forEach(function(therapist) {
+					var option = document.createElement("option");
+					option.value = therapist.name;
+					suggestions.appendChild(option);
+				});
+				
+			});
+		
+	});
+	
+}
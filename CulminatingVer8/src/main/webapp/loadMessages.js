@@ -1,33 +1,138 @@
 /**
- * Load any new messages and display them
+ * Display a message in the div of the user that sent it
+ */
+function displayMessage(message) {
+	
+	var ptag = document.createElement("p");
+	ptag.appendChild(document.createTextNode(message.content));
+	
+	if(message.userType === "Patient") {
+		document.getElementById("patientMessagesDiv").appendChild(ptag);
+	} else {
+		document.getElementById("therapistMessagesDiv").appendChild(ptag);
+	}
+	
+}
+
+/**
+ * Load any new messages and display them.
+ * 
+ * New messages are pushed by the server through an EventSource. Browsers 
+ * without EventSource poll for new messages once a second instead.
+ */
+function loadMessages() {
+	
+	if(window.EventSource) {
+		
+		var displayedIds = {};
+		var source = new EventSource("/CulminatingVer8/chatStream");
+		
+		source.onmessage = function(event) {
+			
+			// A message can be sent twice when the stream reconnects
+			if(!displayedIds[event.lastEventId]) {
+				displayedIds[event.lastEventId] = true;
+				displayMessage(JSON.parse(event.data));
+			}
+			
+		};
+		
+	} else {
+		loadNewMessages();
+	}
+	
+}
+
+/**
+ * The id of the newest message displayed, so that only newer messages are 
+ * sent by the next poll
+ */
+var lastMessageId = null;
+
+/**
+ * The ids of the messages displayed by polling. Each poll reads again a few
+ * seconds before lastMessageId, to find messages that were saved late, so 
+ * the ones already displayed are skipped
+ */
+var polledIds = {};
+
+/**
+ * How many seconds before lastMessageId each poll reads again, which must be
+ * the same as OVERLAP_SECONDS in AsyncDisplayMessagesServlet
+ */
+var OVERLAP_SECONDS = 2;
+
+/**
+ * The seconds since the epoch at which a message id was made, which are the 
+ * first 8 hexadecimal digits of the id
+ */
+function getIdSeconds(id) {
+	return parseInt(id.substring(0, 8), 16);
+}
+
+/**
+ * Forget the ids of the messages that were made before the overlap of the 
+ * next poll, since the server will not send them again
+ */
+function prunePolledIds() {
+	
+	var overlapStart = getIdSeconds(lastMessageId) - OVERLAP_SECONDS;
+	for(var id in polledIds) {
+		
+		if(polledIds.hasOwnProperty(id) && getIdSeconds(id) < overlapStart) {
+			delete polledIds[id];
+		}
+		
+	}
+	
+}
+
+/**
+ * The ETag of the last answer to a poll, which is sent back so that the 
+ * server can answer with 304 Not Modified when there is nothing new
+ */
+var lastETag = null;
+
+/**
+ * Poll for new messages, display them, and poll again after one second
  */
 function loadNewMessages() {
 	var xhttp = new XMLHttpRequest();
 	xhttp.onreadystatechange = function() {
-		if (this.readyState == 4 && this.status == 200) {
-				      
-			//Get the JSON object	
-			var newMessages = JSON.parse(this.responseText);
-					      
-			//Add the messages to their respective divs
-			for(i = 0; i < newMessages.length; i++) {
-					    	  
-				var ptag = document.createElement("p");
-				var message = document.createTextNode(newMessages[i][0]);
-				var useType = newMessages[i][1];
-				ptag.appendChild(message);
-				if(userType === "Patient") {
-					document.getElementById("patientMessagesDiv").appendChild(ptag);
-				} else {
-					document.getElementById("therapistMessagesDiv").appendChild(ptag);
+		if (this.readyState == 4) {
+			
+			if (this.status == 200) {
+				
+				lastETag = this.getResponseHeader("ETag");
+				
+				//Get the JSON object	
+				var answer = JSON.parse(this.responseText);
+				var newMessages = answer.messages;
+				if(answer.lastId && (!lastMessageId || answer.lastId > lastMessageId)) {
+					lastMessageId = answer.lastId;
+					prunePolledIds();
 				}
-							  
+				
+				//Add the messages that are not displayed yet to their respective divs
+				for(var i = 0; i < newMessages.length; i++) {
+					
+					if(!polledIds[newMessages[i].id]) {
+						polledIds[newMessages[i].id] = true;
+						displayMessage(newMessages[i]);
+					}
+					
+				}
+				
 			}
-						  
-		loadNewMessages();
-					      
+			
+			setTimeout(loadNewMessages, 1000);
+			
 		}
 	};
-	xhttp.open("POST", "/asyncDisplayMessages", true);
+	xhttp.open("POST", "/CulminatingVer8/asyncDisplayMessages"
+			+ (lastMessageId ? "?after=" + lastMessageId : ""), true);
+	if(lastETag) {
+		xhttp.setRequestHeader("If-None-Match", lastETag);
+	}
 	xhttp.send(); 
-}
\ No newline at end of file
+}
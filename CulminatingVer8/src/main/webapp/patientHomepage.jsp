@@ -17,7 +17,6 @@
 	Patient patient = new Patient((ObjectId)session.getAttribute("id"), database);
 	Chat chat = patient.getChat();
 	
-	session.setAttribute("isNewMessagingSession", true);
 		
 %>
 
@@ -57,9 +56,17 @@
 	
 	<!-- Search Therapists -->
 	<form id="searchTherapists" method="post" action="/CulminatingVer8/searchTherapists">
-		<input id="searchTherapistBox" name="targetTherapist" type="text" required>
+		<input id="searchTherapistBox" name="targetTherapist" type="text" list="therapistSuggestions" 
+			autocomplete="off" required>
+		<datalist id="therapistSuggestions"></datalist>
 	</form>
 	
+	<!-- Suggest therapists while a name is typed -->
+	<script src="autocompleteTherapists.js"></script>
+	<script type="text/javascript">
+		autocompleteTherapists();
+	</script>
+	
 	<!-- Requests -->
 	<form id="requests" action="patientRequests.jsp">
 		<input type="submit" value="Requests">
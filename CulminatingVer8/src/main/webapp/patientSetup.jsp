@@ -12,24 +12,21 @@
 
 	<h1>Choose a Therapist</h1>
 	
-	<%@ page import="java.util.Map" %>
-	<%@ page import="java.util.LinkedHashMap" %>
+	<%@ page import="java.util.List" %>
+	<%@ page import="org.bson.Document" %>
+	<%@ page import="com.therapy.entities.Therapist" %>
 	
 	<% 
-		Map<String, Integer> therapists = (LinkedHashMap<String, Integer>)request.getAttribute("retrievedTherapists");
-		String[] names = therapists.keySet().toArray(new String[10]);
-		Integer[] ratings = therapists.values().toArray(new Integer[10]);
-		
-		String[] therapistIds = (String[])request.getAttribute("therapistIds");
+		List<Document> therapists = (List<Document>)request.getAttribute("retrievedTherapists");
 	%>
 	
 	<!-- REQUIRES servlet to have the path //requestTherapist -->
 	
 	<form method="post" action="/CulminatingVer8/requestTherapist">
 	
-		<% for(int i = 0; i < 10; i++) { %>
-			<lable><input type="radio" name="therapist" value="<%=therapistIds[i]%>"><%=names[i]%></lable>
-			<% out.println(ratings[i]); %>
+		<% for(Document therapist : therapists) { %>
+			<lable><input type="radio" name="therapist" value="<%=therapist.getObjectId("_id").toHexString()%>"><%=therapist.getString("first_name") + " " + therapist.getString("last_name")%></lable>
+			<% if(Therapist.getRating(therapist) != null) { out.println(Therapist.getRating(therapist)); } %>
 			<br>
 		<% } %>
 		
@@ -20,6 +20,10 @@
 	MongoCollection<Document> collection = database.getCollection("therapists");
 
 	List<Therapist> therapists = (List<Therapist>)request.getAttribute("matchingTherapists");
+	int currentPage = (Integer)request.getAttribute("page");
+	boolean hasNextPage = (Boolean)request.getAttribute("hasNextPage");
+	boolean byWords = (Boolean)request.getAttribute("byWords");
+	String targetTherapist = request.getParameter("targetTherapist");
 	
 %>
 
@@ -51,6 +55,24 @@
 		
 	<%}%>
 	
+	<!-- Pages of results -->
+	<%if(currentPage > 0) { %>
+		<form method="post" action="/CulminatingVer8/searchTherapists">
+			<input type="hidden" name="targetTherapist" value="<%=targetTherapist.replace("\"", "&quot;") %>">
+			<input type="hidden" name="page" value="<%=currentPage - 1 %>">
+			<input type="hidden" name="byWords" value="<%=byWords %>">
+			<input type="submit" value="Previous">
+		</form>
+	<%}%>
+	<%if(hasNextPage) { %>
+		<form method="post" action="/CulminatingVer8/searchTherapists">
+			<input type="hidden" name="targetTherapist" value="<%=targetTherapist.replace("\"", "&quot;") %>">
+			<input type="hidden" name="page" value="<%=currentPage + 1 %>">
+			<input type="hidden" name="byWords" value="<%=byWords %>">
+			<input type="submit" value="Next">
+		</form>
+	<%}%>
+	
 	<!-- If one of the request buttons were clicked, add the request in /addRequestAsync servlet -->
 	<script type="text/javascript">
 		
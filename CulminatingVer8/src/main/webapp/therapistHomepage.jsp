@@ -4,6 +4,9 @@
 <%@ page import="com.mongodb.MongoClient" %>
 <%@ page import="com.mongodb.client.MongoDatabase" %>
 
+<%@ page import="java.text.SimpleDateFormat" %>
+<%@ page import="java.util.List" %>
+
 <%@ page import="org.bson.types.ObjectId" %>
 	
 <%@ page import="com.therapy.servlets.Util" %>
@@ -14,9 +17,9 @@
 	MongoDatabase database = mongoClient.getDatabase(Util.DATABASE_NAME);
 	
 	Therapist therapist = new Therapist((ObjectId)session.getAttribute("id"), database);
-	Chat[] chats = therapist.getChats();
+	List<ChatSummary> chats = therapist.getChatSummaries();
+	SimpleDateFormat timeFormat = new SimpleDateFormat("MMM d, h:mm a");
 		
-	session.setAttribute("isNewMessagingSession", true);
 	session.removeAttribute("chat");
 	
 %>
@@ -36,8 +39,20 @@
 	<%if(chats != null) { %>
 	
 		<form id="goToMessenger" method="get" action="/CulminatingVer8/getChat">
-			<%for(int i = 0; i < chats.length; i++) { %>
-				<input type="submit" name="patientChats" value="<%=chats[i].toString()%>">
+			<%for(ChatSummary chat : chats) { 
+				String patientName = chat.getPatientName() != null ? chat.getPatientName() : "Patient"; %>
+				
+				<button class="chat" type="submit" name="chatId" value="<%=chat.getChatId().toHexString()%>">
+					<span class="patientName"><%=Util.escapeHtml(patientName)%></span>
+					<span class="lastActivity"><%=timeFormat.format(chat.getLastActivity())%></span>
+					<%if(chat.getUnreadCount() > 0) { %>
+						<span class="unread"><%=chat.getUnreadCount()%></span>
+					<%}%>
+					<%if(chat.getLastMessage() != null) { %>
+						<span class="lastMessage"><%=Boolean.TRUE.equals(chat.getLastSenderIsPatient()) ? "" : "You: "%><%=Util.escapeHtml(chat.getLastMessage())%></span>
+					<%}%>
+				</button>
+				
 			<%}%>
 		</form> 
 		
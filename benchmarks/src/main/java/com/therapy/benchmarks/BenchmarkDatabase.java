@@ -0,0 +1,216 @@
+package com.therapy.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoDatabase;
+import com.therapy.entities.Entity;
+import com.therapy.entities.Patient;
+import com.therapy.entities.Therapist;
+import com.therapy.entities.User;
+import com.therapy.servlets.Util;
+import com.therapy.storage.InMemoryStorage;
+import com.therapy.storage.MongoStorage;
+import com.therapy.storage.Storage;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * This class opens the database a benchmark runs against. By default, it is
+ * an in-memory stand-in for MongoDB that speaks the same wire protocol, so 
+ * the benchmarks can be run anywhere, without a server, and give the same 
+ * results every time. The stand-in has no query planner, so it shows the 
+ * cost of the code of the web application and of the driver, not of the 
+ * indexes.
+ * 
+ * If the <code>mongo.uri</code> system property is set, for example with 
+ * <code>-jvmArgsAppend -Dmongo.uri=mongodb://localhost:27017</code>, the 
+ * benchmarks run against that server instead, in a database of their own 
+ * that is dropped when they are done.
+ * 
+ * The database is initialized with the same collections and indexes as the 
+ * web application's.
+ * 
+ * A benchmark of the entities can also be run on an 
+ * <code>InMemoryStorage</code> instead, which skips the driver and the wire
+ * protocol altogether. There is then no <code>MongoDatabase</code>, so 
+ * <code>getDatabase</code> returns null.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class BenchmarkDatabase implements AutoCloseable {
+
+	public static final String DATABASE_NAME = "TherapyBenchmarks";
+	public static final String MONGO = "mongo";
+	public static final String MEMORY = "memory";
+	
+	private final MongoServer server;
+	private final MongoClient client;
+	private final MongoDatabase database;
+	private final Storage storage;
+	
+	/**
+	 * Opens the database and initializes it.
+	 */
+	public BenchmarkDatabase() {
+		this(MONGO);
+	}
+	
+	/**
+	 * Opens the database and initializes it.
+	 * 
+	 * @param engine <code>MONGO</code> for a MongoDB database, or 
+	 * 				 <code>MEMORY</code> for an <code>InMemoryStorage</code>
+	 */
+	public BenchmarkDatabase(String engine) {
+		
+		String uri = System.getProperty("mongo.uri");
+		
+		if(MEMORY.equals(engine)) {
+			
+			server = null;
+			client = null;
+			database = null;
+			storage = new InMemoryStorage();
+			Entity.createIndexes(storage);
+			return;
+			
+		} else if(uri == null || uri.isEmpty()) {
+			
+			server = new MongoServer(new MemoryBackend());
+			InetSocketAddress address = server.bind();
+			client = new MongoClient(new ServerAddress(address));
+			
+		} else {
+			
+			server = null;
+			client = new MongoClient(new MongoClientURI(uri));
+			
+		}
+		
+		database = client.getDatabase(DATABASE_NAME);
+		database.drop();
+		Util.intialiazeDatabase(database, false);
+		storage = new MongoStorage(database);
+		
+	}
+	
+	/**
+	 * 
+	 * @return the database of the benchmark, or null if it runs on an 
+	 * 		   <code>InMemoryStorage</code>
+	 */
+	public MongoDatabase getDatabase() {
+		return database;
+	}
+	
+	/**
+	 * 
+	 * @return the <code>Storage</code> of the benchmark
+	 */
+	public Storage getStorage() {
+		return storage;
+	}
+	
+	/**
+	 * Inserts a patient with the fields given at sign up.
+	 * 
+	 * @return the new <code>Patient</code>
+	 */
+	public Patient insertPatient() {
+		
+		ObjectId id = new ObjectId();
+		storage.getCollection("patients").insert(newUser(id, "Patient")
+				.append("request_ids", new ArrayList<>()));
+		
+		return new Patient(id, storage);
+		
+	}
+	
+	/**
+	 * Inserts a therapist with the fields given at sign up.
+	 * 
+	 * @param patientLimit the maximum number of patients of the therapist
+	 * @return             the new <code>Therapist</code>
+	 */
+	public Therapist insertTherapist(int patientLimit) {
+		
+		ObjectId id = new ObjectId();
+		storage.getCollection("therapists").insert(newTherapist(id, patientLimit, 0, 0));
+		
+		return new Therapist(id, storage);
+		
+	}
+	
+	/**
+	 * Creates the document of a therapist with the fields given at sign up 
+	 * and a rating.
+	 * 
+	 * @param id           the <code>_id</code> field of the therapist
+	 * @param patientLimit the maximum number of patients of the therapist
+	 * @param ratingSum    the sum of the ratings of the therapist
+	 * @param ratingCount  the number of ratings of the therapist
+	 * @return             the document of the therapist
+	 */
+	public static Document newTherapist(ObjectId id, int patientLimit, int ratingSum, int ratingCount) {
+		
+		return newUser(id, "Therapist")
+				.append("patient_limit", patientLimit)
+				.append("can_receive_requests", true)
+				.append("open_requests", 0)
+				.append("patient_count", 0)
+				.append("rating_sum", ratingSum)
+				.append("rating_count", ratingCount);
+		
+	}
+	
+	/**
+	 * 
+	 * @param id       the <code>_id</code> field of the user
+	 * @param userType <code>"Patient"</code> or <code>"Therapist"</code>
+	 * @return         the document of a user with a name and an email
+	 */
+	private static Document newUser(ObjectId id, String userType) {
+		
+		String firstName = userType;
+		String lastName = id.toHexString();
+		
+		Document user = new Document("_id", id)
+				.append("first_name", firstName)
+				.append("last_name", lastName)
+				.append("email", lastName + "@example.com");
+		user.putAll(User.getNameSearchFields(firstName, lastName));
+		
+		return user;
+		
+	}
+	
+	/**
+	 * Drops the database and closes the client, and the stand-in if one was
+	 * started.
+	 */
+	@Override
+	public void close() {
+		
+		if(database == null) {
+			return;
+		}
+		
+		database.drop();
+		client.close();
+		
+		if(server != null) {
+			server.shutdown();
+		}
+		
+	}
+	
+}
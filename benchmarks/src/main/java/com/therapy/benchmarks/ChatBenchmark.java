@@ -0,0 +1,124 @@
+package com.therapy.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoCollection;
+import com.therapy.entities.Chat;
+import com.therapy.entities.Message;
+import com.therapy.storage.StoredCollection;
+
+/**
+ * This class measures how long it takes to read the newest messages of a 
+ * chat, as is done when a chat is opened, for chats of different lengths.
+ * With the <code>{chat_id, _id}</code> index, the time should not grow with
+ * the length of the chat when run against MongoDB.
+ * 
+ * A second chat with as many messages is also inserted, so the messages of 
+ * the chat that is read are not the whole collection.
+ * 
+ * The <code>storage</code> parameter compares MongoDB, or its stand-in, with
+ * an <code>InMemoryStorage</code>.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class ChatBenchmark {
+
+	private static final int PAGE_SIZE = 15;
+	
+	@Param({"10", "1000", "100000"})
+	public int messages;
+	
+	@Param({BenchmarkDatabase.MONGO, BenchmarkDatabase.MEMORY})
+	public String storage;
+	
+	private BenchmarkDatabase database;
+	private ObjectId chatId;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		
+		database = new BenchmarkDatabase(storage);
+		
+		chatId = new ObjectId();
+		insertMessages(new ObjectId());
+		insertMessages(chatId);
+		
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.close();
+	}
+	
+	/**
+	 * Reads the newest page of messages, as when a chat is opened.
+	 */
+	@Benchmark
+	public Message[] getPreviousMessages() {
+		return new Chat(chatId, database.getStorage()).getPreviousMessages(PAGE_SIZE);
+	}
+	
+	/**
+	 * Inserts the messages of a chat in batches.
+	 * 
+	 * @param chat the <code>_id</code> field of the chat
+	 */
+	private void insertMessages(ObjectId chat) {
+		
+		StoredCollection stored = database.getStorage().getCollection("messages");
+		MongoCollection<Document> collection = database.getDatabase() == null 
+				? null : database.getDatabase().getCollection("messages");
+		
+		List<Document> batch = new ArrayList<>();
+		for(int i = 0; i < messages; i++) {
+			
+			Document message = new Document("chat_id", chat)
+					.append("sender_is_patient", i % 2 == 0)
+					.append("content", "Message number " + i + " of the benchmark chat");
+			
+			//Only MongoDB gains from writing in batches
+			if(collection == null) {
+				stored.insert(message);
+				continue;
+			}
+			
+			batch.add(message);
+			if(batch.size() == 10000) {
+				collection.insertMany(batch);
+				batch.clear();
+			}
+			
+		}
+		
+		if(!batch.isEmpty()) {
+			collection.insertMany(batch);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,84 @@
+package com.therapy.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.therapy.security.PasswordHash;
+import com.therapy.security.PasswordHasher;
+
+/**
+ * This class measures how many passwords can be hashed per second, both
+ * directly on the benchmark threads and through the thread pool of a
+ * <code>PasswordHasher</code>.
+ * 
+ * Run it with more threads than processors, for example with
+ * <code>-t 16</code>, to see the pool queue the extra work instead of
+ * running it all at once.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class PasswordHasherBenchmark {
+	
+	private static final String PASSWORD = "correct horse battery staple";
+	private static final byte[] SALT = new byte[16];
+	
+	@Param({"PBKDF2WithHmacSHA1", "PBKDF2WithHmacSHA256"})
+	public String algorithm;
+	
+	@Param({"65536"})
+	public int iterations;
+	
+	private PasswordHasher hasher;
+	private PasswordHash stored;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		
+		hasher = new PasswordHasher(algorithm, iterations,
+				Runtime.getRuntime().availableProcessors(), 1024, 60000);
+		stored = hasher.hash(PASSWORD).join();
+		
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		hasher.close();
+	}
+	
+	/**
+	 * Hashes a password on the benchmark thread.
+	 */
+	@Benchmark
+	public byte[] computeHash() {
+		return PasswordHasher.computeHash(PASSWORD, SALT, algorithm, iterations, PasswordHasher.KEY_LENGTH);
+	}
+	
+	/**
+	 * Checks a password on the thread pool, as a login does.
+	 */
+	@Benchmark
+	public boolean verify() {
+		return hasher.verify(PASSWORD, stored).join();
+	}
+
+}
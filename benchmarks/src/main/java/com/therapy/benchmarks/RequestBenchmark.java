@@ -0,0 +1,131 @@
+package com.therapy.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.therapy.entities.Patient;
+import com.therapy.entities.Request;
+import com.therapy.entities.Therapist;
+
+/**
+ * This class measures the two writes of the life of a request: a patient's
+ * request being added to a therapist, and the patient accepting a request 
+ * the therapist has accepted, which creates their chat.
+ * 
+ * Each call works on a new patient and therapist made before it is timed, 
+ * so the documents do not grow from one call to the next.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class RequestBenchmark {
+
+	private static final int PATIENT_LIMIT = 10;
+	
+	@State(Scope.Benchmark)
+	public static class Database {
+		
+		@Param({BenchmarkDatabase.MONGO, BenchmarkDatabase.MEMORY})
+		public String storage;
+		
+		private BenchmarkDatabase database;
+		
+		@Setup(Level.Trial)
+		public void setUp() {
+			database = new BenchmarkDatabase(storage);
+		}
+		
+		@TearDown(Level.Trial)
+		public void tearDown() {
+			database.close();
+		}
+		
+	}
+	
+	/**
+	 * A request that has been sent to a therapist but not added to them.
+	 */
+	@State(Scope.Thread)
+	public static class NewRequest {
+		
+		private Therapist therapist;
+		private Request request;
+		
+		@Setup(Level.Invocation)
+		public void setUp(Database database) {
+			
+			Patient patient = database.database.insertPatient();
+			therapist = database.database.insertTherapist(PATIENT_LIMIT);
+			request = new Request(patient, therapist, "Benchmark request", 
+					database.database.getStorage());
+			
+		}
+		
+	}
+	
+	/**
+	 * A request that has been added to its therapist and patient, and 
+	 * accepted by the therapist.
+	 */
+	@State(Scope.Thread)
+	public static class TherapistAcceptedRequest {
+		
+		private Request request;
+		
+		@Setup(Level.Invocation)
+		public void setUp(Database database) {
+			
+			Patient patient = database.database.insertPatient();
+			Therapist therapist = database.database.insertTherapist(PATIENT_LIMIT);
+			request = new Request(patient, therapist, "Benchmark request", 
+					database.database.getStorage());
+			
+			therapist.addRequest(request);
+			patient.addRequest(request);
+			request.accept(Therapist.class);
+			
+		}
+		
+	}
+	
+	/**
+	 * Adds a request to a therapist with room for it.
+	 */
+	@Benchmark
+	public Therapist addRequest(NewRequest newRequest) {
+		
+		newRequest.therapist.addRequest(newRequest.request);
+		return newRequest.therapist;
+		
+	}
+	
+	/**
+	 * Accepts a request as the patient, creating the chat.
+	 */
+	@Benchmark
+	public Request accept(TherapistAcceptedRequest accepted) {
+		
+		accepted.request.accept(Patient.class);
+		return accepted.request;
+		
+	}
+	
+}
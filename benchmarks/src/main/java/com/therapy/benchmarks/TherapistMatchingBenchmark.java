@@ -0,0 +1,101 @@
+package com.therapy.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoCollection;
+import com.therapy.entities.Therapist;
+import com.therapy.servlets.GetTherapistsServlet;
+
+/**
+ * This class measures how long it takes <code>GetTherapistsServlet</code> 
+ * to pick the therapists shown to a new patient, for different numbers of 
+ * therapists. 
+ * 
+ * The therapists are made with a fixed seed, so every run has the same 
+ * ones. One in ten is full and cannot receive requests, and about a third 
+ * are new therapists with few ratings.
+ * 
+ * The in-memory stand-in shuffles for <code>$sample</code> by sorting with 
+ * a random order, which the default sort of Java rejects, so the legacy 
+ * merge sort is used.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx3g", "-Djava.util.Arrays.useLegacyMergeSort=true"})
+public class TherapistMatchingBenchmark {
+
+	@Param({"100", "10000", "1000000"})
+	public int therapists;
+	
+	private BenchmarkDatabase database;
+	
+	@Setup(Level.Trial)
+	public void setUp() {
+		
+		database = new BenchmarkDatabase();
+		MongoCollection<Document> collection = database.getDatabase().getCollection("therapists");
+		
+		Random random = new Random(42);
+		List<Document> batch = new ArrayList<>();
+		for(int i = 0; i < therapists; i++) {
+			
+			int ratingCount = random.nextInt(3) == 0 ? random.nextInt(GetTherapistsServlet.NEW_THERAPIST_MAX_RATERS + 1)
+					: GetTherapistsServlet.NEW_THERAPIST_MAX_RATERS + 1 + random.nextInt(200);
+			int ratingSum = ratingCount * (1 + random.nextInt(Therapist.MAX_RATING));
+			
+			Document therapist = BenchmarkDatabase.newTherapist(new ObjectId(), 10, ratingSum, ratingCount);
+			therapist.put("can_receive_requests", random.nextInt(10) != 0);
+			batch.add(therapist);
+			
+			if(batch.size() == 10000) {
+				collection.insertMany(batch);
+				batch.clear();
+			}
+			
+		}
+		
+		if(!batch.isEmpty()) {
+			collection.insertMany(batch);
+		}
+		
+	}
+	
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		database.close();
+	}
+	
+	/**
+	 * Picks the therapists with the <code>$sample</code> aggregations.
+	 */
+	@Benchmark
+	public List<Document> matchTherapists() {
+		return GetTherapistsServlet.matchTherapists(database.getDatabase());
+	}
+	
+}
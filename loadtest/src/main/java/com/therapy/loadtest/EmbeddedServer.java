@@ -0,0 +1,142 @@
+package com.therapy.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.LifecycleException;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.tomcat.util.descriptor.web.ApplicationParameter;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * This class runs the web application in an embedded Tomcat on a free port
+ * of this computer, so that it can be load tested without deploying it.
+ * 
+ * The web application is read from its exploded war, which
+ * <code>mvn package</code> makes in the <code>target</code> folder of
+ * CulminatingVer8. By default, it connects to an in-memory stand-in for
+ * MongoDB started here. If <code>mongoUri</code> is given, it connects to
+ * that server instead.
+ * 
+ * The context parameters of web.xml can be replaced, for example to lower
+ * <code>password.iterations</code> so that signing up is not bound by
+ * hashing.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class EmbeddedServer implements AutoCloseable {
+	
+	public static final String CONTEXT_PATH = "/CulminatingVer8";
+	
+	private final MongoServer mongoServer;
+	private final String mongoUri;
+	private final Tomcat tomcat;
+	
+	/**
+	 * Starts the database stand-in, if needed, and the web application.
+	 * 
+	 * @param webapp     the folder of the exploded war
+	 * @param mongoUri   the connection string of the database, or null to
+	 * 					 start the stand-in
+	 * @param parameters the context parameters that replace the ones in
+	 * 					 web.xml
+	 * @throws LifecycleException if Tomcat could not be started
+	 * @throws IOException        if the working folder of Tomcat could not
+	 * 							  be made
+	 */
+	public EmbeddedServer(File webapp, String mongoUri, Map<String, String> parameters)
+			throws LifecycleException, IOException {
+			
+		if(!new File(webapp, "WEB-INF/web.xml").isFile()) {
+			throw new IllegalArgumentException(webapp + " is not an exploded war. "
+					+ "Run mvn package in CulminatingVer8 first.");
+		}
+		
+		if(mongoUri == null || mongoUri.isEmpty()) {
+			
+			mongoServer = new MongoServer(new MemoryBackend());
+			InetSocketAddress address = mongoServer.bind();
+			this.mongoUri = "mongodb://" + address.getHostString() + ":" + address.getPort();
+			
+		} else {
+			
+			mongoServer = null;
+			this.mongoUri = mongoUri;
+			
+		}
+		
+		tomcat = new Tomcat();
+		tomcat.setBaseDir(Files.createTempDirectory("loadtest-tomcat").toString());
+		tomcat.setPort(0);
+		tomcat.getConnector();
+		
+		Context context = tomcat.addWebapp(CONTEXT_PATH, webapp.getAbsolutePath());
+		addParameter(context, "mongo.uri", this.mongoUri);
+		for(Map.Entry<String, String> parameter : parameters.entrySet()) {
+			addParameter(context, parameter.getKey(), parameter.getValue());
+		}
+		
+		tomcat.start();
+		
+	}
+	
+	/**
+	 * Sets a context parameter that web.xml cannot override.
+	 * 
+	 * @param context the context of the web application
+	 * @param name    the name of the parameter
+	 * @param value   the value of the parameter
+	 */
+	private static void addParameter(Context context, String name, String value) {
+		
+		ApplicationParameter parameter = new ApplicationParameter();
+		parameter.setName(name);
+		parameter.setValue(value);
+		parameter.setOverride(false);
+		context.addApplicationParameter(parameter);
+		
+	}
+	
+	/**
+	 * 
+	 * @return the address of the web application, without a trailing slash
+	 */
+	public String getBaseUri() {
+		return "http://localhost:" + tomcat.getConnector().getLocalPort() + CONTEXT_PATH;
+	}
+	
+	/**
+	 * 
+	 * @return the connection string of the database of the web application
+	 */
+	public String getMongoUri() {
+		return mongoUri;
+	}
+	
+	/**
+	 * Stops the web application, and the stand-in if one was started.
+	 */
+	@Override
+	public void close() throws LifecycleException {
+		
+		try {
+			tomcat.stop();
+			tomcat.destroy();
+		} finally {
+			
+			if(mongoServer != null) {
+				mongoServer.shutdown();
+			}
+			
+		}
+		
+	}
+
+}
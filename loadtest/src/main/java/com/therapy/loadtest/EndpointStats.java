@@ -0,0 +1,103 @@
+package com.therapy.loadtest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.therapy.monitoring.LatencyHistogram;
+
+/**
+ * This class holds the results of the calls made to one endpoint of the web
+ * application: the latency of every call, in microseconds, the number of
+ * calls that failed, and the time between the start of the first call and
+ * the end of the last one, from which the throughput is worked out.
+ * 
+ * A call fails if it could not be made, or if it was answered with a
+ * redirect or an error, as the web application redirects to an error page
+ * when a form is rejected.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class EndpointStats {
+	
+	private final String name;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong firstStart = new AtomicLong(Long.MAX_VALUE);
+	private final AtomicLong lastEnd = new AtomicLong(Long.MIN_VALUE);
+	
+	/**
+	 * 
+	 * @param name the name of the endpoint
+	 */
+	EndpointStats(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Records a call.
+	 * 
+	 * @param startNanos the value of <code>System.nanoTime</code> when the
+	 * 					 call was made
+	 * @param endNanos   the value of <code>System.nanoTime</code> when the
+	 * 					 answer was received
+	 * @param failed     whether the call failed
+	 */
+	void record(long startNanos, long endNanos, boolean failed) {
+		
+		latencies.record(TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+		if(failed) {
+			errors.incrementAndGet();
+		}
+		
+		firstStart.accumulateAndGet(startNanos, Math::min);
+		lastEnd.accumulateAndGet(endNanos, Math::max);
+		
+	}
+	
+	String getName() {
+		return name;
+	}
+	
+	long getCount() {
+		return latencies.getCount();
+	}
+	
+	long getErrors() {
+		return errors.get();
+	}
+	
+	/**
+	 * 
+	 * @return the number of calls per second, over the time the endpoint
+	 * 		   was in use
+	 */
+	double getThroughput() {
+		
+		long nanos = lastEnd.get() - firstStart.get();
+		if(nanos <= 0) {
+			return 0;
+		}
+		
+		return getCount() * 1e9 / nanos;
+		
+	}
+	
+	/**
+	 * 
+	 * @param percentile the percentile, from 0 to 100
+	 * @return           the latency at the percentile, in milliseconds
+	 */
+	double getPercentileMillis(double percentile) {
+		return latencies.getPercentile(percentile) / 1000.0;
+	}
+	
+	/**
+	 * 
+	 * @return the highest latency, in milliseconds
+	 */
+	double getMaxMillis() {
+		return latencies.getMax() / 1000.0;
+	}
+
+}
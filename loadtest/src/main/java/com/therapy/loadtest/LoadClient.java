@@ -0,0 +1,168 @@
+package com.therapy.loadtest;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class makes the calls of the virtual users to the web application,
+ * and records them in an <code>EndpointStats</code> per endpoint.
+ * 
+ * Every call is made without blocking, so a few threads can drive thousands
+ * of virtual users. Redirects are not followed, and the session cookie the
+ * web application sets is kept by the <code>VirtualUser</code> and sent with
+ * its next calls, as a browser would.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class LoadClient {
+	
+	private static final Duration TIMEOUT = Duration.ofSeconds(30);
+	
+	private final HttpClient client = HttpClient.newBuilder()
+			.version(HttpClient.Version.HTTP_1_1)
+			.followRedirects(HttpClient.Redirect.NEVER)
+			.connectTimeout(TIMEOUT)
+			.build();
+	private final String baseUri;
+	private final Map<String, EndpointStats> stats = new ConcurrentHashMap<>();
+	
+	/**
+	 * 
+	 * @param baseUri the address of the web application, without a trailing
+	 * 				  slash
+	 */
+	LoadClient(String baseUri) {
+		this.baseUri = baseUri;
+	}
+	
+	/**
+	 * Posts a form to the web application.
+	 * 
+	 * @param endpoint the name the call is recorded under
+	 * @param user     the user making the call
+	 * @param path     the path of the servlet, from the context path
+	 * @param form     the fields of the form
+	 * @return         a future of the answer, which fails if the call could
+	 * 				   not be made
+	 */
+	CompletableFuture<HttpResponse<String>> post(String endpoint, VirtualUser user, String path,
+			Map<String, String> form) {
+			
+		HttpRequest.Builder request = newRequest(user, path)
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofString(encode(form)));
+				
+		return send(endpoint, user, request.build());
+		
+	}
+	
+	/**
+	 * Gets a page of the web application.
+	 * 
+	 * @param endpoint the name the call is recorded under
+	 * @param user     the user making the call
+	 * @param path     the path of the servlet, from the context path
+	 * @param query    the parameters of the query string
+	 * @return         a future of the answer, which fails if the call could
+	 * 				   not be made
+	 */
+	CompletableFuture<HttpResponse<String>> get(String endpoint, VirtualUser user, String path,
+			Map<String, String> query) {
+			
+		String pathAndQuery = query.isEmpty() ? path : path + "?" + encode(query);
+		return send(endpoint, user, newRequest(user, pathAndQuery).GET().build());
+		
+	}
+	
+	/**
+	 * 
+	 * @return the results of every endpoint called, by name
+	 */
+	Map<String, EndpointStats> getStats() {
+		return new TreeMap<>(stats);
+	}
+	
+	/**
+	 * 
+	 * @param user the user making the call
+	 * @param path the path and query string, from the context path
+	 * @return     a request with the session cookie of the user
+	 */
+	private HttpRequest.Builder newRequest(VirtualUser user, String path) {
+		
+		HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUri + path))
+				.timeout(TIMEOUT);
+				
+		String cookie = user.getSessionCookie();
+		if(cookie != null) {
+			request.header("Cookie", cookie);
+		}
+		
+		return request;
+		
+	}
+	
+	/**
+	 * Sends a request, records how long it took, and keeps the session
+	 * cookie of the answer.
+	 * 
+	 * @param endpoint the name the call is recorded under
+	 * @param user     the user making the call
+	 * @param request  the request
+	 * @return         a future of the answer
+	 */
+	private CompletableFuture<HttpResponse<String>> send(String endpoint, VirtualUser user,
+			HttpRequest request) {
+			
+		EndpointStats endpointStats = stats.computeIfAbsent(endpoint, EndpointStats::new);
+		long start = System.nanoTime();
+		
+		return client.sendAsync(request, HttpResponse.BodyHandlers.ofString()).whenComplete((response, e) -> {
+			
+			endpointStats.record(start, System.nanoTime(), e != null || response.statusCode() >= 300);
+			
+			if(response != null) {
+				for(String setCookie : response.headers().allValues("Set-Cookie")) {
+					
+					if(setCookie.startsWith("JSESSIONID=")) {
+						int end = setCookie.indexOf(';');
+						user.setSessionCookie(end < 0 ? setCookie : setCookie.substring(0, end));
+					}
+					
+				}
+			}
+			
+		});
+		
+	}
+	
+	/**
+	 * 
+	 * @param fields the fields of a form or query string
+	 * @return       the fields, encoded as
+	 * 				 <code>application/x-www-form-urlencoded</code>
+	 */
+	private static String encode(Map<String, String> fields) {
+		
+		StringJoiner encoded = new StringJoiner("&");
+		for(Map.Entry<String, String> field : fields.entrySet()) {
+			encoded.add(URLEncoder.encode(field.getKey(), StandardCharsets.UTF_8) + "="
+					+ URLEncoder.encode(field.getValue(), StandardCharsets.UTF_8));
+		}
+		
+		return encoded.toString();
+		
+	}
+
+}
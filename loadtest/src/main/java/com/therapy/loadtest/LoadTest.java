@@ -0,0 +1,601 @@
+package com.therapy.loadtest;
+
+import java.io.File;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.github.javafaker.Faker;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientURI;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Projections;
+import com.therapy.servlets.Util;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.in;
+
+/**
+ * This class is a load test of the web application. It simulates a clinic
+ * of therapists and patients over HTTP, end to end:
+ * 
+ * <ol>
+ * 	<li>The therapists and patients sign up through
+ * 		<code>SignUpServlet</code>, with names made by javafaker.</li>
+ * 	<li>Each patient sends a request to a therapist through
+ * 		<code>AsyncAddRequestServlet</code>, so that every therapist has as
+ * 		many patients as their patient limit allows.</li>
+ * 	<li>The therapist, then the patient, accept the request through
+ * 		<code>AsyncAcceptRequestServlet</code>, which makes their chat.</li>
+ * 	<li>For <code>loadtest.seconds</code> seconds, every user polls their
+ * 		chat through <code>AsyncDisplayMessagesServlet</code>, and sometimes
+ * 		sends a message through <code>AsyncAddMessageServlet</code>. Each
+ * 		therapist goes through their chats in turn, opening each one with
+ * 		<code>GetTherapistChatServlet</code>.</li>
+ * </ol>
+ * 
+ * The number of calls per second, and the 50th, 99th and 99.9th percentile
+ * latencies, are then printed for each endpoint.
+ * 
+ * Each user waits <code>loadtest.pollMillis</code> milliseconds between
+ * the end of one poll and the start of the next, like the page does, so a
+ * slow server is sent fewer calls. The number of chats one node sustains is
+ * the highest number at which the latencies stay acceptable.
+ * 
+ * The web application runs in an <code>EmbeddedServer</code>. The ids of
+ * the users and requests, which the pages of the web application do not
+ * show, are read from its database, outside of the measured calls.
+ * 
+ * It is set with these system properties:
+ * <ul>
+ * 	<li><code>loadtest.therapists</code> - the number of therapists
+ * 		(20)</li>
+ * 	<li><code>loadtest.patients</code> - the number of patients, and so of
+ * 		chats (200)</li>
+ * 	<li><code>loadtest.seconds</code> - how long the chats run for (60)</li>
+ * 	<li><code>loadtest.pollMillis</code> - the time between the polls of a
+ * 		user (1000)</li>
+ * 	<li><code>loadtest.messageProbability</code> - the chance that a user
+ * 		sends a message before a poll (0.2)</li>
+ * 	<li><code>loadtest.concurrency</code> - the number of calls made at
+ * 		once while signing up and pairing the users (32)</li>
+ * 	<li><code>loadtest.seed</code> - the seed of the names and messages
+ * 		(42)</li>
+ * 	<li><code>loadtest.webapp</code> - the exploded war
+ * 		(../CulminatingVer8/target/CulminatingVer8)</li>
+ * 	<li><code>loadtest.verbose</code> - whether to show the logs of the web
+ * 		application below warnings (false)</li>
+ * 	<li><code>mongo.uri</code> - a MongoDB server to use instead of the
+ * 		in-memory stand-in. The users are added to its Therapy
+ * 		database.</li>
+ * 	<li><code>webapp.&lt;name&gt;</code> - replaces the context parameter
+ * 		<code>&lt;name&gt;</code> of web.xml</li>
+ * </ul>
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+public final class LoadTest {
+	
+	private static final Logger LOGGER = Logger.getLogger(LoadTest.class.getName());
+	private static final Logger APPLICATION_LOGGER = Logger.getLogger("com.therapy");
+	private static final Logger DRIVER_LOGGER = Logger.getLogger("org.mongodb.driver");
+	
+	private static final String PASSWORD = "LoadTest-password1";
+	private static final Pattern LAST_ID = Pattern.compile("\"lastId\"\\s*:\\s*\"([0-9a-f]{24})\"");
+	private static final int MESSAGE_TEXTS = 500;
+	
+	private final LoadClient client;
+	private final MongoDatabase database;
+	private final int therapistCount;
+	private final int patientCount;
+	private final int seconds;
+	private final int pollMillis;
+	private final double messageProbability;
+	private final int concurrency;
+	private final Faker faker;
+	private final List<String> messageTexts = new ArrayList<>();
+	private final AtomicLong messagesSent = new AtomicLong();
+	
+	/**
+	 * The state of a therapist during the chats: the patient whose chat is
+	 * open next, and the newest message displayed in each chat.
+	 */
+	private static final class TherapistState {
+		
+		private final List<VirtualUser> patients;
+		private final Map<VirtualUser, String> watermarks = new HashMap<>();
+		private int next;
+		
+		private TherapistState(List<VirtualUser> patients) {
+			this.patients = patients;
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param client   the <code>LoadClient</code> to call the web
+	 * 				   application with
+	 * @param database the database of the web application
+	 */
+	private LoadTest(LoadClient client, MongoDatabase database) {
+		
+		this.client = client;
+		this.database = database;
+		
+		therapistCount = Integer.getInteger("loadtest.therapists", 20);
+		patientCount = Integer.getInteger("loadtest.patients", 200);
+		seconds = Integer.getInteger("loadtest.seconds", 60);
+		pollMillis = Integer.getInteger("loadtest.pollMillis", 1000);
+		messageProbability = Double.parseDouble(System.getProperty("loadtest.messageProbability", "0.2"));
+		concurrency = Integer.getInteger("loadtest.concurrency", 32);
+		
+		faker = new Faker(new Random(Long.getLong("loadtest.seed", 42)));
+		for(int i = 0; i < MESSAGE_TEXTS; i++) {
+			messageTexts.add(faker.lorem().sentence(12));
+		}
+		
+	}
+	
+	/**
+	 * Starts the web application, runs the load test against it and prints
+	 * the results.
+	 * 
+	 * @param args not used
+	 */
+	public static void main(String[] args) throws Exception {
+		
+		if(!Boolean.getBoolean("loadtest.verbose")) {
+			APPLICATION_LOGGER.setLevel(Level.WARNING);
+			DRIVER_LOGGER.setLevel(Level.WARNING);
+		}
+		
+		File webapp = new File(System.getProperty("loadtest.webapp", "../CulminatingVer8/target/CulminatingVer8"));
+		
+		Map<String, String> parameters = new HashMap<>();
+		for(String name : System.getProperties().stringPropertyNames()) {
+			
+			if(name.startsWith("webapp.")) {
+				parameters.put(name.substring("webapp.".length()), System.getProperty(name));
+			}
+			
+		}
+		
+		try(EmbeddedServer server = new EmbeddedServer(webapp, System.getProperty("mongo.uri"), parameters)) {
+			
+			MongoClient mongoClient = new MongoClient(new MongoClientURI(server.getMongoUri()));
+			try {
+				
+				LoadTest test = new LoadTest(new LoadClient(server.getBaseUri()),
+						mongoClient.getDatabase(Util.DATABASE_NAME));
+				test.run();
+				
+			} finally {
+				mongoClient.close();
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * Runs every phase of the load test and prints the results.
+	 */
+	private void run() throws InterruptedException {
+		
+		//Make every email unique, in case the database is not new
+		String runId = Long.toString(System.currentTimeMillis(), 36);
+		List<VirtualUser> therapists = newUsers("Therapist", therapistCount, runId);
+		List<VirtualUser> patients = newUsers("Patient", patientCount, runId);
+		int patientLimit = (patientCount + therapistCount - 1) / therapistCount;
+		
+		//Sign up
+		LOGGER.info("Signing up " + therapistCount + " therapists and " + patientCount + " patients");
+		List<VirtualUser> users = new ArrayList<>(therapists);
+		users.addAll(patients);
+		forEach(users, user -> client.post("signUp", user, "/signUpServlet", signUpForm(user, patientLimit)));
+		
+		readIds(therapists, "therapists");
+		readIds(patients, "patients");
+		therapists.removeIf(therapist -> therapist.getId() == null || therapist.getSessionCookie() == null);
+		patients.removeIf(patient -> patient.getId() == null || patient.getSessionCookie() == null);
+		if(therapists.isEmpty()) {
+			throw new IllegalStateException("No therapist could sign up");
+		}
+		
+		//Send one request from every patient, spreading them over the therapists
+		Map<VirtualUser, VirtualUser> therapistOf = new LinkedHashMap<>();
+		for(int i = 0; i < patients.size(); i++) {
+			therapistOf.put(patients.get(i), therapists.get(i % therapists.size()));
+		}
+		
+		LOGGER.info("Sending the requests of " + patients.size() + " patients");
+		forEach(patients, patient -> client.post("addRequest", patient, "/addRequestAsync",
+				Collections.singletonMap("id", therapistOf.get(patient).getId().toHexString())));
+				
+		//Accept the requests, first as the therapist, then as the patient
+		Map<ObjectId, ObjectId> requestOf = readRequests(patients);
+		patients.removeIf(patient -> !requestOf.containsKey(patient.getId()));
+		
+		LOGGER.info("Accepting " + patients.size() + " requests");
+		forEach(patients, patient -> client.post("acceptRequest", therapistOf.get(patient), "/asyncAcceptRequest",
+				Collections.singletonMap("id", requestOf.get(patient.getId()).toHexString())));
+		forEach(patients, patient -> client.post("acceptRequest", patient, "/asyncAcceptRequest",
+				Collections.singletonMap("id", requestOf.get(patient.getId()).toHexString())));
+				
+		//Chat
+		List<ObjectId> chatters = readPatientsWithChats(patients);
+		patients.removeIf(patient -> !chatters.contains(patient.getId()));
+		
+		Map<VirtualUser, TherapistState> therapistStates = new LinkedHashMap<>();
+		for(VirtualUser patient : patients) {
+			therapistStates.computeIfAbsent(therapistOf.get(patient), therapist -> new TherapistState(new ArrayList<>()))
+					.patients.add(patient);
+		}
+		
+		LOGGER.info("Running " + patients.size() + " chats for " + seconds + " seconds");
+		long start = System.nanoTime();
+		runChats(patients, therapistStates);
+		double chatSeconds = (System.nanoTime() - start) / 1e9;
+		
+		printResults(patients.size(), chatSeconds);
+		
+	}
+	
+	/**
+	 * 
+	 * @param userType <code>"Patient"</code> or <code>"Therapist"</code>
+	 * @param count    the number of users
+	 * @param runId    the id of this run, added to the emails
+	 * @return         new users with random names
+	 */
+	private List<VirtualUser> newUsers(String userType, int count, String runId) {
+		
+		List<VirtualUser> users = new ArrayList<>();
+		for(int i = 0; i < count; i++) {
+			
+			String firstName = faker.name().firstName();
+			String lastName = faker.name().lastName();
+			users.add(new VirtualUser(userType, firstName, lastName,
+					userType.toLowerCase(Locale.ROOT) + i + "." + runId + "@loadtest.example.com"));
+					
+		}
+		
+		return users;
+		
+	}
+	
+	/**
+	 * 
+	 * @param user         the user signing up
+	 * @param patientLimit the patient limit of therapists
+	 * @return             the fields of signUp.jsp
+	 */
+	private static Map<String, String> signUpForm(VirtualUser user, int patientLimit) {
+		
+		Map<String, String> form = new LinkedHashMap<>();
+		form.put("userType", user.getUserType());
+		form.put("first_name", user.getFirstName());
+		form.put("last_name", user.getLastName());
+		form.put("email", user.getEmail());
+		form.put("password", PASSWORD);
+		
+		if(user.getUserType().equals("Therapist")) {
+			form.put("patientLimitInput", Integer.toString(patientLimit));
+		}
+		
+		return form;
+		
+	}
+	
+	/**
+	 * Reads the <code>_id</code> fields of users that have signed up.
+	 * 
+	 * @param users      the users
+	 * @param collection the collection of the users
+	 */
+	private void readIds(List<VirtualUser> users, String collection) {
+		
+		Map<String, VirtualUser> byEmail = new HashMap<>();
+		for(VirtualUser user : users) {
+			byEmail.put(user.getEmail(), user);
+		}
+		
+		for(Document user : database.getCollection(collection)
+				.find(in("email", byEmail.keySet()))
+				.projection(Projections.include("email"))) {
+			byEmail.get(user.getString("email")).setId(user.getObjectId("_id"));
+		}
+		
+	}
+	
+	/**
+	 * 
+	 * @param patients the patients that sent requests
+	 * @return         the <code>_id</code> fields of their requests, by the
+	 * 				   <code>_id</code> fields of the patients
+	 */
+	private Map<ObjectId, ObjectId> readRequests(List<VirtualUser> patients) {
+		
+		List<ObjectId> patientIds = new ArrayList<>();
+		for(VirtualUser patient : patients) {
+			patientIds.add(patient.getId());
+		}
+		
+		Map<ObjectId, ObjectId> requests = new HashMap<>();
+		for(Document request : database.getCollection("requests")
+				.find(in("patient_id", patientIds))
+				.projection(Projections.include("patient_id"))) {
+			requests.put(request.getObjectId("patient_id"), request.getObjectId("_id"));
+		}
+		
+		return requests;
+		
+	}
+	
+	/**
+	 * 
+	 * @param patients the patients that accepted requests
+	 * @return         the <code>_id</code> fields of the ones with a chat
+	 */
+	private List<ObjectId> readPatientsWithChats(List<VirtualUser> patients) {
+		
+		List<ObjectId> withChats = new ArrayList<>();
+		for(VirtualUser patient : patients) {
+			
+			Document document = database.getCollection("patients").find(eq(patient.getId()))
+					.projection(Projections.include("chat_id"))
+					.first();
+			if(document != null && document.getObjectId("chat_id") != null) {
+				patient.setChatId(document.getObjectId("chat_id"));
+				withChats.add(patient.getId());
+			}
+			
+		}
+		
+		return withChats;
+		
+	}
+	
+	/**
+	 * Calls <code>action</code> on every item, with at most
+	 * <code>loadtest.concurrency</code> calls in progress at once, and waits
+	 * for all of them to finish.
+	 * 
+	 * @param items  the items
+	 * @param action the call to make for an item
+	 */
+	private <T> void forEach(List<T> items, Function<T, CompletableFuture<?>> action)
+			throws InterruptedException {
+			
+		Semaphore permits = new Semaphore(concurrency);
+		CountDownLatch done = new CountDownLatch(items.size());
+		
+		for(T item : items) {
+			
+			permits.acquire();
+			action.apply(item).whenComplete((result, e) -> {
+				permits.release();
+				done.countDown();
+			});
+			
+		}
+		
+		done.await();
+		
+	}
+	
+	/**
+	 * Runs the chats until <code>loadtest.seconds</code> have passed. Each
+	 * user runs in a loop of calls that are scheduled one after the other,
+	 * so no thread waits for an answer.
+	 * 
+	 * @param patients        the patients with a chat
+	 * @param therapistStates the state of every therapist with a chat
+	 */
+	private void runChats(List<VirtualUser> patients, Map<VirtualUser, TherapistState> therapistStates)
+			throws InterruptedException {
+			
+		ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, runnable -> {
+			Thread thread = new Thread(runnable, "loadtest-scheduler");
+			thread.setDaemon(true);
+			return thread;
+		});
+		
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+		CountDownLatch stopped = new CountDownLatch(patients.size() + therapistStates.size());
+		
+		for(VirtualUser patient : patients) {
+			schedule(scheduler, deadline, stopped, () -> patientTurn(patient));
+		}
+		for(Map.Entry<VirtualUser, TherapistState> therapist : therapistStates.entrySet()) {
+			schedule(scheduler, deadline, stopped, () -> therapistTurn(therapist.getKey(), therapist.getValue()));
+		}
+		
+		stopped.await();
+		scheduler.shutdown();
+		
+	}
+	
+	/**
+	 * Runs <code>turn</code> after a random part of
+	 * <code>loadtest.pollMillis</code>, so that the users do not all poll
+	 * together, and again after each time it finishes, until the deadline.
+	 * 
+	 * @param scheduler the scheduler of the turns
+	 * @param deadline  the value of <code>System.nanoTime</code> at which
+	 * 					to stop
+	 * @param stopped   counted down once the user has stopped
+	 * @param turn      one turn of the user
+	 */
+	private void schedule(ScheduledExecutorService scheduler, long deadline, CountDownLatch stopped,
+			Supplier<CompletableFuture<?>> turn) {
+			
+		Runnable[] loop = new Runnable[1];
+		loop[0] = () -> {
+			
+			if(System.nanoTime() >= deadline) {
+				stopped.countDown();
+				return;
+			}
+			
+			turn.get().whenComplete((result, e) ->
+					scheduler.schedule(loop[0], pollMillis, TimeUnit.MILLISECONDS));
+					
+		};
+		
+		scheduler.schedule(loop[0], ThreadLocalRandom.current().nextInt(Math.max(pollMillis, 1)),
+				TimeUnit.MILLISECONDS);
+				
+	}
+	
+	/**
+	 * Sometimes sends a message as a patient, then polls their chat.
+	 * 
+	 * @param patient the patient
+	 * @return        a future completed when the turn is over
+	 */
+	private CompletableFuture<?> patientTurn(VirtualUser patient) {
+		
+		return maybeSendMessage(patient)
+				.thenCompose(sent -> poll(patient, patient.getWatermark()))
+				.thenAccept(watermark -> patient.setWatermark(watermark));
+				
+	}
+	
+	/**
+	 * Opens the next chat of a therapist, sometimes sends a message in it,
+	 * then polls it.
+	 * 
+	 * @param therapist the therapist
+	 * @param state     the state of the therapist
+	 * @return          a future completed when the turn is over
+	 */
+	private CompletableFuture<?> therapistTurn(VirtualUser therapist, TherapistState state) {
+		
+		VirtualUser patient = state.patients.get(state.next++ % state.patients.size());
+		
+		return client.get("getChat", therapist, "/getChat",
+				Collections.singletonMap("chatId", patient.getChatId().toHexString()))
+				.thenCompose(opened -> maybeSendMessage(therapist))
+				.thenCompose(sent -> poll(therapist, state.watermarks.get(patient)))
+				.thenAccept(watermark -> state.watermarks.put(patient, watermark));
+				
+	}
+	
+	/**
+	 * Sends a message in the current chat of a user, with a chance of
+	 * <code>loadtest.messageProbability</code>.
+	 * 
+	 * @param user the user
+	 * @return     a future completed when the message has been sent, or at
+	 * 			   once if none is sent
+	 */
+	private CompletableFuture<?> maybeSendMessage(VirtualUser user) {
+		
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		if(random.nextDouble() >= messageProbability) {
+			return CompletableFuture.completedFuture(null);
+		}
+		
+		String text = messageTexts.get(random.nextInt(messageTexts.size()));
+		return client.post("addMessage", user, "/addMessageAsync", Collections.singletonMap("message", text))
+				.thenAccept(response -> {
+					
+					if(response.statusCode() < 300) {
+						messagesSent.incrementAndGet();
+					}
+					
+				});
+				
+	}
+	
+	/**
+	 * Polls the current chat of a user for the messages after their
+	 * watermark.
+	 * 
+	 * @param user      the user
+	 * @param watermark the <code>_id</code> field of the newest message
+	 * 					displayed, or null
+	 * @return          a future of the new watermark
+	 */
+	private CompletableFuture<String> poll(VirtualUser user, String watermark) {
+		
+		Map<String, String> form = watermark == null
+				? Collections.emptyMap() : Collections.singletonMap("after", watermark);
+				
+		return client.post("displayMessages", user, "/asyncDisplayMessages", form)
+				.handle((response, e) -> newWatermark(response, watermark));
+				
+	}
+	
+	/**
+	 * 
+	 * @param response  the answer to a poll, or null if it failed
+	 * @param watermark the watermark the poll was made with
+	 * @return          the <code>lastId</code> of the answer, or
+	 * 					<code>watermark</code> if it has none
+	 */
+	private static String newWatermark(HttpResponse<String> response, String watermark) {
+		
+		if(response == null || response.statusCode() != 200) {
+			return watermark;
+		}
+		
+		Matcher lastId = LAST_ID.matcher(response.body());
+		return lastId.find() ? lastId.group(1) : watermark;
+		
+	}
+	
+	/**
+	 * Prints the calls per second and latencies of every endpoint.
+	 * 
+	 * @param chats       the number of chats that ran
+	 * @param chatSeconds how long the chats ran for
+	 */
+	private void printResults(int chats, double chatSeconds) {
+		
+		System.out.println();
+		System.out.printf("%-16s %9s %8s %10s %10s %10s %10s %10s%n",
+				"Endpoint", "Calls", "Errors", "Calls/s", "p50 ms", "p99 ms", "p999 ms", "Max ms");
+				
+		for(EndpointStats stats : client.getStats().values()) {
+			
+			System.out.printf("%-16s %9d %8d %10.1f %10.2f %10.2f %10.2f %10.2f%n",
+					stats.getName(), stats.getCount(), stats.getErrors(), stats.getThroughput(),
+					stats.getPercentileMillis(50), stats.getPercentileMillis(99),
+					stats.getPercentileMillis(99.9), stats.getMaxMillis());
+					
+		}
+		
+		System.out.println();
+		System.out.printf("%d chats ran for %.1f s and sent %d messages (%.1f per second)%n",
+				chats, chatSeconds, messagesSent.get(), messagesSent.get() / chatSeconds);
+				
+	}
+
+}
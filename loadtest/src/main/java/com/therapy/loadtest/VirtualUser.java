@@ -0,0 +1,117 @@
+package com.therapy.loadtest;
+
+import org.bson.types.ObjectId;
+
+/**
+ * This class represents a patient or therapist simulated by the load test.
+ * It holds what a browser would: the session cookie, and the
+ * <code>_id</code> field of the newest message it has displayed.
+ * 
+ * @author Yousef Bulbulia
+ *
+ */
+final class VirtualUser {
+	
+	private final String userType;
+	private final String firstName;
+	private final String lastName;
+	private final String email;
+	
+	private volatile String sessionCookie;
+	private volatile ObjectId id;
+	private volatile ObjectId chatId;
+	private volatile String watermark;
+	
+	/**
+	 * 
+	 * @param userType  <code>"Patient"</code> or <code>"Therapist"</code>
+	 * @param firstName the first name of the user
+	 * @param lastName  the last name of the user
+	 * @param email     the email of the user, which must be unique
+	 */
+	VirtualUser(String userType, String firstName, String lastName, String email) {
+		
+		this.userType = userType;
+		this.firstName = firstName;
+		this.lastName = lastName;
+		this.email = email;
+		
+	}
+	
+	String getUserType() {
+		return userType;
+	}
+	
+	String getFirstName() {
+		return firstName;
+	}
+	
+	String getLastName() {
+		return lastName;
+	}
+	
+	/**
+	 * 
+	 * @return the first and last name of the user
+	 */
+	String getFullName() {
+		return firstName + " " + lastName;
+	}
+	
+	String getEmail() {
+		return email;
+	}
+	
+	/**
+	 * 
+	 * @return the <code>JSESSIONID</code> cookie, as sent in a
+	 * 		   <code>Cookie</code> header, or null if the user has no session
+	 */
+	String getSessionCookie() {
+		return sessionCookie;
+	}
+	
+	void setSessionCookie(String sessionCookie) {
+		this.sessionCookie = sessionCookie;
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> field of the user, or null if it has not
+	 * 		   been read yet
+	 */
+	ObjectId getId() {
+		return id;
+	}
+	
+	void setId(ObjectId id) {
+		this.id = id;
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> field of the chat of this patient, which
+	 * 		   therapists open it by, or null if it has not been read yet
+	 */
+	ObjectId getChatId() {
+		return chatId;
+	}
+	
+	void setChatId(ObjectId chatId) {
+		this.chatId = chatId;
+	}
+	
+	/**
+	 * 
+	 * @return the <code>_id</code> field of the newest message displayed, as
+	 * 		   a hex string, or null if no message has been displayed
+	 */
+	String getWatermark() {
+		return watermark;
+	}
+	
+	void setWatermark(String watermark) {
+		this.watermark = watermark;
+	}
+
+}